@@ -0,0 +1,69 @@
+package com.notes.bench;
+
+import com.notes.ApiKeyAuthHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * API key lookup in ApiKeyAuthHandler for a valid key, a wrong key and a missing key. The next handler does
+ * nothing so only the check is measured
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ApiKeyAuthBenchmark {
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private ApiKeyAuthHandler handler;
+    private BenchExchange valid;
+    private BenchExchange wrong;
+    private BenchExchange missing;
+    private URI uri;
+
+    @Setup
+    public void setup() {
+        handler = new ApiKeyAuthHandler(exchange -> exchange.sendResponseHeaders(200, -1), Set.of("super-secret-key"));
+        uri = URI.create("/notes");
+        valid = new BenchExchange();
+        valid.getRequestHeaders().set("X-API-Key", "super-secret-key");
+        wrong = new BenchExchange();
+        wrong.getRequestHeaders().set("X-API-Key", "super-secret-kez");
+        missing = new BenchExchange();
+    }
+
+    @Benchmark
+    public void validKey(Blackhole blackhole) throws IOException {
+        handler.handle(valid.reset("GET", uri, NO_BODY));
+        blackhole.consume(valid.getResponseCode());
+    }
+
+    @Benchmark
+    public void wrongKey(Blackhole blackhole) throws IOException {
+        handler.handle(wrong.reset("GET", uri, NO_BODY));
+        blackhole.consume(wrong.getResponseCode());
+    }
+
+    @Benchmark
+    public void missingKey(Blackhole blackhole) throws IOException {
+        handler.handle(missing.reset("GET", uri, NO_BODY));
+        blackhole.consume(missing.getResponseCode());
+    }
+}
@@ -0,0 +1,168 @@
+package com.notes.bench;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/**
+ * Exchange that is set up in memory so handlers can be benchmarked without sockets or the HTTP server.
+ *
+ * The same exchange is reset before every call. The response body is thrown away but its size is kept, so the
+ * benchmark can hand it to a Blackhole and the JIT can not drop the work that produced it.
+ */
+public class BenchExchange extends HttpExchange {
+
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final RequestBody requestBody = new RequestBody();
+    private final CountingOutputStream responseBody = new CountingOutputStream();
+    private String method;
+    private URI uri;
+    private int responseCode;
+
+    /**
+     * Get ready for the next call
+     * @param method Request method
+     * @param uri Request path and query
+     * @param body Request body, may be empty. Not copied
+     * @return this exchange
+     */
+    public BenchExchange reset(String method, URI uri, byte[] body) {
+        this.method = method;
+        this.uri = uri;
+        requestBody.reset(body);
+        this.responseCode = -1;
+        responseHeaders.clear();
+        responseBody.count = 0;
+        return this;
+    }
+
+    /**
+     * @return bytes written to the response body since the last reset
+     */
+    public long getResponseBytes() {
+        return responseBody.count;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        this.responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Request body that can be pointed at new bytes so resetting does not allocate
+     */
+    private static final class RequestBody extends ByteArrayInputStream {
+        private RequestBody() {
+            super(new byte[0]);
+        }
+
+        private void reset(byte[] bytes) {
+            buf = bytes;
+            pos = 0;
+            mark = 0;
+            count = bytes.length;
+        }
+    }
+
+    /**
+     * Response body that only counts what is written to it
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
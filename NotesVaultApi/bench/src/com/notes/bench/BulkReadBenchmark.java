@@ -0,0 +1,68 @@
+package com.notes.bench;
+
+import com.notes.BulkNoteReader;
+import com.notes.Note;
+import com.notes.NoteBinaryCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the body of a 1000 note bulk import in each format it can come in
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkReadBenchmark {
+
+    private static final int NOTES = 1000;
+
+    @Param({"text/csv", "application/x-ndjson", NoteBinaryCodec.MEDIA_TYPE})
+    public String contentType;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder();
+        ByteBuffer binary = ByteBuffer.allocate(1024 * 1024);
+        for (Note note : new DiscardingNoteStore(NOTES).getNotes()) {
+            switch (contentType) {
+                case "text/csv" -> text.append(note.getId()).append(",\"").append(note.getContent()).append("\",").append(note.getCreatedAt()).append('\n');
+                case "application/x-ndjson" -> text.append("{\"id\":\"").append(note.getId()).append("\",\"content\":\"").append(note.getContent())
+                        .append("\",\"timestamp\":\"").append(note.getCreatedAt()).append("\"}\n");
+                default -> NoteBinaryCodec.writeNote(binary, note);
+            }
+        }
+        body = contentType.equals(NoteBinaryCodec.MEDIA_TYPE)
+                ? Arrays.copyOf(binary.array(), binary.position())
+                : text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) throws IOException {
+        BulkNoteReader reader = BulkNoteReader.forContentType(contentType, new ByteArrayInputStream(body));
+        while (reader.next()) {
+            blackhole.consume(reader.getNote());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.notes.bench;
+
+import com.notes.InMemoryNoteStore;
+import com.notes.Note;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * In memory store that keeps a fixed set of notes to read and throws writes away, so write benchmarks measure the
+ * handler and not a store that keeps growing
+ */
+public class DiscardingNoteStore extends InMemoryNoteStore {
+
+    private final List<Note> notes = new ArrayList<>();
+
+    /**
+     * @param count How many notes to fill the store with, one second apart
+     */
+    public DiscardingNoteStore(int count) {
+        Instant start = Instant.parse("2025-01-01T00:00:00Z");
+        for (int i = 0; i < count; i++) {
+            Note note = new Note(UUID.randomUUID(), "Benchmark note " + i + " with some typical content, about a sentence long.",
+                    start.plusSeconds(i));
+            super.persistNote(note);
+            notes.add(note);
+        }
+    }
+
+    /**
+     * @return the notes the store was filled with in creation order
+     */
+    public List<Note> getNotes() {
+        return notes;
+    }
+
+    @Override
+    public void persistNote(Note note) {
+    }
+
+    @Override
+    public long updateNote(UUID id, String newContent, long expectedVersion) {
+        return getNoteVersion(id);
+    }
+}
@@ -0,0 +1,97 @@
+package com.notes.bench;
+
+import com.notes.Note;
+import com.notes.NoteBinaryCodec;
+import com.notes.NoteJsonWriter;
+import com.notes.NotesHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning notes into response bytes, on its own with Note.toString or NoteJsonWriter and as a whole list request
+ * streamed through NotesHandler as text, JSON or binary, for lists of 1, 100 and 10k notes
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NoteListBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int notes;
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private List<Note> list;
+    private NotesHandler handler;
+    private BenchExchange exchange;
+    private BenchExchange jsonExchange;
+    private BenchExchange binaryExchange;
+    private URI listUri;
+
+    @Setup
+    public void setup() {
+        DiscardingNoteStore store = new DiscardingNoteStore(notes);
+        list = store.getNotes();
+        handler = new NotesHandler(store);
+        exchange = new BenchExchange();
+        jsonExchange = new BenchExchange();
+        jsonExchange.getRequestHeaders().set("Accept", "application/json");
+        binaryExchange = new BenchExchange();
+        binaryExchange.getRequestHeaders().set("Accept", NoteBinaryCodec.MEDIA_TYPE);
+        listUri = URI.create("/notes?limit=" + notes);
+    }
+
+    @Benchmark
+    public void toStringBytes(Blackhole blackhole) {
+        for (Note note : list) {
+            blackhole.consume(note.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public void jsonBytes(Blackhole blackhole) throws IOException {
+        for (Note note : list) {
+            try (NoteJsonWriter writer = NoteJsonWriter.acquire(null)) {
+                writer.writeNote(note);
+                blackhole.consume(writer.length());
+            }
+        }
+    }
+
+    @Benchmark
+    public void streamListJson(Blackhole blackhole) throws IOException {
+        handler.handle(jsonExchange.reset("GET", listUri, NO_BODY));
+        blackhole.consume(jsonExchange.getResponseBytes());
+    }
+
+    @Benchmark
+    public void streamListBinary(Blackhole blackhole) throws IOException {
+        handler.handle(binaryExchange.reset("GET", listUri, NO_BODY));
+        blackhole.consume(binaryExchange.getResponseBytes());
+    }
+
+    @Benchmark
+    public void streamList(Blackhole blackhole) throws IOException {
+        handler.handle(exchange.reset("GET", listUri, NO_BODY));
+        blackhole.consume(exchange.getResponseBytes());
+    }
+}
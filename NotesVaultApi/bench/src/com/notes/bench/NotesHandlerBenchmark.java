@@ -0,0 +1,87 @@
+package com.notes.bench;
+
+import com.notes.NotesHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single note requests through NotesHandler: form body parsing for POST and PUT, and UUID path parsing for GET,
+ * including a path that is not a UUID
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NotesHandlerBenchmark {
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private NotesHandler handler;
+    private BenchExchange exchange;
+    private URI notesUri;
+    private URI noteUri;
+    private URI badNoteUri;
+    private byte[] postBody;
+    private byte[] updateBody;
+
+    @Setup
+    public void setup() {
+        DiscardingNoteStore store = new DiscardingNoteStore(100);
+        handler = new NotesHandler(store);
+        exchange = new BenchExchange();
+
+        UUID id = store.getNotes().get(50).getId();
+        notesUri = URI.create("/notes");
+        noteUri = URI.create("/notes/" + id);
+        badNoteUri = URI.create("/notes/not-a-uuid");
+
+        // Typical content with spaces and punctuation so the url decoding has work to do
+        String content = URLEncoder.encode("Buy milk, eggs & bread. Call the bank about the card (again!) before 5pm.",
+                StandardCharsets.UTF_8);
+        postBody = ("id=" + UUID.randomUUID() + "&content=" + content + "&timestamp=2025-01-01T12%3A00%3A00Z")
+                .getBytes(StandardCharsets.UTF_8);
+        updateBody = ("content=" + content).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void post(Blackhole blackhole) throws IOException {
+        handler.handle(exchange.reset("POST", notesUri, postBody));
+        blackhole.consume(exchange.getResponseCode());
+    }
+
+    @Benchmark
+    public void update(Blackhole blackhole) throws IOException {
+        handler.handle(exchange.reset("PUT", noteUri, updateBody));
+        blackhole.consume(exchange.getResponseCode());
+    }
+
+    @Benchmark
+    public void getById(Blackhole blackhole) throws IOException {
+        handler.handle(exchange.reset("GET", noteUri, NO_BODY));
+        blackhole.consume(exchange.getResponseBytes());
+    }
+
+    @Benchmark
+    public void getByInvalidId(Blackhole blackhole) throws IOException {
+        handler.handle(exchange.reset("GET", badNoteUri, NO_BODY));
+        blackhole.consume(exchange.getResponseCode());
+    }
+}
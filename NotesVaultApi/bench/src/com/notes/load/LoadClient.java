@@ -0,0 +1,211 @@
+package com.notes.load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated user. It sends a request, waits for the answer and sends the next one when its schedule says so.
+ *
+ * Each client has a fixed schedule of when requests should go out so all clients together send at the target rate.
+ * When the server is slow a client falls behind and sends the late requests straight away. Latency is measured from
+ * when a request should have been sent, not when it was, so time spent waiting behind a slow response is counted
+ * (coordinated omission correction). The time from when it was actually sent is kept as well as the service time.
+ *
+ * Each client keeps the ids of the notes it created or was given at the start and only gets, updates or deletes
+ * those, so clients never race each other over the same note.
+ */
+public class LoadClient implements Runnable {
+
+    static final String[] WORDS = {"groceries", "meeting", "holiday", "invoice", "birthday", "recipe", "project",
+            "dentist", "garden", "library", "workout", "budget", "passport", "concert", "repair", "insurance"};
+
+    private final HttpClient httpClient;
+    private final URI baseUri;
+    private final String apiKey;
+    private final Duration timeout;
+    private final OperationMix mix;
+    private final LoadResults results;
+    private final List<UUID> notes;
+    private final Random random;
+    private final int pageSize;
+    private final Instant rangeStart;
+    private final long rangeSeconds;
+
+    private final long firstSendNanos;
+    private final long intervalNanos;
+    private final long measureFromNanos;
+    private final long endNanos;
+
+    /**
+     * @param settings Settings shared by every client
+     * @param notes Ids of notes this client can get, update and delete
+     * @param firstSendNanos When the first request is due, from System.nanoTime
+     * @param intervalNanos Time between two requests of this client
+     * @param measureFromNanos Requests due before this are warm up and not counted
+     * @param endNanos No requests are due from this time on
+     */
+    public LoadClient(Settings settings, List<UUID> notes, long firstSendNanos, long intervalNanos,
+                      long measureFromNanos, long endNanos) {
+        this.httpClient = settings.httpClient;
+        this.baseUri = settings.baseUri;
+        this.apiKey = settings.apiKey;
+        this.timeout = settings.timeout;
+        this.mix = settings.mix;
+        this.results = settings.results;
+        this.pageSize = settings.pageSize;
+        this.rangeStart = settings.rangeStart;
+        this.rangeSeconds = settings.rangeSeconds;
+        this.notes = new ArrayList<>(notes);
+        this.random = new Random(firstSendNanos);
+        this.firstSendNanos = firstSendNanos;
+        this.intervalNanos = intervalNanos;
+        this.measureFromNanos = measureFromNanos;
+        this.endNanos = endNanos;
+    }
+
+    @Override
+    public void run() {
+        for (long due = firstSendNanos; due < endNanos; due += intervalNanos) {
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Operation operation = mix.pick(random);
+            if (operation.needsNote() && notes.isEmpty()) {
+                // Everything this client created is deleted, make a new one instead
+                operation = Operation.POST;
+            }
+            long sent = System.nanoTime();
+            int status;
+            try {
+                status = send(operation);
+            } catch (IOException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long done = System.nanoTime();
+            if (due >= measureFromNanos) {
+                results.record(operation, status, done - due, done - sent);
+            }
+        }
+    }
+
+    /**
+     * Send one request and keep the note ids up to date with what it changed
+     * @return status code of the response
+     */
+    private int send(Operation operation) throws IOException, InterruptedException {
+        HttpRequest.Builder request;
+        UUID id = null;
+        int index = -1;
+        if (operation.needsNote()) {
+            index = random.nextInt(notes.size());
+            id = notes.get(index);
+        }
+
+        switch (operation) {
+            case GET -> request = request("/notes/" + id).GET();
+            case LIST -> request = request("/notes?limit=" + pageSize).GET();
+            case SEARCH -> request = request("/notes?limit=" + pageSize + "&search=" + WORDS[random.nextInt(WORDS.length)]).GET();
+            case RANGE -> {
+                // One hour somewhere in the time the preloaded notes were spread over
+                Instant from = rangeStart.plusSeconds((long) (random.nextDouble() * Math.max(rangeSeconds - 3600, 1)));
+                request = request("/notes?limit=" + pageSize + "&from=" + from + "&to=" + from.plusSeconds(3600)).GET();
+            }
+            case POST -> {
+                id = UUID.randomUUID();
+                request = request("/notes").POST(HttpRequest.BodyPublishers.ofString(
+                        "id=" + id + "&content=" + encode(content(random)) + "&timestamp=" + encode(Instant.now().toString())));
+            }
+            case PUT -> request = request("/notes/" + id).PUT(HttpRequest.BodyPublishers.ofString("content=" + encode(content(random))));
+            case DELETE -> request = request("/notes/" + id).DELETE();
+            default -> throw new IllegalStateException("Unknown operation " + operation);
+        }
+
+        int status = httpClient.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+        if (operation == Operation.POST && status == Operation.POST.getExpectedStatus()) {
+            notes.add(id);
+        } else if (operation == Operation.DELETE && status == Operation.DELETE.getExpectedStatus()) {
+            // Swap with the last so removing does not shift the list
+            notes.set(index, notes.get(notes.size() - 1));
+            notes.remove(notes.size() - 1);
+        }
+        return status;
+    }
+
+    private HttpRequest.Builder request(String pathAndQuery) {
+        return HttpRequest.newBuilder(baseUri.resolve(pathAndQuery))
+                .timeout(timeout)
+                .header("X-API-Key", apiKey)
+                .header("Content-Type", "application/x-www-form-urlencoded");
+    }
+
+    /**
+     * Content of a few words so searches have something to find
+     */
+    static String content(Random random) {
+        StringBuilder content = new StringBuilder("Load test note about");
+        for (int i = 0; i < 3; i++) {
+            content.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return content.append(", ").append(random.nextInt(1_000_000)).toString();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Settings every client shares
+     */
+    public static final class Settings {
+        private final HttpClient httpClient;
+        private final URI baseUri;
+        private final String apiKey;
+        private final Duration timeout;
+        private final OperationMix mix;
+        private final LoadResults results;
+        private final int pageSize;
+        private final Instant rangeStart;
+        private final long rangeSeconds;
+
+        /**
+         * @param httpClient Client all requests go through
+         * @param baseUri Server address, like http://localhost:8080
+         * @param apiKey Sent with every request
+         * @param timeout How long to wait for a response before counting the request as failed
+         * @param mix Which operations to send
+         * @param results Where every measured request is recorded
+         * @param pageSize Limit for list, search and range requests
+         * @param rangeStart Start of the time the preloaded notes are spread over
+         * @param rangeSeconds Length of the time the preloaded notes are spread over
+         */
+        public Settings(HttpClient httpClient, URI baseUri, String apiKey, Duration timeout, OperationMix mix,
+                        LoadResults results, int pageSize, Instant rangeStart, long rangeSeconds) {
+            this.httpClient = httpClient;
+            this.baseUri = baseUri;
+            this.apiKey = apiKey;
+            this.timeout = timeout;
+            this.mix = mix;
+            this.results = results;
+            this.pageSize = pageSize;
+            this.rangeStart = rangeStart;
+            this.rangeSeconds = rangeSeconds;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.notes.load;
+
+import com.notes.ApiKeyAuthHandler;
+import com.notes.InMemoryNoteStore;
+import com.notes.NotesHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a mix of requests to the notes API at a target rate from many clients at once and reports throughput,
+ * errors and latency percentiles.
+ *
+ * Options are given as --name=value:
+ *   --url        server to test, default http://localhost:8080
+ *   --server     external (default) to test the server at --url, or memory to start one in this process with an
+ *                in memory store, for testing the HTTP layer without a database
+ *   --api-key    default super-secret-key
+ *   --rate       requests per second from all clients together, default 200
+ *   --clients    how many clients send at once, default 32
+ *   --duration   seconds to measure for, default 30
+ *   --warmup     seconds to send for before measuring, default 5
+ *   --preload    notes to create with a bulk import before starting, default 1000
+ *   --mix        operation weights, default get=40,list=15,search=10,range=5,post=15,put=10,delete=5
+ *   --limit      page size of list, search and range requests, default 20
+ *   --timeout    seconds before a request counts as failed, default 10
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_MIX = "get=40,list=15,search=10,range=5,post=15,put=10,delete=5";
+    // Preloaded notes are spread over this much time before now so date ranges find some of them
+    private static final long PRELOAD_SPREAD_SECONDS = TimeUnit.DAYS.toSeconds(30);
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String apiKey = options.getOrDefault("api-key", "super-secret-key");
+        int rate = Integer.parseInt(options.getOrDefault("rate", "200"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "32"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int preload = Integer.parseInt(options.getOrDefault("preload", "1000"));
+        int pageSize = Integer.parseInt(options.getOrDefault("limit", "20"));
+        Duration timeout = Duration.ofSeconds(Long.parseLong(options.getOrDefault("timeout", "10")));
+        OperationMix mix = new OperationMix(options.getOrDefault("mix", DEFAULT_MIX));
+        if (rate < 1 || clients < 1 || durationSeconds < 1) {
+            throw new IllegalArgumentException("rate, clients and duration must be positive");
+        }
+
+        HttpServer server = null;
+        URI baseUri;
+        String serverType = options.getOrDefault("server", "external");
+        switch (serverType) {
+            case "external" -> baseUri = URI.create(options.getOrDefault("url", "http://localhost:8080"));
+            case "memory" -> {
+                server = startInMemoryServer(apiKey);
+                baseUri = URI.create("http://localhost:" + server.getAddress().getPort());
+            }
+            default -> throw new IllegalArgumentException("server must be external or memory but was '" + serverType + "'");
+        }
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient httpClient = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(timeout)
+                    .executor(executor)
+                    .build();
+
+            Instant rangeStart = Instant.now().minusSeconds(PRELOAD_SPREAD_SECONDS).truncatedTo(ChronoUnit.SECONDS);
+            List<UUID> preloaded = preload(httpClient, baseUri, apiKey, preload, rangeStart);
+
+            System.out.printf("Sending %d req/s from %d clients to %s for %ds after %ds warm up, mix %s%n",
+                    rate, clients, baseUri, durationSeconds, warmupSeconds, mix);
+            LoadResults results = new LoadResults();
+            LoadClient.Settings settings = new LoadClient.Settings(httpClient, baseUri, apiKey, timeout, mix, results,
+                    pageSize, rangeStart, PRELOAD_SPREAD_SECONDS);
+
+            // Every client sends at rate / clients, staggered so their requests do not all go out together
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) * clients / rate;
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+            List<Thread> threads = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                List<UUID> notes = new ArrayList<>();
+                for (int n = i; n < preloaded.size(); n += clients) {
+                    notes.add(preloaded.get(n));
+                }
+                LoadClient client = new LoadClient(settings, notes, start + intervalNanos * i / clients, intervalNanos, measureFrom, end);
+                threads.add(Thread.ofVirtual().name("load-client-" + i).start(client));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double measuredSeconds = Math.max(System.nanoTime() - measureFrom, 1) / 1e9;
+
+            System.out.println();
+            results.print(System.out, measuredSeconds);
+            long expected = (long) rate * durationSeconds;
+            if (results.getRequests() < expected * 0.9) {
+                System.out.printf("Clients fell behind the target rate, sent %d of %d requests. The server is saturated or "
+                        + "there are too few clients for the rate and latency%n", results.getRequests(), expected);
+            }
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+    }
+
+    /**
+     * Create notes with one bulk import so the run starts with something to read
+     * @return ids of the created notes
+     */
+    private static List<UUID> preload(HttpClient httpClient, URI baseUri, String apiKey, int count, Instant rangeStart)
+            throws IOException, InterruptedException {
+        List<UUID> ids = new ArrayList<>(count);
+        if (count == 0) {
+            return ids;
+        }
+        Random random = new Random();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            Instant createdAt = rangeStart.plusSeconds((long) (random.nextDouble() * PRELOAD_SPREAD_SECONDS));
+            body.append("{\"id\":\"").append(id).append("\",\"content\":\"").append(LoadClient.content(random))
+                    .append("\",\"timestamp\":\"").append(createdAt).append("\"}\n");
+        }
+        HttpRequest request = HttpRequest.newBuilder(baseUri.resolve("/notes/bulk"))
+                .header("X-API-Key", apiKey)
+                .header("Content-Type", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("Preloading notes failed with " + response.statusCode() + ": " + response.body());
+        }
+        System.out.println("Preloaded " + count + " notes");
+        return ids;
+    }
+
+    private static HttpServer startInMemoryServer(String apiKey) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.createContext("/notes", new ApiKeyAuthHandler(new NotesHandler(new InMemoryNoteStore()), Set.of(apiKey)));
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        System.out.println("Started an in memory server on port " + server.getAddress().getPort());
+        return server;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but was '" + arg + "'");
+            }
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,110 @@
+package com.notes.load;
+
+import com.notes.LatencyHistogram;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and errors of every measured request, per operation
+ */
+public class LoadResults {
+
+    private final Map<Operation, OperationResults> byOperation = new EnumMap<>(Operation.class);
+
+    public LoadResults() {
+        for (Operation operation : Operation.values()) {
+            byOperation.put(operation, new OperationResults());
+        }
+    }
+
+    /**
+     * @param operation What was sent
+     * @param status Status code of the response, -1 if there was no response
+     * @param latencyNanos Time from when the request was due to when the response arrived
+     * @param serviceNanos Time from when the request was actually sent to when the response arrived
+     */
+    public void record(Operation operation, int status, long latencyNanos, long serviceNanos) {
+        OperationResults results = byOperation.get(operation);
+        results.latency.record(latencyNanos);
+        results.service.record(serviceNanos);
+        if (status == -1) {
+            results.failures.increment();
+        } else if (status != operation.getExpectedStatus()) {
+            results.errors.increment();
+        }
+    }
+
+    /**
+     * Print a table of throughput, errors and latency percentiles per operation and for all of them together
+     * @param out Where to print
+     * @param seconds How long requests were measured for
+     */
+    public void print(PrintStream out, double seconds) {
+        OperationResults all = new OperationResults();
+        for (OperationResults results : byOperation.values()) {
+            all.add(results);
+        }
+
+        out.println("Latency in ms from when each request was due, corrected for coordinated omission");
+        out.printf("%-8s %9s %9s %8s %8s %9s %9s %9s %9s%n",
+                "op", "requests", "req/s", "errors", "failed", "p50", "p99", "p99.9", "max");
+        for (Map.Entry<Operation, OperationResults> entry : byOperation.entrySet()) {
+            if (entry.getValue().latency.getCount() > 0) {
+                printRow(out, entry.getKey().label(), entry.getValue(), entry.getValue().latency, seconds);
+            }
+        }
+        printRow(out, "all", all, all.latency, seconds);
+
+        out.println();
+        out.println("Service time in ms from when each request was actually sent, not corrected");
+        out.printf("%-8s %9s %9s %8s %8s %9s %9s %9s %9s%n",
+                "op", "requests", "req/s", "errors", "failed", "p50", "p99", "p99.9", "max");
+        printRow(out, "all", all, all.service, seconds);
+
+        long requests = all.latency.getCount();
+        double errorRate = requests == 0 ? 0 : (all.errors.sum() + all.failures.sum()) * 100.0 / requests;
+        out.println();
+        out.printf("%d requests, %.1f req/s, %.3f%% errors (unexpected status) or failures (no response)%n",
+                requests, requests / seconds, errorRate);
+    }
+
+    /**
+     * @return every measured request of every operation together
+     */
+    public long getRequests() {
+        long requests = 0;
+        for (OperationResults results : byOperation.values()) {
+            requests += results.latency.getCount();
+        }
+        return requests;
+    }
+
+    private static void printRow(PrintStream out, String label, OperationResults results, LatencyHistogram histogram, double seconds) {
+        long count = histogram.getCount();
+        out.printf("%-8s %9d %9.1f %8d %8d %9.2f %9.2f %9.2f %9.2f%n",
+                label, count, count / seconds, results.errors.sum(), results.failures.sum(),
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static final class OperationResults {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private void add(OperationResults other) {
+            latency.add(other.latency);
+            service.add(other.service);
+            errors.add(other.errors.sum());
+            failures.add(other.failures.sum());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.notes.load;
+
+/**
+ * Requests the load generator can send, with the status each one is expected to get back
+ */
+public enum Operation {
+    GET(200, true),
+    LIST(200, false),
+    SEARCH(200, false),
+    RANGE(200, false),
+    POST(201, false),
+    PUT(200, true),
+    DELETE(204, true);
+
+    private final int expectedStatus;
+    private final boolean needsNote;
+
+    Operation(int expectedStatus, boolean needsNote) {
+        this.expectedStatus = expectedStatus;
+        this.needsNote = needsNote;
+    }
+
+    public int getExpectedStatus() {
+        return expectedStatus;
+    }
+
+    /**
+     * @return true if the request is about a note that already exists
+     */
+    public boolean needsNote() {
+        return needsNote;
+    }
+
+    public String label() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,81 @@
+package com.notes.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Weighted choice of which operation to send next, written as get=40,list=15,post=10 and so on. Operations that
+ * are left out are never sent
+ */
+public class OperationMix {
+
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+
+    /**
+     * @param mix Comma separated operation=weight pairs
+     * @throws IllegalArgumentException if an operation or weight is not valid
+     */
+    public OperationMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String pair : mix.split(",")) {
+            String[] parts = pair.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight but was '" + pair + "'");
+            }
+            Operation operation;
+            try {
+                operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown operation '" + parts[0] + "'");
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight of " + parts[0] + " can not be negative");
+            }
+            weights.merge(operation, weight, Integer::sum);
+        }
+        weights.values().removeIf(weight -> weight == 0);
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Mix has no operations");
+        }
+
+        operations = weights.keySet().toArray(new Operation[0]);
+        cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += weights.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+        totalWeight = total;
+    }
+
+    /**
+     * @return next operation to send
+     */
+    public Operation pick(Random random) {
+        int value = random.nextInt(totalWeight);
+        for (int i = 0; i < operations.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        int previous = 0;
+        for (int i = 0; i < operations.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(operations[i].label()).append('=').append(cumulativeWeights[i] - previous);
+            previous = cumulativeWeights[i];
+        }
+        return text.toString();
+    }
+}
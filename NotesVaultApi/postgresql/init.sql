@@ -1,5 +1,16 @@
+-- Every insert and update takes the next value so a note's version is never handed out twice, it backs the ETags
+CREATE SEQUENCE IF NOT EXISTS note_version_seq;
+
 CREATE TABLE IF NOT EXISTS note (
                                     id UUID PRIMARY KEY,
                                     content VARCHAR(1000) NOT NULL,
-                                    created_at TIMESTAMP
-);
\ No newline at end of file
+                                    created_at TIMESTAMPTZ,
+                                    version BIGINT NOT NULL DEFAULT nextval('note_version_seq')
+);
+
+-- Paged listings walk notes in (created_at, id) order
+CREATE INDEX IF NOT EXISTS note_created_at_id_idx ON note (created_at, id);
+
+-- Trigram index so substring search on content does not scan the whole table
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX IF NOT EXISTS note_content_trgm_idx ON note USING gin (content gin_trgm_ops);
@@ -0,0 +1,395 @@
+package com.notes;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines from a background thread so request threads never wait on log output.
+ *
+ * Loggers put their messages into a fixed size ring buffer. A slot is claimed with one compare and set on the tail
+ * and handed over by setting its sequence number, so many threads can log at once without a lock. When the buffer
+ * is full the message is dropped and counted instead of waiting, and the writer notes how many were lost the next
+ * time it catches up. The writer thread takes messages off in order, formats them as key=value pairs and only
+ * flushes the output once the buffer is empty, so a burst of messages costs one write.
+ *
+ * LOG_BUFFER_SIZE sets how many messages the buffer holds for the shared writer, default 8192.
+ */
+public final class AsyncLogWriter implements MetricsSource, AutoCloseable {
+
+    // How long the writer sleeps when there is nothing to write, a new message wakes it sooner
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long CLOSE_TIMEOUT_MS = 5_000;
+
+    private final OutputStream out;
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final Thread thread;
+
+    // Guards the fields below and out. The writer thread takes it once per batch, so it is only contended while
+    // closing when the threads still logging write their own messages
+    private final Object writeLock = new Object();
+    private long head;
+    private long droppedReported;
+    private final StringBuilder line = new StringBuilder(256);
+
+    // Messages taken off the buffer and flushed, for flush()
+    private volatile long written;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    private final LongAdder[] logged = new LongAdder[LogLevel.values().length];
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * @param out Where log lines are written, only ever written to by the writer thread
+     * @param capacity Messages the buffer holds, a power of two
+     */
+    public AsyncLogWriter(OutputStream out, int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Log buffer size must be a power of two but was " + capacity);
+        }
+        this.out = out;
+        this.slots = new Event[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+        for (LogLevel level : LogLevel.values()) {
+            logged[level.ordinal()] = new LongAdder();
+        }
+        thread = new Thread(this::run, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return writer every Logger.of logger shares, writing to standard out. It is drained when the JVM exits
+     */
+    public static AsyncLogWriter getDefault() {
+        return DefaultHolder.WRITER;
+    }
+
+    /**
+     * Queue a message for the writer thread. Never blocks
+     * @param level Level of the message
+     * @param logger Name of the logger
+     * @param message Message, the same text for every message of its kind
+     * @param keyValues Keys and values in pairs, key first
+     * @param error Exception to include or null
+     * @param suppressedCount Messages like this one that were rate limited since the last one written
+     * @return false if the buffer was full and the message was dropped
+     */
+    public boolean offer(LogLevel level, String logger, String message, Object[] keyValues, Throwable error, long suppressedCount) {
+        long timestamp = System.currentTimeMillis();
+        if (closed) {
+            // The writer thread has stopped, only happens while shutting down
+            writeNow(level, logger, message, keyValues, error, suppressedCount, timestamp);
+            return true;
+        }
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index].set(level, logger, message, keyValues, error, suppressedCount, timestamp);
+                    // Hands the slot to the writer, everything set above is visible to it after it reads the sequence
+                    sequences.set(index, position + 1);
+                    logged[level.ordinal()].increment();
+                    if (closed) {
+                        // Closed after the check above, the writer thread may already have made its last pass
+                        drainNow();
+                    } else if (waiting) {
+                        LockSupport.unpark(thread);
+                    }
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer has not freed this slot yet so the buffer is full
+                dropped.increment();
+                return false;
+            } else {
+                // Another thread claimed this position first
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Count a message a logger rate limited
+     */
+    public void suppressed() {
+        suppressed.increment();
+    }
+
+    /**
+     * Wait until every message queued before this call has been written and flushed
+     */
+    public void flush() {
+        long target = tail.get();
+        while (written < target && thread.isAlive()) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Write out what is left in the buffer and stop the writer thread. Messages logged after this are written
+     * straight away by the thread logging them
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * @return messages accepted into the buffer at a level
+     */
+    public long getLogged(LogLevel level) {
+        return logged[level.ordinal()].sum();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("notes_log_messages_total", "Log messages queued by level");
+        for (LogLevel level : LogLevel.values()) {
+            if (level != LogLevel.OFF) {
+                writer.sample("notes_log_messages_total", getLogged(level), "level", level.label());
+            }
+        }
+        writer.counter("notes_log_dropped_total", "Log messages dropped because the log buffer was full");
+        writer.sample("notes_log_dropped_total", getDropped());
+        writer.counter("notes_log_suppressed_total", "Log messages skipped by the per message rate limit");
+        writer.sample("notes_log_suppressed_total", getSuppressed());
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (writeLock) {
+                if (drain() > 0) {
+                    continue;
+                }
+                flushOutput();
+                written = head;
+                if (closed) {
+                    // Pick up anything queued while closing
+                    if (drain() == 0) {
+                        flushOutput();
+                        written = head;
+                        return;
+                    }
+                    continue;
+                }
+            }
+            // Set before checking again so a message queued after the check always sees it and wakes us
+            waiting = true;
+            if (!hasNext()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Write every message that is ready, a buffer's worth at most. Called with writeLock held
+     * @return how many were written
+     */
+    private int drain() {
+        int count = 0;
+        while (count < slots.length && hasNext()) {
+            int index = (int) head & mask;
+            Event event = slots[index];
+            format(event.level, event.logger, event.message, event.keyValues, event.error, event.suppressed, event.timestamp);
+            event.clear();
+            // Free the slot for the producer one lap ahead
+            sequences.set(index, head + slots.length);
+            head++;
+            count++;
+            writeLine();
+        }
+
+        long droppedNow = dropped.sum();
+        if (droppedNow > droppedReported) {
+            format(LogLevel.WARN, "AsyncLogWriter", "Log buffer full, messages were dropped",
+                    new Object[]{"dropped", droppedNow - droppedReported}, null, 0, System.currentTimeMillis());
+            droppedReported = droppedNow;
+            writeLine();
+        }
+        return count;
+    }
+
+    private boolean hasNext() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    /**
+     * Write a message from the thread logging it once the writer thread is stopping, after whatever is still in the
+     * buffer so lines stay in order
+     */
+    private void writeNow(LogLevel level, String logger, String message, Object[] keyValues, Throwable error,
+                          long suppressedCount, long timestamp) {
+        synchronized (writeLock) {
+            drainNow();
+            format(level, logger, message, keyValues, error, suppressedCount, timestamp);
+            writeLine();
+            flushOutput();
+        }
+    }
+
+    /**
+     * Write out the buffer from the calling thread, for a message queued while the writer thread was stopping
+     */
+    private void drainNow() {
+        synchronized (writeLock) {
+            while (drain() > 0) {
+                // Until the buffer is empty
+            }
+            flushOutput();
+            written = head;
+        }
+    }
+
+    private void writeLine() {
+        try {
+            out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+
+    private void flushOutput() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+
+    /**
+     * Format one message into line as time, level, logger and msg followed by its keys and values
+     */
+    private void format(LogLevel level, String logger, String message, Object[] keyValues, Throwable error,
+                        long suppressedCount, long timestamp) {
+        line.setLength(0);
+        line.append("time=").append(Instant.ofEpochMilli(timestamp));
+        line.append(" level=").append(level.label());
+        line.append(" logger=");
+        appendValue(logger);
+        line.append(" msg=");
+        appendValue(message);
+        if (keyValues != null) {
+            for (int i = 0; i < keyValues.length; i += 2) {
+                line.append(' ').append(keyValues[i]).append('=');
+                appendValue(i + 1 < keyValues.length ? keyValues[i + 1] : null);
+            }
+        }
+        if (error != null) {
+            line.append(" error=");
+            appendValue(error);
+        }
+        if (suppressedCount > 0) {
+            line.append(" suppressed=").append(suppressedCount);
+        }
+        line.append('\n');
+    }
+
+    /**
+     * Append a value, quoted when it is empty or has spaces, quotes, equals signs or control characters in it
+     */
+    private void appendValue(Object value) {
+        String text = String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+        }
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * One slot of the ring buffer, reused for every message that lands in it
+     */
+    private static final class Event {
+        private LogLevel level;
+        private String logger;
+        private String message;
+        private Object[] keyValues;
+        private Throwable error;
+        private long suppressed;
+        private long timestamp;
+
+        private void set(LogLevel level, String logger, String message, Object[] keyValues, Throwable error,
+                         long suppressed, long timestamp) {
+            this.level = level;
+            this.logger = logger;
+            this.message = message;
+            this.keyValues = keyValues;
+            this.error = error;
+            this.suppressed = suppressed;
+            this.timestamp = timestamp;
+        }
+
+        private void clear() {
+            set(null, null, null, null, null, 0, 0);
+        }
+    }
+
+    private static final class DefaultHolder {
+        private static final AsyncLogWriter WRITER = createDefault();
+
+        private static AsyncLogWriter createDefault() {
+            // Straight to the file descriptor, System.out would take its lock and flush on every line
+            OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+            AsyncLogWriter writer = new AsyncLogWriter(stdout, Config.getInt("LOG_BUFFER_SIZE", 8192));
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "log-writer-close"));
+            return writer;
+        }
+    }
+}
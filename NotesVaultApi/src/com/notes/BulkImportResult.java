@@ -0,0 +1,71 @@
+package com.notes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk import. Only the first few row errors are kept so a bad file can not use up memory
+ */
+public class BulkImportResult {
+
+    private final int maxErrors;
+    private final List<String> errors = new ArrayList<>();
+    private long imported;
+    private long duplicates;
+    private long rejected;
+
+    public BulkImportResult(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Record a row that failed validation
+     * @param line Line of the body the row starts on
+     * @param error Why the row was rejected
+     */
+    public void reject(int line, String error) {
+        rejected++;
+        if (errors.size() < maxErrors) {
+            errors.add("Line " + line + ": " + error);
+        }
+    }
+
+    public void setImported(long imported) {
+        this.imported = imported;
+    }
+
+    public void setDuplicates(long duplicates) {
+        this.duplicates = duplicates;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder response = new StringBuilder();
+        response.append("Imported ").append(imported).append(" notes\n");
+        response.append("Skipped ").append(duplicates).append(" notes that already exist\n");
+        response.append("Rejected ").append(rejected).append(" rows\n");
+        for (String error : errors) {
+            response.append(error).append('\n');
+        }
+        if (rejected > errors.size()) {
+            response.append("... and ").append(rejected - errors.size()).append(" more rejected rows\n");
+        }
+        return response.toString();
+    }
+}
@@ -0,0 +1,540 @@
+package com.notes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reads the notes of a bulk import one row at a time so the request body is never held in memory.
+ *
+ * CSV bodies have one id,content,timestamp row per note with standard double quote quoting, so content can hold
+ * commas, quotes and new lines. A first row of id,content,timestamp is taken as a header and skipped.
+ * NDJSON bodies have one {"id": ..., "content": ..., "timestamp": ...} object per line.
+ * Binary bodies are note frames in the {@link NoteBinaryCodec} layout, read in place from a buffer. Their rows are
+ * counted by frame instead of by line. Binary is only for imports so it is not one of the export formats.
+ *
+ * Each row is checked the same way as a single POST. A row that fails has an error instead of a note and reading
+ * carries on with the next row.
+ */
+public class BulkNoteReader {
+
+    public enum Format { CSV, NDJSON }
+
+    // Rows longer than this are rejected without keeping the rest of the row in memory
+    private static final int MAX_ROW_CHARS = 16 * 1024;
+    private static final int BINARY_BUFFER_BYTES = 64 * 1024;
+    // Content bytes no valid note can go over, every char of content is at most 3 bytes of UTF-8
+    private static final int MAX_CONTENT_BYTES = Note.MAX_LENGTH * 3;
+
+    private final BufferedReader reader;
+    private final InputStream binaryBody;
+    private final ByteBuffer binary;
+    private final Format format;
+    private int line = 1;
+    private int rowLine;
+    private boolean firstRow = true;
+    private boolean atEnd;
+    private Note note;
+    private String error;
+
+    public BulkNoteReader(Reader reader, Format format) {
+        this.reader = new BufferedReader(reader, 64 * 1024);
+        this.binaryBody = null;
+        this.binary = null;
+        this.format = format;
+    }
+
+    private BulkNoteReader(InputStream binaryBody) {
+        this.reader = null;
+        this.binaryBody = binaryBody;
+        this.binary = ByteBuffer.allocate(BINARY_BUFFER_BYTES).flip();
+        this.format = null;
+    }
+
+    /**
+     * @param body Body of a binary import, in the {@link NoteBinaryCodec} layout
+     * @return reader for the body
+     */
+    public static BulkNoteReader binary(InputStream body) {
+        return new BulkNoteReader(body);
+    }
+
+    /**
+     * @param contentType Content-Type header of the request
+     * @param body Request body
+     * @return reader for the body or null if it is not in a format that can be imported
+     */
+    public static BulkNoteReader forContentType(String contentType, InputStream body) {
+        if (contentType != null && contentType.split(";")[0].trim().equalsIgnoreCase(NoteBinaryCodec.MEDIA_TYPE)) {
+            return binary(body);
+        }
+        Format format = formatFor(contentType);
+        return format == null ? null : new BulkNoteReader(new InputStreamReader(body, StandardCharsets.UTF_8), format);
+    }
+
+    /**
+     * @param contentType Content-Type header of the request
+     * @return format of the body or null if it is not one that can be imported
+     */
+    public static Format formatFor(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String mediaType = contentType.split(";")[0].trim().toLowerCase();
+        switch (mediaType) {
+            case "text/csv":
+                return Format.CSV;
+            case "application/x-ndjson":
+            case "application/jsonl":
+                return Format.NDJSON;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Move to the next row
+     * @return false once there are no rows left
+     * @throws IOException if the body could not be read
+     */
+    public boolean next() throws IOException {
+        note = null;
+        error = null;
+        if (binary != null) {
+            return nextFrame();
+        }
+        while (true) {
+            rowLine = line;
+            List<String> fields = new ArrayList<>(3);
+            boolean tooLong;
+            if (format == Format.CSV) {
+                tooLong = readCsvRow(fields);
+            } else {
+                tooLong = readJsonRow(fields);
+            }
+            if (fields.isEmpty() && !tooLong) {
+                if (atEnd) {
+                    return false;
+                }
+                // Blank line
+                continue;
+            }
+
+            boolean header = firstRow && format == Format.CSV && fields.size() == 3
+                    && fields.get(0).equalsIgnoreCase("id") && fields.get(1).equalsIgnoreCase("content");
+            firstRow = false;
+            if (header) {
+                continue;
+            }
+            if (tooLong) {
+                error = "Row is longer than " + MAX_ROW_CHARS + " characters";
+            } else if (error == null) {
+                toNote(fields);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return note on the current row or null if the row is invalid
+     */
+    public Note getNote() {
+        return note;
+    }
+
+    /**
+     * @return why the current row is invalid or null if it is valid
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return line of the body the current row starts on, or the number of its frame in a binary body, counting from 1
+     */
+    public int getLine() {
+        return rowLine;
+    }
+
+    /**
+     * Check the fields of a row the same way a single POST is checked
+     */
+    private void toNote(List<String> fields) {
+        if (fields.size() != 3) {
+            error = "Expected id, content and timestamp";
+            return;
+        }
+        UUID id;
+        try {
+            id = UUID.fromString(fields.get(0).trim());
+        } catch (IllegalArgumentException e) {
+            error = "Invalid UUID";
+            return;
+        }
+        String content = fields.get(1);
+        error = checkContent(content);
+        if (error != null) {
+            return;
+        }
+        Instant timestamp;
+        try {
+            timestamp = Instant.parse(fields.get(2).trim());
+        } catch (DateTimeParseException | NullPointerException e) {
+            error = "Invalid timestamp format";
+            return;
+        }
+        note = new Note(id, content, timestamp);
+    }
+
+    /**
+     * @return why content can not be saved, or null if it can
+     */
+    private static String checkContent(String content) {
+        if (content == null) {
+            return "Missing content";
+        }
+        if (content.length() > Note.MAX_LENGTH) {
+            return "Note content exceeds maximum length of " + Note.MAX_LENGTH + " characters";
+        }
+        if (content.indexOf('\0') >= 0) {
+            return "Note content can not contain NUL characters";
+        }
+        return null;
+    }
+
+    /**
+     * Read the next frame of a binary body. A frame with content too long to be valid is skipped without being
+     * read into memory, a frame whose type is unknown ends the import since there is no telling where the next
+     * one starts
+     * @return false once there are no frames left
+     */
+    private boolean nextFrame() throws IOException {
+        int length;
+        try {
+            while ((length = NoteBinaryCodec.frameLength(binary)) < 0) {
+                if (!fillBinary()) {
+                    if (!binary.hasRemaining()) {
+                        return false;
+                    }
+                    rowLine = line++;
+                    error = "Frame is cut off";
+                    binary.position(binary.limit());
+                    return true;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            rowLine = line++;
+            error = e.getMessage();
+            atEnd = true;
+            binary.position(binary.limit());
+            return true;
+        }
+        rowLine = line++;
+        if (binary.get(binary.position()) != NoteBinaryCodec.NOTE) {
+            error = "Expected a note frame";
+            skipBinary(length);
+            return true;
+        }
+        if (length - NoteBinaryCodec.NOTE_HEADER_BYTES > MAX_CONTENT_BYTES) {
+            error = "Note content exceeds maximum length of " + Note.MAX_LENGTH + " characters";
+            skipBinary(length);
+            return true;
+        }
+        while (binary.remaining() < length) {
+            if (!fillBinary()) {
+                error = "Frame is cut off";
+                binary.position(binary.limit());
+                return true;
+            }
+        }
+        Note read = NoteBinaryCodec.readNote(binary);
+        error = checkContent(read.getContent());
+        if (error == null) {
+            // The version is the store's to set
+            note = new Note(read.getId(), read.getContent(), read.getCreatedAt());
+        }
+        return true;
+    }
+
+    /**
+     * Move what is left to the start of the buffer and read more of the body after it
+     * @return false if the body has no more bytes
+     */
+    private boolean fillBinary() throws IOException {
+        if (atEnd) {
+            return false;
+        }
+        binary.compact();
+        int read = binaryBody.read(binary.array(), binary.position(), binary.remaining());
+        if (read > 0) {
+            binary.position(binary.position() + read);
+        }
+        binary.flip();
+        if (read < 0) {
+            atEnd = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skip bytes of a binary body, reading past the buffer when there are more than it holds
+     */
+    private void skipBinary(long bytes) throws IOException {
+        while (bytes > binary.remaining()) {
+            bytes -= binary.remaining();
+            binary.position(binary.limit());
+            if (!fillBinary()) {
+                return;
+            }
+        }
+        binary.position(binary.position() + (int) bytes);
+    }
+
+    /**
+     * Read one CSV row into fields. Quoted fields can span lines
+     * @return true if the row was too long and was skipped
+     */
+    private boolean readCsvRow(List<String> fields) throws IOException {
+        StringBuilder field = new StringBuilder();
+        boolean inQuotes = false;
+        boolean anyChars = false;
+        int length = 0;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                line++;
+            }
+            if (++length > MAX_ROW_CHARS && (inQuotes || c != '\n')) {
+                skipCsvRow(inQuotes);
+                fields.clear();
+                return true;
+            }
+            if (inQuotes) {
+                if (c == '"') {
+                    reader.mark(1);
+                    int nextChar = reader.read();
+                    if (nextChar == '"') {
+                        field.append('"');
+                    } else {
+                        inQuotes = false;
+                        if (nextChar != -1) {
+                            reader.reset();
+                        }
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                inQuotes = true;
+                anyChars = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                anyChars = true;
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+                anyChars = true;
+            }
+        }
+        if (c == -1) {
+            atEnd = true;
+            if (inQuotes) {
+                error = "Unterminated quoted field";
+            }
+        }
+        if (anyChars) {
+            fields.add(field.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Throw away the rest of a CSV row that is too long
+     */
+    private void skipCsvRow(boolean inQuotes) throws IOException {
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                line++;
+                if (!inQuotes) {
+                    return;
+                }
+            } else if (c == '"') {
+                inQuotes = !inQuotes;
+            }
+        }
+        atEnd = true;
+    }
+
+    /**
+     * Read one NDJSON line and pull the id, content and timestamp out of it
+     * @return true if the line was too long and was skipped
+     */
+    private boolean readJsonRow(List<String> fields) throws IOException {
+        StringBuilder row = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1 && c != '\n') {
+            if (row.length() == MAX_ROW_CHARS) {
+                while ((c = reader.read()) != -1 && c != '\n') {
+                    // Throw away the rest of the line
+                }
+                line++;
+                atEnd = c == -1;
+                return true;
+            }
+            row.append((char) c);
+        }
+        if (c == -1) {
+            atEnd = true;
+        } else {
+            line++;
+        }
+        if (row.toString().isBlank()) {
+            return false;
+        }
+
+        try {
+            Map<String, String> object = new JsonObjectParser(row).parse();
+            fields.add(object.getOrDefault("id", ""));
+            fields.add(object.get("content"));
+            fields.add(object.get("timestamp"));
+        } catch (IllegalArgumentException e) {
+            error = "Invalid JSON: " + e.getMessage();
+            fields.add("");
+        }
+        return false;
+    }
+
+    /**
+     * Parser for a flat JSON object whose values are strings or null, which is all a note needs
+     */
+    private static final class JsonObjectParser {
+        private final CharSequence text;
+        private int pos;
+
+        private JsonObjectParser(CharSequence text) {
+            this.text = text;
+        }
+
+        private Map<String, String> parse() {
+            Map<String, String> object = new HashMap<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                expect(':');
+                skipWhitespace();
+                String value;
+                if (peek() == 'n') {
+                    expectWord("null");
+                    value = null;
+                } else {
+                    value = readString();
+                }
+                object.put(key, value);
+                skipWhitespace();
+                char next = next();
+                if (next == '}') {
+                    break;
+                }
+                if (next != ',') {
+                    throw new IllegalArgumentException("expected , or } at column " + pos);
+                }
+            }
+            skipWhitespace();
+            if (pos != text.length()) {
+                throw new IllegalArgumentException("unexpected text after object at column " + (pos + 1));
+            }
+            return object;
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case '"', '\\', '/' -> value.append(escaped);
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'u' -> {
+                        if (pos + 4 > text.length()) {
+                            throw new IllegalArgumentException("bad unicode escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.subSequence(pos, pos + 4).toString(), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("bad unicode escape");
+                        }
+                        pos += 4;
+                    }
+                    default -> throw new IllegalArgumentException("bad escape at column " + pos);
+                }
+            }
+        }
+
+        private void expectWord(String word) {
+            for (int i = 0; i < word.length(); i++) {
+                if (next() != word.charAt(i)) {
+                    throw new IllegalArgumentException("expected a string or null at column " + pos);
+                }
+            }
+        }
+
+        private void expect(char expected) {
+            skipWhitespace();
+            if (next() != expected) {
+                throw new IllegalArgumentException("expected " + expected + " at column " + pos);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("unexpected end of line");
+            }
+            return text.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.notes;
+
+/**
+ * Who the request being handled on this thread is from. The handler sets it for the length of a request so a store
+ * can send a client that just wrote to the primary, see {@link ReplicaRouter}
+ */
+public final class ClientContext {
+
+    private static final ThreadLocal<String> CLIENT = new ThreadLocal<>();
+
+    private ClientContext() {
+    }
+
+    /**
+     * @param clientId Client the request on this thread is from
+     */
+    public static void set(String clientId) {
+        CLIENT.set(clientId);
+    }
+
+    /**
+     * @return client the request on this thread is from, or null outside a request
+     */
+    public static String get() {
+        return CLIENT.get();
+    }
+
+    public static void clear() {
+        CLIENT.remove();
+    }
+}
@@ -0,0 +1,263 @@
+package com.notes;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps how many calls of one kind can be at the database at once, and finds that cap from how long calls take.
+ *
+ * The limit follows the gradient between the long term and recent round trip time. While recent calls take about
+ * as long as they usually do the limit grows by about its square root every window. When they start taking longer,
+ * because they queue in the pool or on the server, it shrinks in proportion. Averaging each window of calls keeps
+ * a mix of quick and slow queries from being read as queueing.
+ *
+ * Calls over the limit wait in a short queue for a slot. When the queue is full or the wait runs out they fail
+ * with {@link OverloadedException} straight away instead of adding to the backlog.
+ */
+public final class ConcurrencyLimiter {
+    private static final Logger LOG = Logger.of(ConcurrencyLimiter.class);
+
+    // Calls averaged into each recent round trip time, and windows the long term time is averaged over
+    private static final int WINDOW_SAMPLES = 10;
+    private static final double LONG_WINDOW_WEIGHT = 2.0 / (200 + 1);
+    // Recent calls can take this much longer than usual before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    // Share of each new limit taken on, so one unusual window does not swing it
+    private static final double SMOOTHING = 0.2;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final int retryAfterSeconds;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Everything below is guarded by the lock
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private double longRttNanos;
+    private int windowSamples;
+    private long windowRttNanos;
+    private int windowMaxInFlight;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name What the calls are, for logs
+     * @param initialLimit Limit to start at before any round trip times are known
+     * @param maxLimit Highest the limit can grow to
+     * @param maxQueue Most calls that can wait for a slot, 0 to reject as soon as the limit is reached
+     * @param maxWaitMillis Longest a call waits for a slot
+     * @param retryAfterSeconds How long rejected clients are told to wait
+     */
+    public ConcurrencyLimiter(String name, int initialLimit, int maxLimit, int maxQueue, long maxWaitMillis, int retryAfterSeconds) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("Concurrency limit must be at least 1");
+        }
+        this.name = name;
+        this.minLimit = 1;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+
+    /**
+     * Take a slot, waiting in the queue for one if every slot is in use
+     * @return permit that must be closed once the call is over
+     * @throws OverloadedException if the queue is full or no slot came free in time
+     */
+    public Permit acquire() {
+        lock.lock();
+        try {
+            // Only go ahead of calls already waiting when none are
+            if (waiting == 0 && inFlight < (int) limit) {
+                return take();
+            }
+            if (waiting >= maxQueue) {
+                throw reject("queue_full");
+            }
+            queued.increment();
+            waiting++;
+            try {
+                long remaining = maxWaitNanos;
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        throw reject("timeout");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject("interrupted");
+            } finally {
+                waiting--;
+            }
+            return take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit take() {
+        inFlight++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        acquired.increment();
+        return new Permit();
+    }
+
+    private OverloadedException reject(String reason) {
+        rejected.increment();
+        LOG.warn("Database busy, rejecting call", "calls", name, "reason", reason, "limit", (int) limit, "inFlight", inFlight);
+        return new OverloadedException("Database is busy with " + name + "s, try again later", retryAfterSeconds);
+    }
+
+    /**
+     * Give a slot back and take the time the call took into account
+     */
+    private void release(long rttNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            int before = (int) limit;
+            sample(Math.max(1, rttNanos));
+            if ((int) limit > before) {
+                available.signalAll();
+            } else {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a round trip time to the window and move the limit once the window is full
+     */
+    private void sample(long rttNanos) {
+        windowRttNanos += rttNanos;
+        if (++windowSamples < WINDOW_SAMPLES) {
+            return;
+        }
+        double shortRtt = windowRttNanos / (double) windowSamples;
+        // Calls that never came close to the limit say nothing about whether it is too low
+        boolean belowLimit = windowMaxInFlight < limit / 2;
+        windowSamples = 0;
+        windowRttNanos = 0;
+        windowMaxInFlight = inFlight;
+
+        if (longRttNanos == 0) {
+            longRttNanos = shortRtt;
+        } else {
+            longRttNanos += (shortRtt - longRttNanos) * LONG_WINDOW_WEIGHT;
+            if (longRttNanos > shortRtt * 2) {
+                // Calls got much quicker, for example a burst of slow ones drained, catch up faster than the average would
+                longRttNanos *= 0.95;
+            }
+        }
+        if (belowLimit) {
+            return;
+        }
+
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * longRttNanos / shortRtt));
+        double next = limit * gradient + Math.sqrt(limit);
+        next = limit * (1 - SMOOTHING) + next * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    /**
+     * @return number of calls allowed at the database at once right now
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return usual round trip time the recent ones are compared against, 0 before the first window
+     */
+    public long getRttNanos() {
+        lock.lock();
+        try {
+            return (long) longRttNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * @return calls that had to wait for a slot, whether or not they got one
+     */
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * A slot taken by one call. Closing it gives the slot back
+     */
+    public final class Permit implements AutoCloseable {
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        private Permit() {
+        }
+
+        /**
+         * Give the slot back with the time since it was taken as the round trip time
+         */
+        @Override
+        public void close() {
+            release(System.nanoTime() - start);
+        }
+
+        /**
+         * Give the slot back with a given round trip time
+         * @param rttNanos How long the call took
+         */
+        public void release(long rttNanos) {
+            if (!released) {
+                released = true;
+                ConcurrencyLimiter.this.release(rttNanos);
+            }
+        }
+    }
+}
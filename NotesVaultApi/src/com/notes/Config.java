@@ -0,0 +1,87 @@
+package com.notes;
+
+/**
+ * Reads settings from environment variables so they can be changed in the docker-compose file
+ * without rebuilding the app. Every setting has a default so the app still starts when it is not set.
+ */
+public final class Config {
+
+    private Config() {
+    }
+
+    /**
+     * Get a string setting
+     * @param name environment variable name
+     * @param defaultValue value used when the variable is not set
+     * @return configured value
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    /**
+     * Get an integer setting
+     * @param name environment variable name
+     * @param defaultValue value used when the variable is not set
+     * @return configured value
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(name + " must be an integer but was '" + value + "'", e);
+        }
+    }
+
+    /**
+     * Get a long setting
+     * @param name environment variable name
+     * @param defaultValue value used when the variable is not set
+     * @return configured value
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(name + " must be an integer but was '" + value + "'", e);
+        }
+    }
+
+    /**
+     * Get a decimal setting
+     * @param name environment variable name
+     * @param defaultValue value used when the variable is not set
+     * @return configured value
+     */
+    public static double getDouble(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(name + " must be a number but was '" + value + "'", e);
+        }
+    }
+
+    /**
+     * Get a true/false setting
+     * @param name environment variable name
+     * @param defaultValue value used when the variable is not set
+     * @return configured value
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
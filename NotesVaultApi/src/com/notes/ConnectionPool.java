@@ -0,0 +1,304 @@
+package com.notes;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of JDBC connections so requests running on different threads do not share one connection.
+ *
+ * Connections are handed out most recently used first, checked before being handed out, and closed once
+ * they have sat idle or been open for too long. Time spent waiting for a connection is tracked so it is
+ * easy to tell when the pool is too small, and statement cache hits and misses are tracked so it is easy to
+ * confirm queries are not prepared again on every request.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // Connections used this recently are assumed healthy and skip the validation round trip
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+
+    /**
+     * Opens a new physical connection when the pool needs one
+     */
+    @FunctionalInterface
+    public interface ConnectionOpener {
+        Connection open() throws SQLException;
+    }
+
+    private final ConnectionOpener opener;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    // A permit is held for every connection that is borrowed, which is what bounds the pool
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireWaitNanos = new LongAdder();
+    private final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder connectionsCreated = new LongAdder();
+    private final LongAdder connectionsEvicted = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    public ConnectionPool(String url, Properties properties, int maxSize, long acquireTimeoutMillis,
+                          long idleTimeoutMillis, long maxLifetimeMillis, int validationTimeoutSeconds,
+                          int statementCacheSize) {
+        this(() -> DriverManager.getConnection(url, properties), maxSize, acquireTimeoutMillis, idleTimeoutMillis,
+                maxLifetimeMillis, validationTimeoutSeconds, statementCacheSize);
+    }
+
+    public ConnectionPool(ConnectionOpener opener, int maxSize, long acquireTimeoutMillis, long idleTimeoutMillis,
+                          long maxLifetimeMillis, int validationTimeoutSeconds, int statementCacheSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.opener = opener;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        // Sweep idle connections in the background so an idle app lets go of its connections
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(1000, Math.min(idleTimeoutMillis, maxLifetimeMillis) / 4);
+        housekeeper.scheduleWithFixedDelay(this::evictExpired, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection, waiting up to the acquire timeout if all of them are in use
+     * @return connection that must be closed to hand it back
+     * @throws SQLException if no connection could be borrowed
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        if (!acquired) {
+            acquireTimeouts.increment();
+            throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMillis
+                    + "ms waiting for a database connection");
+        }
+
+        try {
+            // Reuse an idle connection if a healthy one exists, otherwise open a new one
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled, System.currentTimeMillis())) {
+                    pooled.markBorrowed();
+                    return pooled;
+                }
+                discard(pooled);
+            }
+            pooled = open();
+            pooled.markBorrowed();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Take back a borrowed connection. Called by {@link PooledConnection#close()}
+     * @param pooled connection being returned
+     */
+    void release(PooledConnection pooled) {
+        try {
+            long now = System.currentTimeMillis();
+            resetState(pooled);
+            if (closed || pooled.isBroken() || now - pooled.getCreatedAt() >= maxLifetimeMillis) {
+                discard(pooled);
+            } else {
+                pooled.setLastUsedAt(now);
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close every connection and stop handing out new ones
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getActiveConnections() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getThreadsAwaitingConnection() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getTotalAcquireWaitNanos() {
+        return acquireWaitNanos.sum();
+    }
+
+    public long getMaxAcquireWaitNanos() {
+        return maxAcquireWaitNanos.get();
+    }
+
+    public long getAcquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    public long getConnectionsCreated() {
+        return connectionsCreated.sum();
+    }
+
+    public long getConnectionsEvicted() {
+        return connectionsEvicted.sum();
+    }
+
+    public long getValidationFailures() {
+        return validationFailures.sum();
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    void recordStatementCacheHit() {
+        statementCacheHits.increment();
+    }
+
+    void recordStatementCacheMiss() {
+        statementCacheMisses.increment();
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = opener.open();
+        openConnections.incrementAndGet();
+        connectionsCreated.increment();
+        return new PooledConnection(this, connection, System.currentTimeMillis(), statementCacheSize);
+    }
+
+    /**
+     * Check an idle connection before handing it out
+     */
+    private boolean isUsable(PooledConnection pooled, long now) {
+        if (now - pooled.getCreatedAt() >= maxLifetimeMillis || now - pooled.getLastUsedAt() >= idleTimeoutMillis) {
+            return false;
+        }
+        if (now - pooled.getLastUsedAt() < VALIDATION_BYPASS_MILLIS) {
+            return true;
+        }
+        try {
+            if (pooled.connection().isValid(validationTimeoutSeconds)) {
+                return true;
+            }
+        } catch (SQLException e) {
+            // Treated the same as failing validation
+        }
+        validationFailures.increment();
+        return false;
+    }
+
+    /**
+     * Make sure the next borrower does not inherit a transaction left open by the last one
+     */
+    private void resetState(PooledConnection pooled) {
+        try {
+            Connection connection = pooled.connection();
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            pooled.markBroken();
+        }
+    }
+
+    /**
+     * Close idle connections that have been idle or open for too long
+     */
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : idle) {
+            boolean expired = now - pooled.getLastUsedAt() >= idleTimeoutMillis
+                    || now - pooled.getCreatedAt() >= maxLifetimeMillis;
+            // Only close it if a borrower did not grab it first
+            if (expired && idle.remove(pooled)) {
+                discard(pooled);
+            }
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        connectionsEvicted.increment();
+        openConnections.decrementAndGet();
+        pooled.closePhysical();
+    }
+
+    private void recordWait(long nanos) {
+        acquireCount.increment();
+        acquireWaitNanos.add(nanos);
+        maxAcquireWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+}
@@ -0,0 +1,418 @@
+package com.notes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Parses form bodies (application/x-www-form-urlencoded) and query strings in a single pass over the raw bytes.
+ *
+ * The bytes go into a buffer the parser keeps and every name and value is percent decoded in place, which works
+ * because decoding never makes anything longer. Only where each field starts and ends is remembered, so finding a
+ * field compares bytes and nothing becomes an object until it is asked for. UUIDs, instants and numbers are read
+ * straight from the bytes without making a String first, only text values like note content are copied out.
+ *
+ * A parser keeps its buffer between uses through an {@link ObjectPool}. Once it is closed nothing read from it may
+ * be used.
+ */
+public final class FormParser implements AutoCloseable {
+
+    // Fits the longest valid note: 1000 characters that are each 3 UTF-8 bytes percent encoded, plus id and timestamp
+    public static final int MAX_BODY_BYTES = 16 * 1024;
+    private static final int MAX_FIELDS = 32;
+    private static final ObjectPool<FormParser> POOL = new ObjectPool<>(64, FormParser::new);
+
+    private static final int UUID_LENGTH = 36;
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000, 1_000_000_000};
+
+    private final byte[] buffer = new byte[MAX_BODY_BYTES];
+    // Name start, name end, value start and value end of each field
+    private final int[] fields = new int[MAX_FIELDS * 4];
+    private int fieldCount;
+    // Reused for reading UUIDs, instants and numbers out of the buffer
+    private final Bytes view = new Bytes();
+
+    private FormParser() {
+    }
+
+    /**
+     * @return a parser from the pool, or a new one when every pooled parser is in use
+     */
+    public static FormParser acquire() {
+        return POOL.acquire();
+    }
+
+    /**
+     * Give the parser back to the pool
+     */
+    @Override
+    public void close() {
+        fieldCount = 0;
+        POOL.release(this);
+    }
+
+    /**
+     * Read and parse a form body. A body that is too large is turned down from its Content-Length before any of it
+     * is read, or as soon as more than MAX_BODY_BYTES have arrived when the length was not sent
+     * @param body Request body
+     * @param contentLength Length from the Content-Length header, -1 when there was none
+     * @return false if the body is larger than MAX_BODY_BYTES
+     * @throws IllegalArgumentException if the body has an invalid percent escape or too many fields
+     */
+    public boolean readBody(InputStream body, long contentLength) throws IOException {
+        if (contentLength > MAX_BODY_BYTES) {
+            return false;
+        }
+        int length = 0;
+        while (length < buffer.length) {
+            int read = body.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                parse(length);
+                return true;
+            }
+            length += read;
+        }
+        // The buffer is full, which is only fine if the body ends right here
+        if (body.read() >= 0) {
+            return false;
+        }
+        parse(length);
+        return true;
+    }
+
+    /**
+     * Parse a query string
+     * @param rawQuery Query string as sent, still percent encoded, may be null
+     * @throws IllegalArgumentException if the query is too long, has an invalid percent escape or too many fields
+     */
+    public void parseQuery(String rawQuery) {
+        if (rawQuery == null) {
+            fieldCount = 0;
+            return;
+        }
+        int length = rawQuery.length();
+        if (length > buffer.length) {
+            throw new IllegalArgumentException("Query string is too long");
+        }
+        for (int i = 0; i < length; i++) {
+            char c = rawQuery.charAt(i);
+            if (c >= 0x80) {
+                // Characters that should have been percent encoded but were not, the rest goes in as UTF-8
+                if (i + Utf8.encodedLength(rawQuery, i, length) > buffer.length) {
+                    throw new IllegalArgumentException("Query string is too long");
+                }
+                length = Utf8.encode(rawQuery, i, length, buffer, i);
+                break;
+            }
+            buffer[i] = (byte) c;
+        }
+        parse(length);
+    }
+
+    /**
+     * @return true if the field was sent, even with an empty value
+     */
+    public boolean has(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     * @return decoded value of a field, the last one if it was sent more than once, or null if it was not sent
+     */
+    public String getString(String name) {
+        int field = find(name);
+        if (field < 0) {
+            return null;
+        }
+        return new String(buffer, fields[field + 2], fields[field + 3] - fields[field + 2], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return decoded value of a field or the default if it was not sent
+     */
+    public String getString(String name, String defaultValue) {
+        String value = getString(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @return field as a UUID, null if it was not sent or is not a UUID
+     */
+    public UUID getUUID(String name) {
+        Bytes value = view(name);
+        return value == null ? null : parseUUID(value, 0, value.length());
+    }
+
+    /**
+     * @return field as an instant, null if it was not sent
+     * @throws java.time.format.DateTimeParseException if it is not an ISO-8601 instant
+     */
+    public Instant getInstant(String name) {
+        Bytes value = view(name);
+        return value == null ? null : parseInstant(value, 0, value.length());
+    }
+
+    /**
+     * @return field as an int or the default if it was not sent
+     * @throws NumberFormatException if it is not a whole number that fits in an int
+     */
+    public int getInt(String name, int defaultValue) {
+        Bytes value = view(name);
+        return value == null ? defaultValue : parseInt(value, 0, value.length());
+    }
+
+    /**
+     * Read a UUID in its usual 8-4-4-4-12 hex form
+     * @param text Text the UUID is in
+     * @param start Index of its first character
+     * @param end Index after its last character
+     * @return the UUID, or null if that part of the text is not one
+     */
+    public static UUID parseUUID(CharSequence text, int start, int end) {
+        if (end - start != UUID_LENGTH) {
+            return null;
+        }
+        long mostSigBits = 0;
+        long leastSigBits = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = text.charAt(start + i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return null;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return null;
+            }
+            if (i < 18) {
+                mostSigBits = (mostSigBits << 4) | digit;
+            } else {
+                leastSigBits = (leastSigBits << 4) | digit;
+            }
+        }
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Read an ISO-8601 instant. The usual form, like 2026-01-31T12:00:00.123Z, is read directly and anything else
+     * Instant.parse accepts, like an offset instead of Z, is handed to it
+     * @param text Text the instant is in
+     * @param start Index of its first character
+     * @param end Index after its last character
+     * @return the instant
+     * @throws java.time.format.DateTimeParseException if it is not an instant
+     */
+    public static Instant parseInstant(CharSequence text, int start, int end) {
+        int length = end - start;
+        if (length >= 20 && length <= 30 && text.charAt(end - 1) == 'Z' && text.charAt(start + 4) == '-'
+                && text.charAt(start + 7) == '-' && text.charAt(start + 10) == 'T' && text.charAt(start + 13) == ':'
+                && text.charAt(start + 16) == ':') {
+            int year = digits(text, start, 4);
+            int month = digits(text, start + 5, 2);
+            int day = digits(text, start + 8, 2);
+            int hour = digits(text, start + 11, 2);
+            int minute = digits(text, start + 14, 2);
+            int second = digits(text, start + 17, 2);
+            int nanos = 0;
+            int fractionDigits = length - 21;
+            if (fractionDigits > 0 && text.charAt(start + 19) == '.') {
+                int fraction = digits(text, start + 20, fractionDigits);
+                nanos = fraction < 0 ? -1 : fraction * POWERS_OF_TEN[9 - fractionDigits];
+            } else if (length != 20) {
+                nanos = -1;
+            }
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month)
+                    && hour >= 0 && hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59 && nanos >= 0) {
+                return Instant.ofEpochSecond(epochDay(year, month, day) * 86_400 + hour * 3_600 + minute * 60 + second, nanos);
+            }
+        }
+        return Instant.parse(text.subSequence(start, end));
+    }
+
+    /**
+     * Read a whole number with an optional sign
+     * @throws NumberFormatException if it is not a whole number that fits in an int
+     */
+    public static int parseInt(CharSequence text, int start, int end) {
+        boolean negative = start < end && text.charAt(start) == '-';
+        int i = (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("Expected a number but got '" + text.subSequence(start, end) + "'");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Expected a number but got '" + text.subSequence(start, end) + "'");
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("Number is too large: '" + text.subSequence(start, end) + "'");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Number is too large: '" + text.subSequence(start, end) + "'");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Split the first length bytes of the buffer into fields, decoding each in place
+     */
+    private void parse(int length) {
+        fieldCount = 0;
+        int start = 0;
+        while (start < length) {
+            int end = indexOf('&', start, length);
+            if (end > start) {
+                if (fieldCount == MAX_FIELDS) {
+                    throw new IllegalArgumentException("More than " + MAX_FIELDS + " fields");
+                }
+                int equals = indexOf('=', start, end);
+                int field = fieldCount * 4;
+                fields[field] = start;
+                fields[field + 1] = decode(start, equals);
+                fields[field + 2] = equals < end ? equals + 1 : end;
+                fields[field + 3] = decode(fields[field + 2], end);
+                fieldCount++;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Percent decode part of the buffer in place, + is a space
+     * @return where the decoded part ends
+     */
+    private int decode(int start, int end) {
+        int out = start;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                int high = i + 2 < end ? Character.digit(buffer[i + 1], 16) : -1;
+                int low = i + 2 < end ? Character.digit(buffer[i + 2], 16) : -1;
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Invalid percent escape");
+                }
+                b = (byte) ((high << 4) | low);
+                i += 2;
+            }
+            buffer[out++] = b;
+        }
+        return out;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return offset into fields of the last field with the name, or -1 if there is none
+     */
+    private int find(String name) {
+        for (int field = (fieldCount - 1) * 4; field >= 0; field -= 4) {
+            int start = fields[field];
+            if (fields[field + 1] - start == name.length()) {
+                int i = 0;
+                while (i < name.length() && buffer[start + i] == name.charAt(i)) {
+                    i++;
+                }
+                if (i == name.length()) {
+                    return field;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Point the view at the value of a field
+     * @return the view, or null if the field was not sent
+     */
+    private Bytes view(String name) {
+        int field = find(name);
+        if (field < 0) {
+            return null;
+        }
+        view.start = fields[field + 2];
+        view.end = fields[field + 3];
+        return view;
+    }
+
+    /**
+     * @return the number in a run of ASCII digits, or -1 if any of them is not a digit
+     */
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * Days from 1970-01-01 to a date in the proleptic Gregorian calendar, counting years from March so the leap
+     * day comes last
+     */
+    private static long epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097L + dayOfEra - 719_468;
+    }
+
+    /**
+     * Part of the buffer seen as characters, one per byte, so values can be read by the CharSequence parsers
+     * without copying them
+     */
+    private final class Bytes implements CharSequence {
+        private int start;
+        private int end;
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(buffer, start + from, to - from, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.notes;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes new notes in groups so many concurrent inserts share one transaction and one commit.
+ *
+ * Every commit waits for the database to flush its log to disk, so committing each insert on its own caps how many
+ * notes can be created per second. Callers hand their note to a single writer thread and wait. The writer takes the
+ * first note in the queue, keeps collecting until the batch is full or the linger time has passed, inserts them all
+ * with one batch and commits once. Each caller only returns after that commit.
+ *
+ * If the batch fails, for example because one note has an id that already exists, the transaction is rolled back
+ * and the notes are inserted again one at a time so only the caller whose note was bad sees the error.
+ *
+ * Closing stops new notes from being queued and waits for the writer to commit the ones already queued.
+ */
+public class GroupCommitWriter implements AutoCloseable {
+
+    // How often an idle writer checks whether it has been closed
+    private static final long IDLE_CHECK_MILLIS = 100;
+    // Longest close waits for the queued notes to be written before failing the rest
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+    private final ConnectionPool pool;
+    private final String insertSql;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<PendingInsert> queue;
+    private final Thread writer;
+    // Queueing holds the read lock so once close has taken the write lock nothing more can be queued
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final AtomicLong maxBatchRows = new AtomicLong();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LatencyHistogram batchRows = new LatencyHistogram();
+
+    /**
+     * @param pool Pool the writer borrows one connection from per batch
+     * @param insertSql Insert statement with the id, content and created at parameters
+     * @param maxBatchSize Most notes written in one transaction
+     * @param lingerMillis How long to wait for more notes after the first one arrives
+     * @param queueCapacity Most notes waiting to be written before callers block
+     */
+    public GroupCommitWriter(ConnectionPool pool, String insertSql, int maxBatchSize, long lingerMillis, int queueCapacity) {
+        this.pool = pool;
+        this.insertSql = insertSql;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(this::run, "note-group-commit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Insert a note and wait for the transaction it was written in to commit
+     * @param note Note to insert
+     * @return number of rows inserted
+     * @throws SQLException if the note could not be inserted
+     */
+    public int insert(Note note) throws SQLException {
+        PendingInsert pending = new PendingInsert(note);
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new SQLException("Group commit writer is closed");
+            }
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while queueing note for insert", e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+
+        // Not interruptible on purpose, once queued the note may be committed and the caller has to find out
+        try {
+            return pending.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw new SQLException("Failed to insert note", e.getCause());
+        }
+    }
+
+    /**
+     * Stop taking new notes and wait for the writer to commit the ones already queued. Notes still queued when the
+     * wait runs out are failed
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            writer.interrupt();
+        }
+        PendingInsert pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new SQLException("Group commit writer is closed"));
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public int getQueuedInserts() {
+        return queue.size();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    public long getMaxBatchRows() {
+        return maxBatchRows.get();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.sum();
+    }
+
+    /**
+     * @return how many notes each committed batch held
+     */
+    public LatencyHistogram getBatchRows() {
+        return batchRows;
+    }
+
+    public double getAverageBatchRows() {
+        long count = batches.sum();
+        return count == 0 ? 0 : rowsWritten.sum() / (double) count;
+    }
+
+    /**
+     * @return how full batches are on average compared to the max batch size, from 0 to 1
+     */
+    public double getAverageBatchFill() {
+        return getAverageBatchRows() / maxBatchSize;
+    }
+
+    public long getTotalCommitNanos() {
+        return commitNanos.sum();
+    }
+
+    public long getMaxCommitNanos() {
+        return maxCommitNanos.get();
+    }
+
+    public double getAverageCommitMillis() {
+        long count = batches.sum();
+        return count == 0 ? 0 : commitNanos.sum() / (double) count / 1_000_000;
+    }
+
+    private void run() {
+        List<PendingInsert> batch = new ArrayList<>(maxBatchSize);
+        while (true) {
+            try {
+                if (!collect(batch)) {
+                    // Closed and everything queued has been written
+                    break;
+                }
+            } catch (InterruptedException e) {
+                // Only happens when close gave up waiting
+                break;
+            }
+            try {
+                write(batch);
+            } catch (RuntimeException e) {
+                for (PendingInsert pending : batch) {
+                    pending.result.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+        for (PendingInsert pending : batch) {
+            pending.result.completeExceptionally(new SQLException("Group commit writer is closed"));
+        }
+    }
+
+    /**
+     * Wait for the first note then gather more until the batch is full or the linger time is up
+     * @return false once the writer is closed and the queue is empty
+     */
+    private boolean collect(List<PendingInsert> batch) throws InterruptedException {
+        PendingInsert first;
+        while (true) {
+            // Read before polling, nothing can be queued after close so an empty queue seen after it stays empty
+            boolean wasClosed = closed;
+            first = queue.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            if (first != null) {
+                break;
+            }
+            if (wasClosed) {
+                return false;
+            }
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxBatchSize) {
+            // Take whatever is already waiting without blocking
+            if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            PendingInsert next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return true;
+            }
+            batch.add(next);
+        }
+        return true;
+    }
+
+    /**
+     * Insert the batch in one transaction, or one note at a time if the batch fails
+     */
+    private void write(List<PendingInsert> batch) {
+        long start = System.nanoTime();
+        try (PooledConnection pooled = pool.borrow()) {
+            Connection connection = pooled.connection();
+            PreparedStatement ps = pooled.prepare(insertSql);
+            int[] counts;
+            try {
+                connection.setAutoCommit(false);
+                for (PendingInsert pending : batch) {
+                    PostgresSQLJDBC.bindNote(ps, pending.note);
+                    ps.addBatch();
+                }
+                counts = ps.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                failedBatches.increment();
+                rollback(pooled, ps);
+                writeEach(pooled, ps, batch);
+                return;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    pooled.markBroken();
+                }
+            }
+
+            recordBatch(batch.size(), System.nanoTime() - start);
+            for (int i = 0; i < batch.size(); i++) {
+                // Rewritten multi row inserts only report that they succeeded, not how many rows each inserted
+                int count = counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i];
+                batch.get(i).result.complete(count);
+            }
+        } catch (SQLException e) {
+            // Could not get a connection, every note in the batch fails the same way
+            for (PendingInsert pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Fallback after a failed batch, each note gets its own autocommit insert and its own result
+     */
+    private void writeEach(PooledConnection pooled, PreparedStatement ps, List<PendingInsert> batch) {
+        try {
+            pooled.connection().setAutoCommit(true);
+        } catch (SQLException e) {
+            pooled.markBroken();
+            for (PendingInsert pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+            return;
+        }
+        for (PendingInsert pending : batch) {
+            try {
+                PostgresSQLJDBC.bindNote(ps, pending.note);
+                pending.result.complete(ps.executeUpdate());
+            } catch (SQLException e) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void rollback(PooledConnection pooled, PreparedStatement ps) {
+        try {
+            ps.clearBatch();
+            pooled.connection().rollback();
+        } catch (SQLException e) {
+            pooled.markBroken();
+        }
+    }
+
+    private void recordBatch(int rows, long nanos) {
+        batches.increment();
+        rowsWritten.add(rows);
+        maxBatchRows.accumulateAndGet(rows, Math::max);
+        batchRows.record(rows);
+        commitNanos.add(nanos);
+        maxCommitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Note waiting to be written and the result its caller is waiting on
+     */
+    private static final class PendingInsert {
+        private final Note note;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private PendingInsert(Note note) {
+            this.note = note;
+        }
+    }
+}
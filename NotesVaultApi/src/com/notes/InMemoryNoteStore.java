@@ -0,0 +1,197 @@
+package com.notes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps every note in memory, for deployments where notes do not need to outlive the process and for testing the
+ * HTTP layer without a database.
+ *
+ * Notes are held twice, in a hash map by id for single note reads and in a skip list ordered by (createdAt, id) for
+ * the paged lists, so a page or a date range costs O(log n) to find plus the notes on it. Reads never lock. Writes to
+ * the same id are serialized by the hash map so both views always agree on what a note holds.
+ *
+ * Searches scan the notes in creation order and match the keyword anywhere in the content, the same as the database
+ * without its ranking.
+ *
+ * Versions come from one counter for the whole store, so a note that is deleted and saved again never gets back a
+ * version it had before.
+ */
+public class InMemoryNoteStore implements NoteStore {
+
+    private final ConcurrentHashMap<UUID, Note> notes = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<NoteKey, Note> byCreatedAt = new ConcurrentSkipListMap<>();
+    private final NoteChangeListeners listeners = new NoteChangeListeners();
+    private final AtomicLong versions = new AtomicLong();
+
+    @Override
+    public void persistNote(Note note) {
+        if (!insert(note)) {
+            throw new RuntimeException("Note with id " + note.getId() + " already exists");
+        }
+        listeners.saved(note);
+    }
+
+    @Override
+    public List<Note> getAllNotes() {
+        return new ArrayList<>(byCreatedAt.values());
+    }
+
+    @Override
+    public Note getNoteById(UUID id) {
+        return notes.get(id);
+    }
+
+    @Override
+    public long getNoteVersion(UUID id) {
+        Note note = notes.get(id);
+        return note == null ? 0 : note.getVersion();
+    }
+
+    @Override
+    public long getGeneration() {
+        return listeners.getGeneration();
+    }
+
+    @Override
+    public boolean deleteNote(UUID id, long expectedVersion) {
+        Note[] removed = new Note[1];
+        notes.computeIfPresent(id, (key, old) -> {
+            if (expectedVersion != ANY_VERSION && old.getVersion() != expectedVersion) {
+                return old;
+            }
+            byCreatedAt.remove(NoteKey.of(old));
+            removed[0] = old;
+            return null;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        listeners.deleted(id);
+        return true;
+    }
+
+    @Override
+    public long updateNote(UUID id, String newContent, long expectedVersion) {
+        // Stored notes are shared with readers so the update is a new note rather than a change to the old one
+        Note[] updated = new Note[1];
+        notes.computeIfPresent(id, (key, old) -> {
+            if (expectedVersion != ANY_VERSION && old.getVersion() != expectedVersion) {
+                return old;
+            }
+            Note note = new Note(id, newContent, old.getCreatedAt(), versions.incrementAndGet());
+            byCreatedAt.put(NoteKey.of(note), note);
+            updated[0] = note;
+            return note;
+        });
+        if (updated[0] == null) {
+            return 0;
+        }
+        listeners.updated(id, newContent);
+        return updated[0].getVersion();
+    }
+
+    @Override
+    public NoteCursor streamNotes(NoteCursor after, int limit, NoteSink sink) throws IOException {
+        NavigableMap<NoteKey, Note> page = after == null ? byCreatedAt : byCreatedAt.tailMap(NoteKey.of(after), false);
+        return NotePages.stream(page.values().iterator(), null, limit, sink);
+    }
+
+    @Override
+    public NoteCursor searchNotes(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        if (after != null && after.getRank() != null) {
+            throw new IllegalArgumentException("Cursor is not from an in memory search");
+        }
+        NavigableMap<NoteKey, Note> page = after == null ? byCreatedAt : byCreatedAt.tailMap(NoteKey.of(after), false);
+        return NotePages.stream(page.values().iterator(), keyword, limit, sink);
+    }
+
+    @Override
+    public NoteCursor getNotesByDateRange(Instant dateFrom, Instant dateTo, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        NoteKey start = NoteKey.first(dateFrom);
+        boolean startInclusive = true;
+        if (after != null && NoteKey.of(after).compareTo(start) >= 0) {
+            start = NoteKey.of(after);
+            startInclusive = false;
+        }
+        NoteKey end = NoteKey.last(dateTo);
+        if (start.compareTo(end) > 0) {
+            return null;
+        }
+        NavigableMap<NoteKey, Note> page = byCreatedAt.subMap(start, startInclusive, end, true);
+        return NotePages.stream(page.values().iterator(), null, limit, sink);
+    }
+
+    @Override
+    public BulkImportResult importNotes(BulkNoteReader reader) throws IOException {
+        BulkImportResult result = new BulkImportResult(100);
+        long imported = 0;
+        long duplicates = 0;
+        while (reader.next()) {
+            Note note = reader.getNote();
+            if (note == null) {
+                result.reject(reader.getLine(), reader.getError());
+            } else if (insert(note)) {
+                imported++;
+                listeners.saved(note);
+            } else {
+                duplicates++;
+            }
+        }
+        result.setImported(imported);
+        result.setDuplicates(duplicates);
+        return result;
+    }
+
+    @Override
+    public long exportNotes(BulkNoteReader.Format format, Instant dateFrom, Instant dateTo, OutputStream out) throws IOException {
+        NoteKey start = dateFrom == null ? null : NoteKey.first(dateFrom);
+        NoteKey end = dateTo == null ? null : NoteKey.last(dateTo);
+        NoteExportWriter writer = new NoteExportWriter(out, format);
+        for (Note note : range(start, end).values()) {
+            writer.write(note);
+        }
+        return writer.finish();
+    }
+
+    @Override
+    public void addChangeListener(NoteChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Notes between two keys, both inclusive, either can be null to leave that end open
+     */
+    private NavigableMap<NoteKey, Note> range(NoteKey start, NoteKey end) {
+        if (start != null && end != null) {
+            return start.compareTo(end) > 0 ? new ConcurrentSkipListMap<>() : byCreatedAt.subMap(start, true, end, true);
+        }
+        if (start != null) {
+            return byCreatedAt.tailMap(start, true);
+        }
+        return end != null ? byCreatedAt.headMap(end, true) : byCreatedAt;
+    }
+
+    /**
+     * Give a note the next version and add it to both views unless the id is already taken
+     * @return false if a note with the id already exists
+     */
+    private boolean insert(Note note) {
+        boolean[] inserted = new boolean[1];
+        notes.computeIfAbsent(note.getId(), id -> {
+            note.setVersion(versions.incrementAndGet());
+            byCreatedAt.put(NoteKey.of(note), note);
+            inserted[0] = true;
+            return note;
+        });
+        return inserted[0];
+    }
+}
@@ -0,0 +1,207 @@
+package com.notes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies, or any other non negative long, that many threads can record into at once.
+ *
+ * Values are counted in log linear buckets: every power of two range is split into 64 equal buckets, so a value is
+ * only ever reported up to 1/64 (about 1.6%) higher than it was while the whole range of a long fits in 3712
+ * counters. Recording never locks or allocates, so it can sit on the request path.
+ *
+ * The counters are striped by thread so threads recording the same latency at the same time do not all fight over
+ * one cache line. A stripe is only allocated the first time a thread lands on it, and reads add the stripes up.
+ *
+ * Percentiles report the top of the bucket the value falls in so they never understate a latency. The max is kept
+ * exactly.
+ */
+public class LatencyHistogram {
+
+    // Values below 128 get a bucket each, every doubling above that is split into 64 buckets
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    // Next power of two at or above the number of processors, at most 16
+    private static final int STRIPES = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), 16);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Count one value
+     * @param value Value to count, negative values are counted as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        stripe().incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Add everything counted in another histogram to this one
+     * @param other Histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        long[] otherCounts = other.counts();
+        AtomicLongArray counts = stripe();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (otherCounts[i] > 0) {
+                counts.addAndGet(i, otherCounts[i]);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Forget everything counted so far
+     */
+    public void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray counts = stripes.get(s);
+            if (counts != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts.set(i, 0);
+                }
+            }
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @param percentile Percentile from 0 to 100, for example 99.9
+     * @return value that the given share of counted values are at or below, 0 if nothing was counted
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long[] counts = counts();
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                // The top of a bucket can be above the largest value actually seen
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return how many values have been counted
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return sum of every counted value
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : getSum() / (double) count;
+    }
+
+    /**
+     * @return how many counted values are at or below a value, for cumulative buckets like Prometheus uses
+     */
+    public long getCountAtOrBelow(long value) {
+        return getCountsAtOrBelow(new long[]{value})[0];
+    }
+
+    /**
+     * Cumulative counts for several limits at once, adding the stripes up only once
+     * @param limits Limits in increasing order
+     * @return how many counted values are at or below each limit
+     */
+    public long[] getCountsAtOrBelow(long[] limits) {
+        long[] counts = counts();
+        long[] result = new long[limits.length];
+        long count = 0;
+        int bucket = 0;
+        for (int l = 0; l < limits.length; l++) {
+            int last = bucketOf(Math.max(limits[l], 0));
+            // The last bucket may also hold values above the limit, only count it when all of it is covered
+            if (last >= LINEAR_BUCKETS && highestValueOf(last) > limits[l]) {
+                last--;
+            }
+            for (; bucket <= last; bucket++) {
+                count += counts[bucket];
+            }
+            result[l] = count;
+        }
+        return result;
+    }
+
+    /**
+     * Counter array for the calling thread, created the first time any thread needs it
+     */
+    private AtomicLongArray stripe() {
+        int index = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        AtomicLongArray counts = stripes.get(index);
+        if (counts == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS));
+            counts = stripes.get(index);
+        }
+        return counts;
+    }
+
+    /**
+     * @return count of every bucket over all stripes
+     */
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += stripe.get(i);
+                }
+            }
+        }
+        return counts;
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        long lowest = subBucket << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
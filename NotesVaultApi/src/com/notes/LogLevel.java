@@ -0,0 +1,30 @@
+package com.notes;
+
+/**
+ * How important a log message is. A logger only writes messages at or above its level, OFF writes nothing
+ */
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR, OFF;
+
+    private final String label = name().toLowerCase();
+
+    /**
+     * @return level name as written in the log
+     */
+    public String label() {
+        return label;
+    }
+
+    /**
+     * Read a level the way it is written in LOG_LEVEL
+     * @param name Level name, any case
+     * @return the level
+     */
+    public static LogLevel parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("LOG_LEVEL must be debug, info, warn, error or off but was '" + name + "'");
+        }
+    }
+}
@@ -0,0 +1,774 @@
+package com.notes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Embedded store that keeps notes in log files on local disk so the server can run without a database.
+ *
+ * Every write, including updates and deletes, is appended to the end of the current segment file. Once a segment is
+ * full a new one is started. Segments are memory mapped and reads go straight to the mapping, found through an index
+ * from id to where the latest version of the note is. A second index ordered by (createdAt, id) serves the paged
+ * lists and date ranges.
+ *
+ * Updates and deletes leave the old version behind as garbage. A background compactor rewrites the live notes of
+ * segments that are mostly garbage to the end of the log and deletes the old files.
+ *
+ * A note's version is where its latest record is in the log, so it changes with every write and is never handed out
+ * twice. Compaction moves notes and so gives them new versions too, which only costs clients one full read.
+ *
+ * On startup the indexes are rebuilt by reading every segment in order. Each record has a checksum, so a write that
+ * was cut off by a crash is found and cut off the end of the log.
+ *
+ * How often the log is flushed to disk is set by the fsync policy. ALWAYS flushes before a write returns, writes that
+ * happen together share one flush. INTERVAL flushes in the background so a crash can lose the last interval of
+ * writes. NEVER leaves it to the operating system.
+ */
+public final class LogNoteStore implements NoteStore, MetricsSource, AutoCloseable {
+    private static final Logger LOG = Logger.of(LogNoteStore.class);
+
+    public enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+    // Record layout: body length, CRC32C of the body, then the body itself
+    // Body: type, id most and least significant bits, created at seconds and nanos, content as UTF-8
+    private static final int RECORD_HEADER = 8;
+    private static final int BODY_FIXED = 1 + 8 + 8 + 8 + 4;
+    private static final int MAX_BODY = BODY_FIXED + 4 * Note.MAX_LENGTH;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final double compactionRatio;
+
+    // Writes append under this lock so the log and both indexes always change together
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<UUID, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<NoteKey, Location> byCreatedAt = new ConcurrentSkipListMap<>();
+    private final NoteChangeListeners listeners = new NoteChangeListeners();
+    private volatile Segment active;
+    private long appended;
+
+    // Flushes to disk happen one at a time, a write that was covered by someone else's flush skips its own
+    private final Object syncLock = new Object();
+    private long synced;
+
+    private final ScheduledExecutorService background;
+    private volatile boolean closed;
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private long recoveredRecords;
+    private long truncatedBytes;
+    private long recoveryMillis;
+
+    /**
+     * Open the store in a directory, recovering whatever is already there
+     * @param directory Where the segment files are kept, created if it does not exist
+     * @param segmentBytes Size a segment grows to before a new one is started
+     * @param fsyncPolicy When writes are flushed to disk
+     * @param fsyncIntervalMillis How often the log is flushed with the INTERVAL policy
+     * @param compactionIntervalMillis How often segments are checked for compaction, 0 to turn compaction off
+     * @param compactionRatio Share of a segment that has to be garbage before it is compacted
+     * @throws IOException if the directory or a segment could not be read
+     */
+    public LogNoteStore(Path directory, long segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                        long compactionIntervalMillis, double compactionRatio) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+        this.fsyncPolicy = fsyncPolicy;
+        this.compactionRatio = compactionRatio;
+
+        Files.createDirectories(directory);
+        recover();
+
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "note-log-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            background.scheduleWithFixedDelay(this::syncQuietly, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (compactionIntervalMillis > 0) {
+            background.scheduleWithFixedDelay(this::compactQuietly, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void persistNote(Note note) {
+        if (!insert(note)) {
+            throw new RuntimeException("Note with id " + note.getId() + " already exists");
+        }
+        sync();
+        listeners.saved(note);
+    }
+
+    @Override
+    public List<Note> getAllNotes() {
+        List<Note> notes = new ArrayList<>(index.size());
+        for (Location location : byCreatedAt.values()) {
+            notes.add(location.read());
+        }
+        return notes;
+    }
+
+    @Override
+    public Note getNoteById(UUID id) {
+        Location location = index.get(id);
+        return location == null ? null : location.read();
+    }
+
+    @Override
+    public long getNoteVersion(UUID id) {
+        Location location = index.get(id);
+        return location == null ? 0 : location.version();
+    }
+
+    @Override
+    public long getGeneration() {
+        return listeners.getGeneration();
+    }
+
+    @Override
+    public boolean deleteNote(UUID id, long expectedVersion) {
+        writeLock.lock();
+        try {
+            Location old = index.get(id);
+            if (old == null || (expectedVersion != ANY_VERSION && old.version() != expectedVersion)) {
+                return false;
+            }
+            Location tombstone = append(DELETE, id, old.createdAt, "");
+            // Tombstones count as live, they hide older versions of the note until compaction drops them
+            tombstone.segment.liveBytes.addAndGet(tombstone.length);
+            index.remove(id);
+            byCreatedAt.remove(new NoteKey(old.createdAt, id));
+            old.segment.liveBytes.addAndGet(-old.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+        sync();
+        listeners.deleted(id);
+        return true;
+    }
+
+    @Override
+    public long updateNote(UUID id, String newContent, long expectedVersion) {
+        Location location;
+        writeLock.lock();
+        try {
+            Location old = index.get(id);
+            if (old == null || (expectedVersion != ANY_VERSION && old.version() != expectedVersion)) {
+                return 0;
+            }
+            location = append(PUT, id, old.createdAt, newContent);
+            put(location, id);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+        sync();
+        listeners.updated(id, newContent);
+        return location.version();
+    }
+
+    @Override
+    public NoteCursor streamNotes(NoteCursor after, int limit, NoteSink sink) throws IOException {
+        NavigableMap<NoteKey, Location> page = after == null ? byCreatedAt : byCreatedAt.tailMap(NoteKey.of(after), false);
+        return NotePages.stream(notes(page), null, limit, sink);
+    }
+
+    @Override
+    public NoteCursor searchNotes(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        if (after != null && after.getRank() != null) {
+            throw new IllegalArgumentException("Cursor is not from a log store search");
+        }
+        NavigableMap<NoteKey, Location> page = after == null ? byCreatedAt : byCreatedAt.tailMap(NoteKey.of(after), false);
+        return NotePages.stream(notes(page), keyword, limit, sink);
+    }
+
+    @Override
+    public NoteCursor getNotesByDateRange(Instant dateFrom, Instant dateTo, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        NoteKey start = NoteKey.first(dateFrom);
+        boolean startInclusive = true;
+        if (after != null && NoteKey.of(after).compareTo(start) >= 0) {
+            start = NoteKey.of(after);
+            startInclusive = false;
+        }
+        NoteKey end = NoteKey.last(dateTo);
+        if (start.compareTo(end) > 0) {
+            return null;
+        }
+        return NotePages.stream(notes(byCreatedAt.subMap(start, startInclusive, end, true)), null, limit, sink);
+    }
+
+    @Override
+    public BulkImportResult importNotes(BulkNoteReader reader) throws IOException {
+        BulkImportResult result = new BulkImportResult(100);
+        long imported = 0;
+        long duplicates = 0;
+        List<Note> unsynced = new ArrayList<>();
+        while (reader.next()) {
+            Note note = reader.getNote();
+            if (note == null) {
+                result.reject(reader.getLine(), reader.getError());
+            } else if (insert(note)) {
+                imported++;
+                unsynced.add(note);
+            } else {
+                duplicates++;
+            }
+            // One flush per batch of rows instead of one per row
+            if (unsynced.size() == 1000) {
+                notifySaved(unsynced);
+            }
+        }
+        notifySaved(unsynced);
+        result.setImported(imported);
+        result.setDuplicates(duplicates);
+        return result;
+    }
+
+    @Override
+    public long exportNotes(BulkNoteReader.Format format, Instant dateFrom, Instant dateTo, OutputStream out) throws IOException {
+        NavigableMap<NoteKey, Location> range = byCreatedAt;
+        if (dateFrom != null) {
+            range = range.tailMap(NoteKey.first(dateFrom), true);
+        }
+        if (dateTo != null) {
+            if (dateFrom != null && dateFrom.isAfter(dateTo)) {
+                return new NoteExportWriter(out, format).finish();
+            }
+            range = range.headMap(NoteKey.last(dateTo), true);
+        }
+        NoteExportWriter writer = new NoteExportWriter(out, format);
+        for (Location location : range.values()) {
+            writer.write(location.read());
+        }
+        return writer.finish();
+    }
+
+    @Override
+    public void addChangeListener(NoteChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Rewrite the live notes of every full segment that is mostly garbage and delete it. Runs in the background
+     * on the compaction interval, public so it can also be run on demand
+     * @throws IOException if a segment could not be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == active || closed) {
+                continue;
+            }
+            long garbage = segment.size - segment.liveBytes.get();
+            if (segment.size > 0 && garbage >= segment.size * compactionRatio) {
+                compact(segment);
+            }
+        }
+    }
+
+    /**
+     * Stop the background work, waiting for a flush or compaction that is running, then flush everything written so far
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Not shutdownNow, interrupting a thread inside a FileChannel call closes the channel under everyone
+        background.shutdown();
+        try {
+            if (!background.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Note log background work did not stop in time", "timeoutMillis", CLOSE_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A compaction run on demand stops at its next segment now that closed is set
+        synchronized (this) {
+            writeLock.lock();
+            try {
+                // Give back the unused end of the active segment, it is mapped at full size again on the next start
+                active.channel.force(false);
+                active.channel.truncate(active.size);
+                active.channel.close();
+            } catch (IOException e) {
+                LOG.error("Could not flush note log on close", e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.gauge("notes_log_segments", "Segment files in the note log");
+        writer.sample("notes_log_segments", getSegmentCount());
+        writer.gauge("notes_log_notes", "Notes in the note log");
+        writer.sample("notes_log_notes", getLiveNotes());
+        writer.gauge("notes_log_garbage_bytes", "Bytes of old versions and deleted notes waiting for compaction");
+        writer.sample("notes_log_garbage_bytes", getGarbageBytes());
+        writer.counter("notes_log_compactions_total", "Segments compacted");
+        writer.sample("notes_log_compactions_total", getCompactions());
+        writer.counter("notes_log_reclaimed_bytes_total", "Bytes freed by compaction");
+        writer.sample("notes_log_reclaimed_bytes_total", getReclaimedBytes());
+        writer.counter("notes_log_syncs_total", "Flushes of the note log to disk");
+        writer.sample("notes_log_syncs_total", getSyncs());
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public int getLiveNotes() {
+        return index.size();
+    }
+
+    public long getGarbageBytes() {
+        long garbage = 0;
+        for (Segment segment : segments.values()) {
+            garbage += segment.size - segment.liveBytes.get();
+        }
+        return garbage;
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    public long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /**
+     * Append a new note unless the id is already taken. Not flushed yet
+     * @return false if a note with the id already exists
+     */
+    private boolean insert(Note note) {
+        writeLock.lock();
+        try {
+            if (index.containsKey(note.getId())) {
+                return false;
+            }
+            put(append(PUT, note.getId(), note.getCreatedAt(), note.getContent()), note.getId());
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void notifySaved(List<Note> notes) {
+        if (notes.isEmpty()) {
+            return;
+        }
+        sync();
+        for (Note note : notes) {
+            listeners.saved(note);
+        }
+        notes.clear();
+    }
+
+    /**
+     * Point both indexes at the newest version of a note. Called with the write lock held
+     */
+    private void put(Location location, UUID id) {
+        location.segment.liveBytes.addAndGet(location.length);
+        Location old = index.put(id, location);
+        if (old != null) {
+            old.segment.liveBytes.addAndGet(-old.length);
+        }
+        byCreatedAt.put(new NoteKey(location.createdAt, id), location);
+    }
+
+    /**
+     * Append one record to the active segment, starting a new segment if it does not fit. Called with the write lock held
+     * @return where the record was written
+     */
+    private Location append(byte type, UUID id, Instant createdAt, String content) throws IOException {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = BODY_FIXED + contentBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bodyLength);
+        record.putInt(bodyLength);
+        record.putInt(0);
+        record.put(type);
+        record.putLong(id.getMostSignificantBits());
+        record.putLong(id.getLeastSignificantBits());
+        record.putLong(createdAt.getEpochSecond());
+        record.putInt(createdAt.getNano());
+        record.put(contentBytes);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        if (active.size + record.remaining() > segmentBytes) {
+            roll();
+        }
+        Segment segment = active;
+        int offset = segment.size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+        segment.size = (int) position;
+        appended++;
+        return new Location(segment, offset, RECORD_HEADER + bodyLength, createdAt);
+    }
+
+    /**
+     * Flush the full segment, shrink its file to what was written and start the next one
+     */
+    private void roll() throws IOException {
+        Segment full = active;
+        full.channel.force(false);
+        full.channel.truncate(full.size);
+        full.map = full.channel.map(FileChannel.MapMode.READ_ONLY, 0, full.size);
+        full.channel.close();
+        active = openActive(full.id + 1, true);
+    }
+
+    /**
+     * Make sure every write made so far is on disk if the fsync policy asks for it
+     */
+    private void sync() {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            try {
+                syncAll();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void syncAll() throws IOException {
+        long target;
+        writeLock.lock();
+        try {
+            target = appended;
+        } finally {
+            writeLock.unlock();
+        }
+        synchronized (syncLock) {
+            // Someone else's flush already covered this write
+            if (synced >= target) {
+                return;
+            }
+            Segment segment;
+            writeLock.lock();
+            try {
+                target = appended;
+                segment = active;
+            } finally {
+                writeLock.unlock();
+            }
+            // Earlier segments were flushed when they were rolled
+            segment.channel.force(false);
+            syncs.increment();
+            synced = target;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            syncAll();
+        } catch (IOException e) {
+            LOG.error("Could not flush note log", e);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Note log compaction failed", e);
+        }
+    }
+
+    /**
+     * Move the live records of a segment to the end of the log and delete it
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer map = segment.map.duplicate();
+        int offset = 0;
+        while (offset < segment.size) {
+            int length = RECORD_HEADER + map.getInt(offset);
+            byte type = map.get(offset + RECORD_HEADER);
+            UUID id = new UUID(map.getLong(offset + RECORD_HEADER + 1), map.getLong(offset + RECORD_HEADER + 9));
+
+            writeLock.lock();
+            try {
+                Location current = index.get(id);
+                if (type == PUT && current != null && current.segment == segment && current.offset == offset) {
+                    Note note = current.read();
+                    put(append(PUT, id, note.getCreatedAt(), note.getContent()), id);
+                } else if (type == DELETE && current == null && segments.lowerKey(segment.id) != null) {
+                    // An older segment may still hold a version of this note, keep hiding it
+                    Location tombstone = append(DELETE, id, readCreatedAt(map, offset), "");
+                    tombstone.segment.liveBytes.addAndGet(tombstone.length);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            offset += length;
+        }
+
+        // The copies have to be on disk before the only other copy is deleted
+        syncAll();
+        segments.remove(segment.id);
+        Files.deleteIfExists(segment.path);
+        compactions.increment();
+        reclaimedBytes.add(segment.size);
+    }
+
+    /**
+     * Rebuild the indexes from the segments on disk, oldest first so later versions win
+     */
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        ids.sort(null);
+
+        for (int i = 0; i < ids.size(); i++) {
+            boolean last = i == ids.size() - 1;
+            Segment segment = last ? openActive(ids.get(i), false) : openSealed(ids.get(i));
+            replay(segment);
+            if (last) {
+                active = segment;
+            }
+        }
+        if (active == null) {
+            active = openActive(1, true);
+        }
+        recoveryMillis = System.currentTimeMillis() - start;
+        LOG.info("Recovered note log", "notes", index.size(), "records", recoveredRecords, "millis", recoveryMillis);
+    }
+
+    /**
+     * Apply every valid record of a segment to the indexes and cut off anything after the last valid one
+     */
+    private void replay(Segment segment) throws IOException {
+        ByteBuffer map = segment.map.duplicate();
+        long fileSize = Files.size(segment.path);
+        int limit = (int) Math.min(fileSize, map.capacity());
+        int offset = 0;
+        CRC32C crc = new CRC32C();
+        while (offset + RECORD_HEADER + BODY_FIXED <= limit) {
+            int bodyLength = map.getInt(offset);
+            if (bodyLength < BODY_FIXED || bodyLength > MAX_BODY || offset + RECORD_HEADER + bodyLength > limit) {
+                break;
+            }
+            crc.reset();
+            crc.update(map.slice(offset + RECORD_HEADER, bodyLength));
+            if ((int) crc.getValue() != map.getInt(offset + 4)) {
+                break;
+            }
+
+            byte type = map.get(offset + RECORD_HEADER);
+            UUID id = new UUID(map.getLong(offset + RECORD_HEADER + 1), map.getLong(offset + RECORD_HEADER + 9));
+            Location location = new Location(segment, offset, RECORD_HEADER + bodyLength, readCreatedAt(map, offset));
+            if (type == PUT) {
+                put(location, id);
+            } else if (type == DELETE) {
+                segment.liveBytes.addAndGet(location.length);
+                Location old = index.remove(id);
+                if (old != null) {
+                    old.segment.liveBytes.addAndGet(-old.length);
+                    byCreatedAt.remove(new NoteKey(old.createdAt, id));
+                }
+            } else {
+                break;
+            }
+            recoveredRecords++;
+            offset += location.length;
+        }
+        segment.size = offset;
+
+        // Anything past the last good record is either unused space of the active segment or a write that was cut off.
+        // Cut off writes are zeroed so new records appended over them can not be mistaken for a longer old one
+        if (segment.channel != null) {
+            int dataEnd = dataEnd(map, offset, limit);
+            if (dataEnd > offset) {
+                truncatedBytes += dataEnd - offset;
+                LOG.warn("Cut off incomplete writes", "bytes", dataEnd - offset, "segment", segment.path);
+                segment.channel.truncate(offset);
+                segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, offset));
+            }
+        } else if (offset < fileSize) {
+            truncatedBytes += fileSize - offset;
+            LOG.warn("Ignoring unreadable bytes at the end of a segment", "bytes", fileSize - offset, "segment", segment.path);
+        }
+    }
+
+    /**
+     * @return end of the last byte that is not zero, or from if they all are
+     */
+    private static int dataEnd(ByteBuffer map, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (map.get(i) != 0) {
+                return i + 1;
+            }
+        }
+        return from;
+    }
+
+    private static Instant readCreatedAt(ByteBuffer map, int offset) {
+        return Instant.ofEpochSecond(map.getLong(offset + RECORD_HEADER + 17), map.getInt(offset + RECORD_HEADER + 25));
+    }
+
+    /**
+     * Open a segment for appending. It is mapped at its full size up front so reads never need a new mapping
+     */
+    private Segment openActive(long id, boolean create) throws IOException {
+        Path path = segmentPath(id);
+        FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel);
+        segment.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSealed(long id) throws IOException {
+        Path path = segmentPath(id);
+        Segment segment = new Segment(id, path, null);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static Iterator<Note> notes(NavigableMap<NoteKey, Location> range) {
+        Iterator<Location> locations = range.values().iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return locations.hasNext();
+            }
+
+            @Override
+            public Note next() {
+                return locations.next().read();
+            }
+        };
+    }
+
+    /**
+     * One log file. Only the active segment has an open channel, full segments are only read through their mapping
+     */
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile MappedByteBuffer map;
+        // Bytes written so far
+        private volatile int size;
+        // Bytes of records that are still the latest version of a note
+        private final AtomicLong liveBytes = new AtomicLong();
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Where the latest version of a note is
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final Instant createdAt;
+
+        private Location(Segment segment, int offset, int length, Instant createdAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * @return version of the note this record holds, made from the segment id and the offset
+         */
+        private long version() {
+            return segment.id << 32 | offset;
+        }
+
+        /**
+         * Decode the note from the mapping. Segments deleted by compaction stay mapped until nothing points at them
+         */
+        private Note read() {
+            ByteBuffer map = segment.map;
+            int body = offset + RECORD_HEADER;
+            UUID id = new UUID(map.getLong(body + 1), map.getLong(body + 9));
+            byte[] content = new byte[length - RECORD_HEADER - BODY_FIXED];
+            map.get(body + BODY_FIXED, content);
+            return new Note(id, new String(content, StandardCharsets.UTF_8), createdAt, version());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.notes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs messages with a level and key value pairs through an AsyncLogWriter, for example
+ * LOG.debug("Note not found", "id", id) is written as level=debug logger=PostgresSQLJDBC msg="Note not found" id=...
+ *
+ * The message should be the same text every time and anything that changes goes in the keys and values, because
+ * messages are rate limited by their text: each one is written at most LOG_RATE_LIMIT times a second (default 20,
+ * 0 for no limit) and the next one written after that says how many were skipped. Messages below LOG_LEVEL
+ * (default info) are dropped before anything is done with them.
+ */
+public final class Logger {
+
+    private static final LogLevel DEFAULT_LEVEL = LogLevel.parse(Config.getString("LOG_LEVEL", "info"));
+    private static final int DEFAULT_RATE_LIMIT = Config.getInt("LOG_RATE_LIMIT", 20);
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private final String name;
+    private final AsyncLogWriter writer;
+    private final LogLevel level;
+    private final int rateLimit;
+    private final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+
+    /**
+     * @param name Name written with every message
+     * @param writer Writer the messages go to
+     * @param level Lowest level that is written
+     * @param rateLimit Times a second each message can be written, 0 for no limit
+     */
+    public Logger(String name, AsyncLogWriter writer, LogLevel level, int rateLimit) {
+        this.name = name;
+        this.writer = writer;
+        this.level = level;
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * @return logger named after a class that writes to standard out with the configured level and rate limit
+     */
+    public static Logger of(Class<?> type) {
+        return new Logger(type.getSimpleName(), AsyncLogWriter.getDefault(), DEFAULT_LEVEL, DEFAULT_RATE_LIMIT);
+    }
+
+    /**
+     * @return true if messages at a level are written, to skip work that is only needed for the message
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String message, Object... keyValues) {
+        log(LogLevel.DEBUG, message, null, keyValues);
+    }
+
+    public void info(String message, Object... keyValues) {
+        log(LogLevel.INFO, message, null, keyValues);
+    }
+
+    public void warn(String message, Object... keyValues) {
+        log(LogLevel.WARN, message, null, keyValues);
+    }
+
+    public void warn(String message, Throwable error, Object... keyValues) {
+        log(LogLevel.WARN, message, error, keyValues);
+    }
+
+    public void error(String message, Object... keyValues) {
+        log(LogLevel.ERROR, message, null, keyValues);
+    }
+
+    public void error(String message, Throwable error, Object... keyValues) {
+        log(LogLevel.ERROR, message, error, keyValues);
+    }
+
+    private void log(LogLevel level, String message, Throwable error, Object[] keyValues) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long suppressed = 0;
+        if (rateLimit > 0) {
+            suppressed = rateLimits.computeIfAbsent(message, text -> new RateLimit()).acquire(rateLimit);
+            if (suppressed < 0) {
+                writer.suppressed();
+                return;
+            }
+        }
+        writer.offer(level, name, message, keyValues, error, suppressed);
+    }
+
+    /**
+     * Counts the times a message was logged in the current second
+     */
+    private static final class RateLimit {
+        private final AtomicLong window = new AtomicLong(System.nanoTime() / WINDOW_NANOS);
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        /**
+         * @return -1 if the message is over the limit, otherwise how many were skipped since the last one written
+         */
+        private long acquire(int limit) {
+            long now = System.nanoTime() / WINDOW_NANOS;
+            long current = window.get();
+            if (current != now && window.compareAndSet(current, now)) {
+                count.set(0);
+            }
+            if (count.incrementAndGet() > limit) {
+                suppressed.incrementAndGet();
+                return -1;
+            }
+            return suppressed.getAndSet(0);
+        }
+    }
+}
@@ -3,36 +3,173 @@
 
 package com.notes;
 
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
+    private static final Logger LOG = Logger.of(Main.class);
+
     public static void main(String[] args) {
         //Connect to the DB to be used to persist/retrieve notes
-        PostgresSQLJDBC postgresSQLJDBC = new PostgresSQLJDBC();
-        postgresSQLJDBC.setupDb();
+        NoteStore noteStore = createNoteStore();
+        NoteSearchIndex searchIndex = createSearchIndex(noteStore);
 
         //Setup API key handler to have authentication
         String apiKey = System.getenv("API_KEY");
         if (apiKey == null) {
-            System.err.println("API_KEY environment variable not set");
+            LOG.error("API_KEY environment variable not set");
             System.exit(1);
         }
 
         try {
             // Create server to listen for requests
-            HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
-            server.createContext("/notes",new ApiKeyAuthHandler(new NotesHandler(postgresSQLJDBC), Set.of(apiKey)));
-            server.setExecutor(null);
+            // Backlog is how many connections the OS queues before the server accepts them
+            HttpServer server = HttpServer.create(new InetSocketAddress(8080), Config.getInt("SERVER_BACKLOG", 1024));
+            ResponseCompression compression = new ResponseCompression(
+                    Config.getInt("COMPRESSION_LEVEL", ResponseCompression.DEFAULT_LEVEL),
+                    Config.getInt("COMPRESSION_MIN_BYTES", ResponseCompression.DEFAULT_MIN_BYTES));
+            HttpHandler notesHandler = new ApiKeyAuthHandler(new NotesHandler(noteStore, searchIndex, compression), Set.of(apiKey));
+            if (Config.getBoolean("METRICS_ENABLED", true)) {
+                // Outside the API key check so rejected requests are counted too
+                RequestMetrics requestMetrics = new RequestMetrics(notesHandler);
+                notesHandler = requestMetrics;
+                server.createContext("/metrics", createMetricsHandler(requestMetrics, noteStore, searchIndex, compression));
+            }
+            server.createContext("/notes", notesHandler);
+            server.setExecutor(createExecutor());
             server.start();
-            System.out.println("Server is running on port 8080");
+            LOG.info("Server is running", "port", 8080);
         } catch (IOException e) {
-            System.out.println("There was an error starting the server");
-            System.err.println(e);
+            LOG.error("There was an error starting the server", e);
             System.exit(1);
         }
     }
+
+    /**
+     * Create the store notes are kept in.
+     * NOTE_STORE=postgres (default) keeps them in the database.
+     * NOTE_STORE=memory keeps them in memory only, they are gone when the server stops.
+     * NOTE_STORE=log keeps them in log files under NOTE_LOG_DIR on local disk
+     * @return store for the handler
+     */
+    private static NoteStore createNoteStore() {
+        String store = Config.getString("NOTE_STORE", "postgres");
+        switch (store) {
+            case "postgres":
+                PostgresSQLJDBC postgresSQLJDBC = new PostgresSQLJDBC();
+                postgresSQLJDBC.setupDb();
+                return postgresSQLJDBC;
+            case "memory":
+                LOG.info("Keeping notes in memory, they will be lost when the server stops");
+                return new InMemoryNoteStore();
+            case "log":
+                return createLogNoteStore();
+            default:
+                throw new IllegalStateException("NOTE_STORE must be postgres, memory or log but was '" + store + "'");
+        }
+    }
+
+    /**
+     * Open the log store and flush it when the server stops
+     * @return store for the handler
+     */
+    private static LogNoteStore createLogNoteStore() {
+        String fsync = Config.getString("NOTE_LOG_FSYNC", "always");
+        LogNoteStore.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = LogNoteStore.FsyncPolicy.valueOf(fsync.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("NOTE_LOG_FSYNC must be always, interval or never but was '" + fsync + "'");
+        }
+        try {
+            LogNoteStore logNoteStore = new LogNoteStore(
+                    Path.of(Config.getString("NOTE_LOG_DIR", "data")),
+                    Config.getLong("NOTE_LOG_SEGMENT_BYTES", 64L * 1024 * 1024),
+                    fsyncPolicy,
+                    Config.getLong("NOTE_LOG_FSYNC_INTERVAL_MS", 100),
+                    Config.getLong("NOTE_LOG_COMPACTION_INTERVAL_MS", 60_000),
+                    Config.getDouble("NOTE_LOG_COMPACTION_RATIO", 0.5));
+            Runtime.getRuntime().addShutdownHook(new Thread(logNoteStore::close, "note-log-close"));
+            return logNoteStore;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the note log", e);
+        }
+    }
+
+    /**
+     * Create the handler for /metrics with every part of the server that has numbers to report
+     * @param requestMetrics Counts and timings of requests to /notes
+     * @param noteStore Store notes are kept in, included if it reports metrics
+     * @param searchIndex Search index or null when it is turned off
+     * @param compression Compression of response bodies
+     * @return handler for /metrics
+     */
+    private static MetricsHandler createMetricsHandler(RequestMetrics requestMetrics, NoteStore noteStore, NoteSearchIndex searchIndex,
+                                                       ResponseCompression compression) {
+        MetricsHandler metricsHandler = new MetricsHandler();
+        metricsHandler.addSource(requestMetrics);
+        metricsHandler.addSource(compression);
+        metricsHandler.addSource(AsyncLogWriter.getDefault());
+        if (noteStore instanceof MetricsSource storeMetrics) {
+            metricsHandler.addSource(storeMetrics);
+        }
+        if (searchIndex != null) {
+            metricsHandler.addSource(searchIndex);
+        }
+        return metricsHandler;
+    }
+
+    /**
+     * Build the in memory search index when SEARCH_INDEX_ENABLED=true. It listens for writes before loading so
+     * notes written while it loads are still picked up
+     * @param noteStore Store to load the notes from
+     * @return the index or null when searches should go to the store
+     */
+    private static NoteSearchIndex createSearchIndex(NoteStore noteStore) {
+        if (!Config.getBoolean("SEARCH_INDEX_ENABLED", false)) {
+            return null;
+        }
+        NoteSearchIndex searchIndex = new NoteSearchIndex(Config.getLong("SEARCH_INDEX_MAX_BYTES", 512L * 1024 * 1024));
+        noteStore.addChangeListener(searchIndex);
+        searchIndex.build(noteStore);
+        return searchIndex;
+    }
+
+    /**
+     * Create the executor requests are handled on so one slow request does not hold up the rest.
+     * SERVER_EXECUTOR=virtual (default) runs each request on its own virtual thread.
+     * SERVER_EXECUTOR=platform uses a fixed number of platform threads with a bounded queue, once the queue
+     * is full the server thread runs the request itself which stops it accepting more until it catches up.
+     * @return executor for the http server
+     */
+    private static ExecutorService createExecutor() {
+        String mode = Config.getString("SERVER_EXECUTOR", "virtual");
+        switch (mode) {
+            case "virtual":
+                LOG.info("Handling requests on virtual threads");
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory());
+            case "platform":
+                int threads = Config.getInt("SERVER_THREADS", Runtime.getRuntime().availableProcessors() * 4);
+                int queueSize = Config.getInt("SERVER_QUEUE_SIZE", 1000);
+                AtomicInteger threadCount = new AtomicInteger();
+                LOG.info("Handling requests on platform threads", "threads", threads);
+                return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(queueSize),
+                        r -> new Thread(r, "http-" + threadCount.getAndIncrement()),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+            default:
+                throw new IllegalStateException("SERVER_EXECUTOR must be virtual or platform but was '" + mode + "'");
+        }
+    }
 }
@@ -0,0 +1,80 @@
+package com.notes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves GET /metrics in the Prometheus text format. Each scrape asks every registered source for its current
+ * numbers, so nothing is done between scrapes. A few JVM numbers are always included.
+ */
+public class MetricsHandler implements HttpHandler {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final List<MetricsSource> sources = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param source Source to include in every scrape
+     */
+    public void addSource(MetricsSource source) {
+        sources.add(source);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            byte[] response = "Method Not Allowed".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+            return;
+        }
+
+        MetricsWriter writer = new MetricsWriter();
+        for (MetricsSource source : sources) {
+            source.writeMetrics(writer);
+        }
+        writeJvmMetrics(writer);
+
+        byte[] response = writer.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    private static void writeJvmMetrics(MetricsWriter writer) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        writer.gauge("jvm_memory_heap_bytes", "Heap memory by kind");
+        writer.sample("jvm_memory_heap_bytes", heap.getUsed(), "kind", "used");
+        writer.sample("jvm_memory_heap_bytes", heap.getCommitted(), "kind", "committed");
+        writer.sample("jvm_memory_heap_bytes", heap.getMax(), "kind", "max");
+
+        writer.gauge("jvm_threads", "Live platform threads");
+        writer.sample("jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        writer.counter("jvm_gc_collections_total", "Garbage collections by collector");
+        for (GarbageCollectorMXBean collector : collectors) {
+            writer.sample("jvm_gc_collections_total", collector.getCollectionCount(), "collector", collector.getName());
+        }
+        writer.counter("jvm_gc_seconds_total", "Time spent in garbage collection by collector");
+        for (GarbageCollectorMXBean collector : collectors) {
+            writer.sample("jvm_gc_seconds_total", collector.getCollectionTime() / 1000.0, "collector", collector.getName());
+        }
+
+        writer.gauge("process_uptime_seconds", "Time since the server started");
+        writer.sample("process_uptime_seconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+}
@@ -0,0 +1,15 @@
+package com.notes;
+
+/**
+ * Something that has metrics to show on /metrics. Sources keep their own counters and only turn them into text when
+ * the endpoint is scraped
+ */
+@FunctionalInterface
+public interface MetricsSource {
+
+    /**
+     * Write the current value of every metric
+     * @param writer Where to write them
+     */
+    void writeMetrics(MetricsWriter writer);
+}
@@ -0,0 +1,167 @@
+package com.notes;
+
+/**
+ * Writes metrics in the Prometheus text format, one family at a time: a HELP and TYPE line followed by its samples.
+ * Label values are escaped, names are expected to already be valid.
+ */
+public class MetricsWriter {
+
+    // Bucket limits for latency histograms in seconds, from half a millisecond to ten seconds
+    private static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] LATENCY_BUCKET_NANOS = new long[LATENCY_BUCKETS.length];
+
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            LATENCY_BUCKET_NANOS[i] = (long) (LATENCY_BUCKETS[i] * 1_000_000_000L);
+        }
+    }
+
+    private final StringBuilder text = new StringBuilder(16 * 1024);
+
+    /**
+     * Start a family of counters, values that only go up
+     */
+    public MetricsWriter counter(String name, String help) {
+        return family(name, help, "counter");
+    }
+
+    /**
+     * Start a family of gauges, values that can go up and down
+     */
+    public MetricsWriter gauge(String name, String help) {
+        return family(name, help, "gauge");
+    }
+
+    /**
+     * Start a family of histograms
+     */
+    public MetricsWriter histogram(String name, String help) {
+        return family(name, help, "histogram");
+    }
+
+    /**
+     * Write one sample of the current family
+     * @param name Metric name, the family name for counters and gauges
+     * @param value Value of the sample
+     * @param labels Label names and values in pairs, name first
+     */
+    public MetricsWriter sample(String name, double value, String... labels) {
+        text.append(name);
+        appendLabels(labels, null, null);
+        text.append(' ');
+        appendValue(value);
+        text.append('\n');
+        return this;
+    }
+
+    /**
+     * Write a latency histogram recorded in nanoseconds as cumulative buckets in seconds with its sum and count
+     * @param name Family name
+     * @param histogram Latencies in nanoseconds
+     * @param labels Label names and values in pairs, name first
+     */
+    public MetricsWriter latencyHistogram(String name, LatencyHistogram histogram, String... labels) {
+        String[] limits = new String[LATENCY_BUCKETS.length];
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            limits[i] = format(LATENCY_BUCKETS[i]);
+        }
+        return buckets(name, histogram, LATENCY_BUCKET_NANOS, limits, 1e9, labels);
+    }
+
+    /**
+     * Write a histogram of plain counts, such as rows per batch, as cumulative buckets with its sum and count
+     * @param name Family name
+     * @param histogram Values as recorded
+     * @param limits Bucket limits in increasing order
+     * @param labels Label names and values in pairs, name first
+     */
+    public MetricsWriter valueHistogram(String name, LatencyHistogram histogram, long[] limits, String... labels) {
+        String[] formatted = new String[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            formatted[i] = Long.toString(limits[i]);
+        }
+        return buckets(name, histogram, limits, formatted, 1, labels);
+    }
+
+    private MetricsWriter buckets(String name, LatencyHistogram histogram, long[] limits, String[] formattedLimits,
+                                  double unit, String[] labels) {
+        // Read the count first, buckets filled in while reading can only make them larger than it
+        long count = histogram.getCount();
+        long sum = histogram.getSum();
+        long[] cumulative = histogram.getCountsAtOrBelow(limits);
+        for (int i = 0; i < limits.length; i++) {
+            text.append(name).append("_bucket");
+            appendLabels(labels, "le", formattedLimits[i]);
+            text.append(' ').append(Math.min(cumulative[i], count)).append('\n');
+        }
+        text.append(name).append("_bucket");
+        appendLabels(labels, "le", "+Inf");
+        text.append(' ').append(count).append('\n');
+        text.append(name).append("_sum");
+        appendLabels(labels, null, null);
+        text.append(' ');
+        appendValue(sum / unit);
+        text.append('\n');
+        text.append(name).append("_count");
+        appendLabels(labels, null, null);
+        text.append(' ').append(count).append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    private MetricsWriter family(String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    private void appendLabels(String[] labels, String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null) {
+            return;
+        }
+        text.append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            appendLabel(labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            if (labels.length > 0) {
+                text.append(',');
+            }
+            appendLabel(extraName, extraValue);
+        }
+        text.append('}');
+    }
+
+    private void appendLabel(String name, String value) {
+        text.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> text.append("\\\\");
+                case '"' -> text.append("\\\"");
+                case '\n' -> text.append("\\n");
+                default -> text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    private void appendValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -8,14 +8,24 @@ import java.util.UUID;
  */
 public class Note {
 
+    // Longest content a note can have, the same as the size of the content column
+    public static final int MAX_LENGTH = 1000;
+
     private UUID id;
     private String content;
     private Instant createdAt;
+    // Changes every time the note is written, 0 for a note that has not been stored yet
+    private long version;
 
     public Note(UUID id, String content, Instant createdAt) {
+        this(id, content, createdAt, 0);
+    }
+
+    public Note(UUID id, String content, Instant createdAt, long version) {
         this.id = id;
         this.content = content;
         this.createdAt = createdAt;
+        this.version = version;
     }
 
     public UUID getId() {
@@ -42,6 +52,14 @@ public class Note {
         this.createdAt = createdAt;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "ID " + id + "\nContent " + content + "\nCreatedAt " + createdAt + "\n";
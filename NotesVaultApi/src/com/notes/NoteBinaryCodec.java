@@ -0,0 +1,179 @@
+package com.notes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Binary layout of notes for clients that move a lot of them, media type application/x-notes-binary.
+ *
+ * A body is a run of frames, each starting with a one byte type. Numbers are big endian.
+ * <pre>
+ * note   1 | id: 16 bytes (most then least significant long) | createdAt: 8 byte epoch micros
+ *          | version: 8 bytes | content length: 4 bytes | content: UTF-8
+ * cursor 2 | length: 2 bytes | cursor for the next page: ASCII
+ * </pre>
+ * A list is its note frames followed by a cursor frame when there is another page, a single note is one note frame
+ * and a bulk import is note frames with the version left 0.
+ *
+ * Frames are read and written in place in a ByteBuffer. Only content is copied, into the String a Note holds.
+ * Timestamps are kept to the microsecond the same as the database does.
+ */
+public final class NoteBinaryCodec {
+
+    public static final String MEDIA_TYPE = "application/x-notes-binary";
+    public static final byte NOTE = 1;
+    public static final byte CURSOR = 2;
+    // Type, id, createdAt, version and content length
+    public static final int NOTE_HEADER_BYTES = 1 + 16 + 8 + 8 + 4;
+    private static final int CURSOR_HEADER_BYTES = 1 + 2;
+    private static final int CONTENT_LENGTH_OFFSET = NOTE_HEADER_BYTES - 4;
+
+    private NoteBinaryCodec() {
+    }
+
+    /**
+     * @return most bytes the frame for a note can take
+     */
+    public static int maxNoteBytes(Note note) {
+        return NOTE_HEADER_BYTES + note.getContent().length() * Utf8.MAX_BYTES_PER_CHAR;
+    }
+
+    /**
+     * Write a note frame at the buffer's position and move past it
+     * @param buffer Buffer with at least {@link #maxNoteBytes(Note)} remaining
+     * @param note Note to write
+     */
+    public static void writeNote(ByteBuffer buffer, Note note) {
+        buffer.put(NOTE)
+                .putLong(note.getId().getMostSignificantBits())
+                .putLong(note.getId().getLeastSignificantBits())
+                .putLong(toMicros(note.getCreatedAt()))
+                .putLong(note.getVersion());
+        int lengthAt = buffer.position();
+        buffer.position(lengthAt + 4);
+        int length = buffer.hasArray() ? encodeInto(buffer, note.getContent()) : putEncoded(buffer, note.getContent());
+        buffer.putInt(lengthAt, length);
+    }
+
+    /**
+     * Write a cursor frame at the buffer's position and move past it
+     * @param buffer Buffer with room for the frame
+     * @param cursor Cursor for the next page
+     */
+    public static void writeCursor(ByteBuffer buffer, NoteCursor cursor) {
+        String encoded = cursor.encode();
+        buffer.put(CURSOR).putShort((short) encoded.length());
+        for (int i = 0; i < encoded.length(); i++) {
+            buffer.put((byte) encoded.charAt(i));
+        }
+    }
+
+    /**
+     * Work out how long the frame at the buffer's position is without moving it
+     * @param buffer Buffer holding the start of a frame
+     * @return length of the whole frame, or -1 when the buffer does not hold enough of it to tell
+     * @throws IllegalArgumentException if the frame type is unknown or the length is negative
+     */
+    public static int frameLength(ByteBuffer buffer) {
+        int at = buffer.position();
+        if (buffer.remaining() < 1) {
+            return -1;
+        }
+        byte type = buffer.get(at);
+        if (type == NOTE) {
+            if (buffer.remaining() < NOTE_HEADER_BYTES) {
+                return -1;
+            }
+            int length = buffer.getInt(at + CONTENT_LENGTH_OFFSET);
+            if (length < 0 || length > Integer.MAX_VALUE - NOTE_HEADER_BYTES) {
+                throw new IllegalArgumentException("Invalid content length " + length);
+            }
+            return NOTE_HEADER_BYTES + length;
+        }
+        if (type == CURSOR) {
+            return buffer.remaining() < CURSOR_HEADER_BYTES ? -1 : CURSOR_HEADER_BYTES + (buffer.getShort(at + 1) & 0xffff);
+        }
+        throw new IllegalArgumentException("Unknown frame type " + type);
+    }
+
+    /**
+     * Read the note frame at the buffer's position and move past it
+     * @param buffer Buffer holding a whole note frame, see {@link #frameLength(ByteBuffer)}
+     * @return note in the frame
+     * @throws IllegalArgumentException if the frame is not a note
+     */
+    public static Note readNote(ByteBuffer buffer) {
+        if (buffer.get() != NOTE) {
+            throw new IllegalArgumentException("Expected a note frame");
+        }
+        UUID id = new UUID(buffer.getLong(), buffer.getLong());
+        long micros = buffer.getLong();
+        long version = buffer.getLong();
+        int length = buffer.getInt();
+        String content;
+        if (buffer.hasArray()) {
+            content = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            content = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Instant createdAt = Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000), Math.floorMod(micros, 1_000_000) * 1000);
+        return new Note(id, content, createdAt, version);
+    }
+
+    /**
+     * Read the cursor frame at the buffer's position and move past it
+     * @param buffer Buffer holding a whole cursor frame
+     * @return cursor to ask for the next page with
+     * @throws IllegalArgumentException if the frame is not a cursor
+     */
+    public static String readCursor(ByteBuffer buffer) {
+        if (buffer.get() != CURSOR) {
+            throw new IllegalArgumentException("Expected a cursor frame");
+        }
+        char[] cursor = new char[buffer.getShort() & 0xffff];
+        for (int i = 0; i < cursor.length; i++) {
+            cursor[i] = (char) buffer.get();
+        }
+        return new String(cursor);
+    }
+
+    /**
+     * @return microseconds since the epoch, instants too far off to fit in a long are clamped
+     */
+    private static long toMicros(Instant instant) {
+        long seconds = instant.getEpochSecond();
+        if (seconds >= Long.MAX_VALUE / 1_000_000) {
+            return Long.MAX_VALUE;
+        }
+        if (seconds <= Long.MIN_VALUE / 1_000_000) {
+            return Long.MIN_VALUE;
+        }
+        return seconds * 1_000_000 + instant.getNano() / 1000;
+    }
+
+    /**
+     * UTF-8 encode straight into the buffer's array
+     * @return number of bytes written
+     */
+    private static int encodeInto(ByteBuffer buffer, String value) {
+        int start = buffer.arrayOffset() + buffer.position();
+        int length = Utf8.encode(value, 0, value.length(), buffer.array(), start) - start;
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    /**
+     * Encode into a buffer without an array, such as a direct buffer
+     * @return number of bytes written
+     */
+    private static int putEncoded(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.put(bytes);
+        return bytes.length;
+    }
+}
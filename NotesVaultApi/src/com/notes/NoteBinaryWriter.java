@@ -0,0 +1,109 @@
+package com.notes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes notes in the {@link NoteBinaryCodec} layout into a byte buffer, sending it on to the output stream when
+ * the next note might not fit, or growing it when there is no stream. Pooled the same way as {@link NoteJsonWriter}.
+ */
+public final class NoteBinaryWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = ResponseStream.WRITER_BUFFER_SIZE;
+    private static final ObjectPool<NoteBinaryWriter> POOL = new ObjectPool<>(64, NoteBinaryWriter::new);
+    // Type, length and a cursor, which is at most a few dozen characters
+    private static final int MAX_CURSOR_BYTES = 128;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private OutputStream out;
+
+    private NoteBinaryWriter() {
+    }
+
+    /**
+     * @param out Stream full buffers are sent to, or null to keep everything in the buffer for {@link #buffer()}
+     * @return a writer from the pool, or a new one when every pooled writer is in use
+     */
+    public static NoteBinaryWriter acquire(OutputStream out) {
+        NoteBinaryWriter writer = POOL.acquire();
+        writer.out = out;
+        return writer;
+    }
+
+    /**
+     * Give the writer back to the pool without flushing, anything still buffered is dropped
+     */
+    @Override
+    public void close() {
+        buffer.clear();
+        out = null;
+        if (buffer.capacity() > BUFFER_SIZE) {
+            // A very long note grew the buffer, do not keep that much memory in the pool
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        POOL.release(this);
+    }
+
+    /**
+     * @return bytes written so far, valid up to {@link #length()} until the writer is closed
+     */
+    public byte[] buffer() {
+        return buffer.array();
+    }
+
+    /**
+     * @return number of bytes in {@link #buffer()}
+     */
+    public int length() {
+        return buffer.position();
+    }
+
+    /**
+     * Send what is buffered to the output stream
+     * @throws IOException if it could not be written
+     */
+    public void flush() throws IOException {
+        if (out != null && buffer.position() > 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * @param note Note to write as a note frame
+     * @throws IOException if a full buffer could not be sent
+     */
+    public void writeNote(Note note) throws IOException {
+        reserve(NoteBinaryCodec.maxNoteBytes(note));
+        NoteBinaryCodec.writeNote(buffer, note);
+    }
+
+    /**
+     * Finish a list with the cursor for the next page, if there is one, and send what is left
+     * @param next Cursor for the next page, null on the last page
+     * @throws IOException if the buffer could not be sent
+     */
+    public void endList(NoteCursor next) throws IOException {
+        if (next != null) {
+            reserve(MAX_CURSOR_BYTES);
+            NoteBinaryCodec.writeCursor(buffer, next);
+        }
+        flush();
+    }
+
+    /**
+     * Make sure the next bytes fit, sending the buffer first or growing it when there is no stream to send to
+     */
+    private void reserve(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        flush();
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            grown.put(buffer.array(), 0, buffer.position());
+            buffer = grown;
+        }
+    }
+}
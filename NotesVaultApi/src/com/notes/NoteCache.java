@@ -0,0 +1,273 @@
+package com.notes;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In memory cache of notes by id that sits in front of the database for single note reads.
+ *
+ * Eviction is segmented LRU. A note read for the first time goes into a small probation segment, and only moves
+ * into the larger protected segment when it is read again. That way a burst of one-off reads only pushes out other
+ * one-off reads and not the hot notes. Ids that do not exist are cached as well but only for a short time.
+ *
+ * The cache is split into shards by id, each with its own lock, so reads of different notes rarely wait on each other.
+ * Cached notes are shared between requests so they must not be modified.
+ */
+public class NoteCache {
+
+    /**
+     * Returned by {@link #get(UUID)} when the note is known not to exist
+     */
+    public static final Note NOT_FOUND = new Note(null, null, null);
+
+    private static final int SHARD_COUNT = 16;
+    // Share of each shard kept for notes that have been read more than once
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final Shard[] shards;
+    private final long negativeTtlNanos;
+    private final boolean enabled;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity Max number of notes and missing ids to hold. 0 turns the cache off
+     * @param negativeTtlMillis How long an id that does not exist is remembered
+     */
+    public NoteCache(int capacity, long negativeTtlMillis) {
+        this.enabled = capacity > 0;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000;
+        this.shards = new Shard[SHARD_COUNT];
+        int shardCapacity = Math.max(1, (capacity + SHARD_COUNT - 1) / SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    /**
+     * Look up a note
+     * @param id UUID of note
+     * @return the note, {@link #NOT_FOUND} if it is known not to exist, or null if the cache does not know
+     */
+    public Note get(UUID id) {
+        if (!enabled) {
+            return null;
+        }
+        Note note = shardFor(id).get(id, System.nanoTime());
+        if (note == null) {
+            misses.increment();
+        } else if (note == NOT_FOUND) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return note;
+    }
+
+    /**
+     * Take a stamp before reading a note from the database. Pass it to {@link #putLoaded} so a read that raced
+     * with a write does not put the old value back in the cache
+     * @param id UUID of note about to be read
+     * @return stamp for the read
+     */
+    public long stamp(UUID id) {
+        return shardFor(id).writes;
+    }
+
+    /**
+     * Cache the result of a database read unless the note was written since the stamp was taken
+     * @param id UUID of note that was read
+     * @param note Note that was read or null if it does not exist
+     * @param stamp Value of {@link #stamp(UUID)} from before the read
+     */
+    public void putLoaded(UUID id, Note note, long stamp) {
+        if (enabled) {
+            shardFor(id).putLoaded(id, note, stamp, System.nanoTime());
+        }
+    }
+
+    /**
+     * Drop a note after it was changed or deleted
+     * @param id UUID of note
+     */
+    public void invalidate(UUID id) {
+        if (enabled) {
+            shardFor(id).invalidate(id);
+        }
+    }
+
+    /**
+     * Drop every cached note, used after writes that can change any number of notes at once
+     */
+    public void invalidateAll() {
+        if (enabled) {
+            for (Shard shard : shards) {
+                shard.clear();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private Shard shardFor(UUID id) {
+        // UUIDs are random so the low bits of the hash spread evenly across shards
+        return shards[(id.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT];
+    }
+
+    /**
+     * Cached value. A null note means the id does not exist
+     */
+    private static final class Entry {
+        private final Note note;
+        private final long expiresAtNanos;
+
+        private Entry(Note note, long expiresAtNanos) {
+            this.note = note;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Both maps keep their least recently used entry first
+        private final LinkedHashMap<UUID, Entry> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<UUID, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int protectedCapacity;
+        private final int capacity;
+        // Bumped on every write so reads that raced with a write can tell
+        private volatile long writes;
+
+        private Shard(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int) (capacity * PROTECTED_RATIO);
+        }
+
+        private Note get(UUID id, long now) {
+            lock.lock();
+            try {
+                Entry entry = protectedEntries.get(id);
+                if (entry != null) {
+                    return entry.note;
+                }
+                entry = probation.remove(id);
+                if (entry == null) {
+                    return null;
+                }
+                if (entry.note == null) {
+                    // Missing ids stay in probation until they expire
+                    if (now - entry.expiresAtNanos >= 0) {
+                        return null;
+                    }
+                    probation.put(id, entry);
+                    return NOT_FOUND;
+                }
+                // Second read of the note, promote it
+                protectedEntries.put(id, entry);
+                demoteOverflow();
+                return entry.note;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void putLoaded(UUID id, Note note, long stamp, long now) {
+            lock.lock();
+            try {
+                if (writes != stamp || protectedEntries.containsKey(id) || probation.containsKey(id)) {
+                    return;
+                }
+                Entry entry = (note == null) ? new Entry(null, now + negativeTtlNanos) : new Entry(note, Long.MAX_VALUE);
+                probation.put(id, entry);
+                evictOverflow();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void invalidate(UUID id) {
+            lock.lock();
+            try {
+                writes++;
+                if (protectedEntries.remove(id) == null) {
+                    probation.remove(id);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+            try {
+                writes++;
+                probation.clear();
+                protectedEntries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock.lock();
+            try {
+                return probation.size() + protectedEntries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Move the least recently used protected entries back to probation once protected is over its share
+         */
+        private void demoteOverflow() {
+            Iterator<Map.Entry<UUID, Entry>> iterator = protectedEntries.entrySet().iterator();
+            while (protectedEntries.size() > protectedCapacity && iterator.hasNext()) {
+                Map.Entry<UUID, Entry> eldest = iterator.next();
+                iterator.remove();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+            evictOverflow();
+        }
+
+        /**
+         * Evict from the cold end of probation until the shard is back under capacity
+         */
+        private void evictOverflow() {
+            Iterator<UUID> iterator = probation.keySet().iterator();
+            while (probation.size() + protectedEntries.size() > capacity && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.notes;
+
+import java.util.UUID;
+
+/**
+ * Told about every note written to the database so in memory copies of the data can stay up to date.
+ * Called after the write succeeded, on the thread that made it
+ */
+public interface NoteChangeListener {
+
+    /**
+     * @param note Note that was persisted
+     */
+    void noteSaved(Note note);
+
+    /**
+     * @param id UUID of note that was updated
+     * @param newContent Content the note now has
+     */
+    void noteUpdated(UUID id, String newContent);
+
+    /**
+     * @param id UUID of note that was deleted
+     */
+    void noteDeleted(UUID id);
+}
@@ -0,0 +1,60 @@
+package com.notes;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The listeners registered on a {@link NoteStore}. Stores call these after a write succeeded, which also moves the
+ * store's generation on, see {@link NoteStore#getGeneration()}. The generation moves after the listeners were told so
+ * anyone who reads the new generation also finds the write in listeners like the search index
+ */
+public class NoteChangeListeners {
+
+    // Listeners are added at startup and read on every write
+    private final List<NoteChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Starts somewhere random so a generation handed out before a restart does not match one handed out after it
+    private final AtomicLong generation = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 62));
+
+    public void add(NoteChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Move the generation on for a write that listeners are not told about one note at a time, like a bulk import
+     */
+    public void changed() {
+        generation.incrementAndGet();
+    }
+
+    public void saved(Note note) {
+        for (NoteChangeListener listener : listeners) {
+            listener.noteSaved(note);
+        }
+        changed();
+    }
+
+    public void updated(UUID id, String newContent) {
+        for (NoteChangeListener listener : listeners) {
+            listener.noteUpdated(id, newContent);
+        }
+        changed();
+    }
+
+    public void deleted(UUID id) {
+        for (NoteChangeListener listener : listeners) {
+            listener.noteDeleted(id);
+        }
+        changed();
+    }
+}
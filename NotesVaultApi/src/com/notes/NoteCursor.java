@@ -0,0 +1,97 @@
+package com.notes;
+
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Position in a list of notes ordered by (createdAt, id). A page starts right after the note the cursor points at,
+ * so paging never has to skip over rows the way OFFSET does.
+ *
+ * Search results are ordered by how well they match first, so a search cursor also carries the rank of the note.
+ *
+ * Clients only ever see the encoded form which is an opaque url safe string.
+ */
+public class NoteCursor {
+
+    // 8 bytes of seconds, 4 bytes of nanos and 16 bytes of UUID, plus 4 bytes of rank for a search cursor
+    private static final int ENCODED_BYTES = 28;
+    private static final int RANKED_ENCODED_BYTES = 32;
+
+    private final Instant createdAt;
+    private final UUID id;
+    private final Float rank;
+
+    public NoteCursor(Instant createdAt, UUID id) {
+        this(createdAt, id, null);
+    }
+
+    public NoteCursor(Instant createdAt, UUID id, Float rank) {
+        this.createdAt = createdAt;
+        this.id = id;
+        this.rank = rank;
+    }
+
+    /**
+     * Cursor for the page that starts after the given note
+     * @param note Last note of the current page
+     * @return cursor pointing at the note
+     */
+    public static NoteCursor after(Note note) {
+        return new NoteCursor(note.getCreatedAt(), note.getId());
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    /**
+     * @return how well the note matched a search or null if the cursor is not from a search
+     */
+    public Float getRank() {
+        return rank;
+    }
+
+    /**
+     * @return opaque string form to send to the client
+     */
+    public String encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(rank == null ? ENCODED_BYTES : RANKED_ENCODED_BYTES);
+        buffer.putLong(createdAt.getEpochSecond());
+        buffer.putInt(createdAt.getNano());
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        if (rank != null) {
+            buffer.putFloat(rank);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Read a cursor a client sent back
+     * @param encoded String from {@link #encode()}
+     * @return decoded cursor
+     * @throws IllegalArgumentException if the string is not a valid cursor
+     */
+    public static NoteCursor decode(String encoded) {
+        byte[] bytes = Base64.getUrlDecoder().decode(encoded);
+        if (bytes.length != ENCODED_BYTES && bytes.length != RANKED_ENCODED_BYTES) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            Instant createdAt = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            UUID id = new UUID(buffer.getLong(), buffer.getLong());
+            Float rank = buffer.hasRemaining() ? buffer.getFloat() : null;
+            return new NoteCursor(createdAt, id, rank);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.notes;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Writes notes in the export layout of the database store, for the stores that produce the export themselves.
+ * The output can be read back by {@link BulkNoteReader}
+ */
+final class NoteExportWriter {
+
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final Writer writer;
+    private final BulkNoteReader.Format format;
+    private long count;
+
+    NoteExportWriter(OutputStream out, BulkNoteReader.Format format) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        this.format = format;
+        if (format == BulkNoteReader.Format.CSV) {
+            writer.write("id,content,timestamp\n");
+        }
+    }
+
+    void write(Note note) throws IOException {
+        String timestamp = TIMESTAMP.format(note.getCreatedAt());
+        if (format == BulkNoteReader.Format.CSV) {
+            writer.write(note.getId() + ",\"" + note.getContent().replace("\"", "\"\"") + "\"," + timestamp + "\n");
+        } else {
+            writer.write("{\"id\" : \"" + note.getId() + "\", \"content\" : " + jsonString(note.getContent())
+                    + ", \"timestamp\" : \"" + timestamp + "\"}\n");
+        }
+        count++;
+    }
+
+    /**
+     * Flush what is buffered. The stream is not closed, it belongs to the caller
+     * @return number of notes written
+     */
+    long finish() throws IOException {
+        writer.flush();
+        return count;
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+}
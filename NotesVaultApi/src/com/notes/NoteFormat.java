@@ -0,0 +1,93 @@
+package com.notes;
+
+/**
+ * Representations a note or list of notes can be sent in, picked from the request's Accept header.
+ * Text is the original "ID ...\nContent ...\nCreatedAt ..." layout and stays the default so existing clients see
+ * no change. Binary is only sent to clients that name it, application/* picks JSON.
+ */
+public enum NoteFormat {
+    TEXT("text/plain"),
+    JSON("application/json"),
+    BINARY(NoteBinaryCodec.MEDIA_TYPE);
+
+    private final String mediaType;
+
+    NoteFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    /**
+     * @return media type sent in the Content-Type header
+     */
+    public String mediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Pick the format with the highest q value in an Accept header. A media type named exactly beats a wildcard with
+     * the same q value, and text wins any tie left so a header that allows anything keeps the original layout
+     * @param accept Value of the Accept header, may be null
+     * @return format to respond with, text when nothing in the header is supported
+     */
+    public static NoteFormat negotiate(String accept) {
+        if (accept == null) {
+            return TEXT;
+        }
+        NoteFormat[] formats = values();
+        int[] quality = new int[formats.length];
+        int[] specificity = new int[formats.length];
+        int length = accept.length();
+        int start = 0;
+        while (start < length) {
+            int end = accept.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int parameters = accept.indexOf(';', start);
+            int typeEnd = parameters < 0 || parameters > end ? end : parameters;
+            int from = start;
+            while (from < typeEnd && accept.charAt(from) == ' ') {
+                from++;
+            }
+            int to = typeEnd;
+            while (to > from && accept.charAt(to - 1) == ' ') {
+                to--;
+            }
+            int q = typeEnd < end ? ResponseCompression.quality(accept, typeEnd + 1, end) : 1000;
+            for (NoteFormat format : formats) {
+                int matched = format.match(accept, from, to);
+                // The most specific range that names a format decides its q value, even when it is lower
+                if (matched > specificity[format.ordinal()]) {
+                    specificity[format.ordinal()] = matched;
+                    quality[format.ordinal()] = q;
+                }
+            }
+            start = end + 1;
+        }
+        NoteFormat best = TEXT;
+        for (NoteFormat format : formats) {
+            int i = format.ordinal();
+            int b = best.ordinal();
+            if (quality[i] > quality[b] || (quality[i] == quality[b] && quality[i] > 0 && specificity[i] > specificity[b])) {
+                best = format;
+            }
+        }
+        return quality[best.ordinal()] > 0 ? best : TEXT;
+    }
+
+    /**
+     * @return 3 when the range names this media type, 2 when it names its type with any subtype, 1 when it allows
+     * anything and 0 when it does not match
+     */
+    private int match(String accept, int from, int to) {
+        int length = to - from;
+        if (length == 3 && accept.startsWith("*/*", from)) {
+            return 1;
+        }
+        int slash = mediaType.indexOf('/');
+        if (length == slash + 2 && accept.regionMatches(true, from, mediaType, 0, slash + 1) && accept.charAt(to - 1) == '*') {
+            return 2;
+        }
+        return length == mediaType.length() && accept.regionMatches(true, from, mediaType, 0, length) ? 3 : 0;
+    }
+}
@@ -0,0 +1,330 @@
+package com.notes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Writes notes as JSON straight into a byte buffer. A note is {"id":"...","content":"...","createdAt":"...",
+ * "version":1} and a list is {"notes":[...],"nextCursor":"..."} with a null cursor on the last page.
+ *
+ * UUIDs are written as hex digits from their two longs, instants field by field in the same layout as
+ * Instant.toString(), and content is escaped and UTF-8 encoded one char at a time, so writing a note makes no
+ * Strings or other garbage. Before each note the buffer is checked for room for the longest that note could be,
+ * after which the bytes go in without any more bounds checks. When there is not enough room the buffer is sent to
+ * the output stream, or grown when there is none.
+ *
+ * A writer keeps its buffer between uses: acquire() takes one from an {@link ObjectPool} and close() puts it back.
+ */
+public final class NoteJsonWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = ResponseStream.WRITER_BUFFER_SIZE;
+    private static final ObjectPool<NoteJsonWriter> POOL = new ObjectPool<>(64, NoteJsonWriter::new);
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] ID = bytes("{\"id\":\"");
+    private static final byte[] CONTENT = bytes("\",\"content\":\"");
+    private static final byte[] CREATED_AT = bytes("\",\"createdAt\":");
+    private static final byte[] VERSION = bytes(",\"version\":");
+    private static final byte[] NULL = bytes("null");
+    private static final byte[] LIST_START = bytes("{\"notes\":[");
+    private static final byte[] NEXT_CURSOR = bytes("],\"nextCursor\":");
+    // Everything in a note other than its content, with room to spare
+    private static final int NOTE_OVERHEAD = 160;
+    // A char is at most 6 bytes, either as a \\u escape or as half of a 4 byte surrogate pair
+    private static final int MAX_BYTES_PER_CHAR = 6;
+    private static final long SECONDS_PER_DAY = 86_400;
+    // Years Instant.toString() writes with exactly four digits and no sign
+    private static final long MIN_SECOND = -62_167_219_200L;
+    private static final long MAX_SECOND = 253_402_300_799L;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private OutputStream out;
+    private boolean firstInList;
+
+    private NoteJsonWriter() {
+    }
+
+    /**
+     * @param out Stream full buffers are sent to, or null to keep everything in the buffer for {@link #buffer()}
+     * @return a writer from the pool, or a new one when every pooled writer is in use
+     */
+    public static NoteJsonWriter acquire(OutputStream out) {
+        NoteJsonWriter writer = POOL.acquire();
+        writer.out = out;
+        return writer;
+    }
+
+    /**
+     * Give the writer back to the pool without flushing, anything still buffered is dropped
+     */
+    @Override
+    public void close() {
+        count = 0;
+        out = null;
+        if (buffer.length > BUFFER_SIZE) {
+            // A very long note grew the buffer, do not keep that much memory in the pool
+            buffer = new byte[BUFFER_SIZE];
+        }
+        POOL.release(this);
+    }
+
+    /**
+     * @return bytes written so far, valid up to {@link #length()} until the writer is closed
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return number of bytes in {@link #buffer()}
+     */
+    public int length() {
+        return count;
+    }
+
+    /**
+     * Send what is buffered to the output stream
+     * @throws IOException if it could not be written
+     */
+    public void flush() throws IOException {
+        if (out != null && count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Write a single note as a JSON object
+     * @param note Note to write
+     * @throws IOException if a full buffer could not be sent
+     */
+    public void writeNote(Note note) throws IOException {
+        String content = note.getContent();
+        reserve(NOTE_OVERHEAD + content.length() * MAX_BYTES_PER_CHAR);
+        put(ID);
+        putUUID(note.getId());
+        put(CONTENT);
+        putEscaped(content);
+        put(CREATED_AT);
+        putInstant(note.getCreatedAt());
+        put(VERSION);
+        putLong(note.getVersion());
+        buffer[count++] = '}';
+    }
+
+    /**
+     * Start a list, follow with {@link #writeListNote(Note)} for each note and finish with {@link #endList(NoteCursor)}
+     * @throws IOException if a full buffer could not be sent
+     */
+    public void startList() throws IOException {
+        reserve(LIST_START.length);
+        put(LIST_START);
+        firstInList = true;
+    }
+
+    /**
+     * @param note Next note in the list
+     * @throws IOException if a full buffer could not be sent
+     */
+    public void writeListNote(Note note) throws IOException {
+        if (!firstInList) {
+            reserve(1);
+            buffer[count++] = ',';
+        }
+        firstInList = false;
+        writeNote(note);
+    }
+
+    /**
+     * Close the list and send what is left
+     * @param next Cursor for the next page, null on the last page
+     * @throws IOException if the buffer could not be sent
+     */
+    public void endList(NoteCursor next) throws IOException {
+        String cursor = next == null ? null : next.encode();
+        reserve(NEXT_CURSOR.length + 4 + (cursor == null ? 0 : cursor.length()));
+        put(NEXT_CURSOR);
+        if (cursor == null) {
+            put(NULL);
+        } else {
+            // Cursors are base64url so every char is one byte and nothing needs escaping
+            buffer[count++] = '"';
+            for (int i = 0; i < cursor.length(); i++) {
+                buffer[count++] = (byte) cursor.charAt(i);
+            }
+            buffer[count++] = '"';
+        }
+        buffer[count++] = '}';
+        flush();
+    }
+
+    /**
+     * Make sure the next bytes fit, sending the buffer first or growing it when there is no stream to send to
+     */
+    private void reserve(int bytes) throws IOException {
+        if (count + bytes <= buffer.length) {
+            return;
+        }
+        flush();
+        if (count + bytes > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, count + bytes)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void putUUID(UUID id) {
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        putHex(msb >>> 32, 8);
+        buffer[count++] = '-';
+        putHex(msb >>> 16, 4);
+        buffer[count++] = '-';
+        putHex(msb, 4);
+        buffer[count++] = '-';
+        putHex(lsb >>> 48, 4);
+        buffer[count++] = '-';
+        putHex(lsb, 12);
+    }
+
+    /**
+     * Write the lowest digits of a value as lowercase hex
+     */
+    private void putHex(long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[count + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        count += digits;
+    }
+
+    /**
+     * Escape a string for JSON and encode it as UTF-8. The runs between chars that need escaping are encoded by
+     * {@link Utf8}, so a surrogate without its other half becomes ? the same as String.getBytes() does
+     */
+    private void putEscaped(String value) {
+        byte[] buf = buffer;
+        int pos = count;
+        int length = value.length();
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            pos = Utf8.encode(value, run, i, buf, pos);
+            run = i + 1;
+            buf[pos++] = '\\';
+            switch (c) {
+                case '"' -> buf[pos++] = '"';
+                case '\\' -> buf[pos++] = '\\';
+                case '\n' -> buf[pos++] = 'n';
+                case '\r' -> buf[pos++] = 'r';
+                case '\t' -> buf[pos++] = 't';
+                default -> {
+                    buf[pos++] = 'u';
+                    buf[pos++] = '0';
+                    buf[pos++] = '0';
+                    buf[pos++] = HEX[c >> 4];
+                    buf[pos++] = HEX[c & 0xf];
+                }
+            }
+        }
+        count = Utf8.encode(value, run, length, buf, pos);
+    }
+
+    /**
+     * Write an instant as a quoted string laid out like Instant.toString(), with 0, 3, 6 or 9 digits of fraction
+     */
+    private void putInstant(Instant instant) {
+        long seconds = instant.getEpochSecond();
+        if (seconds < MIN_SECOND || seconds > MAX_SECOND) {
+            // Years that need a sign or more than four digits, too rare to be worth doing by hand
+            String text = instant.toString();
+            buffer[count++] = '"';
+            for (int i = 0; i < text.length(); i++) {
+                buffer[count++] = (byte) text.charAt(i);
+            }
+            buffer[count++] = '"';
+            return;
+        }
+        long days = Math.floorDiv(seconds, SECONDS_PER_DAY);
+        int secondOfDay = (int) Math.floorMod(seconds, SECONDS_PER_DAY);
+
+        // Civil date from days since 1970-01-01, counted in 400 year eras that start on the 1st of March
+        long shifted = days + 719_468;
+        long era = Math.floorDiv(shifted, 146_097);
+        int dayOfEra = (int) (shifted - era * 146_097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        int month = monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9;
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        buffer[count++] = '"';
+        putDigits(year, 4);
+        buffer[count++] = '-';
+        putDigits(month, 2);
+        buffer[count++] = '-';
+        putDigits(day, 2);
+        buffer[count++] = 'T';
+        putDigits(secondOfDay / 3600, 2);
+        buffer[count++] = ':';
+        putDigits(secondOfDay / 60 % 60, 2);
+        buffer[count++] = ':';
+        putDigits(secondOfDay % 60, 2);
+        int nanos = instant.getNano();
+        if (nanos != 0) {
+            buffer[count++] = '.';
+            if (nanos % 1_000_000 == 0) {
+                putDigits(nanos / 1_000_000, 3);
+            } else if (nanos % 1000 == 0) {
+                putDigits(nanos / 1000, 6);
+            } else {
+                putDigits(nanos, 9);
+            }
+        }
+        buffer[count++] = 'Z';
+        buffer[count++] = '"';
+    }
+
+    /**
+     * Write a non negative number with leading zeros up to the given number of digits
+     */
+    private void putDigits(int value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[count + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Write a version, which is never negative
+     */
+    private void putLong(long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[count + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,42 @@
+package com.notes;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Position of a note in list order, (createdAt, id). Used as the key of the sorted indexes of the stores that
+ * keep notes themselves instead of asking a database
+ */
+record NoteKey(Instant createdAt, UUID id) implements Comparable<NoteKey> {
+
+    private static final UUID MIN_ID = new UUID(Long.MIN_VALUE, Long.MIN_VALUE);
+    private static final UUID MAX_ID = new UUID(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    static NoteKey of(Note note) {
+        return new NoteKey(note.getCreatedAt(), note.getId());
+    }
+
+    static NoteKey of(NoteCursor cursor) {
+        return new NoteKey(cursor.getCreatedAt(), cursor.getId());
+    }
+
+    /**
+     * @return key before every note created at the time
+     */
+    static NoteKey first(Instant createdAt) {
+        return new NoteKey(createdAt, MIN_ID);
+    }
+
+    /**
+     * @return key after every note created at the time
+     */
+    static NoteKey last(Instant createdAt) {
+        return new NoteKey(createdAt, MAX_ID);
+    }
+
+    @Override
+    public int compareTo(NoteKey other) {
+        int compare = createdAt.compareTo(other.createdAt);
+        return compare != 0 ? compare : id.compareTo(other.id);
+    }
+}
@@ -0,0 +1,179 @@
+package com.notes;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short lived cache of search and date range pages in front of the database.
+ *
+ * A page is only served from here while the store is still at the generation it was read at, so any write through
+ * the store drops every cached page at once, and for at most the time to live so writes made elsewhere show up soon
+ * after. Identical pages asked for at the same time that are not cached share one query through {@link SingleFlight}.
+ *
+ * Pages are read in full before they are sent on, so pages with more than {@link #MAX_PAGE_NOTES} notes skip the
+ * cache and are streamed as before.
+ */
+public final class NotePageCache {
+
+    public static final int MAX_PAGE_NOTES = 1000;
+
+    /**
+     * Everything that picks out one page. Fields that do not apply to a kind of list are null
+     */
+    public record Key(String kind, String keyword, Instant from, Instant to, String cursor, int limit) {
+
+        public static Key search(String keyword, NoteCursor after, int limit) {
+            return new Key("search", keyword, null, null, after == null ? null : after.encode(), limit);
+        }
+
+        public static Key range(Instant from, Instant to, NoteCursor after, int limit) {
+            return new Key("range", null, from, to, after == null ? null : after.encode(), limit);
+        }
+    }
+
+    /**
+     * A query for a page of notes that writes them to a sink
+     */
+    @FunctionalInterface
+    public interface PageQuery {
+        NoteCursor run(NoteSink sink) throws IOException;
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    // Least recently read first. Guarded by synchronizing on the map, every use only moves a reference or two
+    private final LinkedHashMap<Key, Entry> entries;
+    private final SingleFlight<Key, Page> flights = new SingleFlight<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity Max number of pages to hold. 0 turns the cache off but identical queries are still shared
+     * @param ttlMillis How long a page is served for at most
+     */
+    public NotePageCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > NotePageCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Send a page from the cache, or run the query for it, or wait for the same query another request is running
+     * @param key What the page is
+     * @param generation Store generation taken before the query
+     * @param query Reads the page from the database
+     * @param sink Receives each note
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    public NoteCursor stream(Key key, long generation, PageQuery query, NoteSink sink) throws IOException {
+        if (key.limit() > MAX_PAGE_NOTES) {
+            return query.run(sink);
+        }
+        Page page = get(key, generation);
+        if (page == null) {
+            misses.increment();
+            page = flights.run(key, generation, () -> {
+                Page loaded = Page.read(query);
+                put(key, generation, loaded);
+                return loaded;
+            });
+        } else {
+            hits.increment();
+        }
+        for (Note note : page.notes) {
+            sink.accept(note);
+        }
+        return page.next;
+    }
+
+    private Page get(Key key, long generation) {
+        if (capacity == 0) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.generation != generation || System.nanoTime() - entry.loadedAt > ttlNanos) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.page;
+        }
+    }
+
+    private void put(Key key, long generation, Page page) {
+        if (capacity == 0) {
+            return;
+        }
+        Entry entry = new Entry(page, generation, System.nanoTime());
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return misses that waited for a query another request was already running instead of running their own
+     */
+    public long getShared() {
+        return flights.getShared();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The notes of a page and the cursor after it. Shared between requests so it must not be modified
+     */
+    private static final class Page {
+        private final List<Note> notes;
+        private final NoteCursor next;
+
+        private Page(List<Note> notes, NoteCursor next) {
+            this.notes = notes;
+            this.next = next;
+        }
+
+        private static Page read(PageQuery query) throws IOException {
+            List<Note> notes = new ArrayList<>();
+            NoteCursor next = query.run(notes::add);
+            return new Page(notes, next);
+        }
+    }
+
+    private static final class Entry {
+        private final Page page;
+        private final long generation;
+        private final long loadedAt;
+
+        private Entry(Page page, long generation, long loadedAt) {
+            this.page = page;
+            this.generation = generation;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
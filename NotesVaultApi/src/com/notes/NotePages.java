@@ -0,0 +1,41 @@
+package com.notes;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Paging shared by the stores that walk their own sorted index of notes
+ */
+final class NotePages {
+
+    private NotePages() {
+    }
+
+    /**
+     * Write up to limit notes from the iterator, only counting the ones that contain the keyword if there is one
+     * @param notes Notes in list order starting after the cursor
+     * @param keyword Text the content has to contain or null for every note
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    static NoteCursor stream(Iterator<Note> notes, String keyword, int limit, NoteSink sink) throws IOException {
+        Note last = null;
+        int count = 0;
+        while (notes.hasNext()) {
+            Note note = notes.next();
+            if (keyword != null && !note.getContent().contains(keyword)) {
+                continue;
+            }
+            if (count == limit) {
+                // There is at least one more note so there is another page
+                return NoteCursor.after(last);
+            }
+            sink.accept(note);
+            last = note;
+            count++;
+        }
+        return null;
+    }
+}
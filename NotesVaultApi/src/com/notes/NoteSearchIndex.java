@@ -0,0 +1,506 @@
+package com.notes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory inverted index over note content so searches can be answered without going to the database.
+ *
+ * Every note gets a small int doc id and each trigram, three chars in a row lower cased the same as pg_trgm does,
+ * maps to the sorted list of doc ids that contain it, kept in a plain int array. Doc ids only ever grow so adding a
+ * note keeps every list sorted by appending to it. Deleted notes leave a hole that is skipped at query time until
+ * enough of them pile up to be worth compacting away.
+ *
+ * A search finds the same notes as the stores do, the ones whose content contains the keyword exactly. A note can
+ * only contain the keyword if it has every trigram of it, so their postings are intersected and only the notes left
+ * are checked with contains. A keyword shorter than three chars has no trigrams and checks every note, the same as
+ * the database does without its trigram index. Results come back in (createdAt, id) order so they page with the same
+ * cursor as the other lists.
+ *
+ * The index keeps an estimate of the memory it uses. If that goes over the limit it drops everything and stops
+ * answering, at which point searches go back to the database.
+ */
+public class NoteSearchIndex implements NoteChangeListener, MetricsSource {
+    private static final Logger LOG = Logger.of(NoteSearchIndex.class);
+
+    private static final int BUILD_PAGE_SIZE = 10_000;
+    // Deleted doc ids are compacted away once there are this many and they outnumber half the live notes
+    private static final int MIN_DELETED_TO_COMPACT = 1024;
+    // Rough size of the objects kept for a note and for a trigram, on top of the note's text and the postings
+    private static final long NOTE_OVERHEAD_BYTES = 200;
+    private static final long TRIGRAM_OVERHEAD_BYTES = 96;
+    private static final long POSTING_BYTES = Integer.BYTES;
+    private static final int TRIGRAM_LENGTH = 3;
+    // Once this few candidates are left checking them is cheaper than walking the longer postings
+    private static final int MIN_CANDIDATES_TO_INTERSECT = 16;
+
+    private static final Comparator<Note> NOTE_ORDER = Comparator.comparing(Note::getCreatedAt).thenComparing(Note::getId);
+
+    private final long maxBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<UUID, Integer> docIds = new HashMap<>();
+    // Keyed by the three chars of the trigram packed into a long
+    private final Map<Long, Postings> trigrams = new HashMap<>();
+    private Note[] docs = new Note[1024];
+    private int nextDocId;
+    private int deletedDocs;
+    private long estimatedBytes;
+    private final LongAdder notesChecked = new LongAdder();
+    private volatile boolean available;
+    private volatile boolean disabled;
+
+    // Writes reported while the build is loading. A row the build read before such a write must not undo it
+    private boolean building;
+    private final Map<UUID, String> updatedWhileBuilding = new HashMap<>();
+    private final Set<UUID> deletedWhileBuilding = new HashSet<>();
+
+    /**
+     * @param maxBytes Most memory the index is allowed to use before it turns itself off
+     */
+    public NoteSearchIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Load every note from the store. Register the index as a change listener before calling this so
+     * writes made while it loads are not missed
+     * @param noteStore Store to load from
+     */
+    public void build(NoteStore noteStore) {
+        lock.writeLock().lock();
+        building = true;
+        lock.writeLock().unlock();
+
+        // Read a page at a time so the whole table is never in memory twice
+        try {
+            NoteCursor cursor = null;
+            do {
+                cursor = noteStore.streamNotes(cursor, BUILD_PAGE_SIZE, this::load);
+            } while (cursor != null && !disabled);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.writeLock().lock();
+            building = false;
+            updatedWhileBuilding.clear();
+            deletedWhileBuilding.clear();
+            lock.writeLock().unlock();
+        }
+
+        if (!disabled) {
+            available = true;
+            LOG.info("Search index built", "notes", getIndexedNotes(), "bytesPerNote", getBytesPerNote());
+        }
+    }
+
+    /**
+     * @return true if the index is built and under its memory limit so searches can use it
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Stream one page of notes that contain a keyword
+     * @param keyword Text the content has to contain, matched the same way as the stores match it
+     * @param after Cursor from the previous page or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    public NoteCursor search(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        List<Note> page;
+        lock.readLock().lock();
+        try {
+            page = selectPage(candidates(keyword), keyword, after, limit + 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Write outside the lock so a slow client does not hold up writers
+        int count = Math.min(limit, page.size());
+        for (int i = 0; i < count; i++) {
+            sink.accept(page.get(i));
+        }
+        return page.size() > limit ? NoteCursor.after(page.get(limit - 1)) : null;
+    }
+
+    @Override
+    public void noteSaved(Note note) {
+        add(note);
+    }
+
+    @Override
+    public void noteUpdated(UUID id, String newContent) {
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIds.get(id);
+            if (docId != null) {
+                Note old = docs[docId];
+                addLocked(new Note(id, newContent, old.getCreatedAt()));
+            } else if (building) {
+                // Not loaded yet, the build gives it this content when it gets there
+                updatedWhileBuilding.put(id, newContent);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void noteDeleted(UUID id) {
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIds.remove(id);
+            if (docId != null) {
+                removeLocked(docId);
+                maybeCompact();
+            }
+            if (building) {
+                updatedWhileBuilding.remove(id);
+                deletedWhileBuilding.add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getIndexedNotes() {
+        lock.readLock().lock();
+        try {
+            return docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getTrigramCount() {
+        lock.readLock().lock();
+        try {
+            return trigrams.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return notes searches have looked at, what the trigram postings are there to keep small
+     */
+    public long getNotesChecked() {
+        return notesChecked.sum();
+    }
+
+    public long getEstimatedBytes() {
+        lock.readLock().lock();
+        try {
+            return estimatedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getBytesPerNote() {
+        lock.readLock().lock();
+        try {
+            return docIds.isEmpty() ? 0 : estimatedBytes / docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.gauge("notes_search_index_available", "1 when searches are answered by the in memory index");
+        writer.sample("notes_search_index_available", isAvailable() ? 1 : 0);
+        writer.gauge("notes_search_index_notes", "Notes in the search index");
+        writer.sample("notes_search_index_notes", getIndexedNotes());
+        writer.gauge("notes_search_index_trigrams", "Distinct trigrams in the search index");
+        writer.sample("notes_search_index_trigrams", getTrigramCount());
+        writer.counter("notes_search_index_checked_total", "Notes searches checked for the keyword after the trigram lookup");
+        writer.sample("notes_search_index_checked_total", getNotesChecked());
+        writer.gauge("notes_search_index_bytes", "Estimated memory used by the search index");
+        writer.sample("notes_search_index_bytes", getEstimatedBytes());
+    }
+
+    /**
+     * Add a note, replacing the old version if it is already indexed
+     */
+    private void add(Note note) {
+        lock.writeLock().lock();
+        try {
+            addLocked(note);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a note the build read, unless a write reported since the build started is newer than the row
+     */
+    private void load(Note note) {
+        lock.writeLock().lock();
+        try {
+            UUID id = note.getId();
+            // Already indexed means it was saved or updated after the build started
+            if (docIds.containsKey(id) || deletedWhileBuilding.contains(id)) {
+                return;
+            }
+            String content = updatedWhileBuilding.remove(id);
+            addLocked(content == null ? note : new Note(id, content, note.getCreatedAt()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addLocked(Note note) {
+        if (disabled) {
+            return;
+        }
+        Integer oldDocId = docIds.get(note.getId());
+        if (oldDocId != null) {
+            removeLocked(oldDocId);
+        }
+
+        int docId = nextDocId++;
+        if (docId == docs.length) {
+            docs = Arrays.copyOf(docs, docs.length * 2);
+        }
+        docs[docId] = note;
+        docIds.put(note.getId(), docId);
+        estimatedBytes += noteBytes(note);
+
+        for (long trigram : trigrams(note.getContent())) {
+            Postings postings = trigrams.get(trigram);
+            if (postings == null) {
+                postings = new Postings();
+                trigrams.put(trigram, postings);
+                estimatedBytes += TRIGRAM_OVERHEAD_BYTES;
+            }
+            postings.add(docId);
+            estimatedBytes += POSTING_BYTES;
+        }
+
+        if (estimatedBytes > maxBytes) {
+            disable();
+        } else {
+            maybeCompact();
+        }
+    }
+
+    /**
+     * Leave a hole for a doc id. Its postings stay until the next compaction
+     */
+    private void removeLocked(int docId) {
+        Note old = docs[docId];
+        docs[docId] = null;
+        deletedDocs++;
+        estimatedBytes -= noteBytes(old);
+    }
+
+    /**
+     * Give up on the index once it is over its memory limit
+     */
+    private void disable() {
+        disabled = true;
+        available = false;
+        docIds.clear();
+        trigrams.clear();
+        docs = new Note[0];
+        estimatedBytes = 0;
+        LOG.warn("Search index is over its memory limit, searches will use the database", "maxBytes", maxBytes);
+    }
+
+    /**
+     * Renumber the live notes without gaps and drop deleted doc ids from every postings list.
+     * Renumbering keeps the original order so every list stays sorted
+     */
+    private void maybeCompact() {
+        if (deletedDocs < MIN_DELETED_TO_COMPACT || deletedDocs < docIds.size() / 2) {
+            return;
+        }
+        int[] newIds = new int[nextDocId];
+        Note[] compacted = new Note[Math.max(1024, docIds.size() * 2)];
+        int live = 0;
+        for (int docId = 0; docId < nextDocId; docId++) {
+            if (docs[docId] == null) {
+                newIds[docId] = -1;
+            } else {
+                newIds[docId] = live;
+                compacted[live] = docs[docId];
+                docIds.put(docs[docId].getId(), live);
+                live++;
+            }
+        }
+
+        long removedPostings = 0;
+        var iterator = trigrams.values().iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            removedPostings += postings.remap(newIds);
+            if (postings.size == 0) {
+                estimatedBytes -= TRIGRAM_OVERHEAD_BYTES;
+                iterator.remove();
+            }
+        }
+        estimatedBytes -= removedPostings * POSTING_BYTES;
+
+        docs = compacted;
+        nextDocId = live;
+        deletedDocs = 0;
+    }
+
+    /**
+     * Narrow the notes down to the ones that have every trigram of the keyword, rarest trigram first
+     * @return doc ids to check in order, or null when the keyword is too short to have a trigram and every note has
+     * to be checked
+     */
+    private int[] candidates(String keyword) {
+        long[] keywordTrigrams = trigrams(keyword);
+        if (keywordTrigrams.length == 0) {
+            return null;
+        }
+        Postings[] lists = new Postings[keywordTrigrams.length];
+        for (int i = 0; i < keywordTrigrams.length; i++) {
+            lists[i] = trigrams.get(keywordTrigrams[i]);
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+
+        // Intersect shortest first so the running result stays small
+        Arrays.sort(lists, Comparator.comparingInt(postings -> postings.size));
+        int[] result = Arrays.copyOf(lists[0].ids, lists[0].size);
+        for (int i = 1; i < lists.length && result.length > MIN_CANDIDATES_TO_INTERSECT; i++) {
+            result = intersect(result, lists[i]);
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, Postings b) {
+        int[] result = new int[Math.min(a.length, b.size)];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.size) {
+            if (a[i] < b.ids[j]) {
+                i++;
+            } else if (a[i] > b.ids[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Pick the first notes after the cursor in (createdAt, id) order that contain the keyword, without sorting every
+     * match
+     */
+    private List<Note> selectPage(int[] candidates, String keyword, NoteCursor after, int count) {
+        // Max heap of the best notes so far, the worst of them is on top ready to be replaced
+        PriorityQueue<Note> best = new PriorityQueue<>(count, NOTE_ORDER.reversed());
+        Note cursorNote = after == null ? null : new Note(after.getId(), null, after.getCreatedAt());
+        int checked = candidates == null ? nextDocId : candidates.length;
+        notesChecked.add(checked);
+        for (int i = 0; i < checked; i++) {
+            Note note = docs[candidates == null ? i : candidates[i]];
+            if (note == null || (cursorNote != null && NOTE_ORDER.compare(note, cursorNote) <= 0)) {
+                continue;
+            }
+            // Skip the contains check for notes that would not make the page anyway
+            if ((best.size() == count && NOTE_ORDER.compare(note, best.peek()) >= 0) || !note.getContent().contains(keyword)) {
+                continue;
+            }
+            if (best.size() == count) {
+                best.poll();
+            }
+            best.add(note);
+        }
+        List<Note> page = new ArrayList<>(best);
+        page.sort(NOTE_ORDER);
+        return page;
+    }
+
+    /**
+     * @return the distinct trigrams of some text, sorted. Chars are lower cased one at a time so a trigram is always
+     * three chars of the text it came from
+     */
+    private static long[] trigrams(String text) {
+        int count = text.length() - TRIGRAM_LENGTH + 1;
+        if (count <= 0) {
+            return new long[0];
+        }
+        long[] trigrams = new long[count];
+        long trigram = ((long) Character.toLowerCase(text.charAt(0)) << 16) | Character.toLowerCase(text.charAt(1));
+        for (int i = 0; i < count; i++) {
+            trigram = ((trigram << 16) | Character.toLowerCase(text.charAt(i + 2))) & 0xFFFF_FFFF_FFFFL;
+            trigrams[i] = trigram;
+        }
+        Arrays.sort(trigrams);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[unique++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, unique);
+    }
+
+    private static long noteBytes(Note note) {
+        return NOTE_OVERHEAD_BYTES + note.getContent().length();
+    }
+
+    /**
+     * Sorted doc ids of the notes that contain a trigram
+     */
+    private static final class Postings {
+        private int[] ids = new int[2];
+        private int size;
+
+        private void add(int docId) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = docId;
+        }
+
+        /**
+         * Rewrite the ids after compaction, dropping deleted ones
+         * @return how many ids were dropped
+         */
+        private int remap(int[] newIds) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int newId = newIds[ids[i]];
+                if (newId >= 0) {
+                    ids[kept++] = newId;
+                }
+            }
+            int removed = size - kept;
+            size = kept;
+            if (ids.length > 16 && size < ids.length / 4) {
+                ids = Arrays.copyOf(ids, Math.max(2, size * 2));
+            }
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.notes;
+
+import java.io.IOException;
+
+/**
+ * Receives notes one at a time as they are read so a list of notes never has to be held in memory
+ */
+@FunctionalInterface
+public interface NoteSink {
+
+    /**
+     * @param note Next note in the result
+     * @throws IOException if the note could not be written out
+     */
+    void accept(Note note) throws IOException;
+}
@@ -0,0 +1,149 @@
+package com.notes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Where notes are kept. The handler only talks to this so the storage engine can be swapped, see NOTE_STORE in Main.
+ *
+ * Lists are paged in (createdAt, id) order with a {@link NoteCursor} and are written to a {@link NoteSink} one note
+ * at a time instead of being returned, so an implementation never has to hold a whole page in memory.
+ */
+public interface NoteStore {
+
+    /**
+     * Version to pass to {@link #updateNote(UUID, String, long)} and {@link #deleteNote(UUID, long)} to write the
+     * note whatever version it is at
+     */
+    long ANY_VERSION = 0;
+
+    /**
+     * Persists any notes passed in
+     * @param note Note to be persisted
+     */
+    void persistNote(Note note);
+
+    /**
+     * Get all existing notes
+     * @return all notes
+     */
+    List<Note> getAllNotes();
+
+    /**
+     * Get a specific note
+     * @param id UUID of note
+     * @return Note with matching ID. If no note found return null
+     */
+    Note getNoteById(UUID id);
+
+    /**
+     * Get the version of a note without its content. Answered from memory where the store can, so checking whether
+     * a client's copy of a note is still current is cheaper than reading the note
+     * @param id UUID of note
+     * @return version of the note, which changes every time it is written, or 0 if there is no such note
+     */
+    long getNoteVersion(UUID id);
+
+    /**
+     * Get a number that changes every time any note is saved, updated or deleted through this store. Read it before
+     * reading a list, the list is the same when read again for as long as the generation has not changed
+     * @return current generation
+     */
+    long getGeneration();
+
+    /**
+     * Delete a note with a specific UUID
+     * @param id UUID of note to be deleted
+     */
+    default void deleteNote(UUID id) {
+        deleteNote(id, ANY_VERSION);
+    }
+
+    /**
+     * Delete a note if it is still at the version the caller expects
+     * @param id UUID of note to be deleted
+     * @param expectedVersion Version the note has to be at or {@link #ANY_VERSION}
+     * @return true if the note was deleted, false if there is no such note or it is at another version
+     */
+    boolean deleteNote(UUID id, long expectedVersion);
+
+    /**
+     * Replace the content of a note, the creation time stays the same
+     * @param id UUID of note to be updated
+     * @param newContent Content the note should have
+     */
+    default void updateNote(UUID id, String newContent) {
+        updateNote(id, newContent, ANY_VERSION);
+    }
+
+    /**
+     * Replace the content of a note if it is still at the version the caller expects
+     * @param id UUID of note to be updated
+     * @param newContent Content the note should have
+     * @param expectedVersion Version the note has to be at or {@link #ANY_VERSION}
+     * @return the new version of the note, or 0 if there is no such note or it is at another version
+     */
+    long updateNote(UUID id, String newContent, long expectedVersion);
+
+    /**
+     * Stream one page of notes ordered by creation time
+     * @param after Cursor from the previous page or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    NoteCursor streamNotes(NoteCursor after, int limit, NoteSink sink) throws IOException;
+
+    /**
+     * Stream one page of notes whose content contains a keyword
+     * @param keyword Text to look for
+     * @param after Cursor from the previous page of the same search or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     * @throws IllegalArgumentException if the cursor did not come from this kind of search
+     */
+    NoteCursor searchNotes(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException;
+
+    /**
+     * Stream one page of notes created between two times
+     * @param dateFrom Start of the range, inclusive
+     * @param dateTo End of the range, inclusive
+     * @param after Cursor from the previous page or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    NoteCursor getNotesByDateRange(Instant dateFrom, Instant dateTo, NoteCursor after, int limit, NoteSink sink) throws IOException;
+
+    /**
+     * Load many notes at once. Notes whose id already exists are skipped
+     * @param reader Rows of the import
+     * @return how many rows were imported, skipped and rejected
+     * @throws IOException if the body could not be read
+     */
+    BulkImportResult importNotes(BulkNoteReader reader) throws IOException;
+
+    /**
+     * Write every note, or every note created in a range, to a stream in the same layout /notes/bulk reads
+     * @param format CSV with a header row or NDJSON
+     * @param dateFrom Start of the range, inclusive, or null for no start
+     * @param dateTo End of the range, inclusive, or null for no end
+     * @param out Where the rows are written
+     * @return number of notes written
+     * @throws IOException if writing to the stream failed
+     */
+    long exportNotes(BulkNoteReader.Format format, Instant dateFrom, Instant dateTo, OutputStream out) throws IOException;
+
+    /**
+     * Register a listener to be told about every note that is saved, updated or deleted
+     * @param listener Listener to add
+     */
+    void addChangeListener(NoteChangeListener listener);
+}
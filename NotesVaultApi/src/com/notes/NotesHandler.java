@@ -4,29 +4,71 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.*;
-import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.List;
+import java.time.format.DateTimeParseException;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 /**
  * Class to handle all incoming requests for the notes app
+ *
+ * A single note has the ETag of its version and a list has the ETag of the store's generation, so a client polling
+ * with If-None-Match gets a 304 without the note or list being read again. The tag also names the format and the
+ * compression the body is sent in, so a cache never hands one representation out for another. PUT and DELETE with If-Match only go
+ * through when the note is still at the version the client last saw, otherwise they get a 412.
+ *
+ * Responses are gzip or deflate compressed for clients that accept it once they reach the compression threshold.
+ * Notes and lists of notes are sent as JSON or in the binary layout of {@link NoteBinaryCodec} to clients whose
+ * Accept header asks for it, and in the original text layout otherwise.
+ *
+ * When the store is too busy to take another call it fails fast with a 503 and a Retry-After header.
+ * Each request runs with its client set in {@link ClientContext} so a client reads its own writes from a store with replicas.
  */
 public class NotesHandler implements HttpHandler {
+    private static final Logger LOG = Logger.of(NotesHandler.class);
 
-    private static final int MAX_LENGTH = 1000;
+    private static final int MAX_LENGTH = Note.MAX_LENGTH;
+    // Listings are always paged so a single request costs the same no matter how many notes there are
+    // Pages are streamed straight from the database so large pages do not need more memory
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 10_000;
     private static final int HTTP_OK=200;
     private static final int HTTP_CREATED=201;
     private static final int HTTP_NO_CONTENT=204;
+    private static final int HTTP_NOT_MODIFIED=304;
     private static final int HTTP_BAD_REQUEST=400;
+    private static final int HTTP_NOT_FOUND=404;
+    private static final int HTTP_PRECONDITION_FAILED=412;
+    private static final int HTTP_PAYLOAD_TOO_LARGE=413;
     private static final int HTTP_INTERNAL_ERROR=500;
+    private static final int HTTP_UNAVAILABLE=503;
 
-    private PostgresSQLJDBC postgresSQLJDBC;
+    // ETag suffix of each format sent as it is, then with each compression
+    private static final String[][] REPRESENTATIONS = representations();
 
-    public NotesHandler(PostgresSQLJDBC postgresSQLJDBC){
-        this.postgresSQLJDBC = postgresSQLJDBC;
+    // Responses that are the same every time are only encoded once
+    private static final byte[] PERSISTED = "Successfully persisted note".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UPDATED = "Successfully updated note".getBytes(StandardCharsets.UTF_8);
+    private static final String BODY_TOO_LARGE = "ERROR 413: Request body is larger than " + FormParser.MAX_BODY_BYTES + " bytes";
+    private static final String PRECONDITION_FAILED = "ERROR 412: Note does not exist or has changed";
+
+    private NoteStore noteStore;
+    // Answers searches in memory when it is available, null when it is turned off
+    private NoteSearchIndex searchIndex;
+    private ResponseCompression compression;
+
+    public NotesHandler(NoteStore noteStore){
+        this(noteStore, null);
+    }
+
+    public NotesHandler(NoteStore noteStore, NoteSearchIndex searchIndex){
+        this(noteStore, searchIndex, new ResponseCompression(ResponseCompression.DEFAULT_LEVEL, ResponseCompression.DEFAULT_MIN_BYTES));
+    }
+
+    public NotesHandler(NoteStore noteStore, NoteSearchIndex searchIndex, ResponseCompression compression){
+        this.noteStore = noteStore;
+        this.searchIndex = searchIndex;
+        this.compression = compression;
     }
 
     /**
@@ -38,10 +80,14 @@ public class NotesHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException
     {
+        // Lets a store with replicas send the reads of a client that just wrote to the primary
+        ClientContext.set(clientId(exchange));
         // Check which type of call it is. If none throw a 400
         try{
             if (exchange.getRequestMethod().equals("GET")) {
                 handleGet(exchange);
+            } else if (exchange.getRequestMethod().equals("POST") && exchange.getRequestURI().getPath().equals("/notes/bulk")) {
+                handleBulkImport(exchange);
             } else if (exchange.getRequestMethod().equals("POST")) {
                 handlePost(exchange);
             } else if (exchange.getRequestMethod().equals("DELETE")) {
@@ -53,59 +99,154 @@ public class NotesHandler implements HttpHandler {
             }
             // Just in case have a catch all to throw a 500 error in case service crashes
         } catch (Exception e) {
+            if (exchange.getResponseCode() != -1) {
+                // A streamed list already sent its headers so the status can not change anymore, and an error written
+                // into a body that may be compressed, JSON or binary would only corrupt it. Throwing leaves the body
+                // without its last chunk and the server drops the connection, so the client sees it was cut off
+                LOG.error("Response failed after its headers were sent", e, "path", exchange.getRequestURI().getPath());
+                throw e instanceof IOException io ? io : new IOException(e);
+            }
+            if (e instanceof IllegalArgumentException) {
+                // Input that could only be checked further down, like a cursor from a different kind of list
+                sendResponse(exchange, "ERROR 400: " + e.getMessage(), HTTP_BAD_REQUEST);
+                return;
+            }
+            if (e instanceof OverloadedException overloaded) {
+                // Nothing reached the database, tell the client when to try again rather than making it wait here
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(overloaded.getRetryAfterSeconds()));
+                sendResponse(exchange, "ERROR 503: " + e.getMessage(), HTTP_UNAVAILABLE);
+                return;
+            }
             sendResponse(exchange, "Internal Server Error: " + e.getMessage(), HTTP_INTERNAL_ERROR);
+        } finally {
+            ClientContext.clear();
         }
     }
 
+    /**
+     * @return the X-Client-Id header, or the address the request came from for clients that do not send one
+     */
+    private static String clientId(HttpExchange exchange) {
+        String clientId = exchange.getRequestHeaders().getFirst("X-Client-Id");
+        if (clientId != null && !clientId.isEmpty()) {
+            return clientId;
+        }
+        return exchange.getRemoteAddress() == null ? null : exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
     /**
      * Get the note or notes from the database
      * @param exchange Request that came in
      * @throws IOException
      */
     private void handleGet(HttpExchange exchange) throws IOException {
-        String response = "";
+        String response;
         String path = exchange.getRequestURI().getPath();
-        String query = exchange.getRequestURI().getQuery();
         int returnCode = HTTP_OK;
 
+        if (path.equals("/notes/export")) {
+            handleExport(exchange);
+            return;
+        }
+
         // Verify if request is asking for one note or many notes
         if (path.contains("/notes/")) {
             // Get note of id
             UUID id = parseUUIDFromPath(path);
             if (id != null) {
-                Note note = postgresSQLJDBC.getNoteById(id);
+                NoteFormat format = negotiateFormat(exchange);
+                String representation = representation(exchange, format);
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                if (ifNoneMatch != null) {
+                    // Stores answer this from memory where they can so a client whose copy is current costs no read
+                    long version = noteStore.getNoteVersion(id);
+                    if (version != 0 && matches(ifNoneMatch, etag(version, representation), true)) {
+                        exchange.getResponseHeaders().set("ETag", etag(version, representation));
+                        sendResponse(exchange, "", HTTP_NOT_MODIFIED);
+                        return;
+                    }
+                }
+                Note note = noteStore.getNoteById(id);
+                if (note != null && note.getVersion() != 0) {
+                    exchange.getResponseHeaders().set("ETag", etag(note.getVersion(), representation));
+                }
+                if (format != NoteFormat.TEXT) {
+                    sendNote(exchange, note, format);
+                    return;
+                }
                 response = (note != null) ? note.toString() : "Note not found";
             } else {
                 // In case a UUID was not sent correctly
                 response = "ERROR 400: Expected UUID";
                 returnCode = HTTP_BAD_REQUEST;
             }
-        } else if (query != null && query.startsWith("search=")) {
-            String keyword = query.split("=")[1];
-            List<Note> notes = postgresSQLJDBC.searchNotes(keyword);
-            response = makeNotes(notes);
-        } else if (query != null && query.contains("from=")) {
-            try{
-                String[] queryParam = query.split("=");
-                String[] values = new String[]{queryParam[1].split("&")[0], queryParam[2].split("&")[0]};
-                if (values.length == 2) {
-                    Instant from = Instant.parse(URLDecoder.decode(values[0], StandardCharsets.UTF_8));
-                    Instant to = Instant.parse(URLDecoder.decode(values[1], StandardCharsets.UTF_8));
-                    List<Note> notes = postgresSQLJDBC.getNotesByDateRange(from, to);
-                    response = makeNotes(notes);
+            sendResponse(exchange, response, returnCode);
+            return;
+        }
+
+        // Every other GET is a list of notes which is paged with limit and cursor
+        int limit;
+        NoteCursor cursor;
+        String keyword;
+        boolean dateRange;
+        Instant from = null;
+        Instant to = null;
+        // Everything is read out of the query first so the parser goes back to the pool before the list is streamed
+        try (FormParser query = FormParser.acquire()) {
+            try {
+                query.parseQuery(exchange.getRequestURI().getRawQuery());
+                limit = parseLimit(query);
+                cursor = query.has("cursor") ? NoteCursor.decode(query.getString("cursor")) : null;
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, "ERROR 400: Invalid limit or cursor", HTTP_BAD_REQUEST);
+                return;
+            }
+
+            keyword = query.getString("search");
+            dateRange = query.has("from") || query.has("to");
+            if (keyword == null && dateRange) {
+                try {
+                    from = query.getInstant("from");
+                    to = query.getInstant("to");
+                } catch (DateTimeParseException e) {
+                    from = null;
                 }
-            } catch (java.lang.Exception e) {
-                System.out.println("Invalid timestamp format");
-                response = "ERROR 400: Invalid timestamp format";
-                returnCode = HTTP_BAD_REQUEST;
+                if (from == null || to == null) {
+                    LOG.debug("Invalid timestamp format", "from", query.getString("from"), "to", query.getString("to"));
+                    sendResponse(exchange, "ERROR 400: Invalid timestamp format", HTTP_BAD_REQUEST);
+                    return;
+                }
+            }
+        }
+
+        // Read before the list so a write that lands while the list is read moves the generation past this ETag
+        NoteFormat format = negotiateFormat(exchange);
+        String etag = etag(noteStore.getGeneration(), representation(exchange, format));
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && matches(ifNoneMatch, etag, true)) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            sendResponse(exchange, "", HTTP_NOT_MODIFIED);
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+
+        if (keyword != null) {
+            // A cursor with a rank came from a store search so the rest of those pages stay on the store. The index and the
+            // store find the same notes, so pages the index started carry on in the store if the index turns itself off
+            if (searchIndex != null && searchIndex.isAvailable() && (cursor == null || cursor.getRank() == null)) {
+                streamNotes(exchange, format, sink -> searchIndex.search(keyword, cursor, limit, sink));
+            } else {
+                streamNotes(exchange, format, sink -> noteStore.searchNotes(keyword, cursor, limit, sink));
             }
+        } else if (dateRange) {
+            Instant rangeFrom = from;
+            Instant rangeTo = to;
+            streamNotes(exchange, format, sink -> noteStore.getNotesByDateRange(rangeFrom, rangeTo, cursor, limit, sink));
         }
         else {
-            // Get all notes
-            List<Note> notes = postgresSQLJDBC.getAllNotes();
-            response = makeNotes(notes);
+            // Get all notes, one page at a time
+            streamNotes(exchange, format, sink -> noteStore.streamNotes(cursor, limit, sink));
         }
-        sendResponse(exchange, response, returnCode);
     }
 
     /**
@@ -114,39 +255,28 @@ public class NotesHandler implements HttpHandler {
      * @throws IOException
      */
     private void handlePost(HttpExchange exchange) throws IOException {
-        // Get all parts of the body
-        String body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-        UUID id = null;
-        String noteContent = null;
-        Instant timestamp = null;
-
-        // Split up the three different elements of the note
-        String[] pairs = body.split("&");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split("=");
+        UUID id;
+        String noteContent;
+        Instant timestamp;
+
+        // Find the three different elements of the note in the body
+        try (FormParser form = FormParser.acquire()) {
             try {
-                if (keyValue.length == 2) {
-                    switch (keyValue[0]) {
-                        // Find and store each part of the note
-                        case "id":
-                            id = parseUUID(keyValue[1]);
-                            break;
-                        case "content":
-                            noteContent = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-                            break;
-                        case "timestamp":
-                            timestamp = Instant.parse(URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
-                            break;
-                    }
+                if (!form.readBody(exchange.getRequestBody(), contentLength(exchange))) {
+                    sendResponse(exchange, BODY_TOO_LARGE, HTTP_PAYLOAD_TOO_LARGE);
+                    return;
                 }
-            } catch (Exception e) {
+                id = form.getUUID("id");
+                noteContent = form.getString("content");
+                timestamp = form.getInstant("timestamp");
+            } catch (IllegalArgumentException | DateTimeParseException e) {
                 sendResponse(exchange, "ERROR 400: Unexpected error. Null value", HTTP_BAD_REQUEST);
                 return;
             }
         }
 
         // If all were recieved persist and send back 201
-        if (id != null && noteContent != null && timestamp != null) {
+        if (id != null && noteContent != null && !noteContent.isEmpty() && timestamp != null) {
 
             // Verify that the length is less than a max length set in the docker-compose file
             if (noteContent.length() > MAX_LENGTH) {
@@ -155,15 +285,83 @@ public class NotesHandler implements HttpHandler {
             }
 
             Note note = new Note(id, noteContent, timestamp);
-            postgresSQLJDBC.persistNote(note);
-            String response = "Successfully persisted note";
-            sendResponse(exchange, response, HTTP_CREATED);
+            noteStore.persistNote(note);
+            sendResponse(exchange, PERSISTED, HTTP_CREATED);
         } else {
             // Otherwise throw an error
             sendResponse(exchange, "ERROR 400: Unexpected error. Null value", HTTP_BAD_REQUEST);
         }
     }
 
+    /**
+     * Export every note, or the notes created between from and to, as CSV (default) or NDJSON. The rows are streamed
+     * from the database with chunked encoding and gzipped when the client accepts it
+     * @param exchange Request that came in
+     * @throws IOException
+     */
+    private void handleExport(HttpExchange exchange) throws IOException {
+        BulkNoteReader.Format format;
+        String contentType;
+        Instant from;
+        Instant to;
+        try (FormParser query = FormParser.acquire()) {
+            query.parseQuery(exchange.getRequestURI().getRawQuery());
+            switch (query.getString("format", "csv")) {
+                case "csv":
+                    format = BulkNoteReader.Format.CSV;
+                    contentType = "text/csv; charset=utf-8";
+                    break;
+                case "ndjson":
+                    format = BulkNoteReader.Format.NDJSON;
+                    contentType = "application/x-ndjson";
+                    break;
+                default:
+                    sendResponse(exchange, "ERROR 400: format must be csv or ndjson", HTTP_BAD_REQUEST);
+                    return;
+            }
+
+            try {
+                from = query.getInstant("from");
+                to = query.getInstant("to");
+            } catch (DateTimeParseException e) {
+                sendResponse(exchange, "ERROR 400: Invalid timestamp format", HTTP_BAD_REQUEST);
+                return;
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+
+        // Only closed when the export finished so a failed export is not mistaken for a complete one
+        ResponseStream out = new ResponseStream(exchange, HTTP_OK, compression);
+        boolean finished = false;
+        try {
+            noteStore.exportNotes(format, from, to, out);
+            finished = true;
+        } finally {
+            if (!finished) {
+                out.discard();
+            }
+        }
+        out.close();
+    }
+
+    /**
+     * Import many notes from a CSV, NDJSON or binary body. Rows are checked one at a time and streamed into the database,
+     * rows that fail the checks are listed in the response and the rest are still imported
+     * @param exchange Request that came in
+     * @throws IOException
+     */
+    private void handleBulkImport(HttpExchange exchange) throws IOException {
+        BulkNoteReader reader = BulkNoteReader.forContentType(exchange.getRequestHeaders().getFirst("Content-Type"), exchange.getRequestBody());
+        if (reader == null) {
+            sendResponse(exchange, "ERROR 400: Content-Type must be text/csv, application/x-ndjson or " + NoteBinaryCodec.MEDIA_TYPE, HTTP_BAD_REQUEST);
+            return;
+        }
+
+        BulkImportResult result = noteStore.importNotes(reader);
+        sendResponse(exchange, result.toString(), HTTP_OK);
+    }
+
     private void handleUpdate(HttpExchange exchange) throws IOException {
         UUID id = parseUUIDFromPath(exchange.getRequestURI().getPath());
 
@@ -172,31 +370,47 @@ public class NotesHandler implements HttpHandler {
             return;
         }
 
-        String body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))
-                .lines().collect(Collectors.joining("\n"));
-
-        String newContent = null;
-        for (String pair : body.split("&")) {
-            String[] keyValue = pair.split("=");
-            if (keyValue.length == 2 && keyValue[0].equals("content")) {
-                newContent = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
+        String newContent;
+        try (FormParser form = FormParser.acquire()) {
+            if (!form.readBody(exchange.getRequestBody(), contentLength(exchange))) {
+                sendResponse(exchange, BODY_TOO_LARGE, HTTP_PAYLOAD_TOO_LARGE);
+                return;
             }
+            newContent = form.getString("content");
         }
 
-        if (newContent == null) {
-            System.err.println("ERROR 400: Unexpected error. Null value");
+        if (newContent == null || newContent.isEmpty()) {
+            LOG.debug("Update is missing content");
             sendResponse(exchange, "ERROR 400: Missing content", HTTP_BAD_REQUEST);
             return;
         }
 
         if (newContent.length() > MAX_LENGTH) {
-            System.err.println("ERROR 400: Note content exceeds maximum length");
+            LOG.debug("Update content exceeds maximum length", "length", newContent.length());
             sendResponse(exchange, "ERROR 400: Note content exceeds maximum length", HTTP_BAD_REQUEST);
             return;
         }
 
-        postgresSQLJDBC.updateNote(id, newContent);
-        sendResponse(exchange, "Successfully updated note", HTTP_OK);
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        long expectedVersion = NoteStore.ANY_VERSION;
+        if (ifMatch != null) {
+            expectedVersion = expectedVersion(id, ifMatch);
+            if (expectedVersion == 0) {
+                sendResponse(exchange, PRECONDITION_FAILED, HTTP_PRECONDITION_FAILED);
+                return;
+            }
+        }
+
+        long version = noteStore.updateNote(id, newContent, expectedVersion);
+        if (version == 0 && ifMatch != null) {
+            // Changed or deleted by someone else since the client read it
+            sendResponse(exchange, PRECONDITION_FAILED, HTTP_PRECONDITION_FAILED);
+            return;
+        }
+        if (version != 0) {
+            exchange.getResponseHeaders().set("ETag", etag(version, ""));
+        }
+        sendResponse(exchange, UPDATED, HTTP_OK);
     }
 
     /**
@@ -210,7 +424,16 @@ public class NotesHandler implements HttpHandler {
 
         // So long as the ID is not null delete note
         if (id != null) {
-            postgresSQLJDBC.deleteNote(id);
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            if (ifMatch == null) {
+                noteStore.deleteNote(id);
+            } else {
+                long expectedVersion = expectedVersion(id, ifMatch);
+                if (expectedVersion == 0 || !noteStore.deleteNote(id, expectedVersion)) {
+                    sendResponse(exchange, PRECONDITION_FAILED, HTTP_PRECONDITION_FAILED);
+                    return;
+                }
+            }
             sendResponse(exchange, "", HTTP_NO_CONTENT);
             return;
         }
@@ -228,48 +451,289 @@ public class NotesHandler implements HttpHandler {
      * @throws IOException
      */
     private void sendResponse(HttpExchange exchange,String response, int code) throws IOException {
-        exchange.sendResponseHeaders(code, response.length());
+        // Length has to be in bytes not characters or multibyte content gets cut off
+        sendResponse(exchange, response.getBytes(StandardCharsets.UTF_8), code);
+    }
+
+    /**
+     * Send an already encoded response back to caller
+     * @param exchange
+     * @param bytes
+     * @param code
+     * @throws IOException
+     */
+    private void sendResponse(HttpExchange exchange, byte[] bytes, int code) throws IOException {
+        sendResponse(exchange, bytes, bytes.length, code);
+    }
+
+    /**
+     * Send the start of a buffer back to caller, the content length is the number of bytes sent not the buffer size
+     * @param exchange
+     * @param bytes
+     * @param length
+     * @param code
+     * @throws IOException
+     */
+    private void sendResponse(HttpExchange exchange, byte[] bytes, int length, int code) throws IOException {
+        if (length > 0 && compression.isEnabled()) {
+            exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+            ResponseCompression.Encoding encoding = compression.negotiate(exchange);
+            if (encoding != null && length >= compression.getMinBytes()) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding.token());
+                exchange.sendResponseHeaders(code, 0);
+                try (OutputStream os = compression.compress(exchange.getResponseBody(), encoding)) {
+                    os.write(bytes, 0, length);
+                }
+                return;
+            }
+            if (encoding != null) {
+                compression.skipped();
+            }
+        }
+        exchange.sendResponseHeaders(code, length == 0 ? -1 : length);
         OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
+        os.write(bytes, 0, length);
         os.close();
     }
 
     /**
-     * Make a string of all notes to send back to caller
-     * @param notes Notes from database
-     * @return String representing all notes
+     * Send a single note in a format other than text. A missing note is a 404 since the body can not be a note
+     * @param exchange Request
+     * @param note Note to send, null when there is none with the id
+     * @param format Format from {@link #negotiateFormat(HttpExchange)}
+     * @throws IOException
      */
-    private String makeNotes(List<Note> notes){
-        StringBuilder sb = new StringBuilder();
-        for (Note note : notes){
-            sb.append(note.toString());
+    private void sendNote(HttpExchange exchange, Note note, NoteFormat format) throws IOException {
+        if (note == null) {
+            sendResponse(exchange, "Note not found", HTTP_NOT_FOUND);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", format.mediaType());
+        if (format == NoteFormat.BINARY) {
+            try (NoteBinaryWriter writer = NoteBinaryWriter.acquire(null)) {
+                writer.writeNote(note);
+                sendResponse(exchange, writer.buffer(), writer.length(), HTTP_OK);
+            }
+            return;
+        }
+        try (NoteJsonWriter writer = NoteJsonWriter.acquire(null)) {
+            writer.writeNote(note);
+            sendResponse(exchange, writer.buffer(), writer.length(), HTTP_OK);
         }
-        return sb.toString();
+    }
+
+    /**
+     * Pick the format notes are sent in from the Accept header. Responses differ by Accept so caches are told
+     * @param exchange Request
+     * @return format to send notes in
+     */
+    private static NoteFormat negotiateFormat(HttpExchange exchange) {
+        exchange.getResponseHeaders().add("Vary", "Accept");
+        return NoteFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept"));
+    }
+
+    /**
+     * Stream a list of notes back to the caller as they are read from the database. If there is another page
+     * the last line of text, the nextCursor field of JSON or the last binary frame is the cursor to ask for it with
+     * @param exchange Request
+     * @param format Format from {@link #negotiateFormat(HttpExchange)}
+     * @param query Reads the notes into the sink and returns the cursor for the next page
+     * @throws IOException
+     */
+    private void streamNotes(HttpExchange exchange, NoteFormat format, NoteQuery query) throws IOException {
+        if (format != NoteFormat.TEXT) {
+            exchange.getResponseHeaders().set("Content-Type", format.mediaType());
+        }
+        ResponseStream out = new ResponseStream(exchange, HTTP_OK, compression);
+        try {
+            if (format == NoteFormat.JSON) {
+                try (NoteJsonWriter writer = NoteJsonWriter.acquire(out)) {
+                    writer.startList();
+                    writer.endList(query.run(writer::writeListNote));
+                }
+            } else if (format == NoteFormat.BINARY) {
+                try (NoteBinaryWriter writer = NoteBinaryWriter.acquire(out)) {
+                    writer.endList(query.run(writer::writeNote));
+                }
+            } else {
+                NoteCursor next = query.run(note -> out.write(note.toString().getBytes(StandardCharsets.UTF_8)));
+                if (next != null) {
+                    out.write(("NextCursor " + next.encode() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (RuntimeException | IOException e) {
+            out.discard();
+            throw e;
+        }
+        out.close();
+    }
+
+    /**
+     * Work out the page size from the limit parameter. Anything over the max is capped at the max
+     * @param query parsed query string
+     * @return page size
+     * @throws IllegalArgumentException if the limit is not a positive number
+     */
+    private int parseLimit(FormParser query) {
+        int value = query.getInt("limit", DEFAULT_PAGE_SIZE);
+        if (value < 1) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return Math.min(value, MAX_PAGE_SIZE);
     }
 
     /**
      * Get the UUID when a path is given with it
      * @param path full path
-     * @return request UUID
+     * @return request UUID or null if there is not a valid one after /notes/
      */
     private UUID parseUUIDFromPath(String path) {
-        try {
-            return UUID.fromString(path.split("/notes/")[1]);
-        } catch (Exception e) {
-            return null;
+        int start = path.indexOf("/notes/");
+        return start < 0 ? null : FormParser.parseUUID(path, start + "/notes/".length(), path.length());
+    }
+
+    /**
+     * Name the representation a response is sent as, the part of its ETag after the version. The text layout sent
+     * as it is has none, so the ETag of a plain response is just the version as it always was
+     * @param exchange Request, its Accept-Encoding picks the compression the same way the response will
+     * @param format Format from {@link #negotiateFormat(HttpExchange)}
+     * @return suffix such as -json-gzip, or an empty string
+     */
+    private String representation(HttpExchange exchange, NoteFormat format) {
+        ResponseCompression.Encoding encoding = compression.negotiate(exchange);
+        return REPRESENTATIONS[format.ordinal()][encoding == null ? 0 : encoding.ordinal() + 1];
+    }
+
+    private static String[][] representations() {
+        NoteFormat[] formats = NoteFormat.values();
+        ResponseCompression.Encoding[] encodings = ResponseCompression.Encoding.values();
+        String[][] representations = new String[formats.length][encodings.length + 1];
+        for (NoteFormat format : formats) {
+            String name = format == NoteFormat.TEXT ? "" : "-" + format.name().toLowerCase();
+            representations[format.ordinal()][0] = name;
+            for (ResponseCompression.Encoding encoding : encodings) {
+                representations[format.ordinal()][encoding.ordinal() + 1] = name + "-" + encoding.token();
+            }
+        }
+        return representations;
+    }
+
+    /**
+     * @return ETag for a version of a note or a generation of the store as sent in a representation
+     */
+    private static String etag(long version, String representation) {
+        return "\"" + version + representation + "\"";
+    }
+
+    /**
+     * Work out which version of a note an If-Match header allows the write for. A single ETag is left for the store
+     * to check as part of the write so it costs no read, anything else is checked against the note as it is now
+     * @param id UUID of note being written
+     * @param ifMatch Value of the If-Match header
+     * @return version the note has to be at, or 0 if the header can not match
+     */
+    private long expectedVersion(UUID id, String ifMatch) {
+        // The client may have read the note in any representation, they all stand for the same version
+        String tag = ifMatch.trim();
+        if (tag.length() > 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+            int end = 1;
+            while (end < tag.length() - 1 && Character.isDigit(tag.charAt(end))) {
+                end++;
+            }
+            if (end > 1 && end < 21 && isRepresentation(tag, end, tag.length() - 1)) {
+                try {
+                    return Math.max(Long.parseLong(tag, 1, end, 10), 0);
+                } catch (NumberFormatException e) {
+                    // Too large to be a version, the comparison below decides
+                }
+            }
+        }
+        long version = noteStore.getNoteVersion(id);
+        if (version == 0) {
+            return 0;
+        }
+        for (String[] encodings : REPRESENTATIONS) {
+            for (String representation : encodings) {
+                if (matches(ifMatch, etag(version, representation), false)) {
+                    return version;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if part of a tag is one of the representation suffixes
+     */
+    private static boolean isRepresentation(String tag, int from, int to) {
+        for (String[] encodings : REPRESENTATIONS) {
+            for (String representation : encodings) {
+                if (representation.length() == to - from && tag.startsWith(representation, from)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check an If-None-Match or If-Match header against an ETag
+     * @param header Comma separated list of ETags, or * for any
+     * @param etag ETag of what the server has now
+     * @param weak True to let weak ETags match as If-None-Match does, If-Match only takes strong ones
+     * @return true if the header lists the ETag
+     */
+    private static boolean matches(String header, String etag, boolean weak) {
+        int length = header.length();
+        int start = 0;
+        while (start < length) {
+            int end = header.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int from = start;
+            int to = end;
+            while (from < to && header.charAt(from) == ' ') {
+                from++;
+            }
+            while (to > from && header.charAt(to - 1) == ' ') {
+                to--;
+            }
+            if (to - from == 1 && header.charAt(from) == '*') {
+                return true;
+            }
+            boolean weakTag = header.startsWith("W/", from);
+            if (weakTag) {
+                from += 2;
+            }
+            if ((weak || !weakTag) && to - from == etag.length() && header.regionMatches(from, etag, 0, etag.length())) {
+                return true;
+            }
+            start = end + 1;
         }
+        return false;
     }
 
     /**
-     * Parse a UUID from a string representation
-     * @param uuid UUID of type UUID
-     * @return uuid of type String
+     * @return length from the Content-Length header, -1 if it was not sent or is not a number
      */
-    private UUID parseUUID(String uuid) {
+    private static long contentLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
         try {
-            return UUID.fromString(URLDecoder.decode(uuid, StandardCharsets.UTF_8));
-        } catch (Exception e) {
-            return null;
+            return Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
+
+    /**
+     * A query for a list of notes that writes them to a sink
+     */
+    @FunctionalInterface
+    private interface NoteQuery {
+        NoteCursor run(NoteSink sink) throws IOException;
+    }
 }
@@ -0,0 +1,63 @@
+package com.notes;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Lock free pool for objects that are expensive to make because of the buffer they hold, like the note writers and
+ * the form parser, so a request takes one instead of allocating its own.
+ *
+ * Objects sit in a fixed number of slots. A thread starts looking at the slot its id points to, so threads mostly
+ * stay out of each other's way, and takes the first object it finds. When the pool is empty a new object is made and
+ * when it is full a returned object is left for the garbage collector, so the pool never blocks and never grows.
+ */
+final class ObjectPool<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final Supplier<T> factory;
+
+    /**
+     * @param size Number of slots, a power of two
+     * @param factory Makes an object when the pool is empty
+     */
+    ObjectPool(int size, Supplier<T> factory) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Pool size must be a power of two");
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.factory = factory;
+    }
+
+    /**
+     * @return an object from the pool, or a new one when every pooled object is in use
+     */
+    T acquire() {
+        int start = (int) Thread.currentThread().threadId();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            // Only try to take a slot that looks full, so an empty pool is scanned with plain reads
+            if (slots.get(index) != null) {
+                T item = slots.getAndSet(index, null);
+                if (item != null) {
+                    return item;
+                }
+            }
+        }
+        return factory.get();
+    }
+
+    /**
+     * Put an object back. It must be reset first and not be used again by the caller
+     * @param item Object to pool
+     */
+    void release(T item) {
+        int start = (int) Thread.currentThread().threadId();
+        for (int i = 0; i <= mask; i++) {
+            if (slots.compareAndSet((start + i) & mask, null, item)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.notes;
+
+/**
+ * Thrown instead of waiting when the database already has as much work as it can take. Nothing was sent to the
+ * database, so the request can safely be sent again after {@link #getRetryAfterSeconds()}
+ */
+public class OverloadedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterSeconds;
+
+    public OverloadedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return how long the client should wait before trying again
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,134 @@
+package com.notes;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A connection borrowed from the {@link ConnectionPool}. Closing it hands the connection back to the pool
+ * instead of closing the underlying JDBC connection so it can be used with try-with-resources.
+ *
+ * Each connection keeps the statements it has prepared so the same query is only prepared once per connection.
+ * The cache is only touched by the thread that borrowed the connection so it needs no locking.
+ */
+public class PooledConnection implements AutoCloseable {
+    private static final Logger LOG = Logger.of(PooledConnection.class);
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final long createdAt;
+    private volatile long lastUsedAt;
+    private volatile boolean broken;
+    private boolean borrowed;
+    private final Map<String, PreparedStatement> statements;
+
+    PooledConnection(ConnectionPool pool, Connection connection, long now, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.createdAt = now;
+        this.lastUsedAt = now;
+
+        // Least recently used statement is closed once the cache is full
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the JDBC connection to run statements on. Do not close it directly
+     */
+    public Connection connection() {
+        return connection;
+    }
+
+    /**
+     * Get a prepared statement for a query, reusing the one prepared earlier on this connection if there is one.
+     * The statement belongs to the connection so callers should not close it, only the result sets it returns
+     * @param sql Query to prepare
+     * @return statement ready to have its parameters set
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps != null && !ps.isClosed()) {
+            pool.recordStatementCacheHit();
+            ps.clearParameters();
+            return ps;
+        }
+        pool.recordStatementCacheMiss();
+        ps = connection.prepareStatement(sql);
+        statements.put(sql, ps);
+        return ps;
+    }
+
+    /**
+     * Flag the connection as unusable so the pool closes it when it is returned
+     */
+    public void markBroken() {
+        broken = true;
+    }
+
+    /**
+     * Return the connection to the pool
+     */
+    @Override
+    public void close() {
+        if (!borrowed) {
+            return;
+        }
+        borrowed = false;
+        pool.release(this);
+    }
+
+    void markBorrowed() {
+        borrowed = true;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    void setLastUsedAt(long lastUsedAt) {
+        this.lastUsedAt = lastUsedAt;
+    }
+
+    /**
+     * Close the cached statements and the underlying JDBC connection
+     */
+    void closePhysical() {
+        for (PreparedStatement ps : statements.values()) {
+            closeStatement(ps);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Error closing database connection", e);
+        }
+    }
+
+    private void closeStatement(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            LOG.warn("Error closing prepared statement", e);
+        }
+    }
+}
@@ -1,95 +1,497 @@
 package com.notes;
 
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import java.util.UUID;
 
-public class PostgresSQLJDBC {
-    Connection c = null;
+public class PostgresSQLJDBC implements NoteStore, MetricsSource {
+    private static final Logger LOG = Logger.of(PostgresSQLJDBC.class);
+    private static final String DEFAULT_DB_URL = "jdbc:postgresql://db:5432/notesdb";
+    // Rows fetched per round trip when streaming a list of notes
+    private static final int FETCH_SIZE = 500;
+    // Bucket limits for how many notes group commit wrote per batch, up to the largest batch size worth configuring
+    private static final long[] BATCH_ROWS_BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    // The fixed set of queries. Each connection prepares them once and reuses them from its statement cache
+    private static final String INSERT_NOTE = "INSERT INTO note (id, content, created_at) VALUES (?, ?, ?)";
+    private static final String SELECT_ALL_NOTES = "SELECT id, content, created_at, version FROM note";
+    private static final String SELECT_NOTE_BY_ID = "SELECT id, content, created_at, version FROM note WHERE id = ?";
+    private static final String DELETE_NOTE = "DELETE FROM note WHERE id = ?";
+    private static final String DELETE_NOTE_IF_VERSION = "DELETE FROM note WHERE id = ? AND version = ?";
+    // Versions come from one sequence for the whole table so a note that is deleted and saved again never gets
+    // back a version it had before
+    private static final String UPDATE_NOTE = "UPDATE note SET content = ?, version = nextval('note_version_seq') WHERE id = ? RETURNING version";
+    private static final String UPDATE_NOTE_IF_VERSION = "UPDATE note SET content = ?, version = nextval('note_version_seq') "
+            + "WHERE id = ? AND version = ? RETURNING version";
+
+    // Paged queries walk the (created_at, id) index. The first page has no cursor, later pages start after one
+    private static final String PAGE_ORDER = " ORDER BY created_at, id LIMIT ?";
+    private static final String AFTER_CURSOR = "(created_at, id) > (?, ?)";
+    private static final String SELECT_NOTES_PAGE = "SELECT id, content, created_at, version FROM note" + PAGE_ORDER;
+    private static final String SELECT_NOTES_PAGE_AFTER = "SELECT id, content, created_at, version FROM note WHERE " + AFTER_CURSOR + PAGE_ORDER;
+    private static final String SELECT_NOTES_BY_DATE_RANGE = "SELECT id, content, created_at, version FROM note WHERE created_at BETWEEN ? AND ?" + PAGE_ORDER;
+    private static final String SELECT_NOTES_BY_DATE_RANGE_AFTER = "SELECT id, content, created_at, version FROM note WHERE created_at BETWEEN ? AND ? AND " + AFTER_CURSOR + PAGE_ORDER;
+
+    // Search finds candidates with the trigram index on content, then ranks them with the best match first.
+    // Ordering by -rank puts the best match first while still allowing a row comparison against the cursor
+    private static final String SEARCH_MATCHES = "SELECT id, content, created_at, version, word_similarity(?, content) AS rank FROM note WHERE content LIKE ? ESCAPE '\\'";
+    private static final String SEARCH_ORDER = " ORDER BY -rank, created_at, id LIMIT ?";
+    private static final String SEARCH_NOTES = "SELECT * FROM (" + SEARCH_MATCHES + ") matches" + SEARCH_ORDER;
+    private static final String SEARCH_NOTES_AFTER = "SELECT * FROM (" + SEARCH_MATCHES + ") matches WHERE (-rank, created_at, id) > (?, ?, ?)" + SEARCH_ORDER;
+    // Carries on a search the in memory index started, in the creation order its pages came in
+    private static final String SEARCH_NOTES_IN_ORDER_AFTER = "SELECT id, content, created_at, version FROM note WHERE content LIKE ? ESCAPE '\\' AND " + AFTER_CURSOR + PAGE_ORDER;
+
+    // Bulk imports are copied into a temp table first so ids that already exist are skipped instead of failing the copy
+    private static final String CREATE_IMPORT_TABLE = "CREATE TEMP TABLE note_import (id UUID, content VARCHAR(1000), created_at TIMESTAMPTZ)";
+    private static final String COPY_IMPORT = "COPY note_import (id, content, created_at) FROM STDIN WITH (FORMAT csv)";
+    private static final String INSERT_IMPORTED = "INSERT INTO note (id, content, created_at) SELECT id, content, created_at FROM note_import ON CONFLICT (id) DO NOTHING";
+    // Rows that match the stored note exactly, which also matches a skipped row that was identical to the existing note
+    private static final String SELECT_IMPORTED = "SELECT n.id, n.content, n.created_at, n.version FROM note_import i JOIN note n "
+            + "ON n.id = i.id AND n.content = i.content AND n.created_at = i.created_at";
+    private static final String DROP_IMPORT_TABLE = "DROP TABLE IF EXISTS note_import";
+    private static final int MAX_IMPORT_ERRORS = 100;
+    private static final int COPY_BUFFER_CHARS = 64 * 1024;
+
+    // Exports write timestamps the way the API takes them so an export can be imported again as is
+    private static final String EXPORT_TIMESTAMP = "to_char(created_at AT TIME ZONE 'UTC', 'YYYY-MM-DD\"T\"HH24:MI:SS.US\"Z\"')";
+    private static final String EXPORT_CSV = "COPY (SELECT id, content, " + EXPORT_TIMESTAMP + " AS timestamp FROM note%s) "
+            + "TO STDOUT WITH (FORMAT csv, HEADER)";
+    // csv with a quote and delimiter that can never appear in the JSON so each object is written out untouched
+    private static final String EXPORT_NDJSON = "COPY (SELECT json_build_object('id', id, 'content', content, 'timestamp', "
+            + EXPORT_TIMESTAMP + ") FROM note%s) TO STDOUT WITH (FORMAT csv, QUOTE e'\\x01', DELIMITER e'\\x02')";
+
+    // 0 when the replica has replayed everything it received, or is not a replica at all
+    private static final String REPLICA_LAG = "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() "
+            + "THEN 0 ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    // Run on startup so a database created before an index was added still gets it. Same as postgresql/init.sql
+    private static final String[] SCHEMA = {
+            "CREATE SEQUENCE IF NOT EXISTS note_version_seq",
+            "CREATE TABLE IF NOT EXISTS note (id UUID PRIMARY KEY, content VARCHAR(1000) NOT NULL, created_at TIMESTAMPTZ, "
+                    + "version BIGINT NOT NULL DEFAULT nextval('note_version_seq'))",
+            // Older tables kept created_at without a zone, written in the JVM's zone. The driver starts every session
+            // in that zone so the conversion reads the old rows as the instants they were
+            "DO $$ BEGIN IF (SELECT data_type FROM information_schema.columns WHERE table_schema = current_schema() "
+                    + "AND table_name = 'note' AND column_name = 'created_at') = 'timestamp without time zone' THEN "
+                    + "ALTER TABLE note ALTER COLUMN created_at TYPE TIMESTAMPTZ; END IF; END $$",
+            "ALTER TABLE note ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT nextval('note_version_seq')",
+            "CREATE INDEX IF NOT EXISTS note_created_at_id_idx ON note (created_at, id)",
+            "CREATE EXTENSION IF NOT EXISTS pg_trgm",
+            "CREATE INDEX IF NOT EXISTS note_content_trgm_idx ON note USING gin (content gin_trgm_ops)"
+    };
+
+    // Pool of the primary, which takes every write
+    ConnectionPool pool = null;
+    // Sends reads to replicas in rotation and writes to the primary. Only the primary without DB_REPLICA_URLS
+    private ReplicaRouter<ConnectionPool> router;
+    // Shares one commit between inserts that arrive together, null when GROUP_COMMIT_MAX_BATCH is 0
+    private GroupCommitWriter groupCommitWriter;
+    // Cap how many reads and writes are at the database at once so a slow database sheds load instead of queueing it.
+    // Bulk import and export are left out, a single one can run for minutes and would look like the database slowing down
+    private ConcurrencyLimiter readLimiter;
+    private ConcurrencyLimiter writeLimiter;
+
+    // Single note reads are served from here when possible. Every write below keeps it up to date
+    private final NoteCache noteCache = new NoteCache(
+            Config.getInt("NOTE_CACHE_CAPACITY", 10_000),
+            Config.getLong("NOTE_CACHE_NEGATIVE_TTL_MS", 5_000));
+
+    // Told about every successful write, like the search index
+    private final NoteChangeListeners listeners = new NoteChangeListeners();
+
+    // Cache misses for the same note that happen together share one query
+    private final SingleFlight<UUID, Note> noteFlights = new SingleFlight<>();
+
+    // Search and date range pages are served from here while nothing has been written since they were read
+    private final NotePageCache pageCache = new NotePageCache(
+            Config.getInt("PAGE_CACHE_CAPACITY", 1024),
+            Config.getLong("PAGE_CACHE_TTL_MS", 1_000));
+
+    // Time and rows of every database call by method, for /metrics
+    private final QueryMetrics queryMetrics = new QueryMetrics();
 
     /**
-     * Setup connection to postgres server running on port 5432
+     * Setup connection pool to postgres server running on port 5432
      */
     public void setupDb() {
         boolean serverStarted = false;
-        
+
+        Properties properties = new Properties();
+        properties.setProperty("user", "notesuser");
+        properties.setProperty("password", "notespass");
+        // Use a named server side prepared statement from the first execution instead of the fifth.
+        // The statements are cached per connection so the server only parses each query once
+        properties.setProperty("prepareThreshold", "1");
+        // Send a batch of inserts as multi row inserts instead of one statement per row
+        properties.setProperty("reWriteBatchedInserts", "true");
+        int poolSize = Config.getInt("DB_POOL_MAX_SIZE", 10);
+        pool = createPool(Config.getString("DB_URL", DEFAULT_DB_URL), properties, poolSize);
+
         // Run five times with 3 seconds between to allow server to start
         for(int i =0; i<5; i++) {
+            // Borrow one connection to make sure the database is reachable. It stays in the pool for later
             try {
-                Class.forName("org.postgresql.Driver");
-                c = DriverManager.getConnection("jdbc:postgresql://db:5432/notesdb", "notesuser", "notespass");
+                pool.borrow().close();
                 serverStarted = true;
                 break;
             } catch (Exception e) {
-                System.out.println("Waiting for database connection");
+                LOG.info("Waiting for database connection", "attempt", i + 1);
             }
 
             try{
                 Thread.sleep(3000);
             } catch (InterruptedException e) {
-                System.out.println("Thread was interrupted while sleeping.");
+                LOG.warn("Interrupted while waiting for database connection");
             }
         }
 
         if(serverStarted) {
-            System.out.println("Opened database successfully");
+            LOG.info("Opened database successfully");
+            ensureSchema();
+            int maxBatch = Config.getInt("GROUP_COMMIT_MAX_BATCH", 256);
+            if (maxBatch > 0) {
+                groupCommitWriter = new GroupCommitWriter(pool, INSERT_NOTE, maxBatch,
+                        Config.getLong("GROUP_COMMIT_LINGER_MS", 2),
+                        Config.getInt("GROUP_COMMIT_QUEUE_SIZE", maxBatch * 16));
+            }
+            // Reads can go past the pool size while the cache and quick queries keep round trips short. Writes batched
+            // by group commit share connections, so as many can be waiting on a batch as fit in one
+            int queueSize = Config.getInt("DB_LIMIT_QUEUE_SIZE", 100);
+            long queueTimeout = Config.getLong("DB_LIMIT_QUEUE_TIMEOUT_MS", 100);
+            int retryAfter = Config.getInt("DB_LIMIT_RETRY_AFTER_S", 1);
+            readLimiter = new ConcurrencyLimiter("read", poolSize,
+                    Config.getInt("DB_READ_LIMIT_MAX", poolSize * 4), queueSize, queueTimeout, retryAfter);
+            writeLimiter = new ConcurrencyLimiter("write", poolSize,
+                    Config.getInt("DB_WRITE_LIMIT_MAX", Math.max(poolSize, maxBatch)), queueSize, queueTimeout, retryAfter);
+            router = createRouter(properties, poolSize);
         } else {
-            System.err.println("Failed to open database connection");
+            LOG.error("Failed to open database connection");
             System.exit(1);
         }
     }
 
+    /**
+     * Open a pool of connections to one database
+     * @param url JDBC URL of the database
+     * @param properties Connection properties
+     * @param poolSize Most connections the pool will open
+     * @return the pool, connections are only opened once they are borrowed
+     */
+    private static ConnectionPool createPool(String url, Properties properties, int poolSize) {
+        return new ConnectionPool(url, properties,
+                poolSize,
+                Config.getLong("DB_POOL_ACQUIRE_TIMEOUT_MS", 5_000),
+                Config.getLong("DB_POOL_IDLE_TIMEOUT_MS", 600_000),
+                Config.getLong("DB_POOL_MAX_LIFETIME_MS", 1_800_000),
+                Config.getInt("DB_POOL_VALIDATION_TIMEOUT_S", 2),
+                Config.getInt("DB_STATEMENT_CACHE_SIZE", 32));
+    }
+
+    /**
+     * Set up routing between the primary and the replicas in DB_REPLICA_URLS, a comma separated list of JDBC URLs.
+     * Replicas are not waited for, one that can not be reached stays out of rotation until it can
+     * @return router that sends everything to the primary when there are no replicas
+     */
+    private ReplicaRouter<ConnectionPool> createRouter(Properties properties, int poolSize) {
+        List<ConnectionPool> replicas = new ArrayList<>();
+        for (String url : Config.getString("DB_REPLICA_URLS", "").split(",")) {
+            if (!url.isBlank()) {
+                replicas.add(createPool(url.trim(), properties, poolSize));
+            }
+        }
+        long maxLag = Config.getLong("DB_REPLICA_MAX_LAG_MS", 1_000);
+        long checkInterval = Config.getLong("DB_REPLICA_CHECK_INTERVAL_MS", 1_000);
+        // By default a client reads from the primary until any replica in rotation must have replayed its write
+        long readYourWrites = Config.getLong("DB_READ_YOUR_WRITES_MS", maxLag + checkInterval);
+        ReplicaRouter<ConnectionPool> replicaRouter = new ReplicaRouter<>(pool, replicas, PostgresSQLJDBC::replicaLagMillis,
+                maxLag, readYourWrites);
+        replicaRouter.start(checkInterval);
+        if (replicaRouter.hasReplicas()) {
+            LOG.info("Sending reads to replicas", "replicas", replicas.size(), "maxLagMillis", maxLag, "readYourWritesMillis", readYourWrites);
+        }
+        return replicaRouter;
+    }
+
+    /**
+     * @return how far behind the primary a replica is in milliseconds
+     * @throws SQLException if the replica could not be asked
+     */
+    private static long replicaLagMillis(ConnectionPool replica) throws SQLException {
+        try (PooledConnection pooled = replica.borrow()) {
+            PreparedStatement ps = pooled.prepare(REPLICA_LAG);
+            ps.setQueryTimeout(Config.getInt("DB_POOL_VALIDATION_TIMEOUT_S", 2));
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return (long) rs.getDouble(1);
+            }
+        }
+    }
+
+    /**
+     * Once every replica in rotation has had time to replay a write, drop what reads of a replica may have cached from
+     * before it and move the generation on again. Clients that are not pinned can read a lagging replica right after
+     * the write under the generation it moved to, so without the second move that stale list would keep its ETag and
+     * its place in the page cache until some other write
+     * @param invalidate Drops the cached notes the write touched
+     */
+    private void afterReplicasReplay(Runnable invalidate) {
+        router.afterReplicaLag(() -> {
+            invalidate.run();
+            listeners.changed();
+        });
+    }
+
+    /**
+     * Create the table, columns, indexes and extensions the queries rely on if they do not exist yet.
+     * init.sql only runs when the database volume is first created so this covers older databases
+     */
+    private void ensureSchema() {
+        try (PooledConnection pooled = pool.borrow(); Statement statement = pooled.connection().createStatement()) {
+            for (String ddl : SCHEMA) {
+                statement.execute(ddl);
+            }
+        } catch (SQLException e) {
+            // The version column comes first so only the indexes are missing when the extension is not allowed,
+            // and the app still works without those, just slower
+            LOG.warn("Could not update database schema", e);
+        }
+    }
+
+    /**
+     * @return pool that every query borrows its connection from, used to report pool metrics
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return writer that batches inserts, used to report batch metrics. Null when group commit is turned off
+     */
+    public GroupCommitWriter getGroupCommitWriter() {
+        return groupCommitWriter;
+    }
+
+    /**
+     * @return limiter in front of every read but cache hits and exports, used to report limit metrics
+     */
+    public ConcurrencyLimiter getReadLimiter() {
+        return readLimiter;
+    }
+
+    /**
+     * @return limiter in front of every write but bulk imports, used to report limit metrics
+     */
+    public ConcurrencyLimiter getWriteLimiter() {
+        return writeLimiter;
+    }
+
+    /**
+     * @return cache in front of {@link #getNoteById(UUID)}, used to report cache metrics
+     */
+    public NoteCache getNoteCache() {
+        return noteCache;
+    }
+
+    /**
+     * @return database call timings by method, used to report query metrics
+     */
+    public QueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    /**
+     * Write query timings along with the pool, cache and group commit numbers
+     * @param writer Where to write them
+     */
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        queryMetrics.writeMetrics(writer);
+
+        writer.gauge("notes_db_pool_connections", "Pooled database connections by state");
+        writer.sample("notes_db_pool_connections", pool.getActiveConnections(), "state", "active");
+        writer.sample("notes_db_pool_connections", pool.getIdleConnections(), "state", "idle");
+        writer.gauge("notes_db_pool_max_connections", "Most connections the pool will open");
+        writer.sample("notes_db_pool_max_connections", pool.getMaxSize());
+        writer.gauge("notes_db_pool_waiting_threads", "Threads waiting for a connection");
+        writer.sample("notes_db_pool_waiting_threads", pool.getThreadsAwaitingConnection());
+        writer.counter("notes_db_pool_acquires_total", "Connections handed out");
+        writer.sample("notes_db_pool_acquires_total", pool.getAcquireCount());
+        writer.counter("notes_db_pool_acquire_wait_seconds_total", "Time spent waiting for a connection");
+        writer.sample("notes_db_pool_acquire_wait_seconds_total", pool.getTotalAcquireWaitNanos() / 1e9);
+        writer.gauge("notes_db_pool_acquire_wait_max_seconds", "Longest wait for a connection since the server started");
+        writer.sample("notes_db_pool_acquire_wait_max_seconds", pool.getMaxAcquireWaitNanos() / 1e9);
+        writer.counter("notes_db_pool_acquire_timeouts_total", "Requests that gave up waiting for a connection");
+        writer.sample("notes_db_pool_acquire_timeouts_total", pool.getAcquireTimeouts());
+        writer.counter("notes_db_pool_statement_cache_total", "Prepared statement cache lookups by result");
+        writer.sample("notes_db_pool_statement_cache_total", pool.getStatementCacheHits(), "result", "hit");
+        writer.sample("notes_db_pool_statement_cache_total", pool.getStatementCacheMisses(), "result", "miss");
+
+        writer.counter("notes_db_reads_total", "Reads sent to the database by where they went");
+        writer.sample("notes_db_reads_total", router.getPrimaryReads(), "target", "primary");
+        for (int i = 0; i < router.getReplicaCount(); i++) {
+            writer.sample("notes_db_reads_total", router.getReplicaReads(i), "target", "replica", "replica", Integer.toString(i));
+        }
+        if (router.hasReplicas()) {
+            writer.gauge("notes_db_replica_lag_seconds", "Replication lag at the last check, -1 if the replica could not be reached");
+            for (int i = 0; i < router.getReplicaCount(); i++) {
+                long lag = router.getReplicaLagMillis(i);
+                writer.sample("notes_db_replica_lag_seconds", lag < 0 ? -1 : lag / 1e3, "replica", Integer.toString(i));
+            }
+            writer.gauge("notes_db_replica_in_rotation", "1 if the replica takes reads");
+            for (int i = 0; i < router.getReplicaCount(); i++) {
+                writer.sample("notes_db_replica_in_rotation", router.isInRotation(i) ? 1 : 0, "replica", Integer.toString(i));
+            }
+            writer.gauge("notes_db_pinned_clients", "Clients reading from the primary because they wrote recently");
+            writer.sample("notes_db_pinned_clients", router.getPinnedClients());
+        }
+
+        writer.gauge("notes_db_limit", "Calls allowed at the database at once by kind");
+        writer.sample("notes_db_limit", readLimiter.getLimit(), "kind", "read");
+        writer.sample("notes_db_limit", writeLimiter.getLimit(), "kind", "write");
+        writer.gauge("notes_db_limit_in_flight", "Calls at the database by kind");
+        writer.sample("notes_db_limit_in_flight", readLimiter.getInFlight(), "kind", "read");
+        writer.sample("notes_db_limit_in_flight", writeLimiter.getInFlight(), "kind", "write");
+        writer.gauge("notes_db_limit_waiting", "Calls waiting for a slot by kind");
+        writer.sample("notes_db_limit_waiting", readLimiter.getWaiting(), "kind", "read");
+        writer.sample("notes_db_limit_waiting", writeLimiter.getWaiting(), "kind", "write");
+        writer.gauge("notes_db_limit_rtt_seconds", "Usual round trip time the limit is worked out against by kind");
+        writer.sample("notes_db_limit_rtt_seconds", readLimiter.getRttNanos() / 1e9, "kind", "read");
+        writer.sample("notes_db_limit_rtt_seconds", writeLimiter.getRttNanos() / 1e9, "kind", "write");
+        writer.counter("notes_db_limit_queued_total", "Calls that had to wait for a slot by kind");
+        writer.sample("notes_db_limit_queued_total", readLimiter.getQueued(), "kind", "read");
+        writer.sample("notes_db_limit_queued_total", writeLimiter.getQueued(), "kind", "write");
+        writer.counter("notes_db_limit_rejected_total", "Calls turned away because the database was busy by kind");
+        writer.sample("notes_db_limit_rejected_total", readLimiter.getRejected(), "kind", "read");
+        writer.sample("notes_db_limit_rejected_total", writeLimiter.getRejected(), "kind", "write");
+
+        writer.counter("notes_db_shared_reads_total", "Reads that waited for an identical query already running instead of running their own");
+        writer.sample("notes_db_shared_reads_total", noteFlights.getShared(), "method", "getNoteById");
+        writer.sample("notes_db_shared_reads_total", pageCache.getShared(), "method", "page");
+        writer.counter("notes_page_cache_lookups_total", "Search and date range page cache lookups by result");
+        writer.sample("notes_page_cache_lookups_total", pageCache.getHits(), "result", "hit");
+        writer.sample("notes_page_cache_lookups_total", pageCache.getMisses(), "result", "miss");
+        writer.gauge("notes_page_cache_size", "Pages in the cache");
+        writer.sample("notes_page_cache_size", pageCache.size());
+
+        writer.counter("notes_cache_lookups_total", "Note cache lookups by result");
+        writer.sample("notes_cache_lookups_total", noteCache.getHits(), "result", "hit");
+        writer.sample("notes_cache_lookups_total", noteCache.getNegativeHits(), "result", "negative_hit");
+        writer.sample("notes_cache_lookups_total", noteCache.getMisses(), "result", "miss");
+        writer.counter("notes_cache_evictions_total", "Notes evicted from the cache");
+        writer.sample("notes_cache_evictions_total", noteCache.getEvictions());
+        writer.gauge("notes_cache_size", "Notes in the cache");
+        writer.sample("notes_cache_size", noteCache.size());
+
+        if (groupCommitWriter != null) {
+            writer.counter("notes_group_commit_batches_total", "Insert batches committed");
+            writer.sample("notes_group_commit_batches_total", groupCommitWriter.getBatches());
+            writer.counter("notes_group_commit_rows_total", "Notes inserted through group commit");
+            writer.sample("notes_group_commit_rows_total", groupCommitWriter.getRowsWritten());
+            writer.histogram("notes_group_commit_batch_rows", "Notes written per committed batch");
+            writer.valueHistogram("notes_group_commit_batch_rows", groupCommitWriter.getBatchRows(), BATCH_ROWS_BUCKETS);
+            writer.counter("notes_group_commit_failed_batches_total", "Batches that failed and were retried one note at a time");
+            writer.sample("notes_group_commit_failed_batches_total", groupCommitWriter.getFailedBatches());
+            writer.counter("notes_group_commit_seconds_total", "Time spent writing and committing batches");
+            writer.sample("notes_group_commit_seconds_total", groupCommitWriter.getTotalCommitNanos() / 1e9);
+            writer.gauge("notes_group_commit_queued", "Notes waiting to be written");
+            writer.sample("notes_group_commit_queued", groupCommitWriter.getQueuedInserts());
+        }
+    }
+
+    /**
+     * Register a listener to be told about every note that is saved, updated or deleted
+     * @param listener Listener to add
+     */
+    @Override
+    public void addChangeListener(NoteChangeListener listener) {
+        listeners.add(listener);
+    }
+
     /**
      * Persists any notes passed in into database
      * @param note Note to be persisted
      */
+    @Override
     public void persistNote(Note note) {
-        String insert = "INSERT INTO note (id, content, created_at) VALUES (?, ?, ?)";
+        ConcurrencyLimiter.Permit permit = writeLimiter.acquire();
+        long start = System.nanoTime();
+        int rowsAffected = 0;
         try {
-            // Setup different elements on sql statement to insert into databasew
-            PreparedStatement ps = c.prepareStatement(insert);
-            ps.setObject(1, note.getId());
-            ps.setString(2, note.getContent());
-            ps.setObject(3, Timestamp.from(note.getCreatedAt()));
-            int rowsAffected = ps.executeUpdate();
+            // Batched with other inserts happening at the same time unless group commit is turned off. Group commit
+            // writes to the primary as well, asking the router for it pins the client there for its next reads
+            ConnectionPool primary = router.forWrite();
+            rowsAffected = (groupCommitWriter != null) ? groupCommitWriter.insert(note) : insertNote(primary, note);
 
             // If any rows are effected that means that the note already exists
             if (rowsAffected > 0) {
-                System.out.println("A new user was persisted successfully!");
+                // Clears a cached "not found" for the id
+                noteCache.invalidate(note.getId());
+                listeners.saved(note);
+                afterReplicasReplay(() -> noteCache.invalidate(note.getId()));
             }
         } catch (SQLException e) {
-            System.err.println("Error inserting note into database.");
+            LOG.error("Error inserting note into database", e, "id", note.getId());
+            queryMetrics.record("persistNote", start, 0, true);
             throw new RuntimeException(e);
+        } finally {
+            permit.close();
         }
+        queryMetrics.record("persistNote", start, rowsAffected, false);
+    }
+
+    /**
+     * Insert a single note in its own transaction
+     * @param primary Pool of the primary database
+     * @param note Note to be inserted
+     * @return number of rows inserted
+     */
+    private int insertNote(ConnectionPool primary, Note note) throws SQLException {
+        try (PooledConnection pooled = primary.borrow()) {
+            PreparedStatement ps = pooled.prepare(INSERT_NOTE);
+            bindNote(ps, note);
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Setup different elements on the insert statement
+     * @param ps Statement prepared from the insert
+     * @param note Note to be inserted
+     */
+    static void bindNote(PreparedStatement ps, Note note) throws SQLException {
+        ps.setObject(1, note.getId());
+        ps.setString(2, note.getContent());
+        ps.setObject(3, Timestamp.from(note.getCreatedAt()));
     }
 
     /**
      * Get all existing notes in the database
      * @return all notes
      */
+    @Override
     public List<Note> getAllNotes() {
-        String select = "SELECT * FROM note";
-        // List to hold all notes
-        List<Note> notes = new ArrayList<>();
-        try {
-            PreparedStatement ps = c.prepareStatement(select);
-            ResultSet rs = ps.executeQuery();
-
-            // Walk through all the elements in the notes table
-            while (rs.next()) {
-                UUID id = rs.getObject("id", UUID.class);
-                String content = rs.getString("content");
-                Instant createdAt = rs.getObject("created_at", Timestamp.class).toInstant();
-                Note note = new Note(id, content, createdAt);
-                notes.add(note);
-            }
-
+        ConcurrencyLimiter.Permit permit = readLimiter.acquire();
+        long start = System.nanoTime();
+        try (PooledConnection pooled = router.forRead().borrow()) {
+            PreparedStatement ps = pooled.prepare(SELECT_ALL_NOTES);
+            List<Note> notes = readNotes(ps);
+            queryMetrics.record("getAllNotes", start, notes.size(), false);
             return notes;
         } catch (SQLException e) {
-            System.err.println("Error retrieving notes from database.");
+            LOG.error("Error retrieving notes from database", e);
+            queryMetrics.record("getAllNotes", start, 0, true);
             throw new RuntimeException(e);
+        } finally {
+            permit.close();
         }
     }
 
@@ -98,100 +500,599 @@ public class PostgresSQLJDBC {
      * @param id UUID of note
      * @return Note with matching ID. If no note found return null
      */
+    @Override
     public Note getNoteById(UUID id) {
-        String select = "SELECT * FROM note WHERE id = ?";
-        Note note = null;
+        if (router.isPinned()) {
+            // The client wrote a moment ago, the cache may hold what a replica had from before the write
+            return loadNote(id, noteCache.stamp(id));
+        }
+        Note cached = noteCache.get(id);
+        if (cached != null) {
+            return cached == NoteCache.NOT_FOUND ? null : cached;
+        }
 
-        try {
-            PreparedStatement ps = c.prepareStatement(select);
+        // Reads of the same note that miss the cache together share one query, a note everyone is reading costs one read
+        long stamp = noteCache.stamp(id);
+        return noteFlights.run(id, stamp, () -> loadNote(id, stamp));
+    }
+
+    /**
+     * Read a note from the database and cache what was found
+     * @param stamp Value of {@link NoteCache#stamp(UUID)} from before the read
+     */
+    private Note loadNote(UUID id, long stamp) {
+        Note note = null;
+        ConcurrencyLimiter.Permit permit = readLimiter.acquire();
+        long start = System.nanoTime();
+        try (PooledConnection pooled = router.forRead().borrow()) {
+            PreparedStatement ps = pooled.prepare(SELECT_NOTE_BY_ID);
             ps.setObject(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                note = new Note(rs.getObject("id", UUID.class), rs.getString("content"), rs.getObject("created_at", Timestamp.class).toInstant());
-            } else {
-                // Not an error but should still print to console
-                System.out.println("Note with id " + id + " not found!");
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    note = toNote(rs);
+                } else {
+                    LOG.debug("Note not found", "id", id);
+                }
             }
-            System .out.println("Note with id " + id + " found!");
+            noteCache.putLoaded(id, note, stamp);
+            queryMetrics.record("getNoteById", start, note == null ? 0 : 1, false);
             return note;
         } catch (SQLException e) {
-            System.err.println("Error retrieving notes from database.");
+            LOG.error("Error retrieving notes from database", e);
+            queryMetrics.record("getNoteById", start, 0, true);
             throw new RuntimeException(e);
+        } finally {
+            permit.close();
         }
     }
 
+    /**
+     * Get the version of a note. Notes in the cache are answered without going to the database, any other note is
+     * read in full so the next check for it is answered from the cache
+     * @param id UUID of note
+     * @return version of the note or 0 if there is no such note
+     */
+    @Override
+    public long getNoteVersion(UUID id) {
+        Note note = getNoteById(id);
+        return note == null ? 0 : note.getVersion();
+    }
+
+    /**
+     * @return generation of the notes table. Only writes made through this instance move it on, the same as the cache
+     */
+    @Override
+    public long getGeneration() {
+        return listeners.getGeneration();
+    }
+
     /**
      * Delete a note from the database with a specific UUID
      * @param id UUID of note to be deleted
+     * @param expectedVersion Version the note has to be at or {@link #ANY_VERSION}
+     * @return true if a note was deleted
      */
-    public void deleteNote(UUID id) {
-        String delete = "DELETE FROM note WHERE id = ?";
-        try {
-            PreparedStatement ps = c.prepareStatement(delete);
+    @Override
+    public boolean deleteNote(UUID id, long expectedVersion) {
+        ConcurrencyLimiter.Permit permit = writeLimiter.acquire();
+        long start = System.nanoTime();
+        try (PooledConnection pooled = router.forWrite().borrow()) {
+            PreparedStatement ps = pooled.prepare(expectedVersion == ANY_VERSION ? DELETE_NOTE : DELETE_NOTE_IF_VERSION);
             ps.setObject(1, id);
-            ps.executeUpdate();
-            System.out.println("Note with id " + id + " deleted!");
+            if (expectedVersion != ANY_VERSION) {
+                ps.setLong(2, expectedVersion);
+            }
+            int rowsAffected = ps.executeUpdate();
+            noteCache.invalidate(id);
+            if (rowsAffected > 0) {
+                listeners.deleted(id);
+                afterReplicasReplay(() -> noteCache.invalidate(id));
+            }
+            queryMetrics.record("deleteNote", start, rowsAffected, false);
+            return rowsAffected > 0;
         } catch (SQLException e) {
-            System.err.println("Error retrieving notes from database.");
+            LOG.error("Error deleting note from database", e, "id", id);
+            queryMetrics.record("deleteNote", start, 0, true);
             throw new RuntimeException(e);
+        } finally {
+            permit.close();
         }
     }
 
-    public void updateNote(UUID id, String newContent) {
-        String update = "UPDATE note SET content = ? WHERE id = ?";
-        try {
-            PreparedStatement ps = c.prepareStatement(update);
+    /**
+     * Replace the content of a note and give it a new version
+     * @param id UUID of note to be updated
+     * @param newContent Content the note should have
+     * @param expectedVersion Version the note has to be at or {@link #ANY_VERSION}
+     * @return the new version or 0 if no note was updated
+     */
+    @Override
+    public long updateNote(UUID id, String newContent, long expectedVersion) {
+        ConcurrencyLimiter.Permit permit = writeLimiter.acquire();
+        long start = System.nanoTime();
+        try (PooledConnection pooled = router.forWrite().borrow()) {
+            PreparedStatement ps = pooled.prepare(expectedVersion == ANY_VERSION ? UPDATE_NOTE : UPDATE_NOTE_IF_VERSION);
             ps.setString(1, newContent);
             ps.setObject(2, id);
-            int rowsAffected = ps.executeUpdate();
-            if (rowsAffected == 0) {
-                System.out.println("No note found with id " + id);
+            if (expectedVersion != ANY_VERSION) {
+                ps.setLong(3, expectedVersion);
             }
+            long version = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    version = rs.getLong(1);
+                }
+            }
+            noteCache.invalidate(id);
+            if (version != 0) {
+                listeners.updated(id, newContent);
+                afterReplicasReplay(() -> noteCache.invalidate(id));
+            } else {
+                LOG.debug("No note to update", "id", id);
+            }
+            queryMetrics.record("updateNote", start, version == 0 ? 0 : 1, false);
+            return version;
         } catch (SQLException e) {
-            System.err.println("Error updating note.");
+            LOG.error("Error updating note", e, "id", id);
+            queryMetrics.record("updateNote", start, 0, true);
             throw new RuntimeException(e);
+        } finally {
+            permit.close();
         }
     }
-    public List<Note> searchNotes(String keyword) {
-        String select = "SELECT * FROM note WHERE content LIKE ?";
-        List<Note> notes = new ArrayList<>();
+
+    /**
+     * Stream one page of notes ordered by creation time
+     * @param after Cursor from the previous page or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note as it is read
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    @Override
+    public NoteCursor streamNotes(NoteCursor after, int limit, NoteSink sink) throws IOException {
+        PageRows rows = new PageRows("streamNotes", readLimiter.acquire());
         try {
-            PreparedStatement ps = c.prepareStatement(select);
-            ps.setString(1, "%" + keyword + "%");
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                System.out.println("Test");
-                UUID id = rs.getObject("id", UUID.class);
-                String content = rs.getString("content");
-                Instant createdAt = rs.getObject("created_at", Timestamp.class).toInstant();
-                notes.add(new Note(id, content, createdAt));
+            try (PooledConnection pooled = router.forRead().borrow()) {
+                PreparedStatement ps = pooled.prepare(after == null ? SELECT_NOTES_PAGE : SELECT_NOTES_PAGE_AFTER);
+                int index = setCursor(ps, 1, after);
+                ps.setInt(index, limit + 1);
+                readPage(pooled, ps, limit, false, rows, sink);
             }
-            return notes;
+            return rows.send(sink);
         } catch (SQLException e) {
-            System.err.println("Error searching notes.");
+            LOG.error("Error retrieving notes from database", e);
             throw new RuntimeException(e);
+        } finally {
+            rows.record();
         }
     }
 
-    public List<Note> getNotesByDateRange(Instant dateFrom, Instant dateTo) {
-        String select = "SELECT * FROM note WHERE created_at BETWEEN ? AND ?";
-        List<Note> notes = new ArrayList<>();
+    /**
+     * Stream one page of notes that contain a keyword, best matches first. Notes where the keyword lines up with
+     * whole words rank above notes where it only appears inside a longer word. A cursor without a rank comes from a page
+     * the search index answered before it turned itself off, and the rest of those pages carry on in creation order
+     * @param keyword Text the content has to contain. % and _ have no special meaning
+     * @param after Cursor from the previous page or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note as it is read
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    @Override
+    public NoteCursor searchNotes(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        if (router.isPinned()) {
+            return querySearch(keyword, after, limit, sink);
+        }
+        return pageCache.stream(NotePageCache.Key.search(keyword, after, limit), listeners.getGeneration(),
+                pageSink -> querySearch(keyword, after, limit, pageSink), sink);
+    }
+
+    private NoteCursor querySearch(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        PageRows rows = new PageRows("searchNotes", readLimiter.acquire());
         try {
-            PreparedStatement ps = c.prepareStatement(select);
-            ps.setObject(1, Timestamp.from(dateFrom));
-            ps.setObject(2, Timestamp.from(dateTo));
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                UUID id = rs.getObject("id", UUID.class);
-                String content = rs.getString("content");
-                Instant createdAt = rs.getObject("created_at", Timestamp.class).toInstant();
-                notes.add(new Note(id, content, createdAt));
+            try (PooledConnection pooled = router.forRead().borrow()) {
+                if (after != null && after.getRank() == null) {
+                    // The cursor came from the search index, which has since turned itself off
+                    PreparedStatement ps = pooled.prepare(SEARCH_NOTES_IN_ORDER_AFTER);
+                    ps.setString(1, "%" + escapeLike(keyword) + "%");
+                    ps.setInt(setCursor(ps, 2, after), limit + 1);
+                    readPage(pooled, ps, limit, false, rows, sink);
+                } else {
+                    PreparedStatement ps = pooled.prepare(after == null ? SEARCH_NOTES : SEARCH_NOTES_AFTER);
+                    ps.setString(1, keyword);
+                    ps.setString(2, "%" + escapeLike(keyword) + "%");
+                    int index = 3;
+                    if (after != null) {
+                        ps.setFloat(index++, -after.getRank());
+                        index = setCursor(ps, index, after);
+                    }
+                    ps.setInt(index, limit + 1);
+                    readPage(pooled, ps, limit, true, rows, sink);
+                }
             }
-            return notes;
+            return rows.send(sink);
         } catch (SQLException e) {
-            System.err.println("Error filtering notes by date.");
+            LOG.error("Error searching notes", e);
             throw new RuntimeException(e);
+        } finally {
+            rows.record();
         }
     }
-}
 
+    /**
+     * Stream one page of notes created between two times
+     * @param dateFrom Start of the range, inclusive
+     * @param dateTo End of the range, inclusive
+     * @param after Cursor from the previous page or null for the first page
+     * @param limit Max number of notes on the page
+     * @param sink Receives each note as it is read
+     * @return cursor for the next page or null if this is the last page
+     * @throws IOException if the sink fails to write a note
+     */
+    @Override
+    public NoteCursor getNotesByDateRange(Instant dateFrom, Instant dateTo, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        if (router.isPinned()) {
+            return queryDateRange(dateFrom, dateTo, after, limit, sink);
+        }
+        return pageCache.stream(NotePageCache.Key.range(dateFrom, dateTo, after, limit), listeners.getGeneration(),
+                pageSink -> queryDateRange(dateFrom, dateTo, after, limit, pageSink), sink);
+    }
+
+    private NoteCursor queryDateRange(Instant dateFrom, Instant dateTo, NoteCursor after, int limit, NoteSink sink) throws IOException {
+        PageRows rows = new PageRows("getNotesByDateRange", readLimiter.acquire());
+        try {
+            try (PooledConnection pooled = router.forRead().borrow()) {
+                PreparedStatement ps = pooled.prepare(after == null ? SELECT_NOTES_BY_DATE_RANGE : SELECT_NOTES_BY_DATE_RANGE_AFTER);
+                ps.setObject(1, Timestamp.from(dateFrom));
+                ps.setObject(2, Timestamp.from(dateTo));
+                int index = setCursor(ps, 3, after);
+                ps.setInt(index, limit + 1);
+                readPage(pooled, ps, limit, false, rows, sink);
+            }
+            return rows.send(sink);
+        } catch (SQLException e) {
+            LOG.error("Error filtering notes by date", e);
+            throw new RuntimeException(e);
+        } finally {
+            rows.record();
+        }
+    }
+
+    /**
+     * Load many notes at once with COPY. Rows are sent to the database as they are read from the body so the
+     * import never holds the whole body in memory. Notes whose id already exists are skipped
+     * @param reader Rows of the import
+     * @return how many rows were imported, skipped and rejected
+     * @throws IOException if the body could not be read
+     */
+    @Override
+    public BulkImportResult importNotes(BulkNoteReader reader) throws IOException {
+        BulkImportResult result = new BulkImportResult(MAX_IMPORT_ERRORS);
+        long start = System.nanoTime();
+        try (PooledConnection pooled = router.forWrite().borrow()) {
+            Connection connection = pooled.connection();
+            try (Statement statement = connection.createStatement()) {
+                connection.setAutoCommit(false);
+                statement.execute(CREATE_IMPORT_TABLE);
+                long copied = copyRows(connection, reader, result);
+                long imported = statement.executeLargeUpdate(INSERT_IMPORTED);
+                connection.commit();
+                result.setImported(imported);
+                result.setDuplicates(copied - imported);
+
+                if (imported > 0) {
+                    // Any number of ids may have had a cached "not found"
+                    noteCache.invalidateAll();
+                    if (!listeners.isEmpty()) {
+                        notifyImported(pooled);
+                    }
+                    listeners.changed();
+                    afterReplicasReplay(noteCache::invalidateAll);
+                }
+            } finally {
+                dropImportTable(pooled);
+            }
+        } catch (SQLException e) {
+            LOG.error("Error importing notes into database", e);
+            queryMetrics.record("importNotes", start, 0, true);
+            throw new RuntimeException(e);
+        }
+        queryMetrics.record("importNotes", start, result.getImported(), false);
+        LOG.info("Imported notes", "imported", result.getImported(), "duplicates", result.getDuplicates(), "rejected", result.getRejected());
+        return result;
+    }
+
+    /**
+     * Write every note, or every note created in a range, straight from COPY into a stream. Rows are passed on as
+     * the database sends them so the export never holds more than a buffer of it in memory
+     * @param format CSV with a header row or NDJSON
+     * @param dateFrom Start of the range, inclusive, or null for no start
+     * @param dateTo End of the range, inclusive, or null for no end
+     * @param out Where the rows are written
+     * @return number of notes written
+     * @throws IOException if writing to the stream failed
+     */
+    @Override
+    public long exportNotes(BulkNoteReader.Format format, Instant dateFrom, Instant dateTo, OutputStream out) throws IOException {
+        // COPY can not take parameters. The range comes from parsed Instants so the literals are always UTC timestamps
+        StringBuilder where = new StringBuilder();
+        if (dateFrom != null) {
+            where.append(" WHERE created_at >= '").append(dateFrom).append("'");
+        }
+        if (dateTo != null) {
+            where.append(dateFrom == null ? " WHERE" : " AND").append(" created_at <= '").append(dateTo).append("'");
+        }
+        String sql = String.format(format == BulkNoteReader.Format.CSV ? EXPORT_CSV : EXPORT_NDJSON, where);
+
+        long start = System.nanoTime();
+        try (PooledConnection pooled = router.forRead().borrow()) {
+            try {
+                long rows = pooled.connection().unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+                queryMetrics.record("exportNotes", start, rows, false);
+                return rows;
+            } catch (IOException e) {
+                // The client went away part way through, do not trust the connection to be back in a clean state
+                pooled.markBroken();
+                queryMetrics.record("exportNotes", start, 0, true);
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.error("Error exporting notes from database", e);
+            queryMetrics.record("exportNotes", start, 0, true);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Send every valid row to the temp table through COPY, recording the rows that are not valid
+     * @return number of rows copied
+     */
+    private long copyRows(Connection connection, BulkNoteReader reader, BulkImportResult result) throws SQLException, IOException {
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_IMPORT);
+        try {
+            StringBuilder rows = new StringBuilder(COPY_BUFFER_CHARS + 4096);
+            long copied = 0;
+            while (reader.next()) {
+                Note note = reader.getNote();
+                if (note == null) {
+                    result.reject(reader.getLine(), reader.getError());
+                    continue;
+                }
+                // Same quoting COPY expects for csv, quotes inside the content are doubled
+                rows.append(note.getId()).append(",\"")
+                        .append(note.getContent().replace("\"", "\"\""))
+                        .append("\",").append(note.getCreatedAt()).append('\n');
+                copied++;
+                if (rows.length() >= COPY_BUFFER_CHARS) {
+                    writeToCopy(copyIn, rows);
+                }
+            }
+            writeToCopy(copyIn, rows);
+            copyIn.endCopy();
+            return copied;
+        } finally {
+            if (copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException e) {
+                    // The connection is dropped when the temp table can not be cleaned up
+                }
+            }
+        }
+    }
+
+    private static void writeToCopy(CopyIn copyIn, StringBuilder rows) throws SQLException {
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        rows.setLength(0);
+    }
+
+    /**
+     * Tell the listeners about the imported notes once they are committed
+     */
+    private void notifyImported(PooledConnection pooled) throws SQLException {
+        PreparedStatement ps = pooled.prepare(SELECT_IMPORTED);
+        ps.setFetchSize(FETCH_SIZE);
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                listeners.saved(toNote(rs));
+            }
+        }
+    }
+
+    /**
+     * End whatever transaction an import left open and drop its temp table so the pooled connection is clean
+     */
+    private static void dropImportTable(PooledConnection pooled) {
+        Connection connection = pooled.connection();
+        try (Statement statement = connection.createStatement()) {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            statement.execute(DROP_IMPORT_TABLE);
+        } catch (SQLException e) {
+            pooled.markBroken();
+        }
+    }
+
+    /**
+     * Set the cursor parameters of a paged query if there is a cursor
+     * @param ps Statement to set them on
+     * @param index Index of the first cursor parameter
+     * @param after Cursor or null for the first page
+     * @return index of the next parameter
+     * @throws SQLException
+     */
+    private int setCursor(PreparedStatement ps, int index, NoteCursor after) throws SQLException {
+        if (after == null) {
+            return index;
+        }
+        ps.setObject(index, Timestamp.from(after.getCreatedAt()));
+        ps.setObject(index + 1, after.getId());
+        return index + 2;
+    }
+
+    /**
+     * Run a paged query that asks for one row more than the limit. If the extra row comes back there is another page.
+     *
+     * A page that fits in one fetch is in memory as soon as the first row arrives, so it is held in the rows and only
+     * sent once the connection and the read slot are given back, and a slow client never holds either. Bigger pages are
+     * handed to the sink as they are fetched so they are never all in memory. They keep the slot while they stream
+     * since they keep the connection, but the time spent writing to the client is left out of the round trip time.
+     *
+     * The driver only fetches rows in batches of the fetch size inside a transaction, with autocommit on it reads
+     * the whole result into memory first. So autocommit is turned off for the query and back on afterwards
+     * @param pooled Connection the statement belongs to
+     * @param ps Statement with its parameters already set
+     * @param limit Max number of notes on the page
+     * @param ranked Whether the query returns a rank column that belongs in the cursor
+     * @param rows Times the query and holds a buffered page and the cursor for the next page
+     * @param sink Receives each note of a page streamed as it is fetched
+     * @throws SQLException
+     * @throws IOException if the sink fails to write a note
+     */
+    private void readPage(PooledConnection pooled, PreparedStatement ps, int limit, boolean ranked, PageRows rows, NoteSink sink) throws SQLException, IOException {
+        Connection connection = pooled.connection();
+        connection.setAutoCommit(false);
+        try {
+            ps.setFetchSize(FETCH_SIZE);
+            NoteSink target = limit < FETCH_SIZE ? rows.buffering() : rows.streaming(sink);
+            Note last = null;
+            float lastRank = 0;
+            int count = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (count == limit) {
+                        rows.next = ranked ? new NoteCursor(last.getCreatedAt(), last.getId(), lastRank) : NoteCursor.after(last);
+                        return;
+                    }
+                    last = toNote(rs);
+                    if (ranked) {
+                        lastRank = rs.getFloat("rank");
+                    }
+                    target.accept(last);
+                    count++;
+                }
+            }
+        } finally {
+            // Nothing was written so ending the read only transaction with a rollback is always safe
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                pooled.markBroken();
+            }
+        }
+    }
+
+    /**
+     * Escape the LIKE wildcards in user input so % and _ match themselves instead of anything
+     * @param keyword Text from the user
+     * @return keyword safe to put inside a LIKE pattern
+     */
+    private static String escapeLike(String keyword) {
+        return keyword.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Run a query and read every row it returns. The result set is closed before returning
+     * @param ps Statement with its parameters already set
+     * @return notes from the query
+     * @throws SQLException
+     */
+    private List<Note> readNotes(PreparedStatement ps) throws SQLException {
+        // List to hold all notes
+        List<Note> notes = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            // Walk through all the elements in the result
+            while (rs.next()) {
+                notes.add(toNote(rs));
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Build a note from the current row of a result set
+     * @param rs Result set positioned on a row
+     * @return note for that row
+     * @throws SQLException
+     */
+    private Note toNote(ResultSet rs) throws SQLException {
+        UUID id = rs.getObject("id", UUID.class);
+        String content = rs.getString("content");
+        Instant createdAt = rs.getObject("created_at", Timestamp.class).toInstant();
+        return new Note(id, content, createdAt, rs.getLong("version"));
+    }
+
+    /**
+     * Read slot, time and rows of one page query. Only time waiting on the database counts, both as the round trip time
+     * the read limit adapts to and in the query metrics, so a slow client does not look like a slow database
+     */
+    private final class PageRows {
+        private final String method;
+        private final ConcurrencyLimiter.Permit permit;
+        private final long start = System.nanoTime();
+        // Time spent handing notes of a streamed page to the client
+        private long sinkNanos;
+        // Time in the database, set once the connection is given back
+        private long queryNanos = -1;
+        private long count;
+        private boolean failed = true;
+        // A page small enough to hold, sent once the connection is given back
+        private List<Note> buffered;
+        private NoteCursor next;
+
+        private PageRows(String method, ConcurrencyLimiter.Permit permit) {
+            this.method = method;
+            this.permit = permit;
+        }
+
+        private NoteSink buffering() {
+            buffered = new ArrayList<>();
+            return buffered::add;
+        }
+
+        private NoteSink streaming(NoteSink sink) {
+            return note -> {
+                long sent = System.nanoTime();
+                try {
+                    sink.accept(note);
+                } finally {
+                    sinkNanos += System.nanoTime() - sent;
+                }
+                count++;
+            };
+        }
+
+        /**
+         * Give the read slot back now the connection is back in the pool, then send a buffered page
+         * @return cursor for the next page or null if this is the last page
+         */
+        private NoteCursor send(NoteSink sink) throws IOException {
+            queryDone();
+            failed = false;
+            if (buffered != null) {
+                for (Note note : buffered) {
+                    sink.accept(note);
+                    count++;
+                }
+            }
+            return next;
+        }
+
+        private void queryDone() {
+            if (queryNanos < 0) {
+                queryNanos = System.nanoTime() - start - sinkNanos;
+                permit.release(queryNanos);
+            }
+        }
+
+        private void record() {
+            queryDone();
+            queryMetrics.recordDuration(method, queryNanos, count, failed);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.notes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, rows and failures of the database calls of each store method, for /metrics.
+ *
+ * Methods are keyed by name and their stats are created on first use, after that recording is a map lookup plus
+ * LongAdder and histogram updates with no locking.
+ */
+public class QueryMetrics implements MetricsSource {
+
+    private final Map<String, QueryStats> byMethod = new ConcurrentHashMap<>();
+
+    /**
+     * Record one call
+     * @param method Store method that made the call
+     * @param startNanos System.nanoTime when the call started
+     * @param rows Rows read or written
+     * @param failed True if the call threw
+     */
+    public void record(String method, long startNanos, long rows, boolean failed) {
+        recordDuration(method, System.nanoTime() - startNanos, rows, failed);
+    }
+
+    /**
+     * Record one call whose time in the database is worked out by the caller
+     * @param method Store method that made the call
+     * @param nanos Time spent in the database
+     * @param rows Rows read or written
+     * @param failed True if the call threw
+     */
+    public void recordDuration(String method, long nanos, long rows, boolean failed) {
+        QueryStats stats = byMethod.computeIfAbsent(method, name -> new QueryStats());
+        stats.latency.record(nanos);
+        stats.rows.add(rows);
+        if (failed) {
+            stats.failures.increment();
+        }
+    }
+
+    /**
+     * @return calls made by a method so far
+     */
+    public long getCalls(String method) {
+        QueryStats stats = byMethod.get(method);
+        return stats == null ? 0 : stats.latency.getCount();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.histogram("notes_db_query_duration_seconds", "Time spent in the database by store method, including waiting for a connection");
+        byMethod.forEach((method, stats) ->
+                writer.latencyHistogram("notes_db_query_duration_seconds", stats.latency, "method", method));
+        writer.counter("notes_db_rows_total", "Rows returned or written by store method");
+        byMethod.forEach((method, stats) ->
+                writer.sample("notes_db_rows_total", stats.rows.sum(), "method", method));
+        writer.counter("notes_db_query_failures_total", "Database calls that failed by store method");
+        byMethod.forEach((method, stats) ->
+                writer.sample("notes_db_query_failures_total", stats.failures.sum(), "method", method));
+    }
+
+    private static final class QueryStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+    }
+}
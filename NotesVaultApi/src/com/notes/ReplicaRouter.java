@@ -0,0 +1,238 @@
+package com.notes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Picks where each database call goes when there are read replicas. Writes go to the primary and reads are spread
+ * over the replicas in turn.
+ *
+ * Replica lag is checked in the background and a replica that falls more than the max lag behind, or can not be
+ * reached, is taken out of rotation until it catches up. With no replica in rotation reads go to the primary.
+ *
+ * A client that writes is pinned to the primary for the read-your-writes window afterwards, so it reads back what it
+ * wrote even from a replica that has not replayed the write yet. Clients are told apart by {@link ClientContext}.
+ *
+ * @param <T> What a call is sent to, a connection pool for the Postgres store
+ */
+public final class ReplicaRouter<T> implements AutoCloseable {
+    private static final Logger LOG = Logger.of(ReplicaRouter.class);
+
+    /**
+     * Asks a replica how far behind the primary it is
+     */
+    @FunctionalInterface
+    public interface LagCheck<T> {
+        /**
+         * @return replication lag in milliseconds
+         * @throws Exception if the replica could not be asked, which takes it out of rotation
+         */
+        long lagMillis(T replica) throws Exception;
+    }
+
+    private final T primary;
+    private final List<Replica<T>> replicas = new ArrayList<>();
+    private final LagCheck<T> lagCheck;
+    private final long maxLagMillis;
+    private final long pinNanos;
+
+    // Replicas reads can go to, replaced as a whole after every lag check
+    private volatile List<Replica<T>> rotation = List.of();
+    private final AtomicInteger next = new AtomicInteger();
+    // Nanos until which each client that wrote reads from the primary
+    private final ConcurrentHashMap<String, Long> pinnedUntil = new ConcurrentHashMap<>();
+    private final LongAdder primaryReads = new LongAdder();
+    private ScheduledExecutorService checker;
+    private long checkIntervalMillis;
+
+    /**
+     * @param primary Where writes go
+     * @param replicas Where reads go, empty to send everything to the primary
+     * @param lagCheck Asks a replica how far behind it is
+     * @param maxLagMillis Replicas further behind than this are taken out of rotation
+     * @param readYourWritesMillis How long a client reads from the primary after it writes, 0 to not pin clients
+     */
+    public ReplicaRouter(T primary, List<T> replicas, LagCheck<T> lagCheck, long maxLagMillis, long readYourWritesMillis) {
+        this.primary = primary;
+        for (T replica : replicas) {
+            this.replicas.add(new Replica<>(replica));
+        }
+        this.lagCheck = lagCheck;
+        this.maxLagMillis = maxLagMillis;
+        this.pinNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+    }
+
+    /**
+     * Check lag now and then every interval in the background. Replicas only take reads once they have been checked
+     * @param intervalMillis Time between checks
+     */
+    public void start(long intervalMillis) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        checkIntervalMillis = intervalMillis;
+        checkLag();
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-replica-lag");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkLag, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return where a read should go
+     */
+    public T forRead() {
+        List<Replica<T>> healthy = rotation;
+        if (healthy.isEmpty() || isPinned()) {
+            primaryReads.increment();
+            return primary;
+        }
+        Replica<T> replica = healthy.get(Math.floorMod(next.getAndIncrement(), healthy.size()));
+        replica.reads.increment();
+        return replica.target;
+    }
+
+    /**
+     * Pin the client on this thread to the primary for the read-your-writes window
+     * @return where a write should go
+     */
+    public T forWrite() {
+        String client = ClientContext.get();
+        if (client != null && pinNanos > 0 && !replicas.isEmpty()) {
+            pinnedUntil.put(client, System.nanoTime() + pinNanos);
+        }
+        return primary;
+    }
+
+    /**
+     * @return where writes, and anything that has to see every write, go
+     */
+    public T primary() {
+        return primary;
+    }
+
+    /**
+     * @return true if the client on this thread wrote recently enough that its reads go to the primary
+     */
+    public boolean isPinned() {
+        String client = ClientContext.get();
+        if (client == null) {
+            return false;
+        }
+        Long until = pinnedUntil.get(client);
+        if (until == null) {
+            return false;
+        }
+        if (until - System.nanoTime() > 0) {
+            return true;
+        }
+        pinnedUntil.remove(client, until);
+        return false;
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * Run a task once any replica still in rotation has had time to replay a write made now. Does nothing without
+     * replicas, there is nothing to wait for
+     * @param task Task to run, such as dropping something cached from a replica read
+     */
+    public void afterReplicaLag(Runnable task) {
+        if (checker != null) {
+            // A replica can fall up to the max lag behind and stay in rotation until the next check notices
+            checker.schedule(task, maxLagMillis + checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Ask every replica for its lag and work out which ones stay in rotation
+     */
+    public void checkLag() {
+        List<Replica<T>> healthy = new ArrayList<>();
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica<T> replica = replicas.get(i);
+            long lag;
+            try {
+                lag = lagCheck.lagMillis(replica.target);
+            } catch (Exception e) {
+                if (replica.inRotation) {
+                    LOG.warn("Replica unreachable, taking it out of rotation", e, "replica", i);
+                }
+                lag = -1;
+            }
+            replica.lagMillis = lag;
+            boolean usable = lag >= 0 && lag <= maxLagMillis;
+            if (usable && !replica.inRotation) {
+                LOG.info("Replica in rotation", "replica", i, "lagMillis", lag);
+            } else if (!usable && replica.inRotation && lag >= 0) {
+                LOG.warn("Replica lagging, taking it out of rotation", "replica", i, "lagMillis", lag, "maxLagMillis", maxLagMillis);
+            }
+            replica.inRotation = usable;
+            if (usable) {
+                healthy.add(replica);
+            }
+        }
+        rotation = List.copyOf(healthy);
+
+        long now = System.nanoTime();
+        pinnedUntil.values().removeIf(until -> until - now <= 0);
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * @return lag of a replica at the last check, -1 if it could not be reached or has not been checked
+     */
+    public long getReplicaLagMillis(int replica) {
+        return replicas.get(replica).lagMillis;
+    }
+
+    public boolean isInRotation(int replica) {
+        return replicas.get(replica).inRotation;
+    }
+
+    public long getReplicaReads(int replica) {
+        return replicas.get(replica).reads.sum();
+    }
+
+    public long getPrimaryReads() {
+        return primaryReads.sum();
+    }
+
+    /**
+     * @return clients whose reads go to the primary right now, counting ones whose window ran out since the last check
+     */
+    public int getPinnedClients() {
+        return pinnedUntil.size();
+    }
+
+    @Override
+    public void close() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    private static final class Replica<T> {
+        private final T target;
+        private final LongAdder reads = new LongAdder();
+        private volatile long lagMillis = -1;
+        private volatile boolean inRotation;
+
+        private Replica(T target) {
+            this.target = target;
+        }
+    }
+}
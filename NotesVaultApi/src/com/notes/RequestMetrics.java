@@ -0,0 +1,185 @@
+package com.notes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps the notes handler to count every request by route and status, time it, count the bytes sent back and keep
+ * track of how many requests are running.
+ *
+ * The route is worked out from the method, path and query the same way NotesHandler picks what to do, so each
+ * handler operation gets its own latency histogram. Everything is recorded with LongAdders and the striped
+ * LatencyHistogram so requests never wait on each other to be counted.
+ */
+public class RequestMetrics implements HttpHandler, MetricsSource {
+
+    /**
+     * What a request is asking for, one per operation of NotesHandler
+     */
+    enum Route {
+        GET, LIST, SEARCH, RANGE, EXPORT, CREATE, BULK_IMPORT, UPDATE, DELETE, OTHER;
+
+        private final String label = name().toLowerCase();
+    }
+
+    // Status codes only go up to 599, anything outside that is counted as 0
+    private static final int STATUS_CODES = 600;
+
+    private final HttpHandler next;
+    private final RouteStats[] routes = new RouteStats[Route.values().length];
+    private final LongAdder inFlight = new LongAdder();
+
+    public RequestMetrics(HttpHandler next) {
+        this.next = next;
+        for (Route route : Route.values()) {
+            routes[route.ordinal()] = new RouteStats();
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        RouteStats stats = routes[routeOf(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                exchange.getRequestURI().getRawQuery()).ordinal()];
+        CountingOutputStream body = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(null, body);
+
+        inFlight.increment();
+        long start = System.nanoTime();
+        try {
+            next.handle(exchange);
+        } finally {
+            stats.latency.record(System.nanoTime() - start);
+            inFlight.decrement();
+            stats.responseBytes.add(body.count);
+            stats.count(exchange.getResponseCode());
+        }
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("notes_http_requests_total", "Requests handled by route and status code");
+        for (Route route : Route.values()) {
+            RouteStats stats = routes[route.ordinal()];
+            for (int status = 0; status < STATUS_CODES; status++) {
+                LongAdder count = stats.byStatus.get(status);
+                if (count != null) {
+                    writer.sample("notes_http_requests_total", count.sum(), "route", route.label, "status", Integer.toString(status));
+                }
+            }
+        }
+
+        writer.histogram("notes_http_request_duration_seconds", "Time to handle a request including sending the response");
+        for (Route route : Route.values()) {
+            LatencyHistogram latency = routes[route.ordinal()].latency;
+            if (latency.getCount() > 0) {
+                writer.latencyHistogram("notes_http_request_duration_seconds", latency, "route", route.label);
+            }
+        }
+
+        writer.counter("notes_http_response_bytes_total", "Response body bytes sent by route, after any compression");
+        for (Route route : Route.values()) {
+            RouteStats stats = routes[route.ordinal()];
+            if (stats.latency.getCount() > 0) {
+                writer.sample("notes_http_response_bytes_total", stats.responseBytes.sum(), "route", route.label);
+            }
+        }
+
+        writer.gauge("notes_http_requests_in_flight", "Requests being handled right now");
+        writer.sample("notes_http_requests_in_flight", inFlight.sum());
+    }
+
+    /**
+     * Work out which operation a request is for without parsing the whole query
+     */
+    static Route routeOf(String method, String path, String rawQuery) {
+        switch (method) {
+            case "GET":
+                if (path.equals("/notes/export")) {
+                    return Route.EXPORT;
+                }
+                if (path.contains("/notes/")) {
+                    return Route.GET;
+                }
+                if (hasParam(rawQuery, "search")) {
+                    return Route.SEARCH;
+                }
+                if (hasParam(rawQuery, "from") || hasParam(rawQuery, "to")) {
+                    return Route.RANGE;
+                }
+                return Route.LIST;
+            case "POST":
+                return path.equals("/notes/bulk") ? Route.BULK_IMPORT : Route.CREATE;
+            case "PUT":
+                return Route.UPDATE;
+            case "DELETE":
+                return Route.DELETE;
+            default:
+                return Route.OTHER;
+        }
+    }
+
+    private static boolean hasParam(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return false;
+        }
+        int from = 0;
+        while (true) {
+            int index = rawQuery.indexOf(name, from);
+            if (index < 0) {
+                return false;
+            }
+            int end = index + name.length();
+            boolean startsParam = index == 0 || rawQuery.charAt(index - 1) == '&';
+            boolean endsName = end == rawQuery.length() || rawQuery.charAt(end) == '=' || rawQuery.charAt(end) == '&';
+            if (startsParam && endsName) {
+                return true;
+            }
+            from = end;
+        }
+    }
+
+    private static final class RouteStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder responseBytes = new LongAdder();
+        private final AtomicReferenceArray<LongAdder> byStatus = new AtomicReferenceArray<>(STATUS_CODES);
+
+        private void count(int status) {
+            int index = status > 0 && status < STATUS_CODES ? status : 0;
+            LongAdder count = byStatus.get(index);
+            if (count == null) {
+                byStatus.compareAndSet(index, null, new LongAdder());
+                count = byStatus.get(index);
+            }
+            count.increment();
+        }
+    }
+
+    /**
+     * Response body that counts what goes through it. Only the thread handling the request writes to it
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
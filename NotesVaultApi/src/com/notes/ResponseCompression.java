@@ -0,0 +1,399 @@
+package com.notes;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with gzip or deflate, whichever the Accept-Encoding header prefers.
+ *
+ * Bodies are compressed as they are written so a long list never has to be held in memory. Responses smaller than
+ * the threshold are sent as they are, compressing them costs more time than it saves on the wire. Deflaters hold a
+ * native buffer of a few hundred KB that is slow to set up, so they are pooled together with their output buffer
+ * and reset between responses instead of being made for each one.
+ *
+ * COMPRESSION_LEVEL sets the level from 1 (fastest) to 9 (smallest), default 6, and 0 turns compression off.
+ * COMPRESSION_MIN_BYTES sets the threshold, default 1024.
+ */
+public final class ResponseCompression implements MetricsSource {
+
+    public static final int DEFAULT_LEVEL = 6;
+    public static final int DEFAULT_MIN_BYTES = 1024;
+
+    /**
+     * Content codings that can be sent
+     */
+    public enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        /**
+         * @return name used in the Accept-Encoding and Content-Encoding headers
+         */
+        public String token() {
+            return token;
+        }
+    }
+
+    private static final int POOL_SIZE = 64;
+    private static final int BUFFER_SIZE = 8192;
+    // Magic number, deflate, no flags, no time, no extra flags, unknown operating system
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final int level;
+    private final int minBytes;
+    private final AtomicReferenceArray<Compressor> gzipPool = new AtomicReferenceArray<>(POOL_SIZE);
+    private final AtomicReferenceArray<Compressor> deflatePool = new AtomicReferenceArray<>(POOL_SIZE);
+
+    private final LongAdder[] responses = new LongAdder[Encoding.values().length];
+    private final LongAdder[] bytesIn = new LongAdder[Encoding.values().length];
+    private final LongAdder[] bytesOut = new LongAdder[Encoding.values().length];
+    private final LongAdder skippedSmall = new LongAdder();
+
+    /**
+     * @param level Deflate level from 1 to 9, 0 to never compress
+     * @param minBytes Smallest body that is compressed
+     */
+    public ResponseCompression(int level, int minBytes) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9 but was " + level);
+        }
+        this.level = level;
+        this.minBytes = minBytes;
+        for (Encoding encoding : Encoding.values()) {
+            responses[encoding.ordinal()] = new LongAdder();
+            bytesIn[encoding.ordinal()] = new LongAdder();
+            bytesOut[encoding.ordinal()] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return true if any response can be compressed, so caches have to keep responses apart by Accept-Encoding
+     */
+    public boolean isEnabled() {
+        return level > 0;
+    }
+
+    /**
+     * @return smallest body that is compressed
+     */
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * Pick the encoding for a response from the request's Accept-Encoding header. The coding with the highest
+     * q value wins and gzip wins a tie, a q value of 0 means the coding must not be used
+     * @param exchange Request that came in
+     * @return encoding to use or null to send the body as it is
+     */
+    public Encoding negotiate(HttpExchange exchange) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String header = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return header == null ? null : negotiate(header);
+    }
+
+    /**
+     * @param header Value of an Accept-Encoding header
+     * @return encoding to use or null to send the body as it is
+     */
+    public static Encoding negotiate(String header) {
+        int gzip = -1;
+        int deflate = -1;
+        int any = -1;
+        int length = header.length();
+        int start = 0;
+        while (start < length) {
+            int end = header.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int parameters = header.indexOf(';', start);
+            int nameEnd = parameters < 0 || parameters > end ? end : parameters;
+            int from = skipSpaces(header, start, nameEnd);
+            int to = nameEnd;
+            while (to > from && header.charAt(to - 1) == ' ') {
+                to--;
+            }
+            int quality = nameEnd < end ? quality(header, nameEnd + 1, end) : 1000;
+            if (matches(header, from, to, "gzip") || matches(header, from, to, "x-gzip")) {
+                gzip = quality;
+            } else if (matches(header, from, to, "deflate")) {
+                deflate = quality;
+            } else if (matches(header, from, to, "*")) {
+                any = quality;
+            }
+            start = end + 1;
+        }
+        // * stands for every coding that is not named on its own
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return Encoding.GZIP;
+        }
+        return deflate > 0 ? Encoding.DEFLATE : null;
+    }
+
+    /**
+     * Start a compressed body. Send the headers with Content-Encoding set before writing to it, and close it to
+     * finish the body and give the deflater back
+     * @param out Raw response body
+     * @param encoding Encoding from {@link #negotiate(HttpExchange)}
+     * @return stream that compresses into out
+     * @throws IOException if the gzip header could not be written
+     */
+    public CompressingStream compress(OutputStream out, Encoding encoding) throws IOException {
+        return new CompressingStream(out, encoding, acquire(encoding));
+    }
+
+    /**
+     * Count a response that could have been compressed but was too small
+     */
+    public void skipped() {
+        skippedSmall.increment();
+    }
+
+    public long getResponses(Encoding encoding) {
+        return responses[encoding.ordinal()].sum();
+    }
+
+    public long getBytesIn(Encoding encoding) {
+        return bytesIn[encoding.ordinal()].sum();
+    }
+
+    public long getBytesOut(Encoding encoding) {
+        return bytesOut[encoding.ordinal()].sum();
+    }
+
+    public long getSkipped() {
+        return skippedSmall.sum();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("notes_http_compressed_responses_total", "Responses sent compressed by encoding");
+        for (Encoding encoding : Encoding.values()) {
+            writer.sample("notes_http_compressed_responses_total", getResponses(encoding), "encoding", encoding.token);
+        }
+        writer.counter("notes_http_compression_skipped_total", "Responses the client would have taken compressed that were under the threshold");
+        writer.sample("notes_http_compression_skipped_total", getSkipped());
+        writer.counter("notes_http_compression_input_bytes_total", "Bytes of response bodies before compression");
+        for (Encoding encoding : Encoding.values()) {
+            writer.sample("notes_http_compression_input_bytes_total", getBytesIn(encoding), "encoding", encoding.token);
+        }
+        writer.counter("notes_http_compression_output_bytes_total", "Bytes of response bodies after compression");
+        for (Encoding encoding : Encoding.values()) {
+            writer.sample("notes_http_compression_output_bytes_total", getBytesOut(encoding), "encoding", encoding.token);
+        }
+        writer.gauge("notes_http_compression_ratio", "Compressed size as a share of the original size over every response so far");
+        for (Encoding encoding : Encoding.values()) {
+            long in = getBytesIn(encoding);
+            writer.sample("notes_http_compression_ratio", in == 0 ? 0 : (double) getBytesOut(encoding) / in, "encoding", encoding.token);
+        }
+    }
+
+    private Compressor acquire(Encoding encoding) {
+        AtomicReferenceArray<Compressor> pool = encoding == Encoding.GZIP ? gzipPool : deflatePool;
+        int start = (int) Thread.currentThread().threadId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int index = (start + i) & (POOL_SIZE - 1);
+            if (pool.get(index) != null) {
+                Compressor compressor = pool.getAndSet(index, null);
+                if (compressor != null) {
+                    return compressor;
+                }
+            }
+        }
+        // gzip writes its own header and trailer around raw deflate data, deflate is the zlib format
+        return new Compressor(new Deflater(level, encoding == Encoding.GZIP));
+    }
+
+    private void release(Encoding encoding, Compressor compressor) {
+        compressor.deflater.reset();
+        compressor.crc.reset();
+        AtomicReferenceArray<Compressor> pool = encoding == Encoding.GZIP ? gzipPool : deflatePool;
+        int start = (int) Thread.currentThread().threadId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool.compareAndSet((start + i) & (POOL_SIZE - 1), null, compressor)) {
+                return;
+            }
+        }
+        // The pool is full, free the native memory now instead of waiting for the garbage collector
+        compressor.deflater.end();
+    }
+
+    private static int skipSpaces(String text, int from, int to) {
+        while (from < to && text.charAt(from) == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean matches(String header, int from, int to, String token) {
+        return to - from == token.length() && header.regionMatches(true, from, token, 0, token.length());
+    }
+
+    /**
+     * Read a q parameter as thousandths, 1000 when there is none. Accept uses the same q values so
+     * {@link NoteFormat} reads them with this too
+     */
+    static int quality(String header, int from, int to) {
+        int q = header.indexOf("q=", from);
+        if (q < 0 || q >= to) {
+            return 1000;
+        }
+        int value = 0;
+        int weight = 1000;
+        boolean fraction = false;
+        for (int i = q + 2; i < to; i++) {
+            char c = header.charAt(i);
+            if (c == '.' && !fraction) {
+                fraction = true;
+            } else if (c >= '0' && c <= '9') {
+                if (fraction) {
+                    // Past three decimals the weight is 0, q values do not go finer than that
+                    weight /= 10;
+                    value += (c - '0') * weight;
+                } else {
+                    value = value * 10 + (c - '0') * 1000;
+                }
+            } else if (c != ' ') {
+                break;
+            }
+        }
+        return Math.min(value, 1000);
+    }
+
+    /**
+     * A pooled deflater with the buffer its output goes through
+     */
+    private static final class Compressor {
+        private final Deflater deflater;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+
+        private Compressor(Deflater deflater) {
+            this.deflater = deflater;
+        }
+    }
+
+    /**
+     * Body that compresses everything written to it on the way to the raw response body
+     */
+    public final class CompressingStream extends OutputStream {
+        private final OutputStream out;
+        private final Encoding encoding;
+        private Compressor compressor;
+        private long in;
+        private long written;
+
+        private CompressingStream(OutputStream out, Encoding encoding, Compressor compressor) throws IOException {
+            this.out = out;
+            this.encoding = encoding;
+            this.compressor = compressor;
+            if (encoding == Encoding.GZIP) {
+                out.write(GZIP_HEADER);
+                written += GZIP_HEADER.length;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (compressor == null) {
+                throw new IOException("Response body is already closed");
+            }
+            if (length == 0) {
+                return;
+            }
+            if (encoding == Encoding.GZIP) {
+                compressor.crc.update(bytes, offset, length);
+            }
+            in += length;
+            Deflater deflater = compressor.deflater;
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        /**
+         * Finish the compressed data, close the raw body and give the deflater back
+         */
+        @Override
+        public void close() throws IOException {
+            if (compressor == null) {
+                return;
+            }
+            try {
+                Deflater deflater = compressor.deflater;
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                if (encoding == Encoding.GZIP) {
+                    writeTrailer();
+                }
+                out.close();
+                responses[encoding.ordinal()].increment();
+                bytesIn[encoding.ordinal()].add(in);
+                bytesOut[encoding.ordinal()].add(written);
+            } finally {
+                discard();
+            }
+        }
+
+        /**
+         * Give the deflater back without finishing the body, for a response that failed part way
+         */
+        public void discard() {
+            if (compressor != null) {
+                release(encoding, compressor);
+                compressor = null;
+            }
+        }
+
+        private void deflate() throws IOException {
+            byte[] buffer = compressor.buffer;
+            int count = compressor.deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                written += count;
+            }
+        }
+
+        /**
+         * CRC32 and length of the uncompressed data, both little endian
+         */
+        private void writeTrailer() throws IOException {
+            byte[] buffer = compressor.buffer;
+            long crc = compressor.crc.getValue();
+            for (int i = 0; i < 4; i++) {
+                buffer[i] = (byte) (crc >>> (8 * i));
+                buffer[4 + i] = (byte) (in >>> (8 * i));
+            }
+            out.write(buffer, 0, 8);
+            written += 8;
+        }
+    }
+}
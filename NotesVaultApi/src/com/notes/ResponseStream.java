@@ -0,0 +1,149 @@
+package com.notes;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Response body for a response whose length is not known up front, like a list of notes read straight from the
+ * database.
+ *
+ * Output is buffered and the headers are only sent once the buffer fills up, at which point the rest of the body
+ * goes out with chunked transfer encoding. If the whole response fits in the buffer it is sent with a normal
+ * content length instead. Until the headers are sent nothing has been committed, so a failure can still be answered
+ * with an error response.
+ *
+ * When the client accepts gzip or deflate the body is compressed, decided when the headers go out: a body that fits
+ * in the buffer is only compressed if it reaches the compression threshold, one that outgrows the buffer always is.
+ */
+public class ResponseStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    // Buffer size for writers that fill a buffer and send it here whole. Big enough that each of their flushes is
+    // written straight through instead of being copied into this stream's buffer
+    static final int WRITER_BUFFER_SIZE = BUFFER_SIZE * 2;
+
+    private final HttpExchange exchange;
+    private final int code;
+    private final ResponseCompression compression;
+    private final ResponseCompression.Encoding encoding;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private OutputStream body;
+    private boolean closed;
+
+    public ResponseStream(HttpExchange exchange, int code) {
+        this(exchange, code, null);
+    }
+
+    /**
+     * @param exchange Exchange the response is for
+     * @param code Status code
+     * @param compression Compresses the body when the client accepts it, null to always send it as it is
+     */
+    public ResponseStream(HttpExchange exchange, int code, ResponseCompression compression) {
+        this.exchange = exchange;
+        this.code = code;
+        this.compression = compression;
+        this.encoding = compression == null ? null : compression.negotiate(exchange);
+        if (compression != null && compression.isEnabled()) {
+            exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length >= buffer.length) {
+            // Too big to be worth copying, send what is buffered and then write it straight through
+            flushBuffer();
+            body.write(bytes, offset, length);
+            return;
+        }
+        if (length > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * @return true once the headers have been sent and the status can no longer change
+     */
+    public boolean isCommitted() {
+        return body != null;
+    }
+
+    /**
+     * Finish the response. If nothing has been sent yet the whole body goes out with a content length, or
+     * compressed when it is large enough
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (body == null) {
+            if (encoding != null && count >= compression.getMinBytes()) {
+                startCompressed();
+            } else {
+                if (encoding != null && count > 0) {
+                    compression.skipped();
+                }
+                exchange.sendResponseHeaders(code, count == 0 ? -1 : count);
+                body = exchange.getResponseBody();
+            }
+        }
+        body.write(buffer, 0, count);
+        count = 0;
+        body.close();
+    }
+
+    /**
+     * Give back the deflater of a response that failed part way. The body is left unfinished so the client can
+     * tell it is incomplete
+     */
+    public void discard() {
+        closed = true;
+        if (body instanceof ResponseCompression.CompressingStream compressing) {
+            compressing.discard();
+        }
+    }
+
+    /**
+     * Send the buffered bytes as a chunk, sending the headers first if they have not gone out yet
+     */
+    private void flushBuffer() throws IOException {
+        if (body == null) {
+            if (encoding != null) {
+                startCompressed();
+            } else {
+                // Length 0 tells the server to use chunked transfer encoding
+                exchange.sendResponseHeaders(code, 0);
+                body = exchange.getResponseBody();
+            }
+        }
+        if (count > 0) {
+            body.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Send the headers for a compressed body, its length is only known once it is compressed so it is chunked
+     */
+    private void startCompressed() throws IOException {
+        exchange.getResponseHeaders().set("Content-Encoding", encoding.token());
+        exchange.sendResponseHeaders(code, 0);
+        body = compression.compress(exchange.getResponseBody(), encoding);
+    }
+}
@@ -0,0 +1,109 @@
+package com.notes;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets concurrent identical reads share one load. The first caller for a key runs the load and every caller that
+ * arrives while it is running waits for the same result, or the same exception, instead of running its own.
+ *
+ * Each load carries the stamp its caller took before it started, such as the store's generation. A caller only joins
+ * a load whose stamp is at least its own, so it never gets a result read from before a write it could have seen.
+ *
+ * @param <K> Key identifying identical reads
+ * @param <V> Result of a read
+ */
+public final class SingleFlight<K, V> {
+
+    /**
+     * A read that can be shared
+     * @param <E> Checked exception the read can fail with
+     */
+    @FunctionalInterface
+    public interface Loader<V, E extends Exception> {
+        V load() throws E;
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * Run the load for a key, or wait for the one already running
+     * @param key Key identifying the read
+     * @param stamp Stamp taken before the read, a later write must move it on
+     * @param loader Read to run when there is none to share
+     * @return result of the load that ran
+     * @throws E if the load failed with it
+     */
+    public <E extends Exception> V run(K key, long stamp, Loader<V, E> loader) throws E {
+        Flight<V> mine = new Flight<>(stamp);
+        Flight<V> flight = flights.compute(key, (k, running) -> running != null && running.stamp >= stamp ? running : mine);
+        if (flight != mine) {
+            shared.increment();
+            return this.<E>await(flight.result);
+        }
+
+        loads.increment();
+        try {
+            V value = loader.load();
+            mine.result.complete(value);
+            return value;
+        } catch (Throwable e) {
+            mine.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, mine);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> V await(CompletableFuture<V> result) throws E {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            // Hand every waiter the exception the load failed with so they fail the same way, a 503 stays a 503.
+            // Anything checked can only be the E the load was declared with
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw (E) cause;
+        }
+    }
+
+    /**
+     * @return loads that ran
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return callers that waited for a load another caller ran instead of running their own
+     */
+    public long getShared() {
+        return shared.sum();
+    }
+
+    /**
+     * @return loads running right now
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private static final class Flight<V> {
+        private final long stamp;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        private Flight(long stamp) {
+            this.stamp = stamp;
+        }
+    }
+}
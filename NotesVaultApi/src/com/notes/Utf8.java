@@ -0,0 +1,75 @@
+package com.notes;
+
+/**
+ * UTF-8 encoding straight into a byte array, for code that fills its own buffer and should not copy every string
+ * through String.getBytes() first
+ */
+final class Utf8 {
+
+    // A char is at most 3 bytes, a surrogate pair is 2 chars in 4 bytes
+    static final int MAX_BYTES_PER_CHAR = 3;
+
+    private Utf8() {
+    }
+
+    /**
+     * Encode part of a string. A surrogate without its other half becomes ?, the same as String.getBytes() does
+     * @param value String to encode
+     * @param from Index of the first char
+     * @param to Index after the last char
+     * @param buf Array with room for {@link #encodedLength} bytes, or MAX_BYTES_PER_CHAR per char
+     * @param pos Where the first byte goes
+     * @return position after the last byte written
+     */
+    static int encode(String value, int from, int to, byte[] buf, int pos) {
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else {
+                    buf[pos++] = '?';
+                }
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return how many bytes {@link #encode} writes for part of a string
+     */
+    static int encodedLength(String value, int from, int to) {
+        int bytes = 0;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                    bytes += 4;
+                } else {
+                    bytes++;
+                }
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,226 @@
+package com.notes.test;
+
+import com.notes.ConcurrencyLimiter;
+import com.notes.InMemoryNoteStore;
+import com.notes.Note;
+import com.notes.NotesHandler;
+import com.notes.OverloadedException;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Business logic test for the adaptive limit on database calls and the 503 sent when it is reached
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final long MILLI = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        testGrowsWhileRoundTripsHold();
+        testShrinksWhenRoundTripsRise();
+        testDoesNotGrowWhenBelowLimit();
+        testQueueHandsOverSlots();
+        testRejectsWhenQueueIsFull();
+        testRejectsAfterWaiting();
+        testBusyStoreSends503();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that a limiter kept busy with steady round trips grows to its max and stops there
+     */
+    private static void testGrowsWhileRoundTripsHold() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("read", 4, 40, 0, 0, 1);
+        for (int i = 0; i < 200; i++) {
+            runFull(limiter, MILLI);
+        }
+        assert limiter.getLimit() == 40 : "Expected the limit to reach the max but it was " + limiter.getLimit();
+        assert limiter.getRttNanos() == MILLI : "Expected the usual round trip time to be 1ms but it was " + limiter.getRttNanos();
+        System.out.println("Grows while round trips hold test passed.");
+    }
+
+    /**
+     * Test that the limit comes down when calls start taking much longer, and grows back once they are quick again
+     */
+    private static void testShrinksWhenRoundTripsRise() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("read", 40, 40, 0, 0, 1);
+        for (int i = 0; i < 50; i++) {
+            runFull(limiter, MILLI);
+        }
+        assert limiter.getLimit() == 40 : "Expected the limit to stay at the max";
+
+        // Slow calls that carry on become the usual time after a while, so look at how far the limit dropped first
+        int shrunk = limiter.getLimit();
+        for (int i = 0; i < 20; i++) {
+            runFull(limiter, 10 * MILLI);
+            shrunk = Math.min(shrunk, limiter.getLimit());
+        }
+        assert shrunk < 20 : "Expected the limit to come down while calls are slow but it was " + shrunk;
+
+        for (int i = 0; i < 200; i++) {
+            runFull(limiter, MILLI);
+        }
+        assert limiter.getLimit() > shrunk : "Expected the limit to grow back once calls are quick again";
+        System.out.println("Shrinks when round trips rise test passed.");
+    }
+
+    /**
+     * Test that calls made one at a time do not grow the limit, they say nothing about how many the database can take
+     */
+    private static void testDoesNotGrowWhenBelowLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("read", 10, 100, 0, 0, 1);
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire().release(MILLI);
+        }
+        assert limiter.getLimit() == 10 : "Expected the limit to stay at 10 but it was " + limiter.getLimit();
+        assert limiter.getAcquired() == 1000 : "Expected every call counted";
+        System.out.println("Does not grow when below limit test passed.");
+    }
+
+    /**
+     * Test that a call waiting in the queue gets the slot given back by another
+     */
+    private static void testQueueHandsOverSlots() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("write", 1, 1, 1, 10_000, 1);
+        ConcurrencyLimiter.Permit held = limiter.acquire();
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire().close();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+            done.countDown();
+        });
+        waiter.start();
+        waitFor(() -> limiter.getWaiting() == 1);
+        assert limiter.getInFlight() == 1 : "Expected only the first call at the database";
+
+        held.close();
+        assert done.await(5, TimeUnit.SECONDS) : "Expected the waiting call to get the slot";
+        assert failure.get() == null : "Expected the waiting call to go ahead but got " + failure.get();
+        assert limiter.getInFlight() == 0 && limiter.getWaiting() == 0 : "Expected every slot back";
+        assert limiter.getQueued() == 1 && limiter.getRejected() == 0 : "Expected one queued call and no rejections";
+        System.out.println("Queue hands over slots test passed.");
+    }
+
+    /**
+     * Test that a call is turned away straight away when the queue is already full
+     */
+    private static void testRejectsWhenQueueIsFull() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("write", 1, 1, 0, 10_000, 3);
+        ConcurrencyLimiter.Permit held = limiter.acquire();
+        long start = System.nanoTime();
+        try {
+            limiter.acquire();
+            assert false : "Expected the call to be rejected";
+        } catch (OverloadedException e) {
+            assert e.getRetryAfterSeconds() == 3 : "Expected the configured Retry-After";
+        }
+        assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1) : "Expected the rejection without waiting";
+        assert limiter.getRejected() == 1 : "Expected the rejection counted";
+
+        held.close();
+        held.close();
+        assert limiter.getInFlight() == 0 : "Expected closing twice to give back one slot";
+        limiter.acquire().close();
+        System.out.println("Rejects when queue is full test passed.");
+    }
+
+    /**
+     * Test that a queued call gives up once it has waited as long as it is allowed to
+     */
+    private static void testRejectsAfterWaiting() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("read", 1, 1, 10, 50, 1);
+        ConcurrencyLimiter.Permit held = limiter.acquire();
+        long start = System.nanoTime();
+        try {
+            limiter.acquire();
+            assert false : "Expected the call to be rejected";
+        } catch (OverloadedException expected) {
+            // The slot was never given back
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert waited >= 50 : "Expected the call to wait 50ms first but it waited " + waited + "ms";
+        assert limiter.getWaiting() == 0 : "Expected the call to leave the queue";
+        held.close();
+        System.out.println("Rejects after waiting test passed.");
+    }
+
+    /**
+     * Test that a store over its limit gets the client a 503 with Retry-After instead of a 500
+     */
+    private static void testBusyStoreSends503() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("read", 1, 1, 0, 0, 2);
+        InMemoryNoteStore store = new InMemoryNoteStore() {
+            @Override
+            public Note getNoteById(UUID id) {
+                ConcurrencyLimiter.Permit permit = limiter.acquire();
+                try {
+                    return super.getNoteById(id);
+                } finally {
+                    permit.close();
+                }
+            }
+        };
+        HttpServer server = HttpServer.create(new InetSocketAddress(8086), 0);
+        server.createContext("/notes", new NotesHandler(store));
+        server.start();
+        try {
+            URI uri = URI.create("http://localhost:8086/notes/" + UUID.randomUUID());
+            HttpURLConnection ok = (HttpURLConnection) uri.toURL().openConnection();
+            assert ok.getResponseCode() == 200 : "Expected the read to go through while the limiter is free";
+            ok.getInputStream().readAllBytes();
+
+            ConcurrencyLimiter.Permit held = limiter.acquire();
+            HttpURLConnection busy = (HttpURLConnection) uri.toURL().openConnection();
+            assert busy.getResponseCode() == 503 : "Expected 503 but got " + busy.getResponseCode();
+            assert "2".equals(busy.getHeaderField("Retry-After")) : "Expected Retry-After: 2 but got " + busy.getHeaderField("Retry-After");
+            try (InputStream body = busy.getErrorStream()) {
+                String text = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                assert text.startsWith("ERROR 503") : "Expected an error body but got " + text;
+            }
+            held.close();
+        } finally {
+            server.stop(0);
+        }
+        System.out.println("Busy store sends 503 test passed.");
+    }
+
+    /**
+     * Fill every slot, then hand them all back with the same round trip time
+     */
+    private static void runFull(ConcurrencyLimiter limiter, long rttNanos) {
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            permits.add(limiter.acquire());
+        }
+        for (ConcurrencyLimiter.Permit permit : permits) {
+            permit.release(rttNanos);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assert System.nanoTime() < deadline : "Timed out waiting";
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.notes.test;
+
+import com.notes.InMemoryNoteStore;
+import com.notes.NotesHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Business logic test for ETags, If-None-Match on reads and If-Match on updates and deletes
+ */
+public class ConditionalRequestTest {
+
+    private static final String URL = "http://localhost:8084";
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(8084), 0);
+        server.createContext("/notes", new NotesHandler(new InMemoryNoteStore()));
+        server.setExecutor(null);
+        server.start();
+
+        testNoteNotModified();
+        testListNotModified();
+        testUpdateIfMatch();
+        testDeleteIfMatch();
+        testRepresentationETags();
+
+        server.stop(0);
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that a note read with the ETag it was last read with comes back as 304 until the note changes
+     */
+    private static void testNoteNotModified() throws Exception {
+        String path = "/notes/" + create("Conditional note");
+        Response first = request("GET", path, null, null, null);
+        assert first.status == 200 && first.etag != null : "Expected the note with an ETag";
+
+        Response again = request("GET", path, null, "If-None-Match", first.etag);
+        assert again.status == 304 && again.body.isEmpty() : "Expected 304 without a body but got " + again.status;
+        assert first.etag.equals(again.etag) : "Expected the ETag sent with the 304";
+        assert request("GET", path, null, "If-None-Match", "\"1\", W/" + first.etag).status == 304 : "Expected a weak ETag in a list to match";
+        assert request("GET", path, null, "If-None-Match", "*").status == 304 : "Expected * to match a note that exists";
+        assert request("GET", path, null, "If-None-Match", "\"other\"").status == 200 : "Expected another ETag to get the note";
+
+        assert request("PUT", path, "content=Changed", null, null).status == 200 : "Expected the update to work";
+        Response changed = request("GET", path, null, "If-None-Match", first.etag);
+        assert changed.status == 200 && changed.body.contains("Changed") : "Expected the changed note";
+        assert !first.etag.equals(changed.etag) : "Expected a new ETag after the update";
+
+        Response missing = request("GET", "/notes/" + UUID.randomUUID(), null, "If-None-Match", "*");
+        assert missing.status == 200 && missing.body.equals("Note not found") : "Expected * not to match a missing note";
+        System.out.println("Note not modified test passed.");
+    }
+
+    /**
+     * Test that a list read with its ETag comes back as 304 until any note is written
+     */
+    private static void testListNotModified() throws Exception {
+        Response first = request("GET", "/notes?limit=5", null, null, null);
+        assert first.status == 200 && first.etag != null : "Expected the list with an ETag";
+        assert request("GET", "/notes?limit=5", null, "If-None-Match", first.etag).status == 304 : "Expected 304 for an unchanged list";
+
+        create("Another note");
+        Response changed = request("GET", "/notes?limit=5", null, "If-None-Match", first.etag);
+        assert changed.status == 200 && changed.body.contains("Another note") : "Expected the list again after a save";
+        assert !first.etag.equals(changed.etag) : "Expected a new ETag after a save";
+
+        assert request("GET", "/notes?limit=0", null, "If-None-Match", changed.etag).status == 400 : "Expected bad input checked before the ETag";
+        System.out.println("List not modified test passed.");
+    }
+
+    /**
+     * Test that an update with If-Match only goes through for the version the client has
+     */
+    private static void testUpdateIfMatch() throws Exception {
+        String path = "/notes/" + create("Original");
+        String etag = request("GET", path, null, null, null).etag;
+
+        Response updated = request("PUT", path, "content=First+edit", "If-Match", etag);
+        assert updated.status == 200 && updated.etag != null && !updated.etag.equals(etag) : "Expected the update with a new ETag";
+
+        Response stale = request("PUT", path, "content=Lost+edit", "If-Match", etag);
+        assert stale.status == 412 : "Expected 412 for an old ETag but got " + stale.status;
+        assert request("GET", path, null, null, null).body.contains("First edit") : "Expected the stale update not to be saved";
+
+        assert request("PUT", path, "content=Weak", "If-Match", "W/" + updated.etag).status == 412 : "Expected a weak ETag not to match";
+        assert request("PUT", path, "content=Listed", "If-Match", "\"1\", " + updated.etag).status == 200 : "Expected an ETag in a list to match";
+        assert request("PUT", path, "content=Any", "If-Match", "*").status == 200 : "Expected * to match a note that exists";
+        assert request("PUT", "/notes/" + UUID.randomUUID(), "content=Missing", "If-Match", "*").status == 412 : "Expected * not to match a missing note";
+        assert request("PUT", path, "content=Unconditional", null, null).status == 200 : "Expected updates without If-Match to still work";
+        System.out.println("Update If-Match test passed.");
+    }
+
+    /**
+     * Test that a delete with If-Match only goes through for the version the client has
+     */
+    private static void testDeleteIfMatch() throws Exception {
+        String path = "/notes/" + create("To delete");
+        String etag = request("GET", path, null, null, null).etag;
+        request("PUT", path, "content=Edited", null, null);
+
+        assert request("DELETE", path, null, "If-Match", etag).status == 412 : "Expected 412 for an old ETag";
+        String current = request("GET", path, null, null, null).etag;
+        assert request("DELETE", path, null, "If-Match", current).status == 204 : "Expected the delete for the current ETag";
+        assert request("DELETE", path, null, "If-Match", current).status == 412 : "Expected 412 once the note is gone";
+        System.out.println("Delete If-Match test passed.");
+    }
+
+    /**
+     * Test that each format and compression of a note or list has its own ETag, that a read only gets a 304 for the
+     * tag of what it asked for, and that an update accepts the tag of any of them
+     */
+    private static void testRepresentationETags() throws Exception {
+        String path = "/notes/" + create("Represented");
+        String text = request("GET", path, null, null, null).etag;
+        String json = request("GET", path, null, "Accept", "application/json").etag;
+        String gzip = request("GET", path, null, "Accept-Encoding", "gzip").etag;
+        String jsonGzip = request("GET", path, null, new String[] {"Accept", "application/json", "Accept-Encoding", "gzip"}).etag;
+        assert text.matches("\"\\d+\"") : "Expected the plain text ETag to stay the version but got " + text;
+        String version = text.substring(1, text.length() - 1);
+        assert json.equals("\"" + version + "-json\"") : "Expected a JSON ETag but got " + json;
+        assert gzip.endsWith("-gzip\"") && jsonGzip.endsWith("-json-gzip\"") : "Expected gzip ETags but got " + gzip + " and " + jsonGzip;
+
+        assert request("GET", path, null, "If-None-Match", json).status == 200 : "Expected the JSON ETag not to match the text note";
+        assert request("GET", path, null, new String[] {"Accept", "application/json", "If-None-Match", json}).status == 304 : "Expected the JSON ETag to match the JSON note";
+        Response zipped = request("GET", path, null, new String[] {"Accept-Encoding", "gzip", "If-None-Match", gzip});
+        assert zipped.status == 304 && gzip.equals(zipped.etag) : "Expected the gzip ETag to match the gzip note";
+
+        String list = request("GET", "/notes?limit=5", null, null, null).etag;
+        String listGzip = request("GET", "/notes?limit=5", null, "Accept-Encoding", "gzip").etag;
+        assert !list.equals(listGzip) : "Expected the compressed list to have its own ETag";
+        assert request("GET", "/notes?limit=5", null, "If-None-Match", listGzip).status == 200 : "Expected the gzip ETag not to match the plain list";
+
+        assert request("PUT", path, "content=From+JSON", "If-Match", jsonGzip).status == 200 : "Expected any representation of the version to match";
+        assert request("PUT", path, "content=Stale", "If-Match", json).status == 412 : "Expected 412 for an old JSON ETag";
+        String current = request("GET", path, null, null, null).etag;
+        String unknown = current.substring(0, current.length() - 1) + "-xml\"";
+        assert request("PUT", path, "content=Unknown", "If-Match", unknown).status == 412 : "Expected an unknown suffix not to match";
+        System.out.println("Representation ETags test passed.");
+    }
+
+    /**
+     * Save a new note
+     * @return its id
+     */
+    private static UUID create(String content) throws Exception {
+        UUID id = UUID.randomUUID();
+        String body = "id=" + id + "&content=" + content.replace(' ', '+') + "&timestamp=" + Instant.now();
+        assert request("POST", "/notes", body, null, null).status == 201 : "Expected the note to be created";
+        return id;
+    }
+
+    private static Response request(String method, String path, String body, String header, String value) throws Exception {
+        return request(method, path, body, header == null ? new String[0] : new String[] {header, value});
+    }
+
+    /**
+     * @param headers Request header names each followed by its value
+     */
+    private static Response request(String method, String path, String body, String[] headers) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI(URL + path).toURL().openConnection();
+        connection.setRequestMethod(method);
+        for (int i = 0; i < headers.length; i += 2) {
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String text = "";
+        if (in != null) {
+            text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            in.close();
+        }
+        return new Response(status, connection.getHeaderField("ETag"), text);
+    }
+
+    private record Response(int status, String etag, String body) {
+    }
+}
@@ -0,0 +1,430 @@
+package com.notes.test;
+
+import com.notes.ConnectionPool;
+import com.notes.PooledConnection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Business logic test for the connection pool against stub connections: reuse, borrow timeouts, connections that
+ * come back broken and the statements each connection keeps prepared
+ */
+public class ConnectionPoolTest {
+
+    public static void main(String[] args) throws Exception {
+        testReuse();
+        testBorrowTimeout();
+        testBrokenConnectionDiscarded();
+        testOpenTransactionRolledBack();
+        testInvalidIdleConnectionReplaced();
+        testFailedOpenReleasesPermit();
+        testStatementReuse();
+        testStatementCacheEvictsLeastRecentlyUsed();
+        testStatementsClosedWithConnection();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that a returned connection is handed out again instead of a new one, most recently returned first
+     */
+    private static void testReuse() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 2, 1000)) {
+            Connection first;
+            try (PooledConnection pooled = pool.borrow()) {
+                first = pooled.connection();
+            }
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection() == first : "Expected the returned connection to be reused";
+            }
+            assert pool.getConnectionsCreated() == 1 && db.connections().size() == 1 : "Expected one connection opened";
+
+            PooledConnection a = pool.borrow();
+            PooledConnection b = pool.borrow();
+            assert pool.getActiveConnections() == 2 && pool.getOpenConnections() == 2;
+            a.close();
+            b.close();
+            assert pool.getIdleConnections() == 2 && pool.getActiveConnections() == 0;
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection() == b.connection() : "Expected the most recently returned connection first";
+            }
+
+            // Closing twice must not hand the connection back twice
+            b.close();
+            assert pool.getIdleConnections() == 2 : "Expected a second close to be ignored";
+        }
+        for (StubDatabase.StubConnection connection : db.connections()) {
+            assert connection.isClosed() : "Expected the pool to close its connections when it is closed";
+        }
+        System.out.println("Reuse test passed.");
+    }
+
+    /**
+     * Test that borrowing from a pool with every connection in use fails after the acquire timeout and works again
+     * once a connection is returned
+     */
+    private static void testBorrowTimeout() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 1, 100)) {
+            PooledConnection held = pool.borrow();
+            long start = System.nanoTime();
+            try {
+                pool.borrow();
+                assert false : "Expected the borrow to time out";
+            } catch (SQLTransientConnectionException e) {
+                long waitedMillis = (System.nanoTime() - start) / 1_000_000;
+                assert waitedMillis >= 90 : "Expected the borrow to wait for the timeout but it gave up after " + waitedMillis + "ms";
+            }
+            assert pool.getAcquireTimeouts() == 1 : "Expected the timeout counted";
+            assert pool.getMaxAcquireWaitNanos() >= 90_000_000 : "Expected the wait kept as the longest so far";
+
+            held.close();
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection() == held.connection() : "Expected the connection once it was returned";
+            }
+            assert db.connections().size() == 1 : "Expected no connection opened past the pool size";
+        }
+        System.out.println("Borrow timeout test passed.");
+    }
+
+    /**
+     * Test that a connection marked broken or whose state can not be reset is closed when it is returned
+     */
+    private static void testBrokenConnectionDiscarded() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 2, 1000)) {
+            PooledConnection broken = pool.borrow();
+            broken.markBroken();
+            broken.close();
+            assert db.connections().get(0).isClosed() : "Expected the broken connection closed";
+            assert pool.getOpenConnections() == 0 && pool.getIdleConnections() == 0 : "Expected the broken connection dropped";
+            assert pool.getConnectionsEvicted() == 1;
+
+            PooledConnection failing = pool.borrow();
+            assert failing.connection() != broken.connection() : "Expected a new connection";
+            db.connections().get(1).failReset();
+            failing.close();
+            assert db.connections().get(1).isClosed() : "Expected a connection that failed its reset closed";
+            assert pool.getOpenConnections() == 0 && pool.getActiveConnections() == 0 : "Expected the permit back";
+
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection() == db.connections().get(2).connection() : "Expected a third connection";
+            }
+        }
+        System.out.println("Broken connection discarded test passed.");
+    }
+
+    /**
+     * Test that a connection returned in the middle of a transaction is rolled back before it is reused
+     */
+    private static void testOpenTransactionRolledBack() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 1, 1000)) {
+            try (PooledConnection pooled = pool.borrow()) {
+                pooled.connection().setAutoCommit(false);
+            }
+            StubDatabase.StubConnection connection = db.connections().get(0);
+            assert connection.rollbacks() == 1 : "Expected the open transaction rolled back";
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection().getAutoCommit() : "Expected auto commit turned back on";
+            }
+            assert connection.rollbacks() == 1 : "Expected no rollback for a connection left in auto commit";
+        }
+        System.out.println("Open transaction rolled back test passed.");
+    }
+
+    /**
+     * Test that an idle connection that fails validation is closed and replaced instead of handed out
+     */
+    private static void testInvalidIdleConnectionReplaced() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 1, 1000)) {
+            pool.borrow().close();
+            db.connections().get(0).invalidate();
+            // Connections used in the last half second skip validation
+            Thread.sleep(600);
+
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection() == db.connections().get(1).connection() : "Expected a new connection";
+            }
+            assert db.connections().get(0).isClosed() : "Expected the invalid connection closed";
+            assert pool.getValidationFailures() == 1 : "Expected the failed validation counted";
+            assert pool.getOpenConnections() == 1;
+        }
+        System.out.println("Invalid idle connection replaced test passed.");
+    }
+
+    /**
+     * Test that a connection that can not be opened does not use up a place in the pool
+     */
+    private static void testFailedOpenReleasesPermit() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 1, 100)) {
+            db.failConnect(true);
+            try {
+                pool.borrow();
+                assert false : "Expected the borrow to fail";
+            } catch (SQLException e) {
+                assert !(e instanceof SQLTransientConnectionException) : "Expected the open error, not a timeout";
+            }
+            assert pool.getActiveConnections() == 0 && pool.getOpenConnections() == 0 : "Expected the permit back";
+
+            db.failConnect(false);
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.connection() != null : "Expected a connection once the database is back";
+            }
+        }
+        System.out.println("Failed open releases permit test passed.");
+    }
+
+    /**
+     * Test that a query prepared again on the same connection gets the statement prepared the first time, with its
+     * parameters cleared, and that a statement closed by someone else is prepared again
+     */
+    private static void testStatementReuse() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 1, 1000)) {
+            PreparedStatement first;
+            try (PooledConnection pooled = pool.borrow()) {
+                first = pooled.prepare("SELECT 1");
+                first.setString(1, "left over");
+            }
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.prepare("SELECT 1") == first : "Expected the statement reused across borrows";
+            }
+            StubDatabase.StubStatement statement = db.connections().get(0).statements().get(0);
+            assert statement.parameters().length == 0 : "Expected the parameters cleared before reuse";
+            assert pool.getStatementCacheHits() == 1 && pool.getStatementCacheMisses() == 1;
+
+            first.close();
+            try (PooledConnection pooled = pool.borrow()) {
+                assert pooled.prepare("SELECT 1") != first : "Expected a closed statement prepared again";
+            }
+            assert db.connections().get(0).statements().size() == 2 && pool.getStatementCacheMisses() == 2;
+        }
+        System.out.println("Statement reuse test passed.");
+    }
+
+    /**
+     * Test that once a connection holds as many statements as the cache size the least recently used one is closed
+     * to make room
+     */
+    private static void testStatementCacheEvictsLeastRecentlyUsed() throws Exception {
+        StubDatabase db = new StubDatabase();
+        // Two statements per connection
+        try (ConnectionPool pool = pool(db, 1, 1000); PooledConnection pooled = pool.borrow()) {
+            PreparedStatement a = pooled.prepare("SELECT 'a'");
+            PreparedStatement b = pooled.prepare("SELECT 'b'");
+            assert pooled.prepare("SELECT 'a'") == a : "Expected a cached";
+            pooled.prepare("SELECT 'c'");
+
+            List<StubDatabase.StubStatement> statements = db.connections().get(0).statements();
+            assert statements.get(1).isClosed() : "Expected b closed as the least recently used";
+            assert !statements.get(0).isClosed() && !statements.get(2).isClosed() : "Expected a and c kept open";
+            assert pooled.prepare("SELECT 'a'") == a : "Expected a still cached";
+
+            assert pooled.prepare("SELECT 'b'") != b : "Expected b prepared again after it was evicted";
+            assert statements.get(2).isClosed() : "Expected c closed once b came back";
+            assert pool.getStatementCacheHits() == 2 && pool.getStatementCacheMisses() == 4;
+        }
+        System.out.println("Statement cache evicts least recently used test passed.");
+    }
+
+    /**
+     * Test that the statements a connection kept are closed along with it
+     */
+    private static void testStatementsClosedWithConnection() throws Exception {
+        StubDatabase db = new StubDatabase();
+        try (ConnectionPool pool = pool(db, 1, 1000)) {
+            try (PooledConnection pooled = pool.borrow()) {
+                pooled.prepare("SELECT 'a'");
+                pooled.prepare("SELECT 'b'");
+                pooled.markBroken();
+            }
+            for (StubDatabase.StubStatement statement : db.connections().get(0).statements()) {
+                assert statement.isClosed() : "Expected " + statement.sql() + " closed with its connection";
+            }
+        }
+        System.out.println("Statements closed with connection test passed.");
+    }
+
+    private static ConnectionPool pool(StubDatabase db, int size, long acquireTimeoutMillis) {
+        return new ConnectionPool(db::connect, size, acquireTimeoutMillis, 60_000, 600_000, 1, 2);
+    }
+
+    /**
+     * Stands in for the database, opening connections that only keep the state the pool looks at and the statements
+     * prepared on them
+     */
+    private static final class StubDatabase {
+
+        private final List<StubConnection> connections = new CopyOnWriteArrayList<>();
+        private volatile boolean failConnect;
+
+        /**
+         * @return every connection opened so far, in the order they were opened
+         */
+        public List<StubConnection> connections() {
+            return connections;
+        }
+
+        /**
+         * Make opening a connection fail, like a database that is down
+         */
+        public void failConnect(boolean failConnect) {
+            this.failConnect = failConnect;
+        }
+
+        /**
+         * Open a new connection, what the pool calls when it needs one
+         */
+        public Connection connect() throws SQLException {
+            if (failConnect) {
+                throw new SQLException("Connection refused");
+            }
+            StubConnection connection = new StubConnection();
+            connections.add(connection);
+            return connection.proxy;
+        }
+
+        /**
+         * Connection that records rollbacks, the statements prepared on it and whether it was closed
+         */
+        public static final class StubConnection {
+            private final Connection proxy = proxy(Connection.class, this::invoke);
+            private final List<StubStatement> statements = new CopyOnWriteArrayList<>();
+            private volatile boolean autoCommit = true;
+            private volatile boolean valid = true;
+            private volatile boolean failReset;
+            private volatile boolean closed;
+            private volatile int rollbacks;
+
+            public Connection connection() {
+                return proxy;
+            }
+
+            public List<StubStatement> statements() {
+                return statements;
+            }
+
+            public boolean isClosed() {
+                return closed;
+            }
+
+            public int rollbacks() {
+                return rollbacks;
+            }
+
+            /**
+             * Make isValid fail, like a connection the database has dropped
+             */
+            public void invalidate() {
+                valid = false;
+            }
+
+            /**
+             * Make getAutoCommit fail, so the pool can not reset the connection when it is returned
+             */
+            public void failReset() {
+                failReset = true;
+            }
+
+            private Object invoke(Method method, Object[] args) throws SQLException {
+                switch (method.getName()) {
+                    case "prepareStatement" -> {
+                        StubStatement statement = new StubStatement((String) args[0]);
+                        statements.add(statement);
+                        return statement.proxy;
+                    }
+                    case "setAutoCommit" -> autoCommit = (Boolean) args[0];
+                    case "getAutoCommit" -> {
+                        if (failReset) {
+                            throw new SQLException("Connection reset");
+                        }
+                        return autoCommit;
+                    }
+                    case "rollback" -> rollbacks++;
+                    case "isValid" -> {
+                        return valid && !closed;
+                    }
+                    case "isClosed" -> {
+                        return closed;
+                    }
+                    case "close" -> closed = true;
+                    default -> throw new SQLFeatureNotSupportedException(method.getName());
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Prepared statement that keeps its parameters and whether it was closed
+         */
+        public static final class StubStatement {
+            private final PreparedStatement proxy = proxy(PreparedStatement.class, this::invoke);
+            private final String sql;
+            private volatile Object[] parameters = new Object[0];
+            private volatile boolean closed;
+
+            private StubStatement(String sql) {
+                this.sql = sql;
+            }
+
+            public String sql() {
+                return sql;
+            }
+
+            public Object[] parameters() {
+                return parameters;
+            }
+
+            public boolean isClosed() {
+                return closed;
+            }
+
+            private Object invoke(Method method, Object[] args) throws SQLException {
+                switch (method.getName()) {
+                    case "setObject", "setString", "setInt", "setLong" -> {
+                        int index = (Integer) args[0];
+                        if (parameters.length < index) {
+                            parameters = Arrays.copyOf(parameters, index);
+                        }
+                        parameters[index - 1] = args[1];
+                    }
+                    case "clearParameters" -> parameters = new Object[0];
+                    case "isClosed" -> {
+                        return closed;
+                    }
+                    case "close" -> closed = true;
+                    default -> throw new SQLFeatureNotSupportedException(method.getName());
+                }
+                return null;
+            }
+        }
+
+        private interface Call {
+            Object invoke(Method method, Object[] args) throws SQLException;
+        }
+
+        private static <T> T proxy(Class<T> type, Call call) {
+            InvocationHandler handler = (proxy, method, args) -> switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default -> call.invoke(method, args);
+            };
+            return type.cast(Proxy.newProxyInstance(StubDatabase.class.getClassLoader(), new Class<?>[]{type}, handler));
+        }
+    }
+}
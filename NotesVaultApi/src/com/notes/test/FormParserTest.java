@@ -0,0 +1,231 @@
+package com.notes.test;
+
+import com.notes.FormParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Business logic test for the form body and query string parser
+ */
+public class FormParserTest {
+
+    public static void main(String[] args) throws Exception {
+        testDecoding();
+        testLastValueWins();
+        testInvalidEscapes();
+        testUUIDs();
+        testInstantsMatchInstantParse();
+        testInvalidInstants();
+        testInts();
+        testOversizeBodyRejectedEarly();
+        testOversizeBodyWithoutLength();
+        testPooledParserStartsEmpty();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that percent escapes, multibyte UTF-8 and + are decoded and fields without a value are still there
+     */
+    private static void testDecoding() throws IOException {
+        try (FormParser form = body("content=caf%C3%A9+%26+more%3D&flag&empty=&%6Eame=x")) {
+            assert form.getString("content").equals("café & more=") : "Expected decoded content but got " + form.getString("content");
+            assert form.has("flag") && form.getString("flag").isEmpty() : "Expected a field without a value";
+            assert form.getString("empty").isEmpty() : "Expected an empty value";
+            assert form.getString("name").equals("x") : "Expected names to be decoded too";
+            assert !form.has("missing") && form.getString("missing") == null : "Expected a missing field";
+            assert form.getString("missing", "default").equals("default") : "Expected the default for a missing field";
+        }
+
+        try (FormParser query = FormParser.acquire()) {
+            query.parseQuery("search=h%C3%A9llo&limit=5");
+            assert query.getString("search").equals("héllo") : "Expected the query decoded";
+            query.parseQuery("search=héllo wörld");
+            assert query.getString("search").equals("héllo wörld") : "Expected characters that were not encoded to be kept";
+            try {
+                // Fits in the buffer as chars but not once they are UTF-8
+                query.parseQuery("search=" + "é".repeat(FormParser.MAX_BODY_BYTES / 2));
+                assert false : "Expected a query too long once encoded to be turned down";
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().contains("too long");
+            }
+            query.parseQuery(null);
+            assert !query.has("search") : "Expected no fields without a query";
+        }
+        System.out.println("Decoding test passed.");
+    }
+
+    /**
+     * Test that a field sent twice uses the last value like the old parser did
+     */
+    private static void testLastValueWins() throws IOException {
+        try (FormParser form = body("content=first&&content=second&")) {
+            assert form.getString("content").equals("second") : "Expected the last value";
+        }
+        System.out.println("Last value wins test passed.");
+    }
+
+    /**
+     * Test that broken percent escapes are turned down
+     */
+    private static void testInvalidEscapes() throws IOException {
+        for (String bad : new String[]{"content=%zz", "content=abc%4", "content=%", "a=%G1"}) {
+            try (FormParser form = FormParser.acquire()) {
+                form.readBody(stream(bad), -1);
+                assert false : "Expected " + bad + " to be turned down";
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        System.out.println("Invalid escapes test passed.");
+    }
+
+    /**
+     * Test that UUIDs are read straight from the bytes and anything else is not a UUID
+     */
+    private static void testUUIDs() throws IOException {
+        UUID id = UUID.randomUUID();
+        try (FormParser form = body("id=" + id + "&upper=" + id.toString().toUpperCase() + "&short=1-2-3-4-5&bad=" + id.toString().replace('-', 'x'))) {
+            assert form.getUUID("id").equals(id) : "Expected the UUID";
+            assert form.getUUID("upper").equals(id) : "Expected upper case hex to work";
+            assert form.getUUID("short") == null : "Expected only the full form";
+            assert form.getUUID("bad") == null : "Expected dashes in the right places";
+            assert form.getUUID("missing") == null : "Expected null when missing";
+        }
+        assert id.equals(FormParser.parseUUID("/notes/" + id, 7, 43)) : "Expected the UUID from a path";
+        assert FormParser.parseUUID("/notes/" + id + "/", 7, 44) == null : "Expected extra characters to be turned down";
+        System.out.println("UUIDs test passed.");
+    }
+
+    /**
+     * Test that instants read from the bytes are the same as Instant.parse for every shape of fraction and a spread
+     * of dates including leap days and dates before 1970
+     */
+    private static void testInstantsMatchInstantParse() throws IOException {
+        Random random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            Instant expected = Instant.ofEpochSecond(random.nextLong(-62_000_000_000L, 250_000_000_000L),
+                    random.nextInt(4) == 0 ? 0 : random.nextInt(1_000_000_000));
+            String text = expected.toString();
+            try (FormParser form = body("timestamp=" + text.replace(":", "%3A"))) {
+                assert form.getInstant("timestamp").equals(expected) : "Expected " + expected + " but got " + form.getInstant("timestamp");
+            }
+        }
+        for (String text : new String[]{"2024-02-29T23:59:59Z", "2000-03-01T00:00:00.5Z", "1969-12-31T23:59:59.999999999Z",
+                "0001-01-01T00:00:00Z", "2026-01-31T12:00:00+01:00", "2026-01-01T24:00:00Z",
+                "2026-01-01T00:00:00.Z"}) {
+            assert FormParser.parseInstant(text, 0, text.length()).equals(Instant.parse(text)) : "Expected the same as Instant.parse for " + text;
+        }
+        System.out.println("Instants match Instant.parse test passed.");
+    }
+
+    /**
+     * Test that anything Instant.parse turns down is turned down too
+     */
+    private static void testInvalidInstants() {
+        for (String text : new String[]{"2023-02-29T00:00:00Z", "2026-13-01T00:00:00Z", "2026-01-01T25:00:00Z",
+                "2026-01-01T00:00:00.1234567890Z", "2026-01-01 00:00:00Z", "IAMNOTATIMESTAMP", ""}) {
+            try {
+                FormParser.parseInstant(text, 0, text.length());
+                assert false : "Expected " + text + " to be turned down";
+            } catch (DateTimeParseException e) {
+                // Expected
+            }
+        }
+        System.out.println("Invalid instants test passed.");
+    }
+
+    /**
+     * Test whole numbers the way Integer.parseInt reads them
+     */
+    private static void testInts() throws IOException {
+        try (FormParser form = body("limit=50&negative=-3&plus=%2B7&min=-2147483648")) {
+            assert form.getInt("limit", 100) == 50 : "Expected the limit";
+            assert form.getInt("negative", 0) == -3 && form.getInt("plus", 0) == 7 : "Expected signs";
+            assert form.getInt("min", 0) == Integer.MIN_VALUE : "Expected the smallest int";
+            assert form.getInt("missing", 100) == 100 : "Expected the default";
+        }
+        for (String bad : new String[]{"", "-", "abc", "12a", "2147483648", "99999999999999999999"}) {
+            try {
+                FormParser.parseInt(bad, 0, bad.length());
+                assert false : "Expected " + bad + " to be turned down";
+            } catch (NumberFormatException e) {
+                // Expected
+            }
+        }
+        System.out.println("Ints test passed.");
+    }
+
+    /**
+     * Test that a body whose Content-Length is too large is turned down without reading any of it
+     */
+    private static void testOversizeBodyRejectedEarly() throws IOException {
+        InputStream unreadable = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("Expected the body not to be read");
+            }
+        };
+        try (FormParser form = FormParser.acquire()) {
+            assert !form.readBody(unreadable, FormParser.MAX_BODY_BYTES + 1) : "Expected the body to be turned down";
+        }
+
+        String exact = "content=" + "a".repeat(FormParser.MAX_BODY_BYTES - "content=".length());
+        try (FormParser form = FormParser.acquire()) {
+            assert form.readBody(stream(exact), exact.length()) : "Expected a body of exactly the max to be read";
+            assert form.getString("content").length() == FormParser.MAX_BODY_BYTES - "content=".length() : "Expected all of it";
+        }
+        System.out.println("Oversize body rejected early test passed.");
+    }
+
+    /**
+     * Test that a body without a length stops being read once it is over the max
+     */
+    private static void testOversizeBodyWithoutLength() throws IOException {
+        int[] served = new int[1];
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                served[0]++;
+                return 'a';
+            }
+        };
+        try (FormParser form = FormParser.acquire()) {
+            assert !form.readBody(endless, -1) : "Expected the body to be turned down";
+        }
+        assert served[0] == FormParser.MAX_BODY_BYTES + 1 : "Expected reading to stop one byte past the max but read " + served[0];
+        System.out.println("Oversize body without length test passed.");
+    }
+
+    /**
+     * Test that a parser taken from the pool does not still have the last request's fields
+     */
+    private static void testPooledParserStartsEmpty() throws IOException {
+        try (FormParser form = body("content=secret")) {
+            assert form.has("content") : "Expected the field";
+        }
+        for (int i = 0; i < 100; i++) {
+            try (FormParser form = FormParser.acquire()) {
+                assert !form.has("content") : "Expected a parser from the pool to start empty";
+            }
+        }
+        System.out.println("Pooled parser starts empty test passed.");
+    }
+
+    private static FormParser body(String body) throws IOException {
+        FormParser form = FormParser.acquire();
+        assert form.readBody(stream(body), -1) : "Expected the body to fit";
+        return form;
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,447 @@
+package com.notes.test;
+
+import com.notes.ConnectionPool;
+import com.notes.GroupCommitWriter;
+import com.notes.Note;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Business logic test for group commit against a stub database: inserts sharing batches, a failed batch falling back
+ * to one insert per note and close writing what was already queued
+ */
+public class GroupCommitWriterTest {
+
+    private static final String INSERT = "INSERT INTO note (id, content, created_at) VALUES (?, ?, ?)";
+    private static final String BAD = "duplicate";
+
+    public static void main(String[] args) throws Exception {
+        testConcurrentInsertsShareBatches();
+        testFailedBatchFallsBackPerNote();
+        testCloseDrainsQueue();
+        testCloseWhenIdle();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that notes inserted at the same time are written in fewer batches than notes and each caller gets its row
+     */
+    private static void testConcurrentInsertsShareBatches() throws Exception {
+        StubDatabase db = new StubDatabase();
+        ConnectionPool pool = pool(db);
+        // Slow commits so inserts pile up behind the one being written
+        db.onBatch(rows -> {
+            sleep(20);
+            int[] counts = new int[rows.size()];
+            Arrays.fill(counts, 1);
+            return counts;
+        });
+        GroupCommitWriter writer = new GroupCommitWriter(pool, INSERT, 10, 5, 1000);
+        try {
+            List<CompletableFuture<Integer>> results = insertAll(writer, 50, i -> "note " + i);
+            for (CompletableFuture<Integer> result : results) {
+                assert result.get(5, TimeUnit.SECONDS) == 1 : "Expected every insert to report its row";
+            }
+
+            List<Integer> sizes = db.connections().get(0).statements().get(0).batchSizes();
+            assert sizes.stream().mapToInt(Integer::intValue).sum() == 50 : "Expected every note written once but got " + sizes;
+            assert sizes.size() < 50 : "Expected notes to share batches but got " + sizes;
+            assert sizes.stream().allMatch(size -> size <= 10) : "Expected no batch over the max size but got " + sizes;
+            assert writer.getBatches() == sizes.size() && writer.getRowsWritten() == 50;
+            assert writer.getBatchRows().getCount() == sizes.size() : "Expected a batch size recorded per batch";
+            assert writer.getBatchRows().getSum() == 50;
+            assert writer.getBatchRows().getMax() == writer.getMaxBatchRows();
+            assert db.connections().get(0).commits() == sizes.size() : "Expected one commit per batch";
+        } finally {
+            writer.close();
+            pool.close();
+        }
+        System.out.println("Concurrent inserts share batches test passed.");
+    }
+
+    /**
+     * Test that when one note breaks the batch it is rolled back and the notes are inserted one at a time, so only the
+     * caller with the bad note sees the error
+     */
+    private static void testFailedBatchFallsBackPerNote() throws Exception {
+        StubDatabase db = new StubDatabase();
+        ConnectionPool pool = pool(db);
+        db.onBatch(rows -> {
+            sleep(20);
+            for (Object[] row : rows) {
+                if (BAD.equals(row[1])) {
+                    throw new SQLException("duplicate key value violates unique constraint", "23505");
+                }
+            }
+            int[] counts = new int[rows.size()];
+            Arrays.fill(counts, 1);
+            return counts;
+        });
+        List<Object> updated = new ArrayList<>();
+        db.onUpdate(parameters -> {
+            if (BAD.equals(parameters[1])) {
+                throw new SQLException("duplicate key value violates unique constraint", "23505");
+            }
+            synchronized (updated) {
+                updated.add(parameters[1]);
+            }
+            return 1;
+        });
+        GroupCommitWriter writer = new GroupCommitWriter(pool, INSERT, 10, 50, 1000);
+        try {
+            List<CompletableFuture<Integer>> results = insertAll(writer, 5, i -> i == 2 ? BAD : "note " + i);
+            for (int i = 0; i < results.size(); i++) {
+                if (i == 2) {
+                    try {
+                        results.get(i).get(5, TimeUnit.SECONDS);
+                        assert false : "Expected the bad note to fail";
+                    } catch (ExecutionException e) {
+                        assert e.getCause() instanceof SQLException sql && "23505".equals(sql.getSQLState())
+                                : "Expected the bad note to get its own error but got " + e.getCause();
+                    }
+                } else {
+                    assert results.get(i).get(5, TimeUnit.SECONDS) == 1 : "Expected note " + i + " inserted on its own";
+                }
+            }
+            assert writer.getFailedBatches() >= 1 : "Expected the batch to be counted as failed";
+            assert updated.size() == 4 : "Expected the four good notes inserted one at a time but got " + updated;
+            assert db.connections().get(0).rollbacks() >= 1 : "Expected the failed batch rolled back";
+            assert db.connections().get(0).connection().getAutoCommit() : "Expected the connection back in autocommit";
+
+            // Once the bad note is gone batches go through again
+            db.onUpdate(parameters -> {
+                throw new SQLException("Expected no single inserts");
+            });
+            assert writer.insert(note("after")) == 1 : "Expected the next batch to commit";
+        } finally {
+            writer.close();
+            pool.close();
+        }
+        System.out.println("Failed batch falls back per note test passed.");
+    }
+
+    /**
+     * Test that close stops new inserts but waits for the queued ones to commit instead of failing them
+     */
+    private static void testCloseDrainsQueue() throws Exception {
+        StubDatabase db = new StubDatabase();
+        ConnectionPool pool = pool(db);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        db.onBatch(rows -> {
+            writing.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            int[] counts = new int[rows.size()];
+            Arrays.fill(counts, 1);
+            return counts;
+        });
+        GroupCommitWriter writer = new GroupCommitWriter(pool, INSERT, 2, 0, 1000);
+        try {
+            // The first batch holds the writer while the rest wait in the queue
+            CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> insert(writer, note("first")));
+            assert writing.await(5, TimeUnit.SECONDS) : "Expected the first batch to start";
+            List<CompletableFuture<Integer>> queued = insertAll(writer, 5, i -> "queued " + i);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (writer.getQueuedInserts() < 5) {
+                assert System.nanoTime() < deadline : "Expected the notes to be queued";
+                Thread.sleep(5);
+            }
+
+            CompletableFuture<Void> closing = CompletableFuture.runAsync(writer::close);
+            Thread.sleep(50);
+            assert !closing.isDone() : "Expected close to wait for the queue";
+            try {
+                writer.insert(note("late"));
+                assert false : "Expected inserts after close to be refused";
+            } catch (SQLException e) {
+                assert e.getMessage().contains("closed");
+            }
+
+            release.countDown();
+            closing.get(5, TimeUnit.SECONDS);
+            assert first.get(5, TimeUnit.SECONDS) == 1;
+            for (CompletableFuture<Integer> result : queued) {
+                assert result.get(5, TimeUnit.SECONDS) == 1 : "Expected the queued notes written before close returned";
+            }
+            assert writer.getRowsWritten() == 6 && writer.getQueuedInserts() == 0;
+        } finally {
+            release.countDown();
+            writer.close();
+            pool.close();
+        }
+        System.out.println("Close drains queue test passed.");
+    }
+
+    /**
+     * Test that closing a writer with nothing queued returns without waiting out the close timeout
+     */
+    private static void testCloseWhenIdle() throws Exception {
+        StubDatabase db = new StubDatabase();
+        ConnectionPool pool = pool(db);
+        GroupCommitWriter writer = new GroupCommitWriter(pool, INSERT, 10, 5, 1000);
+        long start = System.nanoTime();
+        writer.close();
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pool.close();
+        assert took < 1000 : "Expected an idle writer to close quickly but it took " + took + "ms";
+        assert db.connections().isEmpty() : "Expected an idle writer not to touch the database";
+        System.out.println("Close when idle test passed.");
+    }
+
+    private static ConnectionPool pool(StubDatabase db) {
+        return new ConnectionPool(db::connect, 1, 1000, 60_000, 600_000, 1, 10);
+    }
+
+    private static List<CompletableFuture<Integer>> insertAll(GroupCommitWriter writer, int count,
+                                                              IntFunction<String> content) {
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Note note = note(content.apply(i));
+            CompletableFuture<Integer> result = new CompletableFuture<>();
+            Thread.ofVirtual().start(() -> {
+                try {
+                    result.complete(writer.insert(note));
+                } catch (SQLException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static int insert(GroupCommitWriter writer, Note note) {
+        try {
+            return writer.insert(note);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Note note(String content) {
+        return new Note(UUID.randomUUID(), content, Instant.EPOCH);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stand-in database that hands out connections and prepared statements that remember what was done to them, and
+     * lets a test decide what batches and updates return or throw
+     */
+    private static final class StubDatabase {
+
+        /**
+         * Decides the result of an executeBatch, one count per row or an exception
+         */
+        public interface BatchResult {
+            int[] execute(List<Object[]> rows) throws SQLException;
+        }
+
+        /**
+         * Decides the result of an executeUpdate, the rows it changed or an exception
+         */
+        public interface UpdateResult {
+            int execute(Object[] parameters) throws SQLException;
+        }
+
+        private final List<StubConnection> connections = new CopyOnWriteArrayList<>();
+        private volatile BatchResult batchResult = rows -> {
+            int[] counts = new int[rows.size()];
+            Arrays.fill(counts, 1);
+            return counts;
+        };
+        private volatile UpdateResult updateResult = parameters -> 1;
+
+        /**
+         * @return every connection opened so far, in the order they were opened
+         */
+        public List<StubConnection> connections() {
+            return connections;
+        }
+
+        public void onBatch(BatchResult batchResult) {
+            this.batchResult = batchResult;
+        }
+
+        public void onUpdate(UpdateResult updateResult) {
+            this.updateResult = updateResult;
+        }
+
+        /**
+         * Open a new connection, what the pool calls when it needs one
+         */
+        public Connection connect() {
+            StubConnection connection = new StubConnection();
+            connections.add(connection);
+            return connection.proxy;
+        }
+
+        /**
+         * Connection that records commits, rollbacks and the statements prepared on it
+         */
+        public class StubConnection {
+            private final Connection proxy = proxy(Connection.class, this::invoke);
+            private final List<StubStatement> statements = new CopyOnWriteArrayList<>();
+            private volatile boolean autoCommit = true;
+            private volatile boolean valid = true;
+            private volatile boolean closed;
+            private volatile int commits;
+            private volatile int rollbacks;
+
+            public Connection connection() {
+                return proxy;
+            }
+
+            public List<StubStatement> statements() {
+                return statements;
+            }
+
+            public boolean isClosed() {
+                return closed;
+            }
+
+            public int commits() {
+                return commits;
+            }
+
+            public int rollbacks() {
+                return rollbacks;
+            }
+
+            /**
+             * Make isValid fail, like a connection the database has dropped
+             */
+            public void invalidate() {
+                valid = false;
+            }
+
+            private Object invoke(Method method, Object[] args) throws SQLException {
+                switch (method.getName()) {
+                    case "prepareStatement" -> {
+                        StubStatement statement = new StubStatement((String) args[0]);
+                        statements.add(statement);
+                        return statement.proxy;
+                    }
+                    case "setAutoCommit" -> autoCommit = (Boolean) args[0];
+                    case "getAutoCommit" -> {
+                        return autoCommit;
+                    }
+                    case "commit" -> commits++;
+                    case "rollback" -> rollbacks++;
+                    case "isValid" -> {
+                        return valid && !closed;
+                    }
+                    case "isClosed" -> {
+                        return closed;
+                    }
+                    case "close" -> closed = true;
+                    default -> throw new SQLFeatureNotSupportedException(method.getName());
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Prepared statement that keeps its parameters, its batch and whether it was closed
+         */
+        public class StubStatement {
+            private final PreparedStatement proxy = proxy(PreparedStatement.class, this::invoke);
+            private final String sql;
+            private final List<Object[]> batch = new ArrayList<>();
+            private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+            private Object[] parameters = new Object[0];
+            private volatile boolean closed;
+
+            private StubStatement(String sql) {
+                this.sql = sql;
+            }
+
+            public String sql() {
+                return sql;
+            }
+
+            public boolean isClosed() {
+                return closed;
+            }
+
+            /**
+             * @return how many rows each executeBatch sent
+             */
+            public List<Integer> batchSizes() {
+                return batchSizes;
+            }
+
+            private Object invoke(Method method, Object[] args) throws SQLException {
+                switch (method.getName()) {
+                    case "setObject", "setString", "setInt", "setLong", "setTimestamp" -> {
+                        int index = (Integer) args[0];
+                        if (parameters.length < index) {
+                            parameters = Arrays.copyOf(parameters, index);
+                        }
+                        parameters[index - 1] = args[1];
+                    }
+                    case "clearParameters" -> parameters = new Object[0];
+                    case "addBatch" -> batch.add(parameters.clone());
+                    case "clearBatch" -> batch.clear();
+                    case "executeBatch" -> {
+                        List<Object[]> rows = new ArrayList<>(batch);
+                        batch.clear();
+                        batchSizes.add(rows.size());
+                        return batchResult.execute(rows);
+                    }
+                    case "executeUpdate" -> {
+                        return updateResult.execute(parameters.clone());
+                    }
+                    case "isClosed" -> {
+                        return closed;
+                    }
+                    case "close" -> closed = true;
+                    default -> throw new SQLFeatureNotSupportedException(method.getName());
+                }
+                return null;
+            }
+        }
+
+        private interface Call {
+            Object invoke(Method method, Object[] args) throws SQLException;
+        }
+
+        private static <T> T proxy(Class<T> type, Call call) {
+            InvocationHandler handler = (proxy, method, args) -> switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default -> call.invoke(method, args);
+            };
+            return type.cast(Proxy.newProxyInstance(StubDatabase.class.getClassLoader(), new Class<?>[]{type}, handler));
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.notes.test;
+
+import com.notes.BulkImportResult;
+import com.notes.BulkNoteReader;
+import com.notes.InMemoryNoteStore;
+import com.notes.Note;
+import com.notes.NoteChangeListener;
+import com.notes.NoteCursor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Business logic test for the in memory note store
+ */
+public class InMemoryNoteStoreTest {
+
+    private final static Instant START = Instant.parse("2025-01-01T00:00:00Z");
+
+    public static void main(String[] args) throws Exception {
+        testCrud();
+        testVersions();
+        testPagedInCreationOrder();
+        testDateRange();
+        testSearch();
+        testImportAndExport();
+        testConcurrentWrites();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test create, read, update and delete and that listeners hear about each of them
+     */
+    private static void testCrud() throws Exception {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        AtomicInteger events = new AtomicInteger();
+        store.addChangeListener(new NoteChangeListener() {
+            @Override
+            public void noteSaved(Note note) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void noteUpdated(UUID id, String newContent) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void noteDeleted(UUID id) {
+                events.incrementAndGet();
+            }
+        });
+
+        Note note = note(0, "first");
+        store.persistNote(note);
+        assert store.getNoteById(note.getId()).getContent().equals("first") : "Expected the saved note";
+
+        boolean duplicateRejected = false;
+        try {
+            store.persistNote(note(1, "same id"));
+            store.persistNote(new Note(note.getId(), "same id", START));
+        } catch (RuntimeException e) {
+            duplicateRejected = true;
+        }
+        assert duplicateRejected : "Expected a second note with the same id to be rejected";
+
+        store.updateNote(note.getId(), "changed");
+        Note updated = store.getNoteById(note.getId());
+        assert updated.getContent().equals("changed") : "Expected the new content";
+        assert updated.getCreatedAt().equals(note.getCreatedAt()) : "Expected the creation time to stay the same";
+
+        store.deleteNote(note.getId());
+        assert store.getNoteById(note.getId()) == null : "Expected the note to be gone";
+        store.updateNote(note.getId(), "missing");
+        store.deleteNote(note.getId());
+
+        assert events.get() == 4 : "Expected save, save, update and delete events but got " + events.get();
+        System.out.println("CRUD test passed.");
+    }
+
+    /**
+     * Test that every write gives the note a new version, writes for an old version are turned down and the
+     * generation only moves when something was written
+     */
+    private static void testVersions() throws Exception {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        Note note = note(0, "first");
+        store.persistNote(note);
+        long first = store.getNoteVersion(note.getId());
+        assert first != 0 && store.getNoteById(note.getId()).getVersion() == first : "Expected the saved note to have a version";
+        assert store.getNoteVersion(UUID.randomUUID()) == 0 : "Expected no version for a missing note";
+
+        long generation = store.getGeneration();
+        long second = store.updateNote(note.getId(), "second", first);
+        assert second != 0 && second != first : "Expected the update to give a new version";
+        assert store.getNoteVersion(note.getId()) == second : "Expected the new version stored";
+        assert store.getGeneration() != generation : "Expected the generation to move on the update";
+
+        generation = store.getGeneration();
+        assert store.updateNote(note.getId(), "stale", first) == 0 : "Expected an update for an old version to be turned down";
+        assert !store.deleteNote(note.getId(), first) : "Expected a delete for an old version to be turned down";
+        assert store.getNoteById(note.getId()).getContent().equals("second") : "Expected the note left alone";
+        assert store.getGeneration() == generation : "Expected the generation to stay when nothing was written";
+
+        assert store.deleteNote(note.getId(), second) : "Expected a delete for the current version to go through";
+        store.persistNote(new Note(note.getId(), "again", START));
+        long recreated = store.getNoteVersion(note.getId());
+        assert recreated != first && recreated != second : "Expected a note saved again to get a version it never had";
+        System.out.println("Versions test passed.");
+    }
+
+    /**
+     * Test that pages come back in creation order and the cursor continues where the last page stopped
+     */
+    private static void testPagedInCreationOrder() throws Exception {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        List<Note> notes = new ArrayList<>();
+        // Saved out of order to make sure the store sorts them
+        for (int i = 24; i >= 0; i--) {
+            Note note = note(i, "note " + i);
+            store.persistNote(note);
+            notes.add(0, note);
+        }
+
+        List<Note> all = new ArrayList<>();
+        NoteCursor cursor = null;
+        int pages = 0;
+        do {
+            cursor = store.streamNotes(cursor, 10, all::add);
+            pages++;
+        } while (cursor != null);
+
+        assert pages == 3 : "Expected three pages but got " + pages;
+        assert all.equals(notes) : "Expected every note once in creation order";
+        System.out.println("Paged in creation order test passed.");
+    }
+
+    /**
+     * Test that a date range includes both ends and pages like the full list
+     */
+    private static void testDateRange() throws Exception {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        for (int i = 0; i < 10; i++) {
+            store.persistNote(note(i, "note " + i));
+        }
+
+        List<Note> found = new ArrayList<>();
+        NoteCursor cursor = store.getNotesByDateRange(START.plusSeconds(2), START.plusSeconds(6), null, 3, found::add);
+        assert cursor != null : "Expected a second page";
+        store.getNotesByDateRange(START.plusSeconds(2), START.plusSeconds(6), cursor, 3, found::add);
+
+        assert found.size() == 5 : "Expected the five notes in the range but got " + found.size();
+        assert found.get(0).getCreatedAt().equals(START.plusSeconds(2)) : "Expected the range start to be included";
+        assert found.get(4).getCreatedAt().equals(START.plusSeconds(6)) : "Expected the range end to be included";
+        System.out.println("Date range test passed.");
+    }
+
+    /**
+     * Test that search matches anywhere in the content and pages
+     */
+    private static void testSearch() throws Exception {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        for (int i = 0; i < 10; i++) {
+            store.persistNote(note(i, i % 2 == 0 ? "shopping list " + i : "other " + i));
+        }
+
+        List<Note> found = new ArrayList<>();
+        NoteCursor cursor = store.searchNotes("hopping", null, 3, found::add);
+        assert cursor != null : "Expected a second page";
+        assert store.searchNotes("hopping", cursor, 3, found::add) == null : "Expected the last page";
+
+        assert found.size() == 5 : "Expected the five matching notes but got " + found.size();
+        System.out.println("Search test passed.");
+    }
+
+    /**
+     * Test that an export can be imported into another store
+     */
+    private static void testImportAndExport() throws Exception {
+        InMemoryNoteStore source = new InMemoryNoteStore();
+        source.persistNote(note(0, "plain"));
+        source.persistNote(note(1, "with \"quotes\", commas\nand lines"));
+
+        for (BulkNoteReader.Format format : BulkNoteReader.Format.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assert source.exportNotes(format, null, null, out) == 2 : "Expected two notes exported";
+
+            InMemoryNoteStore target = new InMemoryNoteStore();
+            target.persistNote(source.getAllNotes().get(0));
+            String exported = out.toString(StandardCharsets.UTF_8);
+            BulkImportResult result = target.importNotes(new BulkNoteReader(new StringReader(exported), format));
+
+            assert result.getImported() == 1 : "Expected one new note for " + format;
+            assert result.getDuplicates() == 1 : "Expected one duplicate for " + format;
+            assert result.getRejected() == 0 : "Expected no rejected rows for " + format + ": " + result.getErrors();
+            Note copied = target.getAllNotes().get(1);
+            assert copied.getContent().equals("with \"quotes\", commas\nand lines") : "Expected content to survive " + format;
+        }
+        System.out.println("Import and export test passed.");
+    }
+
+    /**
+     * Test that concurrent writers do not lose notes or leave the two views out of step
+     */
+    private static void testConcurrentWrites() throws Exception {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            executor.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    Note note = note(thread * 1000 + i, "note");
+                    store.persistNote(note);
+                    if (i % 2 == 0) {
+                        store.updateNote(note.getId(), "updated");
+                    } else {
+                        store.deleteNote(note.getId());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assert executor.awaitTermination(30, TimeUnit.SECONDS) : "Expected the writers to finish";
+
+        List<Note> all = store.getAllNotes();
+        assert all.size() == 4000 : "Expected half the notes left but got " + all.size();
+        for (Note note : all) {
+            assert note.getContent().equals("updated") : "Expected every listed note to be updated";
+            assert store.getNoteById(note.getId()) == note : "Expected the list and the id lookup to agree";
+        }
+        System.out.println("Concurrent writes test passed.");
+    }
+
+    private static Note note(int second, String content) {
+        return new Note(UUID.randomUUID(), content, START.plusSeconds(second));
+    }
+}
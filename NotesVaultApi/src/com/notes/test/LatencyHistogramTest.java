@@ -0,0 +1,126 @@
+package com.notes.test;
+
+import com.notes.LatencyHistogram;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Business logic test for the latency histogram
+ */
+public class LatencyHistogramTest {
+
+    public static void main(String[] args) throws Exception {
+        testPercentilesWithinPrecision();
+        testSmallValuesAreExact();
+        testAddAndReset();
+        testCountAtOrBelow();
+        testConcurrentRecording();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that percentiles of a known spread of values are never below the real value and at most 1/64 above it
+     */
+    private static void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        for (double percentile : new double[]{50, 90, 99, 99.9, 100}) {
+            long expected = (long) Math.ceil(percentile / 100 * 100_000) * 1000;
+            long actual = histogram.getValueAtPercentile(percentile);
+            assert actual >= expected : "Expected p" + percentile + " to be at least " + expected + " but got " + actual;
+            assert actual <= expected + expected / 64 : "Expected p" + percentile + " within 1/64 of " + expected + " but got " + actual;
+        }
+        assert histogram.getMax() == 100_000_000 : "Expected the exact max";
+        assert histogram.getCount() == 100_000 : "Expected every value counted";
+        assert histogram.getMean() == 50_000_500 : "Expected the exact mean but got " + histogram.getMean();
+        System.out.println("Percentiles within precision test passed.");
+    }
+
+    /**
+     * Test that values below 128 each get their own bucket and huge values still fit
+     */
+    private static void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(-5);
+        assert histogram.getValueAtPercentile(1) == 0 : "Expected negative values counted as 0";
+        assert histogram.getValueAtPercentile(50) == 3 : "Expected small values to be exact";
+        assert histogram.getValueAtPercentile(100) == 7 : "Expected small values to be exact";
+
+        histogram.record(Long.MAX_VALUE);
+        assert histogram.getValueAtPercentile(100) == Long.MAX_VALUE : "Expected the largest long to fit";
+        assert new LatencyHistogram().getValueAtPercentile(99) == 0 : "Expected 0 from an empty histogram";
+        System.out.println("Small values are exact test passed.");
+    }
+
+    /**
+     * Test that adding histograms together gives the same as recording into one, and reset empties it
+     */
+    private static void testAddAndReset() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        LatencyHistogram both = new LatencyHistogram();
+        Random random = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            long value = random.nextInt(1_000_000);
+            (i % 2 == 0 ? first : second).record(value);
+            both.record(value);
+        }
+
+        LatencyHistogram sum = new LatencyHistogram();
+        sum.add(first);
+        sum.add(second);
+        for (double percentile : new double[]{10, 50, 99, 99.99}) {
+            assert sum.getValueAtPercentile(percentile) == both.getValueAtPercentile(percentile) : "Expected the same p" + percentile;
+        }
+        assert sum.getMax() == both.getMax() && sum.getSum() == both.getSum() : "Expected the same max and sum";
+
+        sum.reset();
+        assert sum.getCount() == 0 && sum.getMax() == 0 && sum.getValueAtPercentile(50) == 0 : "Expected an empty histogram";
+        System.out.println("Add and reset test passed.");
+    }
+
+    /**
+     * Test that cumulative counts never include values above the limit
+     */
+    private static void testCountAtOrBelow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 10_000; value++) {
+            histogram.record(value);
+        }
+        assert histogram.getCountAtOrBelow(99) == 100 : "Expected exact counts for small values";
+        long count = histogram.getCountAtOrBelow(5000);
+        assert count <= 5001 : "Expected no values above the limit but got " + count;
+        assert count >= 5001 - 5000 / 64 : "Expected at most one bucket short but got " + count;
+        assert histogram.getCountAtOrBelow(Long.MAX_VALUE) == 10_000 : "Expected everything below the largest long";
+        System.out.println("Count at or below test passed.");
+    }
+
+    /**
+     * Test that recording from many threads does not lose counts
+     */
+    private static void testConcurrentRecording() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 1000);
+                }
+            });
+        }
+        executor.shutdown();
+        assert executor.awaitTermination(30, TimeUnit.SECONDS) : "Expected the threads to finish";
+        assert histogram.getCount() == 800_000 : "Expected every value counted but got " + histogram.getCount();
+        assert histogram.getCountAtOrBelow(Long.MAX_VALUE) == 800_000 : "Expected every bucket count kept";
+        System.out.println("Concurrent recording test passed.");
+    }
+}
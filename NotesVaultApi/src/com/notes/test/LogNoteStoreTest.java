@@ -0,0 +1,316 @@
+package com.notes.test;
+
+import com.notes.LogNoteStore;
+import com.notes.Note;
+import com.notes.NoteCursor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Business logic test for the log structured note store
+ */
+public class LogNoteStoreTest {
+
+    private final static Instant START = Instant.parse("2025-01-01T00:00:00Z");
+
+    public static void main(String[] args) throws Exception {
+        testCrudSurvivesReopen();
+        testVersionsSurviveReopen();
+        testPagesAcrossSegments();
+        testTornWriteIsCutOff();
+        testCompactionKeepsLiveNotes();
+        testConcurrentWrites();
+        testCloseDuringBackgroundWork();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that saves, updates and deletes are all still there after the store is closed and opened again
+     */
+    private static void testCrudSurvivesReopen() throws Exception {
+        Path directory = Files.createTempDirectory("note-log");
+        Note kept = note(0, "kept");
+        Note updated = note(1, "before");
+        Note deleted = note(2, "deleted");
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            store.persistNote(kept);
+            store.persistNote(updated);
+            store.persistNote(deleted);
+            store.updateNote(updated.getId(), "after ünïcode");
+            store.deleteNote(deleted.getId());
+
+            boolean duplicateRejected = false;
+            try {
+                store.persistNote(new Note(kept.getId(), "same id", START));
+            } catch (RuntimeException e) {
+                duplicateRejected = true;
+            }
+            assert duplicateRejected : "Expected a second note with the same id to be rejected";
+        }
+
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            assert store.getLiveNotes() == 2 : "Expected two notes after reopening but got " + store.getLiveNotes();
+            assert store.getNoteById(kept.getId()).getContent().equals("kept") : "Expected the kept note";
+            assert store.getNoteById(updated.getId()).getContent().equals("after ünïcode") : "Expected the update";
+            assert store.getNoteById(deleted.getId()) == null : "Expected the deleted note to stay deleted";
+            assert store.getRecoveredRecords() == 5 : "Expected every record to be replayed";
+        }
+        delete(directory);
+        System.out.println("CRUD survives reopen test passed.");
+    }
+
+    /**
+     * Test that a note's version changes with every write, is the same after the store is opened again and that
+     * writes for an old version are turned down
+     */
+    private static void testVersionsSurviveReopen() throws Exception {
+        Path directory = Files.createTempDirectory("note-log");
+        Note note = note(0, "first");
+        long first;
+        long second;
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            store.persistNote(note);
+            first = store.getNoteVersion(note.getId());
+            second = store.updateNote(note.getId(), "second", first);
+            assert first != 0 && second != 0 && second != first : "Expected the update to give a new version";
+            assert store.getNoteById(note.getId()).getVersion() == second : "Expected the note read with its version";
+            assert store.updateNote(note.getId(), "stale", first) == 0 : "Expected an update for an old version to be turned down";
+            assert !store.deleteNote(note.getId(), first) : "Expected a delete for an old version to be turned down";
+        }
+
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            assert store.getNoteVersion(note.getId()) == second : "Expected the same version after reopening";
+            assert store.deleteNote(note.getId(), second) : "Expected a delete for the current version to go through";
+            assert store.getNoteVersion(note.getId()) == 0 : "Expected no version once deleted";
+        }
+        delete(directory);
+        System.out.println("Versions survive reopen test passed.");
+    }
+
+    /**
+     * Test that paging and date ranges work the same when the notes are spread over many segments
+     */
+    private static void testPagesAcrossSegments() throws Exception {
+        Path directory = Files.createTempDirectory("note-log");
+        try (LogNoteStore store = open(directory, 4096)) {
+            for (int i = 99; i >= 0; i--) {
+                store.persistNote(note(i, "note " + i));
+            }
+            assert store.getSegmentCount() > 1 : "Expected the notes to need more than one segment";
+
+            List<Note> all = new ArrayList<>();
+            NoteCursor cursor = null;
+            do {
+                cursor = store.streamNotes(cursor, 30, all::add);
+            } while (cursor != null);
+            assert all.size() == 100 : "Expected every note but got " + all.size();
+            for (int i = 0; i < 100; i++) {
+                assert all.get(i).getCreatedAt().equals(START.plusSeconds(i)) : "Expected creation order";
+            }
+
+            List<Note> range = new ArrayList<>();
+            store.getNotesByDateRange(START.plusSeconds(10), START.plusSeconds(19), null, 50, range::add);
+            assert range.size() == 10 : "Expected ten notes in the range but got " + range.size();
+        }
+        delete(directory);
+        System.out.println("Pages across segments test passed.");
+    }
+
+    /**
+     * Test that a write cut off by a crash is dropped and the store keeps working after it
+     */
+    private static void testTornWriteIsCutOff() throws Exception {
+        Path directory = Files.createTempDirectory("note-log");
+        Note first = note(0, "first");
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            store.persistNote(first);
+            store.persistNote(note(1, "second"));
+        }
+
+        // Half of a third record, as if the process died in the middle of writing it
+        Path segment = segments(directory).get(0);
+        long end = lastRecordEnd(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(20);
+            torn.putInt(100).putInt(12345).put((byte) 1).putLong(42).flip();
+            channel.write(torn, end);
+        }
+
+        Note third = note(2, "third");
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            assert store.getLiveNotes() == 2 : "Expected the torn record to be ignored";
+            assert store.getTruncatedBytes() > 0 : "Expected the torn record to be cut off";
+            store.persistNote(third);
+        }
+        try (LogNoteStore store = open(directory, 1024 * 1024)) {
+            assert store.getLiveNotes() == 3 : "Expected the note written after recovery to be kept";
+            assert store.getNoteById(third.getId()).getContent().equals("third") : "Expected the third note";
+            assert store.getNoteById(first.getId()).getContent().equals("first") : "Expected the first note";
+        }
+        delete(directory);
+        System.out.println("Torn write is cut off test passed.");
+    }
+
+    /**
+     * Test that compaction frees segments full of old versions without losing notes or bringing deleted ones back
+     */
+    private static void testCompactionKeepsLiveNotes() throws Exception {
+        Path directory = Files.createTempDirectory("note-log");
+        List<Note> notes = new ArrayList<>();
+        try (LogNoteStore store = open(directory, 4096)) {
+            for (int i = 0; i < 60; i++) {
+                Note note = note(i, "version 0");
+                store.persistNote(note);
+                notes.add(note);
+            }
+            for (int version = 1; version <= 5; version++) {
+                for (int i = 0; i < 40; i++) {
+                    store.updateNote(notes.get(i).getId(), "version " + version);
+                }
+            }
+            for (int i = 40; i < 60; i++) {
+                store.deleteNote(notes.get(i).getId());
+            }
+
+            int segmentsBefore = store.getSegmentCount();
+            long garbageBefore = store.getGarbageBytes();
+            store.compact();
+            assert store.getCompactions() > 0 : "Expected at least one segment to be compacted";
+            assert store.getGarbageBytes() < garbageBefore : "Expected compaction to free space";
+            assert store.getSegmentCount() < segmentsBefore : "Expected fewer segments after compaction";
+            assert store.getLiveNotes() == 40 : "Expected the live notes to stay";
+        }
+
+        try (LogNoteStore store = open(directory, 4096)) {
+            assert store.getLiveNotes() == 40 : "Expected 40 notes after reopening but got " + store.getLiveNotes();
+            for (int i = 0; i < 40; i++) {
+                assert store.getNoteById(notes.get(i).getId()).getContent().equals("version 5") : "Expected the latest version";
+            }
+            for (int i = 40; i < 60; i++) {
+                assert store.getNoteById(notes.get(i).getId()) == null : "Expected deleted notes to stay deleted";
+            }
+        }
+        delete(directory);
+        System.out.println("Compaction keeps live notes test passed.");
+    }
+
+    /**
+     * Test that concurrent writers sharing flushes do not lose notes
+     */
+    private static void testConcurrentWrites() throws Exception {
+        Path directory = Files.createTempDirectory("note-log");
+        try (LogNoteStore store = open(directory, 64 * 1024)) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                executor.submit(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        Note note = note(thread * 250 + i, "note");
+                        store.persistNote(note);
+                        if (i % 2 == 0) {
+                            store.updateNote(note.getId(), "updated");
+                        } else {
+                            store.deleteNote(note.getId());
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            assert executor.awaitTermination(60, TimeUnit.SECONDS) : "Expected the writers to finish";
+            assert store.getLiveNotes() == 1000 : "Expected half the notes left but got " + store.getLiveNotes();
+        }
+
+        try (LogNoteStore store = open(directory, 64 * 1024)) {
+            List<Note> all = store.getAllNotes();
+            assert all.size() == 1000 : "Expected half the notes after reopening but got " + all.size();
+            for (Note note : all) {
+                assert note.getContent().equals("updated") : "Expected every note to be updated";
+            }
+        }
+        delete(directory);
+        System.out.println("Concurrent writes test passed.");
+    }
+
+    /**
+     * Test that closing while the background flush and compaction are running still flushes and trims the log
+     */
+    private static void testCloseDuringBackgroundWork() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            Path directory = Files.createTempDirectory("note-log");
+            List<Note> notes = new ArrayList<>();
+            LogNoteStore store = new LogNoteStore(directory, 4096, LogNoteStore.FsyncPolicy.INTERVAL, 1, 1, 0.5);
+            for (int i = 0; i < 60; i++) {
+                Note note = note(i, "version 0");
+                store.persistNote(note);
+                notes.add(note);
+            }
+            for (int version = 1; version <= 5; version++) {
+                for (Note note : notes) {
+                    store.updateNote(note.getId(), "version " + version);
+                }
+            }
+            store.close();
+
+            // The active segment is trimmed to its records only when close got to flush it
+            Path last = segments(directory).get(segments(directory).size() - 1);
+            assert Files.size(last) == lastRecordEnd(last) : "Expected the active segment trimmed on close in round " + round;
+            try (LogNoteStore reopened = open(directory, 4096)) {
+                assert reopened.getTruncatedBytes() == 0 : "Expected nothing to cut off after a clean close";
+                for (Note note : notes) {
+                    assert reopened.getNoteById(note.getId()).getContent().equals("version 5") : "Expected the latest version";
+                }
+            }
+            delete(directory);
+        }
+        System.out.println("Close during background work test passed.");
+    }
+
+    private static LogNoteStore open(Path directory, long segmentBytes) throws IOException {
+        return new LogNoteStore(directory, segmentBytes, LogNoteStore.FsyncPolicy.ALWAYS, 0, 0, 0.5);
+    }
+
+    /**
+     * Find where the records of a segment end by following their lengths
+     */
+    private static long lastRecordEnd(Path segment) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int offset = 0;
+        while (offset + 8 <= data.limit() && data.getInt(offset) > 0) {
+            offset += 8 + data.getInt(offset);
+        }
+        return offset;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Note note(int second, String content) {
+        return new Note(UUID.randomUUID(), content, START.plusSeconds(second));
+    }
+}
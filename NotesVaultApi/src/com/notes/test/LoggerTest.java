@@ -0,0 +1,241 @@
+package com.notes.test;
+
+import com.notes.AsyncLogWriter;
+import com.notes.LogLevel;
+import com.notes.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Business logic test for the asynchronous logger
+ */
+public class LoggerTest {
+
+    public static void main(String[] args) throws Exception {
+        testKeyValueFormat();
+        testLevelFilter();
+        testRateLimit();
+        testFullBufferDropsWithoutBlocking();
+        testConcurrentLogging();
+        testLoggingAfterClose();
+        testLoggingWhileClosing();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that messages are written as key=value pairs with values quoted only when they need it
+     */
+    private static void testKeyValueFormat() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (AsyncLogWriter writer = new AsyncLogWriter(out, 16)) {
+            Logger logger = new Logger("Test", writer, LogLevel.DEBUG, 0);
+            logger.info("Note saved", "id", 42, "content", "say \"hi\"\nthere", "empty", "");
+            logger.error("Save failed", new IllegalStateException("disk full"), "id", 43);
+            writer.flush();
+
+            String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+            assert lines.length == 2 : "Expected one line per message but got " + lines.length;
+            assert lines[0].startsWith("time=") : "Expected the time first but got " + lines[0];
+            assert lines[0].endsWith(" level=info logger=Test msg=\"Note saved\" id=42 content=\"say \\\"hi\\\"\\nthere\" empty=\"\"")
+                    : "Unexpected line " + lines[0];
+            assert lines[1].endsWith(" level=error logger=Test msg=\"Save failed\" id=43 error=\"java.lang.IllegalStateException: disk full\"")
+                    : "Unexpected line " + lines[1];
+        }
+        System.out.println("Key value format test passed.");
+    }
+
+    /**
+     * Test that messages below the level are not written or counted
+     */
+    private static void testLevelFilter() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (AsyncLogWriter writer = new AsyncLogWriter(out, 16)) {
+            Logger logger = new Logger("Test", writer, LogLevel.WARN, 0);
+            logger.debug("Debug message");
+            logger.info("Info message");
+            logger.warn("Warn message");
+            writer.flush();
+
+            String text = out.toString(StandardCharsets.UTF_8);
+            assert !text.contains("Debug") && !text.contains("Info") : "Expected messages below warn to be skipped";
+            assert text.contains("msg=\"Warn message\"") : "Expected the warning written";
+            assert !logger.isEnabled(LogLevel.INFO) && logger.isEnabled(LogLevel.ERROR) : "Expected levels compared in order";
+            assert writer.getLogged(LogLevel.DEBUG) == 0 && writer.getLogged(LogLevel.WARN) == 1 : "Expected only the warning counted";
+
+            Logger off = new Logger("Off", writer, LogLevel.OFF, 0);
+            assert !off.isEnabled(LogLevel.ERROR) : "Expected nothing enabled when off";
+        }
+        System.out.println("Level filter test passed.");
+    }
+
+    /**
+     * Test that a message is written at most the limit times a second and the next one says how many were skipped
+     */
+    private static void testRateLimit() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (AsyncLogWriter writer = new AsyncLogWriter(out, 1024)) {
+            Logger logger = new Logger("Test", writer, LogLevel.INFO, 5);
+            for (int i = 0; i < 100; i++) {
+                logger.info("Busy message", "i", i);
+            }
+            logger.info("Other message");
+            writer.flush();
+
+            String text = out.toString(StandardCharsets.UTF_8);
+            long busy = text.lines().filter(line -> line.contains("Busy message")).count();
+            // The second may tick over while logging so allow one more window
+            assert busy >= 5 && busy <= 10 : "Expected at most two windows of busy messages but got " + busy;
+            assert text.contains("Other message") : "Expected other messages to have their own limit";
+            assert writer.getSuppressed() == 100 - busy : "Expected the skipped messages counted but got " + writer.getSuppressed();
+
+            // The first message of the next second reports what was skipped
+            Thread.sleep(1100);
+            logger.info("Busy message", "i", 100);
+            writer.flush();
+            String last = out.toString(StandardCharsets.UTF_8).lines().reduce((first, second) -> second).orElse("");
+            assert last.endsWith(" i=100 suppressed=" + (100 - busy)) : "Expected the skipped count but got " + last;
+        }
+        System.out.println("Rate limit test passed.");
+    }
+
+    /**
+     * Test that logging into a full buffer drops the message straight away instead of waiting for the writer, and
+     * the writer reports the drop once it catches up
+     */
+    private static void testFullBufferDropsWithoutBlocking() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                out.write(bytes, offset, length);
+            }
+        };
+
+        try (AsyncLogWriter writer = new AsyncLogWriter(stalled, 8)) {
+            Logger logger = new Logger("Test", writer, LogLevel.INFO, 0);
+            long start = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                logger.info("Message", "i", i);
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assert millis < 1000 : "Expected logging not to wait for the stalled writer but took " + millis + "ms";
+            // One message can be held by the writer while it waits, the rest fill the buffer
+            assert writer.getDropped() >= 100 - 9 : "Expected the overflow dropped but got " + writer.getDropped();
+
+            release.countDown();
+            writer.flush();
+            String text = out.toString(StandardCharsets.UTF_8);
+            long written = text.lines().filter(line -> line.contains("msg=Message")).count();
+            assert written + writer.getDropped() == 100 : "Expected every message written or dropped";
+            assert text.contains("msg=\"Log buffer full, messages were dropped\" dropped=" + writer.getDropped())
+                    : "Expected the drop reported";
+        }
+        System.out.println("Full buffer drops without blocking test passed.");
+    }
+
+    /**
+     * Test that many threads logging at once neither lose nor mix up messages
+     */
+    private static void testConcurrentLogging() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (AsyncLogWriter writer = new AsyncLogWriter(out, 1 << 16)) {
+            Logger logger = new Logger("Test", writer, LogLevel.INFO, 0);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                executor.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        logger.info("Message", "thread", thread, "i", i);
+                    }
+                });
+            }
+            executor.shutdown();
+            assert executor.awaitTermination(30, TimeUnit.SECONDS) : "Expected the threads to finish";
+            writer.flush();
+
+            String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+            assert writer.getDropped() == 0 : "Expected nothing dropped from a large enough buffer";
+            assert lines.length == 40_000 : "Expected every message written but got " + lines.length;
+            int[] next = new int[8];
+            for (String line : lines) {
+                int thread = Integer.parseInt(line.substring(line.indexOf("thread=") + 7, line.indexOf(" i=")));
+                int i = Integer.parseInt(line.substring(line.indexOf(" i=") + 3));
+                assert i == next[thread]++ : "Expected each thread's messages in order";
+            }
+        }
+        System.out.println("Concurrent logging test passed.");
+    }
+
+    /**
+     * Test that messages logged after the writer is closed, like from shutdown hooks, are still written
+     */
+    private static void testLoggingAfterClose() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogWriter writer = new AsyncLogWriter(out, 16);
+        Logger logger = new Logger("Test", writer, LogLevel.INFO, 0);
+        logger.info("Before close");
+        writer.close();
+        logger.info("After close");
+
+        String text = out.toString(StandardCharsets.UTF_8);
+        assert text.contains("Before close") && text.contains("After close") : "Expected both messages written";
+        System.out.println("Logging after close test passed.");
+    }
+
+    /**
+     * Test that threads logging while the writer closes lose no messages and never write into each other's lines
+     */
+    private static void testLoggingWhileClosing() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AsyncLogWriter writer = new AsyncLogWriter(out, 1 << 12);
+            Logger logger = new Logger("Test", writer, LogLevel.INFO, 0);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            CountDownLatch started = new CountDownLatch(4);
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                executor.submit(() -> {
+                    started.countDown();
+                    for (int i = 0; i < 500; i++) {
+                        logger.info("Message", "thread", thread, "i", i);
+                    }
+                });
+            }
+            started.await();
+            writer.close();
+            executor.shutdown();
+            assert executor.awaitTermination(30, TimeUnit.SECONDS) : "Expected the threads to finish";
+
+            String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+            assert writer.getDropped() == 0 : "Expected nothing dropped from a large enough buffer";
+            assert lines.length == 2000 : "Expected every message written but got " + lines.length;
+            int[] next = new int[4];
+            for (String line : lines) {
+                assert line.matches("time=\\S+ level=info logger=Test msg=Message thread=\\d i=\\d+") : "Unexpected line " + line;
+                int thread = Integer.parseInt(line.substring(line.indexOf("thread=") + 7, line.indexOf(" i=")));
+                int i = Integer.parseInt(line.substring(line.indexOf(" i=") + 3));
+                assert i == next[thread]++ : "Expected each thread's messages in order";
+            }
+        }
+        System.out.println("Logging while closing test passed.");
+    }
+}
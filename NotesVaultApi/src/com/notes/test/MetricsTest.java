@@ -0,0 +1,153 @@
+package com.notes.test;
+
+import com.notes.InMemoryNoteStore;
+import com.notes.MetricsHandler;
+import com.notes.NotesHandler;
+import com.notes.RequestMetrics;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Business logic test for the /metrics endpoint, served the same way Main wires it up
+ */
+public class MetricsTest {
+
+    private static final String URL = "http://localhost:8083";
+
+    public static void main(String[] args) throws Exception {
+        RequestMetrics requestMetrics = new RequestMetrics(new NotesHandler(new InMemoryNoteStore()));
+        MetricsHandler metricsHandler = new MetricsHandler();
+        metricsHandler.addSource(requestMetrics);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(8083), 0);
+        server.createContext("/notes", requestMetrics);
+        server.createContext("/metrics", metricsHandler);
+        server.setExecutor(null);
+        server.start();
+
+        testRequestsCountedByRouteAndStatus();
+        testLatencyHistogramIsCumulative();
+        testResponseBytesCounted();
+        testJvmMetricsIncluded();
+        testMetricsOnlyAllowsGet();
+
+        server.stop(0);
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that each request is counted under the route it went to and the status it got back
+     */
+    private static void testRequestsCountedByRouteAndStatus() throws Exception {
+        String note = "id=" + UUID.randomUUID() + "&content=Metrics+note&timestamp=" + Instant.now();
+        assert request("POST", "/notes", note) == 201 : "Expected the note to be created";
+        assert request("GET", "/notes", null) == 200 : "Expected the notes to be listed";
+        assert request("GET", "/notes?search=Metrics", null) == 200 : "Expected the search to work";
+        assert request("GET", "/notes/" + UUID.randomUUID(), null) == 200 : "Expected an unknown note to be looked up";
+        assert request("GET", "/notes/not-a-uuid", null) == 400 : "Expected an invalid id to be rejected";
+
+        String metrics = scrape();
+        assert metrics.contains("# TYPE notes_http_requests_total counter") : "Expected the requests family";
+        assert metrics.contains("notes_http_requests_total{route=\"create\",status=\"201\"} 1\n") : "Expected the create counted";
+        assert metrics.contains("notes_http_requests_total{route=\"list\",status=\"200\"} 1\n") : "Expected the list counted";
+        assert metrics.contains("notes_http_requests_total{route=\"search\",status=\"200\"} 1\n") : "Expected the search counted";
+        assert metrics.contains("notes_http_requests_total{route=\"get\",status=\"200\"} 1\n") : "Expected the unknown note counted";
+        assert metrics.contains("notes_http_requests_total{route=\"get\",status=\"400\"} 1\n") : "Expected the invalid id counted";
+        assert !metrics.contains("route=\"delete\"") : "Expected routes without requests to be left out";
+        assert metrics.contains("notes_http_requests_in_flight 0\n") : "Expected nothing in flight between requests";
+        System.out.println("Requests counted by route and status test passed.");
+    }
+
+    /**
+     * Test that the latency buckets only ever go up and end with every request in +Inf and the count
+     */
+    private static void testLatencyHistogramIsCumulative() throws Exception {
+        String metrics = scrape();
+        assert metrics.contains("# TYPE notes_http_request_duration_seconds histogram") : "Expected the latency family";
+
+        long previous = 0;
+        long inf = -1;
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith("notes_http_request_duration_seconds_bucket{route=\"get\",")) {
+                long count = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                assert count >= previous : "Expected cumulative buckets but got " + line;
+                previous = count;
+                if (line.contains("le=\"+Inf\"")) {
+                    inf = count;
+                }
+            }
+        }
+        assert inf == 2 : "Expected both gets in the +Inf bucket but got " + inf;
+        assert metrics.contains("notes_http_request_duration_seconds_count{route=\"get\"} 2\n") : "Expected the count of gets";
+        assert metrics.contains("notes_http_request_duration_seconds_sum{route=\"get\"} ") : "Expected the sum of gets";
+        System.out.println("Latency histogram is cumulative test passed.");
+    }
+
+    /**
+     * Test that the bytes of the response bodies are counted
+     */
+    private static void testResponseBytesCounted() throws Exception {
+        String metrics = scrape();
+        String prefix = "notes_http_response_bytes_total{route=\"get\"} ";
+        int start = metrics.indexOf(prefix);
+        assert start >= 0 : "Expected response bytes for gets";
+        long bytes = Long.parseLong(metrics.substring(start + prefix.length(), metrics.indexOf('\n', start)));
+        assert bytes == "Note not found".length() + "ERROR 400: Expected UUID".length() : "Expected the error bodies counted but got " + bytes;
+        System.out.println("Response bytes counted test passed.");
+    }
+
+    /**
+     * Test that JVM numbers are always included
+     */
+    private static void testJvmMetricsIncluded() throws Exception {
+        String metrics = scrape();
+        assert metrics.contains("jvm_memory_heap_bytes{kind=\"used\"} ") : "Expected the heap in use";
+        assert metrics.contains("jvm_threads ") : "Expected the live threads";
+        System.out.println("JVM metrics included test passed.");
+    }
+
+    /**
+     * Test that only GET is allowed on /metrics
+     */
+    private static void testMetricsOnlyAllowsGet() throws Exception {
+        assert request("POST", "/metrics", "") == 400 : "Expected POST to be rejected";
+        System.out.println("Metrics only allows GET test passed.");
+    }
+
+    private static String scrape() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI(URL + "/metrics").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        assert connection.getResponseCode() == 200 : "Expected 200 OK from /metrics";
+        assert connection.getContentType().startsWith("text/plain; version=0.0.4") : "Expected the Prometheus text format";
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int request(String method, String path, String body) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI(URL + path).toURL().openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            in.readAllBytes();
+            in.close();
+        }
+        return status;
+    }
+}
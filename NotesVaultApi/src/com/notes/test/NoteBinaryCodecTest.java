@@ -0,0 +1,298 @@
+package com.notes.test;
+
+import com.notes.BulkNoteReader;
+import com.notes.Note;
+import com.notes.NoteBinaryCodec;
+import com.notes.NoteBinaryWriter;
+import com.notes.NoteCursor;
+import com.notes.NoteFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Business logic test for the binary note layout, its writer and binary bulk imports
+ */
+public class NoteBinaryCodecTest {
+
+    public static void main(String[] args) throws Exception {
+        testNegotiation();
+        testRoundTrip();
+        testDirectBuffer();
+        testFrameLength();
+        testListWithCursor();
+        testSmallerThanText();
+        testImportAcrossReads();
+        testImportRejectsBadFrames();
+        testImportUnknownFrameEnds();
+        testImportCutOff();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that binary is only picked when it is named
+     */
+    private static void testNegotiation() {
+        assert NoteFormat.negotiate(NoteBinaryCodec.MEDIA_TYPE) == NoteFormat.BINARY : "Expected binary";
+        assert NoteFormat.negotiate(NoteBinaryCodec.MEDIA_TYPE + ", application/json;q=0.9") == NoteFormat.BINARY : "Expected the higher q value";
+        assert NoteFormat.negotiate("application/*") == NoteFormat.JSON : "Expected application/* to pick JSON";
+        assert BulkNoteReader.forContentType(NoteBinaryCodec.MEDIA_TYPE, InputStream.nullInputStream()) != null : "Expected binary imports";
+        assert BulkNoteReader.forContentType("image/png", InputStream.nullInputStream()) == null : "Expected other types turned down";
+        System.out.println("Negotiation test passed.");
+    }
+
+    /**
+     * Test that notes read back the same apart from timestamps, which are kept to the microsecond
+     */
+    private static void testRoundTrip() {
+        Random random = new Random(1);
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int j = random.nextInt(Note.MAX_LENGTH / 2); j > 0; j--) {
+                content.append((char) random.nextInt(0x20, 0xd800));
+            }
+            content.append("😀");
+            Instant createdAt = Instant.ofEpochSecond(random.nextLong(-10_000_000_000L, 10_000_000_000L), random.nextInt(1_000_000_000));
+            notes.add(new Note(new UUID(random.nextLong(), random.nextLong()), content.toString(), createdAt, random.nextLong(1, Long.MAX_VALUE)));
+        }
+        for (Note note : notes) {
+            int start = buffer.position();
+            NoteBinaryCodec.writeNote(buffer, note);
+            assert buffer.position() - start <= NoteBinaryCodec.maxNoteBytes(note) : "Expected the frame to fit in its max size";
+        }
+        buffer.flip();
+        for (Note note : notes) {
+            assert NoteBinaryCodec.frameLength(buffer) > 0 : "Expected a whole frame";
+            assertSame(note, NoteBinaryCodec.readNote(buffer));
+        }
+        assert !buffer.hasRemaining() : "Expected every byte read";
+
+        buffer.clear();
+        NoteBinaryCodec.writeNote(buffer, new Note(UUID.randomUUID(), "lone \ud800 surrogate", Instant.EPOCH));
+        buffer.flip();
+        assert NoteBinaryCodec.readNote(buffer).getContent().equals("lone ? surrogate") : "Expected a lone surrogate as ?";
+        System.out.println("Round trip test passed.");
+    }
+
+    /**
+     * Test that buffers without an array and slices that do not start at 0 work too
+     */
+    private static void testDirectBuffer() {
+        Note note = new Note(UUID.randomUUID(), "Direct é 😀", Instant.parse("2025-06-01T12:00:00.123456Z"), 9);
+        ByteBuffer direct = ByteBuffer.allocateDirect(256);
+        NoteBinaryCodec.writeNote(direct, note);
+        direct.flip();
+        assertSame(note, NoteBinaryCodec.readNote(direct));
+
+        ByteBuffer slice = ByteBuffer.allocate(512).position(100).slice();
+        NoteBinaryCodec.writeNote(slice, note);
+        slice.flip();
+        assertSame(note, NoteBinaryCodec.readNote(slice));
+        System.out.println("Direct buffer test passed.");
+    }
+
+    /**
+     * Test that a frame's length is only given once its header is all there
+     */
+    private static void testFrameLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        NoteBinaryCodec.writeNote(buffer, new Note(UUID.randomUUID(), "abc", Instant.EPOCH));
+        int length = buffer.position();
+        assert length == NoteBinaryCodec.NOTE_HEADER_BYTES + 3 : "Expected the header and 3 bytes of content";
+        for (int i = 0; i < NoteBinaryCodec.NOTE_HEADER_BYTES; i++) {
+            assert NoteBinaryCodec.frameLength(ByteBuffer.wrap(buffer.array(), 0, i)) == -1 : "Expected no length from " + i + " bytes";
+        }
+        assert NoteBinaryCodec.frameLength(ByteBuffer.wrap(buffer.array(), 0, NoteBinaryCodec.NOTE_HEADER_BYTES)) == length : "Expected the length from the header";
+        try {
+            NoteBinaryCodec.frameLength(ByteBuffer.wrap(new byte[]{7}));
+            assert false : "Expected an unknown frame type to be rejected";
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        System.out.println("Frame length test passed.");
+    }
+
+    /**
+     * Test that a list streamed through the writer reads back with its cursor last
+     */
+    private static void testListWithCursor() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Note> notes = new ArrayList<>();
+        try (NoteBinaryWriter writer = NoteBinaryWriter.acquire(out)) {
+            for (int i = 0; i < 200; i++) {
+                Note note = new Note(UUID.randomUUID(), "é".repeat(Note.MAX_LENGTH), Instant.EPOCH.plusSeconds(i), i + 1);
+                notes.add(note);
+                writer.writeNote(note);
+            }
+            writer.endList(NoteCursor.after(notes.get(notes.size() - 1)));
+            assert writer.length() == 0 : "Expected everything sent at the end of the list";
+        }
+        ByteBuffer body = ByteBuffer.wrap(out.toByteArray());
+        for (Note note : notes) {
+            assertSame(note, NoteBinaryCodec.readNote(body));
+        }
+        assert NoteBinaryCodec.readCursor(body).equals(NoteCursor.after(notes.get(notes.size() - 1)).encode()) : "Expected the cursor";
+        assert !body.hasRemaining() : "Expected nothing after the cursor";
+
+        try (NoteBinaryWriter writer = NoteBinaryWriter.acquire(null)) {
+            assert writer.length() == 0 : "Expected a pooled writer to start empty";
+            writer.endList(null);
+            assert writer.length() == 0 : "Expected no cursor frame on the last page";
+        }
+        System.out.println("List with cursor test passed.");
+    }
+
+    /**
+     * Test that everything in a note other than its content takes fewer bytes than in the text layout
+     */
+    private static void testSmallerThanText() throws IOException {
+        Note note = new Note(UUID.randomUUID(), "", Instant.parse("2025-06-01T12:00:00.123456Z"), 1);
+        try (NoteBinaryWriter writer = NoteBinaryWriter.acquire(null)) {
+            writer.writeNote(note);
+            int text = note.toString().getBytes(StandardCharsets.UTF_8).length;
+            assert writer.length() == NoteBinaryCodec.NOTE_HEADER_BYTES : "Expected only the header for empty content";
+            assert writer.length() * 2 < text : "Expected under half the size of text but got " + writer.length() + " of " + text;
+        }
+        System.out.println("Smaller than text test passed.");
+    }
+
+    /**
+     * Test an import far bigger than the reader's buffer, arriving a few bytes at a time
+     */
+    private static void testImportAcrossReads() throws IOException {
+        Random random = new Random(2);
+        ByteBuffer body = ByteBuffer.allocate(8 * 1024 * 1024);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Note note = new Note(UUID.randomUUID(), "ü".repeat(random.nextInt(Note.MAX_LENGTH + 1)), Instant.now().truncatedTo(ChronoUnit.MICROS));
+            notes.add(note);
+            NoteBinaryCodec.writeNote(body, note);
+        }
+        BulkNoteReader reader = BulkNoteReader.binary(new TricklingStream(Arrays.copyOf(body.array(), body.position()), 1000));
+        for (Note note : notes) {
+            assert reader.next() : "Expected another note";
+            assert reader.getError() == null : "Unexpected error " + reader.getError();
+            assert reader.getNote().getVersion() == 0 : "Expected the version left for the store to set";
+            assertSame(new Note(note.getId(), note.getContent(), note.getCreatedAt()), reader.getNote());
+        }
+        assert !reader.next() : "Expected the end of the body";
+        System.out.println("Import across reads test passed.");
+    }
+
+    /**
+     * Test that frames that fail the checks are rejected and reading carries on
+     */
+    private static void testImportRejectsBadFrames() throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(256 * 1024);
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "first", Instant.EPOCH));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "x".repeat(Note.MAX_LENGTH + 1), Instant.EPOCH));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "y".repeat(100_000), Instant.EPOCH));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "nul \0", Instant.EPOCH));
+        NoteBinaryCodec.writeCursor(body, NoteCursor.after(new Note(UUID.randomUUID(), "", Instant.EPOCH)));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "last", Instant.EPOCH));
+
+        BulkNoteReader reader = read(body);
+        String[] expected = {null, "Note content exceeds maximum length", "Note content exceeds maximum length", "NUL", "Expected a note frame", null};
+        for (int i = 0; i < expected.length; i++) {
+            assert reader.next() : "Expected frame " + (i + 1);
+            assert reader.getLine() == i + 1 : "Expected frames counted from 1";
+            if (expected[i] == null) {
+                assert reader.getNote() != null : "Expected frame " + (i + 1) + " to be valid but got " + reader.getError();
+            } else {
+                assert reader.getNote() == null && reader.getError().contains(expected[i]) : "Expected frame " + (i + 1) + " rejected for " + expected[i];
+            }
+        }
+        assert !reader.next() : "Expected the end of the body";
+        System.out.println("Import rejects bad frames test passed.");
+    }
+
+    /**
+     * Test that an unknown frame type ends the import since the next frame can not be found
+     */
+    private static void testImportUnknownFrameEnds() throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(1024);
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "first", Instant.EPOCH));
+        body.put((byte) 9).put(new byte[100]);
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "never read", Instant.EPOCH));
+
+        BulkNoteReader reader = read(body);
+        assert reader.next() && reader.getNote() != null : "Expected the first note";
+        assert reader.next() && reader.getError().contains("Unknown frame type") : "Expected the unknown frame rejected";
+        assert !reader.next() : "Expected the import to stop";
+        System.out.println("Import unknown frame ends test passed.");
+    }
+
+    /**
+     * Test that a body that stops part way through a frame has that frame rejected
+     */
+    private static void testImportCutOff() throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(1024);
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "first", Instant.EPOCH));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "cut off", Instant.EPOCH));
+        for (int cut : new int[]{3, 10}) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(body.array(), body.position() - cut));
+            truncated.position(truncated.limit());
+            BulkNoteReader reader = read(truncated);
+            assert reader.next() && reader.getNote() != null : "Expected the first note";
+            assert reader.next() && "Frame is cut off".equals(reader.getError()) : "Expected the cut off frame rejected";
+            assert !reader.next() : "Expected the end of the body";
+        }
+        System.out.println("Import cut off test passed.");
+    }
+
+    private static BulkNoteReader read(ByteBuffer written) {
+        return BulkNoteReader.binary(new ByteArrayInputStream(Arrays.copyOf(written.array(), written.position())));
+    }
+
+    private static void assertSame(Note expected, Note actual) {
+        assert actual.getId().equals(expected.getId()) : "Expected id " + expected.getId();
+        assert actual.getContent().equals(expected.getContent()) : "Expected the same content for " + expected.getId();
+        assert actual.getCreatedAt().equals(expected.getCreatedAt().truncatedTo(ChronoUnit.MICROS))
+                : "Expected " + expected.getCreatedAt() + " to the microsecond but got " + actual.getCreatedAt();
+        assert actual.getVersion() == expected.getVersion() : "Expected version " + expected.getVersion();
+    }
+
+    /**
+     * Hands out a body a few bytes at a time, the way a slow client sends it
+     */
+    private static class TricklingStream extends InputStream {
+        private final byte[] bytes;
+        private final int chunk;
+        private int position;
+
+        TricklingStream(byte[] bytes, int chunk) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position == bytes.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunk), bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.notes.test;
+
+import com.notes.Note;
+import com.notes.NoteCache;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Business logic test for the note cache, its segmented LRU, the missing ids it remembers and reads that race a write
+ */
+public class NoteCacheTest {
+
+    // Same as the cache, ids are only compared against each other within one shard
+    private static final int SHARD_COUNT = 16;
+    // Five entries per shard, four of them protected
+    private static final int CAPACITY = SHARD_COUNT * 5;
+
+    public static void main(String[] args) throws Exception {
+        testSecondReadPromotes();
+        testOneOffReadsEvictEachOther();
+        testProtectedOverflowIsDemoted();
+        testMissingIdExpires();
+        testLoadRacingInvalidate();
+        testLoadRacingInvalidateAll();
+        testDisabled();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that a note read a second time is kept over notes only read once when the shard fills up
+     */
+    private static void testSecondReadPromotes() {
+        NoteCache cache = new NoteCache(CAPACITY, 60_000);
+        UUID[] ids = sameShard(6);
+        for (int i = 0; i < 5; i++) {
+            load(cache, ids[i]);
+        }
+        assert cache.get(ids[0]) != null : "Expected the first note cached";
+
+        load(cache, ids[5]);
+        assert cache.getEvictions() == 1 : "Expected one eviction once the shard was over capacity";
+        assert cache.get(ids[1]) == null : "Expected the least recently loaded note read once to be evicted";
+        assert cache.get(ids[0]).getId().equals(ids[0]) : "Expected the note read twice to be kept";
+        assert cache.get(ids[2]) != null : "Expected the other notes kept";
+        System.out.println("Second read promotes test passed.");
+    }
+
+    /**
+     * Test that a burst of notes read once only pushes out other notes read once
+     */
+    private static void testOneOffReadsEvictEachOther() {
+        NoteCache cache = new NoteCache(CAPACITY, 60_000);
+        UUID[] ids = sameShard(20);
+        load(cache, ids[0]);
+        cache.get(ids[0]);
+        for (int i = 1; i < 20; i++) {
+            load(cache, ids[i]);
+        }
+        assert cache.get(ids[0]) != null : "Expected the hot note to survive the burst";
+        for (int i = 1; i < 16; i++) {
+            assert cache.get(ids[i]) == null : "Expected note " + i + " of the burst to be evicted";
+        }
+        assert cache.size() == 5 : "Expected the shard to stay at its capacity but it holds " + cache.size();
+        System.out.println("One off reads evict each other test passed.");
+    }
+
+    /**
+     * Test that once protected is over its share its least recently read note goes back to probation, where it is
+     * the next to be evicted
+     */
+    private static void testProtectedOverflowIsDemoted() {
+        NoteCache cache = new NoteCache(CAPACITY, 60_000);
+        UUID[] ids = sameShard(6);
+        for (int i = 0; i < 5; i++) {
+            load(cache, ids[i]);
+            cache.get(ids[i]);
+        }
+        assert cache.getEvictions() == 0 : "Expected the demoted note to stay cached while there is room";
+        assert cache.size() == 5;
+
+        load(cache, ids[5]);
+        assert cache.get(ids[0]) == null : "Expected the demoted note to be evicted first";
+        for (int i = 1; i < 6; i++) {
+            assert cache.get(ids[i]) != null : "Expected note " + i + " kept";
+        }
+        System.out.println("Protected overflow is demoted test passed.");
+    }
+
+    /**
+     * Test that an id that does not exist is answered from the cache only until it expires
+     */
+    private static void testMissingIdExpires() throws Exception {
+        NoteCache cache = new NoteCache(CAPACITY, 50);
+        UUID id = UUID.randomUUID();
+        cache.putLoaded(id, null, cache.stamp(id));
+        assert cache.get(id) == NoteCache.NOT_FOUND : "Expected the missing id remembered";
+        assert cache.get(id) == NoteCache.NOT_FOUND : "Expected a missing id not to be promoted away";
+        assert cache.getNegativeHits() == 2;
+
+        Thread.sleep(80);
+        assert cache.get(id) == null : "Expected the missing id forgotten after its time to live";
+        assert cache.getMisses() == 1;
+
+        Note created = note(id);
+        cache.putLoaded(id, created, cache.stamp(id));
+        assert cache.get(id) == created : "Expected the note once it was loaded";
+        System.out.println("Missing id expires test passed.");
+    }
+
+    /**
+     * Test that a read that started before a write does not put what it read back after the write cleared it
+     */
+    private static void testLoadRacingInvalidate() {
+        NoteCache cache = new NoteCache(CAPACITY, 60_000);
+        UUID id = UUID.randomUUID();
+        Note before = note(id);
+
+        long stamp = cache.stamp(id);
+        // The write lands while the read is at the database
+        cache.invalidate(id);
+        cache.putLoaded(id, before, stamp);
+        assert cache.get(id) == null : "Expected the note read before the write not to be cached";
+
+        Note after = note(id);
+        cache.putLoaded(id, after, cache.stamp(id));
+        assert cache.get(id) == after : "Expected a read that started after the write to be cached";
+
+        // A missing id read before the note was created must not hide it either
+        UUID created = UUID.randomUUID();
+        long missingStamp = cache.stamp(created);
+        cache.invalidate(created);
+        cache.putLoaded(created, null, missingStamp);
+        assert cache.get(created) == null : "Expected the stale not found not to be cached";
+
+        // A slower read that loaded the old note does not replace a newer one that got in first
+        Note newer = note(id);
+        cache.invalidate(id);
+        long slowStamp = cache.stamp(id);
+        cache.putLoaded(id, newer, cache.stamp(id));
+        cache.putLoaded(id, before, slowStamp);
+        assert cache.get(id) == newer : "Expected the note already cached to be kept";
+        System.out.println("Load racing invalidate test passed.");
+    }
+
+    /**
+     * Test that clearing everything also stops reads that were in flight from caching what they read
+     */
+    private static void testLoadRacingInvalidateAll() {
+        NoteCache cache = new NoteCache(CAPACITY, 60_000);
+        UUID id = UUID.randomUUID();
+        long stamp = cache.stamp(id);
+        cache.invalidateAll();
+        cache.putLoaded(id, note(id), stamp);
+        assert cache.get(id) == null : "Expected the read from before the import not to be cached";
+        System.out.println("Load racing invalidate all test passed.");
+    }
+
+    /**
+     * Test that a capacity of 0 caches nothing
+     */
+    private static void testDisabled() {
+        NoteCache cache = new NoteCache(0, 60_000);
+        UUID id = UUID.randomUUID();
+        cache.putLoaded(id, note(id), cache.stamp(id));
+        assert cache.get(id) == null && cache.size() == 0 : "Expected nothing cached";
+        assert cache.getMisses() == 0 : "Expected a turned off cache not to count misses";
+        System.out.println("Disabled test passed.");
+    }
+
+    private static void load(NoteCache cache, UUID id) {
+        cache.putLoaded(id, note(id), cache.stamp(id));
+    }
+
+    private static Note note(UUID id) {
+        return new Note(id, "note " + id, Instant.EPOCH);
+    }
+
+    /**
+     * @return ids that all land in the same shard, so eviction order between them is exact
+     */
+    private static UUID[] sameShard(int count) {
+        UUID[] ids = new UUID[count];
+        int found = 0;
+        while (found < count) {
+            UUID id = UUID.randomUUID();
+            if ((id.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT == 0) {
+                ids[found++] = id;
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,198 @@
+package com.notes.test;
+
+import com.notes.Note;
+import com.notes.NoteCursor;
+import com.notes.NoteFormat;
+import com.notes.NoteJsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Business logic test for the JSON writer and picking the format notes are sent in
+ */
+public class NoteJsonWriterTest {
+
+    public static void main(String[] args) throws Exception {
+        testNegotiation();
+        testUUIDs();
+        testInstantsMatchInstantToString();
+        testEscaping();
+        testListStreamsAcrossFlushes();
+        testLongNoteGrowsBuffer();
+        testPooledWriterStartsEmpty();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that JSON is only picked when the Accept header prefers it over text
+     */
+    private static void testNegotiation() {
+        assert NoteFormat.negotiate(null) == NoteFormat.TEXT : "Expected text without an Accept header";
+        assert NoteFormat.negotiate("application/json") == NoteFormat.JSON : "Expected JSON";
+        assert NoteFormat.negotiate("Application/JSON; charset=utf-8") == NoteFormat.JSON : "Expected media types to be case insensitive";
+        assert NoteFormat.negotiate("application/*") == NoteFormat.JSON : "Expected application/* to pick JSON";
+        assert NoteFormat.negotiate("*/*") == NoteFormat.TEXT : "Expected text when anything is allowed";
+        assert NoteFormat.negotiate("application/json, */*;q=0.8") == NoteFormat.JSON : "Expected the named type over a wildcard";
+        assert NoteFormat.negotiate("text/plain;q=0.5, application/json") == NoteFormat.JSON : "Expected the higher q value";
+        assert NoteFormat.negotiate("text/plain, application/json;q=0.9") == NoteFormat.TEXT : "Expected the higher q value";
+        assert NoteFormat.negotiate("application/json;q=0, */*") == NoteFormat.TEXT : "Expected q=0 to rule JSON out";
+        assert NoteFormat.negotiate("text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2") == NoteFormat.TEXT : "Expected text for the default Java client header";
+        assert NoteFormat.negotiate("image/png") == NoteFormat.TEXT : "Expected text when nothing matches";
+        System.out.println("Negotiation test passed.");
+    }
+
+    /**
+     * Test that UUIDs are written the same as UUID.toString(), including ones with leading zeros in each group
+     */
+    private static void testUUIDs() throws IOException {
+        Random random = new Random(1);
+        UUID[] ids = {new UUID(0, 0), new UUID(-1, -1), new UUID(0x0000000100020003L, 0x0004000000000005L), UUID.randomUUID()};
+        for (UUID id : ids) {
+            assert write(new Note(id, "", Instant.EPOCH)).equals(json(id, "", Instant.EPOCH, 0)) : "Expected " + id;
+        }
+        for (int i = 0; i < 1000; i++) {
+            UUID id = new UUID(random.nextLong(), random.nextLong());
+            assert write(new Note(id, "", Instant.EPOCH)).equals(json(id, "", Instant.EPOCH, 0)) : "Expected " + id;
+        }
+        System.out.println("UUIDs test passed.");
+    }
+
+    /**
+     * Test that instants are written the same as Instant.toString() for every precision and far off years
+     */
+    private static void testInstantsMatchInstantToString() throws IOException {
+        Random random = new Random(2);
+        UUID id = UUID.randomUUID();
+        Instant[] instants = {Instant.EPOCH, Instant.now(), Instant.parse("2024-02-29T23:59:59.999Z"), Instant.parse("2000-03-01T00:00:00.000001Z"),
+                Instant.parse("1969-12-31T23:59:59.999999999Z"), Instant.parse("0000-01-01T00:00:00Z"), Instant.parse("9999-12-31T23:59:59.5Z"),
+                Instant.parse("-0001-12-31T23:59:59Z"), Instant.parse("+10000-01-01T00:00:00Z"), Instant.MIN, Instant.MAX};
+        for (Instant instant : instants) {
+            Note note = new Note(id, "", instant, 7);
+            assert write(note).equals(json(id, "", instant, 7)) : "Expected " + instant + " but got " + write(note);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            long seconds = random.nextLong(-62_167_219_200L, 253_402_300_800L);
+            int nanos = switch (i % 4) {
+                case 0 -> 0;
+                case 1 -> random.nextInt(1000) * 1_000_000;
+                case 2 -> random.nextInt(1_000_000) * 1000;
+                default -> random.nextInt(1_000_000_000);
+            };
+            Instant instant = Instant.ofEpochSecond(seconds, nanos);
+            String expected = json(id, "", instant, i);
+            String actual = write(new Note(id, "", instant, i));
+            assert actual.equals(expected) : "Expected " + expected + " but got " + actual;
+        }
+        System.out.println("Instants test passed.");
+    }
+
+    /**
+     * Test that content is escaped for JSON and encoded as UTF-8, the same as String.getBytes() would
+     */
+    private static void testEscaping() throws IOException {
+        UUID id = UUID.randomUUID();
+        String content = "quote \" backslash \\ newline \n return \r tab \t bell \u0007 nul \u0000 del \u007f é € 😀 lone \ud800 end \udc00";
+        String escaped = "quote \\\" backslash \\\\ newline \\n return \\r tab \\t bell \\u0007 nul \\u0000 del \u007f é € 😀 lone ? end ?";
+        assert write(new Note(id, content, Instant.EPOCH)).equals(json(id, escaped, Instant.EPOCH, 0)) : "Expected escaped content";
+        // Half a pair cut off by an escape is still a lone surrogate
+        assert write(new Note(id, "\ud83d\"\ude00", Instant.EPOCH)).equals(json(id, "?\\\"?", Instant.EPOCH, 0)) : "Expected the halves split by a quote as ?";
+
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 50; j++) {
+                text.append((char) random.nextInt(0x20, 0xd800));
+            }
+            String value = text.toString().replace("\\", "\\\\").replace("\"", "\\\"");
+            assert write(new Note(id, text.toString(), Instant.EPOCH)).equals(json(id, value, Instant.EPOCH, 0)) : "Expected " + text;
+        }
+        System.out.println("Escaping test passed.");
+    }
+
+    /**
+     * Test that a list bigger than the buffer is sent in pieces that add up to the same JSON
+     */
+    private static void testListStreamsAcrossFlushes() throws IOException {
+        // Every note is as long as it can be in bytes, so the buffer fills after a couple of notes
+        String content = "😀".repeat(Note.MAX_LENGTH / 2);
+        StringBuilder expected = new StringBuilder("{\"notes\":[");
+        CountingStream out = new CountingStream();
+        NoteCursor next;
+        try (NoteJsonWriter writer = NoteJsonWriter.acquire(out)) {
+            writer.startList();
+            Note note = null;
+            for (int i = 0; i < 100; i++) {
+                note = new Note(UUID.randomUUID(), content, Instant.EPOCH.plusSeconds(i), i + 1);
+                writer.writeListNote(note);
+                expected.append(i == 0 ? "" : ",").append(json(note.getId(), content, note.getCreatedAt(), i + 1));
+            }
+            next = NoteCursor.after(note);
+            writer.endList(next);
+            assert writer.length() == 0 : "Expected everything sent at the end of the list";
+        }
+        expected.append("],\"nextCursor\":\"").append(next.encode()).append("\"}");
+        assert out.toString(StandardCharsets.UTF_8).equals(expected.toString()) : "Expected the whole list";
+        assert out.writes > 10 : "Expected the list to be sent in pieces but it was sent in " + out.writes;
+        assert out.smallest >= 8192 : "Expected every piece but the last to skip the response buffer, smallest was " + out.smallest;
+        System.out.println("List streams across flushes test passed.");
+    }
+
+    /**
+     * Test that a note longer than the buffer still fits when there is no stream to send to
+     */
+    private static void testLongNoteGrowsBuffer() throws IOException {
+        UUID id = UUID.randomUUID();
+        String content = "é".repeat(20_000);
+        assert write(new Note(id, content, Instant.EPOCH)).equals(json(id, content, Instant.EPOCH, 0)) : "Expected the long note";
+        System.out.println("Long note grows buffer test passed.");
+    }
+
+    /**
+     * Test that a writer taken from the pool has nothing left from the last use
+     */
+    private static void testPooledWriterStartsEmpty() throws IOException {
+        try (NoteJsonWriter writer = NoteJsonWriter.acquire(null)) {
+            writer.writeNote(new Note(UUID.randomUUID(), "left behind", Instant.EPOCH));
+        }
+        try (NoteJsonWriter writer = NoteJsonWriter.acquire(null)) {
+            assert writer.length() == 0 : "Expected a pooled writer to start empty";
+        }
+        System.out.println("Pooled writer starts empty test passed.");
+    }
+
+    private static String write(Note note) throws IOException {
+        try (NoteJsonWriter writer = NoteJsonWriter.acquire(null)) {
+            writer.writeNote(note);
+            return new String(Arrays.copyOf(writer.buffer(), writer.length()), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String json(UUID id, String escapedContent, Instant createdAt, long version) {
+        return "{\"id\":\"" + id + "\",\"content\":\"" + escapedContent + "\",\"createdAt\":\"" + createdAt + "\",\"version\":" + version + "}";
+    }
+
+    /**
+     * Keeps what is written and how it arrived
+     */
+    private static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+        int smallest = Integer.MAX_VALUE;
+        private int last;
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            super.write(bytes, offset, length);
+            writes++;
+            // The last piece of a list can be any size
+            smallest = Math.min(smallest, last == 0 ? Integer.MAX_VALUE : last);
+            last = length;
+        }
+    }
+}
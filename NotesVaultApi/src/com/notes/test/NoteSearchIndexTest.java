@@ -0,0 +1,320 @@
+package com.notes.test;
+
+import com.notes.InMemoryNoteStore;
+import com.notes.Note;
+import com.notes.NoteCursor;
+import com.notes.NoteSearchIndex;
+import com.notes.NoteSink;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Business logic test for the in memory search index
+ */
+public class NoteSearchIndexTest {
+
+    private final static Instant START = Instant.parse("2025-01-01T00:00:00Z");
+
+    public static void main(String[] args) throws Exception {
+        testSearchSubstring();
+        testSearchPhrase();
+        testSearchPartWord();
+        testSameAsStore();
+        testTrigramsNarrowSearch();
+        testSearchPaged();
+        testUpdateAndDelete();
+        testBuildRacingWrites();
+        testCompaction();
+        testOverMemoryLimit();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that a keyword matches anywhere in the content, inside longer words too, and case matters
+     */
+    private static void testSearchSubstring() throws Exception {
+        NoteSearchIndex index = buildIndex(List.of(
+                note(0, "Buy milk and eggs"),
+                note(1, "Call the BANK"),
+                note(2, "milkshake recipe")));
+
+        List<Note> found = search(index, "milk", null, 10);
+        assert found.size() == 2 : "Expected the word and the longer word both found";
+        assert found.get(0).getContent().equals("Buy milk and eggs") : "Expected creation order";
+        assert search(index, "ilk", null, 10).size() == 2 : "Expected a match inside a word";
+        assert search(index, "MILK", null, 10).isEmpty() : "Expected case to matter, the same as the stores";
+        assert search(index, "BANK", null, 10).size() == 1 : "Expected the exact case found";
+        assert search(index, "nothing", null, 10).isEmpty() : "Expected no match";
+        System.out.println("Search substring test passed.");
+    }
+
+    /**
+     * Test that a keyword with several words has to appear as written, not just have every word somewhere
+     */
+    private static void testSearchPhrase() throws Exception {
+        NoteSearchIndex index = buildIndex(List.of(
+                note(0, "red apple"),
+                note(1, "apple, red"),
+                note(2, "red car")));
+
+        List<Note> found = search(index, "red apple", null, 10);
+        assert found.size() == 1 : "Expected one note with the words in that order";
+        assert found.get(0).getContent().equals("red apple") : "Wrong note found";
+        assert search(index, "apple red", null, 10).isEmpty() : "Expected no note with the words the other way round";
+        assert search(index, "e, r", null, 10).size() == 1 : "Expected separators matched as written";
+        System.out.println("Search phrase test passed.");
+    }
+
+    /**
+     * Test that words cut off at either end of the keyword still find the longer words they are part of, and * is
+     * matched as written
+     */
+    private static void testSearchPartWord() throws Exception {
+        NoteSearchIndex index = buildIndex(List.of(
+                note(0, "meeting notes"),
+                note(1, "meet at noon, meetup later"),
+                note(2, "metal")));
+
+        assert search(index, "meet", null, 10).size() == 2 : "Expected both notes with a word starting with meet";
+        assert search(index, "at noon, meet", null, 10).size() == 1 : "Expected the last word matched as a prefix";
+        assert search(index, "eting no", null, 10).size() == 1 : "Expected the first word matched as a suffix";
+        assert search(index, "meet*", null, 10).isEmpty() : "Expected * to have no special meaning";
+        System.out.println("Search part word test passed.");
+    }
+
+    /**
+     * Test that the index finds the same notes in the same order as the store would for all kinds of keywords
+     */
+    private static void testSameAsStore() throws Exception {
+        List<Note> notes = List.of(
+                note(0, "Team meeting at 10:00, room 4B"),
+                note(1, "meeting-notes: budget 100% approved"),
+                note(2, "Budget review_final"),
+                note(3, "über café naïve"),
+                note(4, "   "),
+                note(5, "a b c a b c"));
+        InMemoryNoteStore store = storeOf(notes);
+        NoteSearchIndex index = buildIndex(notes);
+
+        String[] keywords = {"meeting", "Meeting", "eeting at 1", "10:00", "100%", "review_final", "_", "%", " ",
+                "café", "CAFÉ", "b c a", "c a b c a", "ng-no", "Team meeting at 10:00, room 4B", "room 4", "", "x"};
+        for (String keyword : keywords) {
+            List<Note> fromStore = new ArrayList<>();
+            store.searchNotes(keyword, null, 100, fromStore::add);
+            List<Note> fromIndex = search(index, keyword, null, 100);
+            assert fromIndex.equals(fromStore) : "Expected the same notes for '" + keyword + "' but the store found "
+                    + fromStore + " and the index " + fromIndex;
+        }
+        System.out.println("Same as store test passed.");
+    }
+
+    /**
+     * Test that a search only checks the notes that have every trigram of the keyword, so a one word search does not
+     * look at every note
+     */
+    private static void testTrigramsNarrowSearch() throws Exception {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            notes.add(note(i, "note number " + i));
+        }
+        notes.add(note(1000, "Buy milk"));
+        notes.add(note(1001, "MILKSHAKE"));
+        notes.add(note(1002, "mild ilk"));
+        NoteSearchIndex index = buildIndex(notes);
+
+        long before = index.getNotesChecked();
+        assert contents(search(index, "milk", null, 10)).equals(List.of("Buy milk")) : "Expected the one note with milk";
+        long checked = index.getNotesChecked() - before;
+        // The upper case note has the same trigrams once lower cased, mild ilk has mil and ilk but not in a row
+        assert checked <= 3 : "Expected only the notes with mil and ilk checked but " + checked + " were";
+
+        before = index.getNotesChecked();
+        assert search(index, "number 12", null, 100).size() == 11 : "Expected 12 and 120 to 129";
+        assert index.getNotesChecked() - before < 100 : "Expected a keyword with a separator narrowed down too";
+
+        before = index.getNotesChecked();
+        assert search(index, "cheese", null, 10).isEmpty() : "Expected no match";
+        assert index.getNotesChecked() == before : "Expected a trigram no note has to check nothing";
+
+        // Too short for a trigram, every note has to be looked at
+        before = index.getNotesChecked();
+        assert search(index, "lk", null, 10).size() == 2 : "Expected the two lower case notes with lk";
+        assert index.getNotesChecked() - before == notes.size() : "Expected a two char keyword to check every note";
+        System.out.println("Trigrams narrow search test passed.");
+    }
+
+    /**
+     * Test that results page with the cursor in creation order
+     */
+    private static void testSearchPaged() throws Exception {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            notes.add(note(i, "page note " + i));
+        }
+        NoteSearchIndex index = buildIndex(notes);
+
+        List<Note> all = new ArrayList<>();
+        NoteCursor cursor = null;
+        int pages = 0;
+        do {
+            List<Note> page = new ArrayList<>();
+            cursor = index.search("page", cursor, 10, page::add);
+            all.addAll(page);
+            pages++;
+        } while (cursor != null);
+
+        assert pages == 3 : "Expected three pages but got " + pages;
+        assert all.equals(notes) : "Expected every note once in creation order";
+        System.out.println("Search paged test passed.");
+    }
+
+    /**
+     * Test that updates and deletes reported to the index change what it finds
+     */
+    private static void testUpdateAndDelete() throws Exception {
+        Note first = note(0, "old words");
+        Note second = note(1, "keep this one");
+        NoteSearchIndex index = buildIndex(List.of(first, second));
+
+        index.noteUpdated(first.getId(), "new words");
+        assert search(index, "old", null, 10).isEmpty() : "Expected old content to be gone";
+        List<Note> found = search(index, "new", null, 10);
+        assert found.size() == 1 && found.get(0).getCreatedAt().equals(first.getCreatedAt()) : "Expected updated note";
+
+        index.noteDeleted(second.getId());
+        assert search(index, "keep", null, 10).isEmpty() : "Expected deleted note to be gone";
+
+        index.noteSaved(note(2, "keep adding"));
+        assert search(index, "keep", null, 10).size() == 1 : "Expected saved note to be found";
+        assert index.getIndexedNotes() == 2 : "Expected two notes in the index";
+        System.out.println("Update and delete test passed.");
+    }
+
+    /**
+     * Test that writes reported while the build is loading win over the rows it read before them
+     */
+    private static void testBuildRacingWrites() throws Exception {
+        Note first = note(0, "first as loaded");
+        Note second = note(1, "second as loaded");
+        Note third = note(2, "third as loaded");
+        Note fourth = note(3, "fourth as loaded");
+        Note created = note(4, "created while building");
+        NoteSearchIndex index = new NoteSearchIndex(Long.MAX_VALUE);
+        // The store hands over rows it read before the writes below, as a database page read ahead of them would
+        InMemoryNoteStore store = new InMemoryNoteStore() {
+            @Override
+            public NoteCursor streamNotes(NoteCursor after, int limit, NoteSink sink) throws IOException {
+                List<Note> rows = new ArrayList<>();
+                NoteCursor next = super.streamNotes(after, limit, rows::add);
+                for (Note row : rows) {
+                    if (row.getId().equals(first.getId())) {
+                        index.noteUpdated(second.getId(), "second as updated");
+                        index.noteDeleted(third.getId());
+                        index.noteSaved(created);
+                        index.noteUpdated(created.getId(), "created then updated");
+                    }
+                    sink.accept(row);
+                    if (row.getId().equals(first.getId())) {
+                        index.noteUpdated(first.getId(), "first as updated");
+                    }
+                }
+                return next;
+            }
+        };
+        for (Note note : List.of(first, second, third, fourth, created)) {
+            store.persistNote(note);
+        }
+        index.build(store);
+
+        assert contents(search(index, "as ", null, 10)).equals(List.of("first as updated", "second as updated", "fourth as loaded"))
+                : "Expected the updates kept and the deleted note gone but got " + contents(search(index, "as ", null, 10));
+        assert contents(search(index, "created", null, 10)).equals(List.of("created then updated"))
+                : "Expected the note saved during the build kept at its latest content";
+        assert index.getIndexedNotes() == 4 : "Expected the deleted note not put back by the build";
+
+        // Once built the writes seen during the build no longer hold anything back
+        index.noteUpdated(third.getId(), "third is back");
+        assert search(index, "third", null, 10).isEmpty() : "Expected an update of a deleted note to do nothing";
+        index.noteSaved(third);
+        assert search(index, "third", null, 10).size() == 1 : "Expected a note saved again after the build indexed";
+        System.out.println("Build racing writes test passed.");
+    }
+
+    /**
+     * Test that deleting most of the notes compacts the index without losing the rest
+     */
+    private static void testCompaction() throws Exception {
+        List<Note> notes = new ArrayList<>();
+        // Deleting exactly this many notes triggers a compaction on the last delete
+        for (int i = 0; i < 2024; i++) {
+            notes.add(note(i, (i < 1000 ? "kept" : "dropped") + " note"));
+        }
+        NoteSearchIndex index = buildIndex(notes);
+        int keptTrigrams = buildIndex(notes.subList(0, 1000)).getTrigramCount();
+
+        for (Note note : notes) {
+            if (note.getContent().startsWith("dropped")) {
+                index.noteDeleted(note.getId());
+            }
+        }
+
+        assert index.getTrigramCount() == keptTrigrams : "Expected the trigrams only in deleted notes to be compacted away";
+        assert search(index, "kept", null, 5000).size() == 1000 : "Expected every kept note after compaction";
+        assert search(index, "dropped", null, 5000).isEmpty() : "Expected no deleted notes after compaction";
+        System.out.println("Compaction test passed.");
+    }
+
+    /**
+     * Test that the index turns itself off once it is over its memory limit
+     */
+    private static void testOverMemoryLimit() throws Exception {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            notes.add(note(i, "note number " + i));
+        }
+        NoteSearchIndex index = new NoteSearchIndex(10_000);
+        index.build(storeOf(notes));
+
+        assert !index.isAvailable() : "Expected the index to be off when over the limit";
+        assert index.getEstimatedBytes() == 0 : "Expected the index to free its memory";
+        System.out.println("Over memory limit test passed.");
+    }
+
+    private static NoteSearchIndex buildIndex(List<Note> notes) {
+        NoteSearchIndex index = new NoteSearchIndex(Long.MAX_VALUE);
+        index.build(storeOf(notes));
+        assert index.isAvailable() : "Expected the index to be available after building";
+        return index;
+    }
+
+    private static InMemoryNoteStore storeOf(List<Note> notes) {
+        InMemoryNoteStore store = new InMemoryNoteStore();
+        for (Note note : notes) {
+            store.persistNote(note);
+        }
+        return store;
+    }
+
+    private static List<Note> search(NoteSearchIndex index, String query, NoteCursor cursor, int limit) throws IOException {
+        List<Note> found = new ArrayList<>();
+        index.search(query, cursor, limit, found::add);
+        return found;
+    }
+
+    private static List<String> contents(List<Note> notes) {
+        List<String> contents = new ArrayList<>();
+        for (Note note : notes) {
+            contents.add(note.getContent());
+        }
+        return contents;
+    }
+
+    private static Note note(int second, String content) {
+        return new Note(UUID.randomUUID(), content, START.plusSeconds(second));
+    }
+}
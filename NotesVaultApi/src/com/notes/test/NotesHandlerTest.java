@@ -1,17 +1,30 @@
 package com.notes.test;
 
+import com.notes.BulkImportResult;
+import com.notes.BulkNoteReader;
 import com.notes.Note;
+import com.notes.NoteCursor;
+import com.notes.NoteSink;
+import com.notes.NoteChangeListener;
+import com.notes.NoteStore;
+import com.notes.NoteBinaryCodec;
 import com.notes.NotesHandler;
-import com.notes.PostgresSQLJDBC;
+import com.notes.ResponseCompression;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Business logic test for the notes handler
@@ -21,7 +34,7 @@ public class NotesHandlerTest {
     /**
      * Since we wont have a database instance running we need to mock it
      */
-    private static class MockPostgresSQLJDBC extends PostgresSQLJDBC {
+    private static class MockNoteStore implements NoteStore {
         @Override
         public List<Note> getAllNotes() {
             return List.of(TEST_NOTE);
@@ -38,46 +51,112 @@ public class NotesHandlerTest {
         }
 
         @Override
-        public void deleteNote(UUID id) {
+        public long getNoteVersion(UUID id) {
+            return TEST_NOTE.getVersion();
+        }
+
+        @Override
+        public long getGeneration() {
+            return 1;
+        }
+
+        @Override
+        public boolean deleteNote(UUID id, long expectedVersion) {
             System.out.println("Mock delete: " + id);
+            return true;
         }
 
         @Override
-        public void updateNote(UUID id, String newContent) {
+        public long updateNote(UUID id, String newContent, long expectedVersion) {
             System.out.println("Mock update: " + id + " with content: " + newContent);
+            return 2;
+        }
+
+        @Override
+        public NoteCursor streamNotes(NoteCursor after, int limit, NoteSink sink) throws IOException {
+            // Page through both notes the same way the database does so paging can be tested
+            List<Note> remaining = new ArrayList<>();
+            for (Note note : List.of(TEST_NOTE, SECOND_TEST_NOTE)) {
+                if (after == null || note.getCreatedAt().isAfter(after.getCreatedAt())) {
+                    remaining.add(note);
+                }
+            }
+            int count = Math.min(limit, remaining.size());
+            for (int i = 0; i < count; i++) {
+                sink.accept(remaining.get(i));
+            }
+            return remaining.size() > limit ? NoteCursor.after(remaining.get(limit - 1)) : null;
         }
 
         @Override
-        public List<Note> searchNotes(String keyword) {
+        public NoteCursor searchNotes(String keyword, NoteCursor after, int limit, NoteSink sink) throws IOException {
+            if (keyword.equals(FAILING_KEYWORD)) {
+                // More than fits in the response buffer so the headers are sent before the store fails
+                for (int i = 0; i < 1000; i++) {
+                    sink.accept(TEST_NOTE);
+                }
+                throw new RuntimeException("Connection to the database was lost");
+            }
             // Return test note if keyword matches, empty list otherwise
             if (TEST_NOTE.getContent().contains(keyword)) {
-                return List.of(TEST_NOTE);
+                sink.accept(TEST_NOTE);
             }
-            return List.of();
+            return null;
         }
 
         @Override
-        public List<Note> getNotesByDateRange(Instant from, Instant to) {
+        public NoteCursor getNotesByDateRange(Instant from, Instant to, NoteCursor after, int limit, NoteSink sink) throws IOException {
             Instant createdAt = TEST_NOTE.getCreatedAt();
             if (!createdAt.isBefore(from) && !createdAt.isAfter(to)) {
-                return List.of(TEST_NOTE);
+                sink.accept(TEST_NOTE);
             }
-            return List.of();
+            return null;
+        }
+
+        @Override
+        public long exportNotes(BulkNoteReader.Format format, Instant from, Instant to, OutputStream out) throws IOException {
+            // Write the test note the same way the database export does
+            String row = format == BulkNoteReader.Format.CSV
+                    ? "id,content,timestamp\n" + TEST_NOTE.getId() + "," + TEST_NOTE.getContent() + "," + TEST_NOTE.getCreatedAt() + "\n"
+                    : "{\"id\" : \"" + TEST_NOTE.getId() + "\", \"content\" : \"" + TEST_NOTE.getContent() + "\"}\n";
+            out.write(row.getBytes(StandardCharsets.UTF_8));
+            return 1;
         }
 
         @Override
-        public void setupDb() {
-            System.out.println("Mock setupDb");
+        public BulkImportResult importNotes(BulkNoteReader reader) throws IOException {
+            // Read every row the same way the database import does but only count them
+            BulkImportResult result = new BulkImportResult(100);
+            long imported = 0;
+            while (reader.next()) {
+                if (reader.getNote() == null) {
+                    result.reject(reader.getLine(), reader.getError());
+                } else {
+                    imported++;
+                }
+            }
+            result.setImported(imported);
+            return result;
+        }
+
+        @Override
+        public void addChangeListener(NoteChangeListener listener) {
+            System.out.println("Mock add change listener");
         }
     }
 
     // Note to test with
     private final static Note TEST_NOTE = new Note(UUID.randomUUID(), "Test Note 1", Instant.now());
+    // Search that sends part of a list and then fails
+    private final static String FAILING_KEYWORD = "fail-partway";
+    // Only returned when listing all notes, created after the first so it is always on the later page
+    private final static Note SECOND_TEST_NOTE = new Note(UUID.randomUUID(), "Other Note 2", TEST_NOTE.getCreatedAt().plusSeconds(1));
 
     public static void main(String[] args) throws Exception {
         // Setup mock and the handler as the uut
-        MockPostgresSQLJDBC mockDB = new MockPostgresSQLJDBC();
-        NotesHandler notesHandler = new NotesHandler(mockDB);
+        MockNoteStore mockDB = new MockNoteStore();
+        // No threshold so the small test export still comes back compressed
+        NotesHandler notesHandler = new NotesHandler(mockDB, null, new ResponseCompression(ResponseCompression.DEFAULT_LEVEL, 0));
 
         // Start the server
         HttpServer server = HttpServer.create(new InetSocketAddress(8081), 0);
@@ -102,6 +181,21 @@ public class NotesHandlerTest {
         testFilterNotesByDateOutOfRange();
         testFilterNotesInvalidTimestamp();
         testPostNoteTooLong();
+        testPostBodyTooLarge();
+        testGetNotesPaged();
+        testGetNoteByIdJson();
+        testGetNotesPagedJson();
+        testGetNotesPagedBinary();
+        testGetNotesInvalidLimit();
+        testGetNotesInvalidCursor();
+        testListFailsPartway();
+        testBulkImportCsv();
+        testBulkImportNdjson();
+        testBulkImportBinary();
+        testBulkImportUnsupportedType();
+        testExportCsv();
+        testExportNdjsonGzip();
+        testExportInvalidFormat();
 
         // Make sure to stop the server and indicate to user that everything looked good
         server.stop(0);
@@ -124,6 +218,160 @@ public class NotesHandlerTest {
         System.out.println("GET all notes test passed.");
     }
 
+    /**
+     * Test that a limit splits the notes into pages and the cursor gets the next page
+     * @throws Exception
+     */
+    private static void testGetNotesPaged() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes?limit=1").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.connect();
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK for first page";
+        String firstPage = getStringFromInputStream(connection);
+        assert firstPage.startsWith(TEST_NOTE.toString()) : "Expected first note on first page";
+        assert !firstPage.contains(SECOND_TEST_NOTE.toString()) : "Expected second note to be on the next page";
+        String nextCursor = NoteCursor.after(TEST_NOTE).encode();
+        assert firstPage.endsWith("NextCursor " + nextCursor + "\n") : "Expected cursor for next page";
+
+        connection = (HttpURLConnection) new URI("http://localhost:8081/notes?limit=1&cursor=" + nextCursor).toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.connect();
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK for second page";
+        String secondPage = getStringFromInputStream(connection);
+        assert secondPage.equals(SECOND_TEST_NOTE.toString()) : "Expected only the second note and no cursor on last page";
+        System.out.println("GET notes paged test passed.");
+    }
+
+    /**
+     * Test that a note comes back as JSON when the Accept header asks for it
+     * @throws Exception
+     */
+    private static void testGetNoteByIdJson() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes/" + TEST_NOTE.getId()).toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept", "application/json");
+        connection.connect();
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK for note retrieval";
+        assert connection.getHeaderField("Content-Type").startsWith("application/json") : "Expected a JSON content type";
+        byte[] body = connection.getInputStream().readAllBytes();
+        assert connection.getContentLength() == body.length : "Expected the content length to be the bytes sent";
+        assert new String(body, StandardCharsets.UTF_8).equals(json(TEST_NOTE)) : "Received note did not match test note";
+        System.out.println("GET note by ID JSON test passed.");
+    }
+
+    /**
+     * Test that a page of notes comes back as a JSON list with the cursor for the next page
+     * @throws Exception
+     */
+    private static void testGetNotesPagedJson() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes?limit=1").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept", "text/plain;q=0.5, application/*");
+        connection.connect();
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK for first page";
+        String nextCursor = NoteCursor.after(TEST_NOTE).encode();
+        String firstPage = new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assert firstPage.equals("{\"notes\":[" + json(TEST_NOTE) + "],\"nextCursor\":\"" + nextCursor + "\"}") : "Unexpected first page " + firstPage;
+
+        connection = (HttpURLConnection) new URI("http://localhost:8081/notes?limit=1&cursor=" + nextCursor).toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept", "application/json");
+        connection.connect();
+
+        String secondPage = new String(connection.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assert secondPage.equals("{\"notes\":[" + json(SECOND_TEST_NOTE) + "],\"nextCursor\":null}") : "Unexpected last page " + secondPage;
+        System.out.println("GET notes paged JSON test passed.");
+    }
+
+    /**
+     * Test that a page of notes comes back as binary frames with a cursor frame for the next page
+     * @throws Exception
+     */
+    private static void testGetNotesPagedBinary() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes?limit=1").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept", NoteBinaryCodec.MEDIA_TYPE);
+        connection.connect();
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK for first page";
+        assert NoteBinaryCodec.MEDIA_TYPE.equals(connection.getHeaderField("Content-Type")) : "Expected a binary content type";
+        ByteBuffer page = ByteBuffer.wrap(connection.getInputStream().readAllBytes());
+        Note note = NoteBinaryCodec.readNote(page);
+        assert note.getId().equals(TEST_NOTE.getId()) && note.getContent().equals(TEST_NOTE.getContent()) : "Expected the test note";
+        assert note.getCreatedAt().equals(TEST_NOTE.getCreatedAt().truncatedTo(ChronoUnit.MICROS)) : "Expected the timestamp to the microsecond";
+        assert NoteBinaryCodec.readCursor(page).equals(NoteCursor.after(TEST_NOTE).encode()) : "Expected cursor for next page";
+        assert !page.hasRemaining() : "Expected nothing after the cursor";
+        System.out.println("GET notes paged binary test passed.");
+    }
+
+    /**
+     * Test that a list that fails after its headers were sent is cut off rather than ended normally, in every format
+     * and encoding, so the client can not mistake it for a complete list
+     * @throws Exception
+     */
+    private static void testListFailsPartway() throws Exception {
+        for (String accept : new String[] {"text/plain", "application/json", NoteBinaryCodec.MEDIA_TYPE}) {
+            for (String encoding : new String[] {"identity", "gzip"}) {
+                HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes?search=" + FAILING_KEYWORD).toURL().openConnection();
+                connection.setRequestProperty("Accept", accept);
+                connection.setRequestProperty("Accept-Encoding", encoding);
+                assert connection.getResponseCode() == 200 : "Expected the headers to have gone out before the failure";
+
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                try {
+                    // The compressed body can be cut off before even the gzip header is complete
+                    InputStream body = encoding.equals("gzip") ? new GZIPInputStream(connection.getInputStream()) : connection.getInputStream();
+                    body.transferTo(received);
+                    assert false : "Expected the " + accept + " " + encoding + " body to be cut off";
+                } catch (IOException expected) {
+                    // The body ended without its last chunk
+                }
+                assert !received.toString(StandardCharsets.UTF_8).contains("ERROR") : "Expected no error text written into the body";
+            }
+        }
+        System.out.println("GET list fails partway test passed.");
+    }
+
+    /**
+     * @return a test note as the handler sends it in JSON, the test notes have nothing in them that needs escaping
+     */
+    private static String json(Note note) {
+        return "{\"id\":\"" + note.getId() + "\",\"content\":\"" + note.getContent() + "\",\"createdAt\":\""
+                + note.getCreatedAt() + "\",\"version\":" + note.getVersion() + "}";
+    }
+
+    /**
+     * Test that a limit that is not a positive number is rejected
+     * @throws Exception
+     */
+    private static void testGetNotesInvalidLimit() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes?limit=-5").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.connect();
+
+        assert connection.getResponseCode() == 400 : "Expected 400 for invalid limit";
+        System.out.println("GET notes invalid limit test passed.");
+        connection.disconnect();
+    }
+
+    /**
+     * Test that a cursor the server did not hand out is rejected
+     * @throws Exception
+     */
+    private static void testGetNotesInvalidCursor() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes?cursor=IAMNOTACURSOR").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.connect();
+
+        assert connection.getResponseCode() == 400 : "Expected 400 for invalid cursor";
+        System.out.println("GET notes invalid cursor test passed.");
+        connection.disconnect();
+    }
+
     /**
      * Testing getting the note by ID
      * @throws Exception
@@ -357,6 +605,32 @@ public class NotesHandlerTest {
         System.out.println("POST note too long test passed.");
     }
 
+    /**
+     * Test that a body far over any valid note is turned down with a 413, both when its length is sent up front
+     * and when it is sent in chunks
+     * @throws Exception
+     */
+    private static void testPostBodyTooLarge() throws Exception {
+        String requestBody = "id=" + UUID.randomUUID() + "&content=" + "a".repeat(40_000) + "&timestamp=" + Instant.now();
+
+        for (boolean chunked : new boolean[]{false, true}) {
+            HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes").toURL().openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            if (chunked) {
+                connection.setChunkedStreamingMode(4096);
+            }
+
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(requestBody.getBytes());
+            }
+
+            assert connection.getResponseCode() == 413 : "Expected 413 for a body that is too large, chunked " + chunked;
+        }
+        System.out.println("POST body too large test passed.");
+    }
+
     /**
      * Try and update with an invalid UUID type
      * @throws Exception
@@ -446,6 +720,146 @@ public class NotesHandlerTest {
         connection.disconnect();
     }
 
+    /**
+     * Test a CSV import with quoted content and rows that fail the checks
+     * @throws Exception
+     */
+    private static void testBulkImportCsv() throws Exception {
+        String body = "id,content,timestamp\n"
+                + UUID.randomUUID() + ",Plain note,2025-01-01T00:00:00Z\n"
+                + UUID.randomUUID() + ",\"Quoted, with \"\"quotes\"\"\nand a new line\",2025-01-01T00:00:01Z\n"
+                + "not-a-uuid,Bad id,2025-01-01T00:00:02Z\n"
+                + UUID.randomUUID() + "," + "a".repeat(1001) + ",2025-01-01T00:00:03Z\n";
+
+        HttpURLConnection connection = postBulk(body, "text/csv");
+        String returnedString = getStringFromInputStream(connection);
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK";
+        assert returnedString.contains("Imported 2 notes") : "Expected both valid rows to be imported";
+        assert returnedString.contains("Rejected 2 rows") : "Expected both invalid rows to be rejected";
+        assert returnedString.contains("Line 5: Invalid UUID") : "Expected the line of the bad UUID";
+        assert returnedString.contains("Line 6: Note content exceeds maximum length") : "Expected the line of the long note";
+        System.out.println("POST bulk import CSV test passed.");
+    }
+
+    /**
+     * Test an NDJSON import with a row that is not valid JSON
+     * @throws Exception
+     */
+    private static void testBulkImportNdjson() throws Exception {
+        String body = "{\"id\":\"" + UUID.randomUUID() + "\",\"content\":\"Line one\\nline two \\u00e9\",\"timestamp\":\"2025-01-01T00:00:00Z\"}\n"
+                + "\n"
+                + "{\"id\":\"" + UUID.randomUUID() + "\",\"content\":\"Missing timestamp\"}\n"
+                + "{\"id\": oops}\n";
+
+        HttpURLConnection connection = postBulk(body, "application/x-ndjson");
+        String returnedString = getStringFromInputStream(connection);
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK";
+        assert returnedString.contains("Imported 1 notes") : "Expected the valid row to be imported";
+        assert returnedString.contains("Line 3: Invalid timestamp format") : "Expected the row without a timestamp to be rejected";
+        assert returnedString.contains("Line 4: Invalid JSON") : "Expected the broken row to be rejected";
+        System.out.println("POST bulk import NDJSON test passed.");
+    }
+
+    /**
+     * Test a binary bulk import where one frame is rejected and the rest are still imported
+     * @throws Exception
+     */
+    private static void testBulkImportBinary() throws Exception {
+        ByteBuffer body = ByteBuffer.allocate(16 * 1024);
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "Line one\nline two é", Instant.parse("2025-01-01T00:00:00Z")));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "x".repeat(1001), Instant.now()));
+        NoteBinaryCodec.writeNote(body, new Note(UUID.randomUUID(), "Third", Instant.now()));
+
+        HttpURLConnection connection = postBulk(Arrays.copyOf(body.array(), body.position()), NoteBinaryCodec.MEDIA_TYPE);
+        String returnedString = getStringFromInputStream(connection);
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK";
+        assert returnedString.contains("Imported 2 notes") : "Expected the valid frames to be imported but got " + returnedString;
+        assert returnedString.contains("Line 2: Note content exceeds maximum length") : "Expected the long frame to be rejected";
+        System.out.println("POST bulk import binary test passed.");
+    }
+
+    /**
+     * Test that a bulk import needs a format it can read
+     * @throws Exception
+     */
+    private static void testBulkImportUnsupportedType() throws Exception {
+        HttpURLConnection connection = postBulk("id=1", "application/x-www-form-urlencoded");
+
+        assert connection.getResponseCode() == 400 : "Expected 400 Bad Request";
+        System.out.println("POST bulk import unsupported type test passed.");
+    }
+
+    /**
+     * Test that an export defaults to CSV with a header row
+     * @throws Exception
+     */
+    private static void testExportCsv() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes/export").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.connect();
+
+        String returnedString = getStringFromInputStream(connection);
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK";
+        assert connection.getContentType().startsWith("text/csv") : "Expected a CSV content type";
+        assert returnedString.startsWith("id,content,timestamp\n") : "Expected a header row";
+        assert returnedString.contains(TEST_NOTE.getId().toString()) : "Expected the test note";
+        System.out.println("GET export CSV test passed.");
+    }
+
+    /**
+     * Test an NDJSON export with gzip
+     * @throws Exception
+     */
+    private static void testExportNdjsonGzip() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes/export?format=ndjson&from=2020-01-01T00:00:00Z").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        connection.connect();
+
+        assert connection.getResponseCode() == 200 : "Expected 200 OK";
+        assert "gzip".equals(connection.getHeaderField("Content-Encoding")) : "Expected a gzipped response";
+        String returnedString;
+        try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+            returnedString = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assert returnedString.contains("\"id\" : \"" + TEST_NOTE.getId()) : "Expected the test note as JSON";
+        System.out.println("GET export NDJSON gzip test passed.");
+    }
+
+    /**
+     * Test that an unknown export format is rejected
+     * @throws Exception
+     */
+    private static void testExportInvalidFormat() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes/export?format=xml").toURL().openConnection();
+        connection.setRequestMethod("GET");
+        connection.connect();
+
+        assert connection.getResponseCode() == 400 : "Expected 400 Bad Request";
+        System.out.println("GET export invalid format test passed.");
+    }
+
+    private static HttpURLConnection postBulk(String body, String contentType) throws Exception {
+        return postBulk(body.getBytes(StandardCharsets.UTF_8), contentType);
+    }
+
+    private static HttpURLConnection postBulk(byte[] body, String contentType) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI("http://localhost:8081/notes/bulk").toURL().openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.connect();
+
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body);
+        }
+        return connection;
+    }
+
     /**
      * Helper method to get a string representation of the note to compare to the test note
      */
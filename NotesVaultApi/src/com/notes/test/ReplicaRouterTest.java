@@ -0,0 +1,254 @@
+package com.notes.test;
+
+import com.notes.ClientContext;
+import com.notes.InMemoryNoteStore;
+import com.notes.Note;
+import com.notes.NoteChangeListeners;
+import com.notes.NotePageCache;
+import com.notes.NotesHandler;
+import com.notes.ReplicaRouter;
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Business logic test for sending reads to replicas, writes to the primary and a client that just wrote back to the
+ * primary. Replicas are stand-in names with a lag the test sets
+ */
+public class ReplicaRouterTest {
+
+    private static final String PRIMARY = "primary";
+
+    public static void main(String[] args) throws Exception {
+        testWithoutReplicas();
+        testReadsSpreadOverReplicas();
+        testLaggingReplicaLeavesRotation();
+        testUnreachableReplicaLeavesRotation();
+        testReadYourWrites();
+        testAfterReplicaLag();
+        testStaleListMovesOn();
+        testHandlerSetsClient();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that everything goes to the primary when there are no replicas and that writes pin nobody
+     */
+    private static void testWithoutReplicas() {
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of(), replica -> 0, 1000, 1000);
+        router.start(1000);
+        ClientContext.set("client");
+        try {
+            assert router.forWrite().equals(PRIMARY) : "Expected writes on the primary";
+            assert router.forRead().equals(PRIMARY) : "Expected reads on the primary";
+            assert !router.isPinned() && router.getPinnedClients() == 0 : "Expected no pinning without replicas";
+        } finally {
+            ClientContext.clear();
+            router.close();
+        }
+        System.out.println("Without replicas test passed.");
+    }
+
+    /**
+     * Test that reads take turns between replicas once they have been checked, and go to the primary before that
+     */
+    private static void testReadsSpreadOverReplicas() {
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of("a", "b", "c"), replica -> 0, 1000, 1000);
+        assert router.forRead().equals(PRIMARY) : "Expected the primary before the replicas are checked";
+
+        router.checkLag();
+        Map<String, Integer> reads = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            reads.merge(router.forRead(), 1, Integer::sum);
+        }
+        assert reads.get("a") == 100 && reads.get("b") == 100 && reads.get("c") == 100 : "Expected reads spread evenly but got " + reads;
+        assert router.getReplicaReads(1) == 100 && router.getPrimaryReads() == 1 : "Expected reads counted by where they went";
+        assert router.forWrite().equals(PRIMARY) : "Expected writes on the primary";
+        System.out.println("Reads spread over replicas test passed.");
+    }
+
+    /**
+     * Test that a replica over the max lag takes no reads until it catches up
+     */
+    private static void testLaggingReplicaLeavesRotation() {
+        Map<String, Long> lag = new ConcurrentHashMap<>(Map.of("a", 0L, "b", 0L));
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of("a", "b"), lag::get, 500, 1000);
+        router.checkLag();
+
+        lag.put("b", 501L);
+        router.checkLag();
+        assert !router.isInRotation(1) && router.getReplicaLagMillis(1) == 501 : "Expected b out of rotation";
+        for (int i = 0; i < 10; i++) {
+            assert router.forRead().equals("a") : "Expected every read on a";
+        }
+
+        lag.put("a", 2000L);
+        router.checkLag();
+        assert router.forRead().equals(PRIMARY) : "Expected the primary with every replica lagging";
+
+        lag.put("a", 0L);
+        lag.put("b", 500L);
+        router.checkLag();
+        assert router.isInRotation(0) && router.isInRotation(1) : "Expected both back at or under the max lag";
+        assert !router.forRead().equals(router.forRead()) : "Expected reads to take turns again";
+        System.out.println("Lagging replica leaves rotation test passed.");
+    }
+
+    /**
+     * Test that a replica that can not be asked for its lag is treated as lagging
+     */
+    private static void testUnreachableReplicaLeavesRotation() {
+        Map<String, Boolean> down = new ConcurrentHashMap<>(Map.of("a", false, "b", false));
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of("a", "b"), replica -> {
+            if (down.get(replica)) {
+                throw new SQLException("Connection refused");
+            }
+            return 0;
+        }, 1000, 1000);
+        router.checkLag();
+        down.put("a", true);
+        router.checkLag();
+        assert !router.isInRotation(0) && router.getReplicaLagMillis(0) == -1 : "Expected a out of rotation";
+        assert router.forRead().equals("b") && router.forRead().equals("b") : "Expected every read on b";
+        System.out.println("Unreachable replica leaves rotation test passed.");
+    }
+
+    /**
+     * Test that a client reads from the primary for the window after it writes, and other clients do not
+     */
+    private static void testReadYourWrites() throws Exception {
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of("a"), replica -> 0, 1000, 100);
+        router.checkLag();
+        try {
+            ClientContext.set("writer");
+            assert router.forRead().equals("a") : "Expected reads on the replica before writing";
+            router.forWrite();
+            assert router.isPinned() && router.forRead().equals(PRIMARY) : "Expected reads on the primary right after writing";
+
+            ClientContext.set("other");
+            assert !router.isPinned() && router.forRead().equals("a") : "Expected other clients to keep reading from the replica";
+
+            ClientContext.clear();
+            assert router.forRead().equals("a") : "Expected reads outside a request on the replica";
+
+            ClientContext.set("writer");
+            Thread.sleep(150);
+            assert !router.isPinned() && router.forRead().equals("a") : "Expected reads back on the replica after the window";
+            assert router.getPinnedClients() == 0 : "Expected the pin to be dropped";
+        } finally {
+            ClientContext.clear();
+        }
+        System.out.println("Read your writes test passed.");
+    }
+
+    /**
+     * Test that a task waiting on replica lag runs once the lag window has passed
+     */
+    private static void testAfterReplicaLag() throws Exception {
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of("a"), replica -> 0, 50, 1000);
+        router.start(50);
+        try {
+            CountDownLatch ran = new CountDownLatch(1);
+            long start = System.nanoTime();
+            router.afterReplicaLag(ran::countDown);
+            assert ran.await(5, TimeUnit.SECONDS) : "Expected the task to run";
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assert waited >= 100 : "Expected the task to wait for the max lag and a check, it waited " + waited + "ms";
+        } finally {
+            router.close();
+        }
+        System.out.println("After replica lag test passed.");
+    }
+
+    /**
+     * Test that a list another client read from a lagging replica right after a write is not kept under the new
+     * generation. The store moves the generation on when the write happens and again once the replicas have had time to
+     * replay it, so the stale page stops matching its ETag and drops out of the page cache
+     */
+    private static void testStaleListMovesOn() throws Exception {
+        List<Note> primary = new CopyOnWriteArrayList<>();
+        List<Note> replica = new CopyOnWriteArrayList<>();
+        NoteChangeListeners listeners = new NoteChangeListeners();
+        NotePageCache pageCache = new NotePageCache(10, 60_000);
+        NotePageCache.Key key = NotePageCache.Key.search("note", null, 10);
+        NotePageCache.PageQuery replicaQuery = sink -> {
+            for (Note note : replica) {
+                sink.accept(note);
+            }
+            return null;
+        };
+        ReplicaRouter<String> router = new ReplicaRouter<>(PRIMARY, List.of("a"), r -> 0, 50, 1000);
+        router.start(50);
+        try {
+            // The write as the store makes it: on the primary, then the generation, then the second move once replayed
+            Note note = new Note(UUID.randomUUID(), "a note", Instant.EPOCH);
+            primary.add(note);
+            listeners.saved(note);
+            long written = listeners.getGeneration();
+            router.afterReplicaLag(listeners::changed);
+
+            // Another client lists before the replica has the note and keeps the ETag of the generation it read at
+            List<Note> stale = new ArrayList<>();
+            pageCache.stream(key, written, replicaQuery, stale::add);
+            assert stale.isEmpty() : "Expected the replica not to have the note yet";
+            replica.addAll(primary);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (listeners.getGeneration() == written) {
+                assert System.nanoTime() < deadline : "Expected the generation to move on once the replica caught up";
+                Thread.sleep(5);
+            }
+            List<Note> fresh = new ArrayList<>();
+            pageCache.stream(key, listeners.getGeneration(), replicaQuery, fresh::add);
+            assert fresh.equals(List.of(note)) : "Expected the stale page not to be served after the replica caught up";
+        } finally {
+            router.close();
+        }
+        System.out.println("Stale list moves on test passed.");
+    }
+
+    /**
+     * Test that the handler tells the store which client a request is from, by header or by address
+     */
+    private static void testHandlerSetsClient() throws Exception {
+        List<String> clients = new CopyOnWriteArrayList<>();
+        InMemoryNoteStore store = new InMemoryNoteStore() {
+            @Override
+            public Note getNoteById(UUID id) {
+                clients.add(String.valueOf(ClientContext.get()));
+                return super.getNoteById(id);
+            }
+        };
+        HttpServer server = HttpServer.create(new InetSocketAddress(8087), 0);
+        server.createContext("/notes", new NotesHandler(store));
+        server.start();
+        try {
+            URI uri = URI.create("http://localhost:8087/notes/" + UUID.randomUUID());
+            HttpURLConnection named = (HttpURLConnection) uri.toURL().openConnection();
+            named.setRequestProperty("X-Client-Id", "mobile-42");
+            assert named.getResponseCode() == 200;
+            named.getInputStream().readAllBytes();
+            HttpURLConnection anonymous = (HttpURLConnection) uri.toURL().openConnection();
+            assert anonymous.getResponseCode() == 200;
+            anonymous.getInputStream().readAllBytes();
+        } finally {
+            server.stop(0);
+        }
+        assert clients.equals(List.of("mobile-42", "127.0.0.1")) : "Expected the header then the address but got " + clients;
+        System.out.println("Handler sets client test passed.");
+    }
+}
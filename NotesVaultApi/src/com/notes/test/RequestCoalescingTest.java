@@ -0,0 +1,313 @@
+package com.notes.test;
+
+import com.notes.Note;
+import com.notes.NoteCursor;
+import com.notes.NotePageCache;
+import com.notes.NoteSink;
+import com.notes.OverloadedException;
+import com.notes.SingleFlight;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Business logic test for sharing identical reads between requests and the search and date range page cache
+ */
+public class RequestCoalescingTest {
+
+    private static final int CALLERS = 50;
+
+    public static void main(String[] args) throws Exception {
+        testConcurrentReadsShareOneLoad();
+        testFailureReachesEveryWaiter();
+        testWriteStartsNewLoad();
+        testPageServedFromCache();
+        testWriteDropsCachedPages();
+        testPagesExpire();
+        testConcurrentPageMissesShareOneQuery();
+        testLargePagesSkipCache();
+        testCapacity();
+
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that callers arriving while a load runs all get its result and only one load runs
+     */
+    private static void testConcurrentReadsShareOneLoad() throws Exception {
+        SingleFlight<String, Note> flight = new SingleFlight<>();
+        Note note = new Note(UUID.randomUUID(), "viral", Instant.EPOCH);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Note>> results = runAll(CALLERS, () -> flight.run("id", 1, () -> {
+            loads.incrementAndGet();
+            release.await();
+            return note;
+        }));
+        waitFor(() -> flight.getShared() == CALLERS - 1);
+        release.countDown();
+        for (Future<Note> result : results) {
+            assert result.get(5, TimeUnit.SECONDS) == note : "Expected every caller to get the loaded note";
+        }
+        assert loads.get() == 1 : "Expected one load but there were " + loads.get();
+        assert flight.getLoads() == 1 && flight.size() == 0 : "Expected the load counted and cleared";
+
+        assert flight.run("id", 1, () -> null) == null : "Expected a new load once the last one finished";
+        assert flight.getLoads() == 2 : "Expected the second load counted";
+        System.out.println("Concurrent reads share one load test passed.");
+    }
+
+    /**
+     * Test that every caller waiting on a load that fails gets the same exception, so a 503 stays a 503
+     */
+    private static void testFailureReachesEveryWaiter() throws Exception {
+        SingleFlight<String, Note> flight = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        OverloadedException busy = new OverloadedException("busy", 1);
+
+        List<Future<Note>> results = runAll(10, () -> flight.run("id", 1, () -> {
+            release.await();
+            throw busy;
+        }));
+        waitFor(() -> flight.getShared() == 9);
+        release.countDown();
+        for (Future<Note> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                assert false : "Expected the load to fail";
+            } catch (ExecutionException e) {
+                assert e.getCause() == busy : "Expected the load's own exception but got " + e.getCause();
+            }
+        }
+        System.out.println("Failure reaches every waiter test passed.");
+    }
+
+    /**
+     * Test that a caller whose stamp moved on since a load started runs its own, and one with an older stamp joins
+     */
+    private static void testWriteStartsNewLoad() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<String> before = executor.submit(() -> flight.run("id", 1, () -> {
+                started.countDown();
+                release.await();
+                return "before the write";
+            }));
+            assert started.await(5, TimeUnit.SECONDS) : "Expected the first load to start";
+            assert flight.run("id", 2, () -> "after the write").equals("after the write") : "Expected a load of its own after a write";
+
+            CountDownLatch newer = new CountDownLatch(1);
+            Future<String> current = executor.submit(() -> flight.run("id", 3, () -> {
+                newer.await();
+                return "current";
+            }));
+            waitFor(() -> flight.getLoads() == 3);
+            Future<String> older = executor.submit(() -> flight.run("id", 2, () -> "not run"));
+            waitFor(() -> flight.getShared() == 1);
+            newer.countDown();
+            assert older.get(5, TimeUnit.SECONDS).equals("current") : "Expected an older stamp to join a newer load";
+            assert current.get(5, TimeUnit.SECONDS).equals("current");
+
+            release.countDown();
+            assert before.get(5, TimeUnit.SECONDS).equals("before the write");
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("Write starts new load test passed.");
+    }
+
+    /**
+     * Test that the same page asked for again is sent from the cache
+     */
+    private static void testPageServedFromCache() throws IOException {
+        NotePageCache cache = new NotePageCache(10, 60_000);
+        CountingQuery query = new CountingQuery(3, true);
+        NotePageCache.Key key = NotePageCache.Key.search("viral", null, 3);
+
+        List<Note> first = new ArrayList<>();
+        NoteCursor next = cache.stream(key, 1, query, first::add);
+        List<Note> second = new ArrayList<>();
+        NoteCursor again = cache.stream(key, 1, query, second::add);
+
+        assert query.runs == 1 : "Expected one query but there were " + query.runs;
+        assert first.equals(query.notes) && second.equals(query.notes) : "Expected the same notes both times";
+        assert next != null && again == next : "Expected the same next cursor both times";
+        assert cache.getHits() == 1 && cache.getMisses() == 1 : "Expected a miss then a hit";
+
+        cache.stream(NotePageCache.Key.search("viral", next, 3), 1, query, note -> { });
+        cache.stream(NotePageCache.Key.search("other", null, 3), 1, query, note -> { });
+        cache.stream(NotePageCache.Key.search("viral", null, 4), 1, query, note -> { });
+        Instant from = Instant.EPOCH;
+        cache.stream(NotePageCache.Key.range(from, from.plusSeconds(1), null, 3), 1, query, note -> { });
+        assert query.runs == 5 : "Expected a different cursor, keyword, limit or kind of list to be a different page";
+        System.out.println("Page served from cache test passed.");
+    }
+
+    /**
+     * Test that a page read before a write is not sent after it
+     */
+    private static void testWriteDropsCachedPages() throws IOException {
+        NotePageCache cache = new NotePageCache(10, 60_000);
+        CountingQuery query = new CountingQuery(3, false);
+        NotePageCache.Key key = NotePageCache.Key.range(Instant.EPOCH, Instant.now(), null, 10);
+
+        cache.stream(key, 7, query, note -> { });
+        cache.stream(key, 8, query, note -> { });
+        assert query.runs == 2 : "Expected the query to run again at a new generation";
+        cache.stream(key, 8, query, note -> { });
+        assert query.runs == 2 : "Expected the page read at the new generation to be cached";
+        System.out.println("Write drops cached pages test passed.");
+    }
+
+    /**
+     * Test that a page is only served for as long as the time to live even with no writes
+     */
+    private static void testPagesExpire() throws Exception {
+        NotePageCache cache = new NotePageCache(10, 20);
+        CountingQuery query = new CountingQuery(1, false);
+        NotePageCache.Key key = NotePageCache.Key.search("a", null, 10);
+        cache.stream(key, 1, query, note -> { });
+        Thread.sleep(50);
+        cache.stream(key, 1, query, note -> { });
+        assert query.runs == 2 : "Expected the page to expire";
+        System.out.println("Pages expire test passed.");
+    }
+
+    /**
+     * Test that a herd asking for the same page that is not cached yet causes one query
+     */
+    private static void testConcurrentPageMissesShareOneQuery() throws Exception {
+        NotePageCache cache = new NotePageCache(10, 60_000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountingQuery query = new CountingQuery(5, false) {
+            @Override
+            public NoteCursor run(NoteSink sink) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.run(sink);
+            }
+        };
+        NotePageCache.Key key = NotePageCache.Key.search("viral", null, 100);
+
+        List<Future<List<Note>>> results = runAll(CALLERS, () -> {
+            List<Note> notes = new ArrayList<>();
+            cache.stream(key, 1, query, notes::add);
+            return notes;
+        });
+        waitFor(() -> cache.getShared() == CALLERS - 1);
+        release.countDown();
+        for (Future<List<Note>> result : results) {
+            assert result.get(5, TimeUnit.SECONDS).equals(query.notes) : "Expected every caller to get the page";
+        }
+        assert query.runs == 1 : "Expected one query but there were " + query.runs;
+        System.out.println("Concurrent page misses share one query test passed.");
+    }
+
+    /**
+     * Test that pages too big to hold in memory are streamed from the query every time
+     */
+    private static void testLargePagesSkipCache() throws IOException {
+        NotePageCache cache = new NotePageCache(10, 60_000);
+        CountingQuery query = new CountingQuery(3, false);
+        NotePageCache.Key key = NotePageCache.Key.search("a", null, NotePageCache.MAX_PAGE_NOTES + 1);
+        cache.stream(key, 1, query, note -> { });
+        cache.stream(key, 1, query, note -> { });
+        assert query.runs == 2 && cache.size() == 0 : "Expected a large page not to be cached";
+
+        NotePageCache off = new NotePageCache(0, 60_000);
+        off.stream(NotePageCache.Key.search("a", null, 10), 1, query, note -> { });
+        off.stream(NotePageCache.Key.search("a", null, 10), 1, query, note -> { });
+        assert query.runs == 4 && off.size() == 0 : "Expected nothing cached with a capacity of 0";
+        System.out.println("Large pages skip cache test passed.");
+    }
+
+    /**
+     * Test that the least recently read page is dropped once the cache is full
+     */
+    private static void testCapacity() throws IOException {
+        NotePageCache cache = new NotePageCache(2, 60_000);
+        CountingQuery query = new CountingQuery(1, false);
+        NotePageCache.Key a = NotePageCache.Key.search("a", null, 10);
+        NotePageCache.Key b = NotePageCache.Key.search("b", null, 10);
+        NotePageCache.Key c = NotePageCache.Key.search("c", null, 10);
+        cache.stream(a, 1, query, note -> { });
+        cache.stream(b, 1, query, note -> { });
+        cache.stream(a, 1, query, note -> { });
+        cache.stream(c, 1, query, note -> { });
+        assert cache.size() == 2 : "Expected the cache to stay at its capacity";
+        cache.stream(a, 1, query, note -> { });
+        assert query.runs == 3 : "Expected a to still be cached";
+        cache.stream(b, 1, query, note -> { });
+        assert query.runs == 4 : "Expected b to have been dropped";
+        System.out.println("Capacity test passed.");
+    }
+
+    /**
+     * Page of made up notes that counts how often it is read
+     */
+    private static class CountingQuery implements NotePageCache.PageQuery {
+        final List<Note> notes = new ArrayList<>();
+        final NoteCursor next;
+        volatile int runs;
+
+        CountingQuery(int count, boolean hasNext) {
+            for (int i = 0; i < count; i++) {
+                notes.add(new Note(UUID.randomUUID(), "note " + i, Instant.EPOCH.plusSeconds(i)));
+            }
+            next = hasNext ? NoteCursor.after(notes.get(count - 1)) : null;
+        }
+
+        @Override
+        public synchronized NoteCursor run(NoteSink sink) throws IOException {
+            runs++;
+            for (Note note : notes) {
+                sink.accept(note);
+            }
+            return next;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Start the same call on many threads at once
+     */
+    private static <T> List<Future<T>> runAll(int callers, Call<T> call) {
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        List<Future<T>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            results.add(executor.submit(call::call));
+        }
+        executor.shutdown();
+        return results;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assert System.nanoTime() < deadline : "Timed out waiting";
+            Thread.sleep(1);
+        }
+    }
+}
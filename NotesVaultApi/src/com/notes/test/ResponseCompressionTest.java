@@ -0,0 +1,232 @@
+package com.notes.test;
+
+import com.notes.InMemoryNoteStore;
+import com.notes.Note;
+import com.notes.NotesHandler;
+import com.notes.ResponseCompression;
+import com.notes.ResponseCompression.Encoding;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Business logic test for Accept-Encoding negotiation and compressed responses
+ */
+public class ResponseCompressionTest {
+
+    private static final String URL = "http://localhost:8085";
+    private static final ResponseCompression COMPRESSION = new ResponseCompression(ResponseCompression.DEFAULT_LEVEL, 1024);
+
+    public static void main(String[] args) throws Exception {
+        testNegotiation();
+        testRoundTrip();
+        testPooledDeflaterReused();
+        testLevelZeroTurnsOff();
+
+        InMemoryNoteStore noteStore = new InMemoryNoteStore();
+        for (int i = 0; i < 200; i++) {
+            noteStore.persistNote(new Note(UUID.randomUUID(), "Compressible note number " + i, Instant.now()));
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(8085), 0);
+        server.createContext("/notes", new NotesHandler(noteStore, null, COMPRESSION));
+        server.setExecutor(null);
+        server.start();
+
+        testLargeListCompressed();
+        testBufferedListCompressed();
+        testSmallResponseNotCompressed();
+        testNoAcceptEncoding();
+        testRatioMetrics();
+
+        server.stop(0);
+        System.out.println("All tests passed.");
+    }
+
+    /**
+     * Test that the coding with the highest q value wins, gzip wins a tie and q=0 rules a coding out
+     */
+    private static void testNegotiation() {
+        assert ResponseCompression.negotiate("gzip") == Encoding.GZIP : "Expected gzip";
+        assert ResponseCompression.negotiate("deflate") == Encoding.DEFLATE : "Expected deflate";
+        assert ResponseCompression.negotiate("deflate, gzip") == Encoding.GZIP : "Expected gzip to win a tie";
+        assert ResponseCompression.negotiate("gzip;q=0.5, deflate") == Encoding.DEFLATE : "Expected the higher q value";
+        assert ResponseCompression.negotiate("gzip ; q=0.8 , deflate;q=0.75") == Encoding.GZIP : "Expected spaces around parameters to be ignored";
+        assert ResponseCompression.negotiate("GZIP") == Encoding.GZIP : "Expected codings to be case insensitive";
+        assert ResponseCompression.negotiate("x-gzip") == Encoding.GZIP : "Expected x-gzip to mean gzip";
+        assert ResponseCompression.negotiate("gzip;q=0") == null : "Expected q=0 to rule gzip out";
+        assert ResponseCompression.negotiate("gzip;q=0.000, deflate;q=0") == null : "Expected q=0.000 to rule gzip out";
+        assert ResponseCompression.negotiate("*") == Encoding.GZIP : "Expected * to allow gzip";
+        assert ResponseCompression.negotiate("gzip;q=0, *") == Encoding.DEFLATE : "Expected * not to override a named coding";
+        assert ResponseCompression.negotiate("*;q=0") == null : "Expected *;q=0 to rule everything out";
+        assert ResponseCompression.negotiate("identity, br") == null : "Expected no supported coding";
+        assert ResponseCompression.negotiate("") == null : "Expected no coding for an empty header";
+        System.out.println("Negotiation test passed.");
+    }
+
+    /**
+     * Test that both encodings decompress back to what was written, including writes bigger than the buffer
+     */
+    private static void testRoundTrip() throws Exception {
+        byte[] data = sample(100_000);
+        for (Encoding encoding : Encoding.values()) {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            try (OutputStream out = COMPRESSION.compress(raw, encoding)) {
+                out.write(data, 0, 10);
+                out.write(data[10]);
+                out.write(data, 11, data.length - 11);
+            }
+            assert raw.size() < data.length / 2 : "Expected " + encoding + " to shrink repetitive data";
+            assert Arrays.equals(decode(encoding, raw.toByteArray()), data) : "Expected " + encoding + " to round trip";
+        }
+        System.out.println("Round trip test passed.");
+    }
+
+    /**
+     * Test that a deflater given back to the pool was reset, so the next response is not corrupted by the last one
+     */
+    private static void testPooledDeflaterReused() throws Exception {
+        ResponseCompression compression = new ResponseCompression(ResponseCompression.DEFAULT_LEVEL, 0);
+        byte[] first = sample(5000);
+        byte[] second = "second response".getBytes(StandardCharsets.UTF_8);
+        byte[][] outputs = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            try (OutputStream out = compression.compress(raw, Encoding.GZIP)) {
+                out.write(first);
+            }
+            raw = new ByteArrayOutputStream();
+            try (OutputStream out = compression.compress(raw, Encoding.GZIP)) {
+                out.write(second);
+            }
+            outputs[i] = raw.toByteArray();
+        }
+        assert Arrays.equals(decode(Encoding.GZIP, outputs[1]), second) : "Expected a reused deflater to start fresh";
+        assert Arrays.equals(outputs[0], outputs[1]) : "Expected the same output from a reused deflater";
+
+        compression.compress(new ByteArrayOutputStream(), Encoding.GZIP).discard();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (OutputStream out = compression.compress(raw, Encoding.GZIP)) {
+            out.write(second);
+        }
+        assert Arrays.equals(decode(Encoding.GZIP, raw.toByteArray()), second) : "Expected a discarded deflater to be reset";
+        System.out.println("Pooled deflater test passed.");
+    }
+
+    /**
+     * Test that level 0 never picks an encoding and bad levels are rejected
+     */
+    private static void testLevelZeroTurnsOff() {
+        assert !new ResponseCompression(0, 0).isEnabled() : "Expected level 0 to turn compression off";
+        try {
+            new ResponseCompression(10, 0);
+            assert false : "Expected level 10 to be rejected";
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        System.out.println("Level zero test passed.");
+    }
+
+    /**
+     * Test that a list too big for the response buffer is streamed compressed
+     */
+    private static void testLargeListCompressed() throws Exception {
+        Response plain = request("/notes?limit=200", null);
+        for (Encoding encoding : Encoding.values()) {
+            Response compressed = request("/notes?limit=200", encoding.token());
+            assert encoding.token().equals(compressed.encoding) : "Expected " + encoding.token() + " but got " + compressed.encoding;
+            assert compressed.body.length < plain.body.length / 2 : "Expected a smaller body";
+            assert Arrays.equals(decode(encoding, compressed.body), plain.body) : "Expected the same list after decoding";
+        }
+        System.out.println("Large list compressed test passed.");
+    }
+
+    /**
+     * Test that a list that fits in the response buffer but is over the threshold is compressed too
+     */
+    private static void testBufferedListCompressed() throws Exception {
+        Response plain = request("/notes?limit=20", null);
+        assert plain.body.length > 1024 && plain.body.length < 8192 : "Expected a list between the threshold and the buffer size";
+        Response compressed = request("/notes?limit=20", "gzip");
+        assert "gzip".equals(compressed.encoding) : "Expected a gzipped list";
+        assert Arrays.equals(decode(Encoding.GZIP, compressed.body), plain.body) : "Expected the same list after decoding";
+        System.out.println("Buffered list compressed test passed.");
+    }
+
+    /**
+     * Test that a response under the threshold is sent as it is even when the client accepts gzip
+     */
+    private static void testSmallResponseNotCompressed() throws Exception {
+        long skipped = COMPRESSION.getSkipped();
+        Response response = request("/notes?limit=1", "gzip, deflate");
+        assert response.encoding == null : "Expected a small response not to be compressed";
+        assert new String(response.body, StandardCharsets.UTF_8).contains("Compressible note") : "Expected the note as text";
+        assert response.vary != null && response.vary.contains("Accept-Encoding") : "Expected Vary: Accept-Encoding";
+        assert COMPRESSION.getSkipped() > skipped : "Expected the skipped response to be counted";
+        System.out.println("Small response not compressed test passed.");
+    }
+
+    /**
+     * Test that clients that do not ask for compression never get it
+     */
+    private static void testNoAcceptEncoding() throws Exception {
+        assert request("/notes?limit=200", null).encoding == null : "Expected no compression without Accept-Encoding";
+        assert request("/notes?limit=200", "identity").encoding == null : "Expected no compression for identity";
+        System.out.println("No Accept-Encoding test passed.");
+    }
+
+    /**
+     * Test that the bytes before and after compression are counted for the ratio
+     */
+    private static void testRatioMetrics() {
+        for (Encoding encoding : Encoding.values()) {
+            assert COMPRESSION.getResponses(encoding) > 0 : "Expected " + encoding + " responses counted";
+            long in = COMPRESSION.getBytesIn(encoding);
+            long out = COMPRESSION.getBytesOut(encoding);
+            assert in > 0 && out > 0 && out < in : "Expected output smaller than input but got " + out + " of " + in;
+        }
+        System.out.println("Ratio metrics test passed.");
+    }
+
+    private static byte[] sample(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("Line ").append(i).append(" of a note that repeats itself\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] decode(Encoding encoding, byte[] body) throws Exception {
+        InputStream raw = new ByteArrayInputStream(body);
+        try (InputStream in = encoding == Encoding.GZIP ? new GZIPInputStream(raw) : new InflaterInputStream(raw)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static Response request(String path, String acceptEncoding) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URI(URL + path).toURL().openConnection();
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        assert connection.getResponseCode() == 200 : "Expected 200 but got " + connection.getResponseCode();
+        byte[] body;
+        try (InputStream in = connection.getInputStream()) {
+            body = in.readAllBytes();
+        }
+        return new Response(connection.getHeaderField("Content-Encoding"), connection.getHeaderField("Vary"), body);
+    }
+
+    private record Response(String encoding, String vary, byte[] body) {
+    }
+}
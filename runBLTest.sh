@@ -1,3 +1,20 @@
 #!/bin/bash
 cd NotesVaultApi/src/com/notes/test/
-java -ea NotesHandlerTest.java
\ No newline at end of file
+java -ea NotesHandlerTest.java
+java -ea NoteSearchIndexTest.java
+java -ea InMemoryNoteStoreTest.java
+java -ea LogNoteStoreTest.java
+java -ea LatencyHistogramTest.java
+java -ea MetricsTest.java
+java -ea LoggerTest.java
+java -ea FormParserTest.java
+java -ea ConditionalRequestTest.java
+java -ea ResponseCompressionTest.java
+java -ea NoteJsonWriterTest.java
+java -ea NoteBinaryCodecTest.java
+java -ea ConcurrencyLimiterTest.java
+java -ea RequestCoalescingTest.java
+java -ea ReplicaRouterTest.java
+java -ea NoteCacheTest.java
+java -ea GroupCommitWriterTest.java
+java -ea ConnectionPoolTest.java
\ No newline at end of file
@@ -0,0 +1,24 @@
+#!/bin/bash
+# Build and run the JMH benchmarks in NotesVaultApi/bench with allocation profiling.
+# Any arguments are passed to JMH, for example ./runBenchmarks.sh NoteListBenchmark -p notes=10000
+set -e
+cd NotesVaultApi/bench
+
+JMH_VERSION=1.37
+MAVEN=https://repo1.maven.org/maven2
+mkdir -p libs
+for jar in \
+    org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar \
+    org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar \
+    net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+    org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar \
+    org/postgresql/postgresql/42.7.3/postgresql-42.7.3.jar; do
+    [ -f "libs/$(basename $jar)" ] || wget -q -P libs "$MAVEN/$jar"
+done
+
+# Compile the app and the benchmarks together so the annotation processor generates the JMH harness
+rm -rf out && mkdir -p out
+find ../src src -name "*.java" -not -path "*/test/*" > out/sources.txt
+javac -cp "libs/*" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d out @out/sources.txt
+
+java -cp "out:libs/*" org.openjdk.jmh.Main -prof gc -rf json -rff results.json "$@"
@@ -0,0 +1,15 @@
+#!/bin/bash
+# Build and run the load generator in NotesVaultApi/bench. Arguments are passed to it, for example
+# ./runLoadTest.sh --rate=500 --clients=64 --duration=60 against the app started with run.sh, or
+# ./runLoadTest.sh --server=memory to test against an in memory server started by the load generator
+set -e
+cd NotesVaultApi/bench
+
+mkdir -p libs
+[ -f libs/postgresql-42.7.3.jar ] || wget -q -P libs https://repo1.maven.org/maven2/org/postgresql/postgresql/42.7.3/postgresql-42.7.3.jar
+
+rm -rf out && mkdir -p out
+find ../src src/com/notes/load -name "*.java" -not -path "*/test/*" > out/sources.txt
+javac -proc:none -cp "libs/*" -d out @out/sources.txt
+
+java -cp "out:libs/*" com.notes.load.LoadGenerator "$@"